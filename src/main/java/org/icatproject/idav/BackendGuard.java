@@ -0,0 +1,429 @@
+package org.icatproject.idav;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.icatproject.idav.exceptions.BackendUnavailableException;
+
+/**
+ * Protects IDAV and a backend service (ICAT or IDS) from each other when the
+ * service slows down or fails.
+ *
+ * Every call to the service goes through the guard, which provides:
+ * <ul>
+ * <li>a bulkhead - at most maxConcurrent calls are made at once and further
+ * calls wait a short time for a slot before being rejected, so request
+ * threads do not pile up on a slow service and make it slower still</li>
+ * <li>a timeout - the caller gives up on a call that takes too long (the call
+ * keeps its slot until it really finishes)</li>
+ * <li>retries - calls that are safe to repeat are retried after failures that
+ * are likely to be temporary, with exponential backoff and jitter</li>
+ * <li>a circuit breaker - after failureThreshold consecutive failures, calls
+ * fail immediately for openMillis, after which a single trial call decides
+ * whether to close the circuit again</li>
+ * </ul>
+ *
+ * Only failures of the service itself count towards the circuit breaker and
+ * are retried. Errors that are the fault of the request (bad session, no such
+ * object, no permission etc.) are passed straight back.
+ */
+public class BackendGuard {
+
+    private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory.getLogger(BackendGuard.class);
+
+    /**
+     * A call to the service
+     *
+     * @param <T> the type of the result
+     * @param <E> the checked exception thrown by the service
+     */
+    public interface Call<T, E extends Exception> {
+        T call() throws E;
+    }
+
+    /**
+     * Decides whether an exception from the service means that the service
+     * is unhealthy (and that the call may succeed if tried again)
+     */
+    public interface FailureClassifier {
+        boolean isServiceFailure(Throwable t);
+    }
+
+    /**
+     * The settings for a guard, shared by the ICAT and IDS guards
+     */
+    public static class Settings {
+        int maxConcurrent = 32;
+        long queueWaitMillis = 5000;
+        long callTimeoutMillis = 0;
+        int maxRetries = 2;
+        long retryBaseMillis = 200;
+        int failureThreshold = 5;
+        long openMillis = 30000;
+
+        public Settings maxConcurrent(int maxConcurrent) {
+            this.maxConcurrent = Math.max(1, maxConcurrent);
+            return this;
+        }
+
+        public Settings queueWaitMillis(long queueWaitMillis) {
+            this.queueWaitMillis = queueWaitMillis;
+            return this;
+        }
+
+        /**
+         * @param callTimeoutMillis 0 to wait for calls however long they take
+         */
+        public Settings callTimeoutMillis(long callTimeoutMillis) {
+            this.callTimeoutMillis = callTimeoutMillis;
+            return this;
+        }
+
+        public Settings maxRetries(int maxRetries) {
+            this.maxRetries = maxRetries;
+            return this;
+        }
+
+        public Settings retryBaseMillis(long retryBaseMillis) {
+            this.retryBaseMillis = retryBaseMillis;
+            return this;
+        }
+
+        /**
+         * @param failureThreshold 0 to never open the circuit
+         */
+        public Settings failureThreshold(int failureThreshold) {
+            this.failureThreshold = failureThreshold;
+            return this;
+        }
+
+        public Settings openMillis(long openMillis) {
+            this.openMillis = openMillis;
+            return this;
+        }
+    }
+
+    private enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String name;
+    private final Settings settings;
+    private final FailureClassifier classifier;
+    private final Semaphore slots;
+    // Runs the calls that have a timeout so that the caller can stop waiting
+    private final ExecutorService timeoutExecutor;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures = 0;
+    private long openedAt = 0;
+    private boolean trialCallRunning = false;
+
+    // Statistics for the session info page
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong shortCircuited = new AtomicLong();
+    private final AtomicLong circuitOpenings = new AtomicLong();
+
+    public BackendGuard(final String name, Settings settings, FailureClassifier classifier) {
+        this.name = name;
+        this.settings = settings;
+        this.classifier = classifier;
+        this.slots = new Semaphore(settings.maxConcurrent, true);
+        if (settings.callTimeoutMillis > 0) {
+            // no more threads than slots can ever be busy
+            timeoutExecutor = Executors.newCachedThreadPool(new NamedThreadFactory("idav-" + name.toLowerCase() + "-call"));
+        } else {
+            timeoutExecutor = null;
+        }
+    }
+
+    /**
+     * Make a call to the service
+     *
+     * @param description what the call does, for the logs
+     * @param idempotent whether the call may safely be made more than once
+     * @param call the call
+     * @return the result of the call
+     * @throws E if the service throws it
+     * @throws BackendUnavailableException if the call was not made or was given up on
+     */
+    public <T, E extends Exception> T call(String description, boolean idempotent, Call<T, E> call) throws E {
+        return call(description, idempotent, true, call);
+    }
+
+    /**
+     * Make a call to the service that may take any amount of time, such as
+     * an upload, so is not subject to the call timeout
+     *
+     * @param description what the call does, for the logs
+     * @param call the call, which is never retried
+     * @return the result of the call
+     * @throws E if the service throws it
+     * @throws BackendUnavailableException if the call was not made
+     */
+    public <T, E extends Exception> T callWithoutTimeout(String description, Call<T, E> call) throws E {
+        return call(description, false, false, call);
+    }
+
+    private <T, E extends Exception> T call(String description, boolean idempotent, boolean timed, Call<T, E> call) throws E {
+        int attempt = 0;
+        while (true) {
+            try {
+                return attempt(description, timed, call);
+            } catch (Exception e) {
+                boolean serviceFailure = !(e instanceof BackendUnavailableException) && classifier.isServiceFailure(e);
+                if (!serviceFailure || !idempotent || attempt >= settings.maxRetries) {
+                    throw this.<E> rethrow(e);
+                }
+                attempt++;
+                retries.incrementAndGet();
+                long backoff = backoffMillis(attempt);
+                LOG.debug(name + " call '" + description + "' failed (" + e + ") - retry " + attempt + " in " + backoff + " ms");
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw rethrow(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * The methods named in idempotentMethods are retried and timed out. The
+     * others are neither, because giving up on a write that may still be done
+     * would leave the client not knowing whether it happened.
+     *
+     * @return an implementation of the interface that makes every call on
+     *         the target through this guard
+     */
+    public <T> T wrap(Class<T> serviceInterface, final T target, final Set<String> idempotentMethods) {
+        return serviceInterface.cast(Proxy.newProxyInstance(serviceInterface.getClassLoader(),
+                new Class<?>[] { serviceInterface }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, final Method method, final Object[] args) throws Throwable {
+                        if (method.getDeclaringClass() == Object.class) {
+                            return method.invoke(target, args);
+                        }
+                        boolean idempotent = idempotentMethods.contains(method.getName());
+                        return call(method.getName(), idempotent, idempotent, new Call<Object, Exception>() {
+                            @Override
+                            public Object call() throws Exception {
+                                try {
+                                    return method.invoke(target, args);
+                                } catch (InvocationTargetException e) {
+                                    throw unwrap(e.getCause());
+                                }
+                            }
+                        });
+                    }
+                }));
+    }
+
+    private <T, E extends Exception> T attempt(String description, boolean timed, final Call<T, E> call) throws Exception {
+        calls.incrementAndGet();
+        boolean trial = allowCall();
+        boolean gotSlot = false;
+        try {
+            gotSlot = slots.tryAcquire(settings.queueWaitMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (!gotSlot && trial) {
+                endTrial();
+            }
+        }
+        if (!gotSlot) {
+            rejected.incrementAndGet();
+            throw new BackendUnavailableException(name + " is too busy to make the call '" + description + "'",
+                    retryAfterSecs());
+        }
+
+        if (timeoutExecutor == null || !timed) {
+            try {
+                T result = call.call();
+                recordOutcome(null, trial);
+                return result;
+            } catch (Exception | Error e) {
+                recordOutcome(e, trial);
+                throw e;
+            } finally {
+                slots.release();
+            }
+        }
+
+        Future<T> future;
+        try {
+            future = timeoutExecutor.submit(new Callable<T>() {
+                @Override
+                public T call() throws Exception {
+                    try {
+                        return call.call();
+                    } finally {
+                        // only free the slot once the service has finished with the call
+                        slots.release();
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            slots.release();
+            if (trial) {
+                endTrial();
+            }
+            throw e;
+        }
+        try {
+            T result = future.get(settings.callTimeoutMillis, TimeUnit.MILLISECONDS);
+            recordOutcome(null, trial);
+            return result;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            recordOutcome(cause, trial);
+            throw unwrap(cause);
+        } catch (TimeoutException e) {
+            timeouts.incrementAndGet();
+            future.cancel(true);
+            BackendUnavailableException timeout = new BackendUnavailableException(
+                    name + " did not answer the call '" + description + "' within " + settings.callTimeoutMillis + " ms",
+                    retryAfterSecs(), e);
+            recordOutcome(timeout, trial);
+            throw timeout;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.cancel(true);
+            if (trial) {
+                endTrial();
+            }
+            throw new BackendUnavailableException("Interrupted while waiting for " + name, retryAfterSecs(), e);
+        }
+    }
+
+    // Decide whether a call may go ahead, returning true if it is the trial
+    // call of a half open circuit
+    private synchronized boolean allowCall() {
+        if (state == State.CLOSED) {
+            return false;
+        }
+        if (state == State.OPEN && System.currentTimeMillis() - openedAt >= settings.openMillis) {
+            state = State.HALF_OPEN;
+            LOG.info("Circuit for " + name + " is half open - trying a call");
+        }
+        if (state == State.HALF_OPEN && !trialCallRunning) {
+            trialCallRunning = true;
+            return true;
+        }
+        shortCircuited.incrementAndGet();
+        throw new BackendUnavailableException(name + " is unavailable after repeated failures", retryAfterSecs());
+    }
+
+    private synchronized void endTrial() {
+        trialCallRunning = false;
+    }
+
+    private synchronized void recordOutcome(Throwable t, boolean trial) {
+        if (trial) {
+            trialCallRunning = false;
+        }
+        boolean failed = t != null && (t instanceof BackendUnavailableException || classifier.isServiceFailure(t));
+        if (!failed) {
+            // includes errors that are the fault of the request. Only the trial
+            // call can close an open circuit - a call that was let through
+            // before the circuit opened says nothing about the service now
+            if (trial && state != State.CLOSED) {
+                LOG.info("Circuit for " + name + " is closed again");
+                state = State.CLOSED;
+            }
+            if (state == State.CLOSED) {
+                consecutiveFailures = 0;
+            }
+            return;
+        }
+        failures.incrementAndGet();
+        consecutiveFailures++;
+        if ((state == State.HALF_OPEN && trial)
+                || (state == State.CLOSED && settings.failureThreshold > 0 && consecutiveFailures >= settings.failureThreshold)) {
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+            circuitOpenings.incrementAndGet();
+            LOG.warn("Circuit for " + name + " opened after " + consecutiveFailures + " consecutive failures, the last being: " + t);
+        }
+    }
+
+    // Full jitter: a random wait of up to base * 2^(attempt - 1)
+    private long backoffMillis(int attempt) {
+        long ceiling = settings.retryBaseMillis << Math.min(attempt - 1, 16);
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    private int retryAfterSecs() {
+        return (int) Math.max(1, settings.openMillis / 1000);
+    }
+
+    private static Exception unwrap(Throwable t) {
+        if (t instanceof Exception) {
+            return (Exception) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        return new RuntimeException(t);
+    }
+
+    // The exceptions that can reach here are those thrown by the call
+    // (E or unchecked) and the guard's own (unchecked) ones
+    @SuppressWarnings("unchecked")
+    private <E extends Exception> E rethrow(Exception e) throws E {
+        throw (E) e;
+    }
+
+    public synchronized String getState() {
+        return state.name();
+    }
+
+    /**
+     * Stop the threads used to time out calls. Calls still waiting for an
+     * answer are given up on.
+     */
+    public void shutdown() {
+        if (timeoutExecutor != null) {
+            timeoutExecutor.shutdownNow();
+        }
+    }
+
+    public String getStats() {
+        String currentState;
+        int currentFailures;
+        synchronized (this) {
+            currentState = state.name();
+            currentFailures = consecutiveFailures;
+        }
+        return name + " calls: circuit=" + currentState
+                + ", consecutive failures=" + currentFailures
+                + ", in progress=" + (settings.maxConcurrent - slots.availablePermits()) + "/" + settings.maxConcurrent
+                + ", calls=" + calls.get()
+                + ", failures=" + failures.get()
+                + ", retries=" + retries.get()
+                + ", timeouts=" + timeouts.get()
+                + ", rejected as busy=" + rejected.get()
+                + ", failed fast=" + shortCircuited.get()
+                + ", times opened=" + circuitOpenings.get();
+    }
+
+}
@@ -0,0 +1,710 @@
+package org.icatproject.idav;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.icatproject.idav.cache.TimedCache;
+import org.icatproject.idav.exceptions.WebdavException;
+import org.icatproject.idav.manager.PropertyManager;
+
+/**
+ * An IWebdavStore that wraps another IWebdavStore and caches the StoredObjects
+ * that it returns for a short period of time.
+ *
+ * During a Windows Explorer copy of a single file getStoredObject is called
+ * about 12 times for the same URI and each of those calls is an ICAT search in
+ * the IcatStore. The cached objects are only intended to be very short lived
+ * (a few seconds) so that they cover the duration of a typical file transfer.
+ *
+ * Entries are cached per user (a hash of the authString) and URI and are
+ * removed for all users whenever a call to this store modifies the object at
+ * that URI.
+ *
+ * Lookups of URIs that do not exist are also remembered in a separate cache
+ * because Windows clients repeatedly probe for files such as desktop.ini and
+ * Thumbs.db. These entries are removed for all users whenever something is
+ * created at, above or below that URI.
+ *
+ * The names of the children of each collection are cached in the same way
+ * because clients re-list the same folder many times while browsing and
+ * copying. A listing is removed for all users when a call to this store adds,
+ * removes or moves one of the children of that collection. Changes made
+ * outside of IDAV (or which show up in more than one place in the hierarchy,
+ * such as under "My Data") are only picked up once the entry has expired.
+ *
+ * If prefetching is enabled then whenever a listing is fetched from the
+ * wrapped store, the StoredObjects of the children are fetched in the
+ * background with a single call to getChildrenWithStoredObjects and put into
+ * the StoredObject cache, because clients almost always go on to ask for each
+ * child in turn. The number of folders being prefetched is limited and nothing
+ * is prefetched once the StoredObject cache is full, so that prefetched objects
+ * never push out objects that have actually been asked for.
+ */
+public class CachingWebdavStore implements IWebdavStore {
+
+    private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory.getLogger(CachingWebdavStore.class);
+
+    private final IWebdavStore store;
+
+    private final TimedCache<CacheKey, StoredObject> storedObjectCache;
+
+    // null if the not found cache is disabled
+    private final TimedCache<CacheKey, Boolean> notFoundCache;
+
+    // null if the listing cache is disabled
+    private final TimedCache<CacheKey, String[]> listingCache;
+
+    // null if prefetching is disabled
+    private final ThreadPoolExecutor prefetchExecutor;
+    // The folders currently queued or being prefetched
+    private final Set<CacheKey> pendingPrefetches = Collections.newSetFromMap(new ConcurrentHashMap<CacheKey, Boolean>());
+    // Marks the StoredObjects in the cache that were put there by a prefetch
+    // and have not yet been asked for
+    private final TimedCache<CacheKey, Boolean> prefetchedKeys;
+    // Incremented whenever anything is removed from the caches so that a lookup
+    // or prefetch that was running at the time does not put back a stale entry
+    private final AtomicLong invalidationCount = new AtomicLong();
+
+    // Prefetch statistics for the session info page
+    private final AtomicLong prefetchesScheduled = new AtomicLong();
+    private final AtomicLong prefetchesAlreadyPending = new AtomicLong();
+    private final AtomicLong prefetchesRejected = new AtomicLong();
+    private final AtomicLong prefetchesCancelled = new AtomicLong();
+    private final AtomicLong prefetchesFailed = new AtomicLong();
+    private final AtomicLong prefetchedObjects = new AtomicLong();
+    private final AtomicLong prefetchedObjectHits = new AtomicLong();
+
+    // The cache is keyed on the user and the URI so that one user is never
+    // given an object that they are not allowed to see. The user is identified
+    // by the hash of their auth string so that the cache does not hold on to
+    // their credentials.
+    private static final class CacheKey {
+        private final String authKey;
+        private final String uri;
+
+        private CacheKey(String authKey, String uri) {
+            this.authKey = authKey;
+            this.uri = uri;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof CacheKey)) {
+                return false;
+            }
+            CacheKey other = (CacheKey) obj;
+            return authKey.equals(other.authKey) && uri.equals(other.uri);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * authKey.hashCode() + uri.hashCode();
+        }
+    }
+
+    // Matches the given URI and, if required, everything beneath it for all users
+    private static class UriFilter implements TimedCache.KeyFilter<CacheKey> {
+        protected final String uri;
+        private final String uriPrefix;
+        private final boolean includeDescendants;
+
+        private UriFilter(String uri, boolean includeDescendants) {
+            this.uri = uri;
+            this.uriPrefix = uri.endsWith("/") ? uri : uri + "/";
+            this.includeDescendants = includeDescendants;
+        }
+
+        @Override
+        public boolean matches(CacheKey key) {
+            return key.uri.equals(uri) || (includeDescendants && key.uri.startsWith(uriPrefix));
+        }
+    }
+
+    // Also matches the folders above the given URI, which may have been
+    // created along with it (see lazyFolderCreationOnPut)
+    private static final class UriAndAncestorsFilter extends UriFilter {
+
+        private UriAndAncestorsFilter(String uri) {
+            super(uri, true);
+        }
+
+        @Override
+        public boolean matches(CacheKey key) {
+            if (super.matches(key)) {
+                return true;
+            }
+            String keyPrefix = key.uri.endsWith("/") ? key.uri : key.uri + "/";
+            return uri.startsWith(keyPrefix);
+        }
+    }
+
+    public CachingWebdavStore(IWebdavStore store, PropertyManager properties) {
+        this.store = store;
+        this.storedObjectCache = new TimedCache<>(properties.getStoredObjectCacheTtlSecs() * 1000L,
+                properties.getStoredObjectCacheMaxSize());
+        if (properties.getNotFoundCacheTtlSecs() > 0) {
+            this.notFoundCache = new TimedCache<>(properties.getNotFoundCacheTtlSecs() * 1000L,
+                    properties.getNotFoundCacheMaxSize());
+        } else {
+            this.notFoundCache = null;
+        }
+        if (properties.getListingCacheTtlSecs() > 0) {
+            this.listingCache = new TimedCache<>(properties.getListingCacheTtlSecs() * 1000L,
+                    properties.getListingCacheMaxSize());
+        } else {
+            this.listingCache = null;
+        }
+        if (properties.getPrefetchThreads() > 0 && properties.getStoredObjectCacheTtlSecs() > 0) {
+            this.prefetchExecutor = createPrefetchExecutor(properties.getPrefetchThreads(),
+                    properties.getPrefetchQueueSize());
+            this.prefetchedKeys = new TimedCache<>(properties.getStoredObjectCacheTtlSecs() * 1000L,
+                    properties.getStoredObjectCacheMaxSize());
+        } else {
+            this.prefetchExecutor = null;
+            this.prefetchedKeys = null;
+        }
+        LOG.info("CachingWebdavStore wrapping " + store.getClass().getSimpleName());
+    }
+
+    private static ThreadPoolExecutor createPrefetchExecutor(int threads, int queueSize) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)), new NamedThreadFactory("idav-prefetch"));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Check whether any of the caches provided by this class are enabled
+     *
+     * @param properties the IDAV properties
+     * @return true if it is worth wrapping the store in a CachingWebdavStore
+     */
+    public static boolean isEnabled(PropertyManager properties) {
+        return properties.getStoredObjectCacheTtlSecs() > 0
+                || properties.getNotFoundCacheTtlSecs() > 0
+                || properties.getListingCacheTtlSecs() > 0;
+    }
+
+    @Override
+    public void begin() {
+        store.begin();
+    }
+
+    @Override
+    public void checkAuthentication(RequestContext context) {
+        store.checkAuthentication(context);
+    }
+
+    @Override
+    public void commit(RequestContext context) {
+        store.commit(context);
+    }
+
+    @Override
+    public void rollback(RequestContext context) {
+        store.rollback(context);
+    }
+
+    @Override
+    public void createFolder(RequestContext context, String folderUri) {
+        try {
+            store.createFolder(context, folderUri);
+        } finally {
+            invalidate(folderUri, true);
+            invalidateNotFound(folderUri);
+            invalidateListings(folderUri);
+        }
+    }
+
+    @Override
+    public void createResource(RequestContext context, String resourceUri) {
+        try {
+            store.createResource(context, resourceUri);
+        } finally {
+            invalidate(resourceUri, false);
+            invalidateNotFound(resourceUri);
+            invalidateListings(resourceUri);
+        }
+    }
+
+    @Override
+    public InputStream getResourceContent(RequestContext context, String resourceUri) {
+        return store.getResourceContent(context, resourceUri);
+    }
+
+    @Override
+    public InputStream getResourceContent(RequestContext context, String resourceUri, long offset) {
+        return store.getResourceContent(context, resourceUri, offset);
+    }
+
+    @Override
+    public InputStream getFolderContentAsZip(RequestContext context, String folderUri) {
+        return store.getFolderContentAsZip(context, folderUri);
+    }
+
+    @Override
+    public long setResourceContent(RequestContext context, String resourceUri,
+            InputStream content, String contentType, String characterEncoding) {
+        try {
+            return store.setResourceContent(context, resourceUri, content, contentType, characterEncoding);
+        } finally {
+            invalidate(resourceUri, false);
+            invalidateNotFound(resourceUri);
+            invalidateListings(resourceUri);
+        }
+    }
+
+    @Override
+    public String[] getChildrenNames(RequestContext context, String folderUri) {
+        if (listingCache == null) {
+            String[] names = store.getChildrenNames(context, folderUri);
+            schedulePrefetch(context, folderUri, names);
+            return names;
+        }
+        CacheKey key = new CacheKey(context.getAuthKey(), normaliseUri(folderUri));
+        String[] names = listingCache.get(key);
+        if (names != null) {
+            // the children will have been prefetched when the listing was cached
+            LOG.trace("CachingWebdavStore.getChildrenNames(" + folderUri + ") - returning cached listing");
+        } else {
+            long invalidationsAtStart = invalidationCount.get();
+            names = store.getChildrenNames(context, folderUri);
+            if (names == null) {
+                return null;
+            }
+            if (invalidationCount.get() == invalidationsAtStart) {
+                listingCache.put(key, names.clone());
+                schedulePrefetch(context, folderUri, names);
+            } else {
+                // something may have changed while the children were being fetched
+                LOG.trace("Not caching the children of '" + folderUri + "' after a change");
+            }
+        }
+        // the callers sometimes modify the array they are given
+        return names.clone();
+    }
+
+    @Override
+    public Map<String, StoredObject> getChildrenWithStoredObjects(RequestContext context, String folderUri) {
+        String folderPrefix = normaliseUri(folderUri);
+        if (!folderPrefix.endsWith("/")) {
+            folderPrefix += "/";
+        }
+        if (listingCache != null) {
+            Map<String, StoredObject> cachedChildren = getCachedChildren(context, folderUri, folderPrefix);
+            if (cachedChildren != null) {
+                LOG.trace("CachingWebdavStore.getChildrenWithStoredObjects(" + folderUri + ") - returning cached listing");
+                return cachedChildren;
+            }
+        }
+        long invalidationsAtStart = invalidationCount.get();
+        Map<String, StoredObject> children = store.getChildrenWithStoredObjects(context, folderUri);
+        if (children == null) {
+            return null;
+        }
+        if (invalidationCount.get() != invalidationsAtStart) {
+            // something may have changed while the children were being fetched
+            LOG.trace("Not caching the children of '" + folderUri + "' after a change");
+            return children;
+        }
+        if (listingCache != null) {
+            listingCache.put(new CacheKey(context.getAuthKey(), normaliseUri(folderUri)),
+                    children.keySet().toArray(new String[children.size()]));
+        }
+        // the objects for the children are very likely to be asked for next
+        // so put copies of them all in the cache while we have them, leaving
+        // the caller free to change the originals
+        for (Map.Entry<String, StoredObject> child : children.entrySet()) {
+            StoredObject so = child.getValue();
+            if (so != null) {
+                CacheKey key = new CacheKey(context.getAuthKey(), folderPrefix + child.getKey());
+                storedObjectCache.put(key, so.copy());
+                if (notFoundCache != null) {
+                    // it may have been created by something other than this store
+                    notFoundCache.remove(key);
+                }
+            }
+        }
+        return children;
+    }
+
+    @Override
+    public Iterator<Map.Entry<String, StoredObject>> iterateChildrenWithStoredObjects(RequestContext context, String folderUri) {
+        String folderPrefix = normaliseUri(folderUri);
+        if (!folderPrefix.endsWith("/")) {
+            folderPrefix += "/";
+        }
+        if (listingCache != null) {
+            Map<String, StoredObject> cachedChildren = getCachedChildren(context, folderUri, folderPrefix);
+            if (cachedChildren != null) {
+                LOG.trace("CachingWebdavStore.iterateChildrenWithStoredObjects(" + folderUri + ") - returning cached listing");
+                return cachedChildren.entrySet().iterator();
+            }
+        }
+        Iterator<Map.Entry<String, StoredObject>> children = store.iterateChildrenWithStoredObjects(context, folderUri);
+        if (children == null) {
+            return null;
+        }
+        return new CachingChildIterator(children, context.getAuthKey(), normaliseUri(folderUri), folderPrefix);
+    }
+
+    // Caches the children as they are passed on to the caller. Only the first
+    // half a cache's worth are cached so that listing a very large folder does
+    // not push everything else out of the cache, and the listing itself is only
+    // cached if all of its children were.
+    private class CachingChildIterator implements Iterator<Map.Entry<String, StoredObject>> {
+        private final Iterator<Map.Entry<String, StoredObject>> children;
+        private final String authKey;
+        private final String folderUri;
+        private final String folderPrefix;
+        private final int maxCachedChildren = storedObjectCache.getMaxSize() / 2;
+        private final long invalidationsAtStart = invalidationCount.get();
+        // null once the listing can no longer be cached
+        private List<String> names;
+        private int count = 0;
+
+        private CachingChildIterator(Iterator<Map.Entry<String, StoredObject>> children, String authKey,
+                String folderUri, String folderPrefix) {
+            this.children = children;
+            this.authKey = authKey;
+            this.folderUri = folderUri;
+            this.folderPrefix = folderPrefix;
+            this.names = listingCache == null ? null : new ArrayList<String>();
+        }
+
+        @Override
+        public boolean hasNext() {
+            boolean hasNext = children.hasNext();
+            if (!hasNext && names != null) {
+                if (invalidationCount.get() == invalidationsAtStart) {
+                    listingCache.put(new CacheKey(authKey, folderUri), names.toArray(new String[names.size()]));
+                }
+                names = null;
+            }
+            return hasNext;
+        }
+
+        @Override
+        public Map.Entry<String, StoredObject> next() {
+            Map.Entry<String, StoredObject> child = children.next();
+            count++;
+            if (count > maxCachedChildren) {
+                names = null;
+                return child;
+            }
+            StoredObject so = child.getValue();
+            if (so != null) {
+                CacheKey key = new CacheKey(authKey, folderPrefix + child.getKey());
+                storedObjectCache.put(key, so.copy());
+                if (notFoundCache != null) {
+                    notFoundCache.remove(key);
+                }
+            }
+            if (names != null) {
+                names.add(child.getKey());
+            }
+            return child;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    @Override
+    public long getResourceLength(RequestContext context, String resourceUri) {
+        return store.getResourceLength(context, resourceUri);
+    }
+
+    @Override
+    public void removeObject(RequestContext context, String uri) {
+        try {
+            store.removeObject(context, uri);
+        } finally {
+            invalidate(uri, true);
+            invalidateListings(uri);
+        }
+    }
+
+    @Override
+    public boolean supportsBulkRemove() {
+        return store.supportsBulkRemove();
+    }
+
+    @Override
+    public boolean doBulkRemove(RequestContext context, String folderUri, Map<String, Integer> errorList) {
+        try {
+            return store.doBulkRemove(context, folderUri, errorList);
+        } finally {
+            invalidate(folderUri, true);
+            invalidateListings(folderUri);
+        }
+    }
+
+    @Override
+    public String getSerialWriteFolder(String uri) {
+        return store.getSerialWriteFolder(uri);
+    }
+
+    @Override
+    public StoredObject getStoredObject(RequestContext context, String uri) throws WebdavException {
+        CacheKey key = new CacheKey(context.getAuthKey(), normaliseUri(uri));
+        StoredObject so = storedObjectCache.get(key);
+        if (so != null) {
+            LOG.trace("CachingWebdavStore.getStoredObject(" + uri + ") - returning cached object");
+            if (prefetchedKeys != null && prefetchedKeys.get(key) != null) {
+                // only count the first time each prefetched object is used
+                prefetchedKeys.remove(key);
+                prefetchedObjectHits.incrementAndGet();
+            }
+            return so.copy();
+        }
+        if (notFoundCache != null && notFoundCache.get(key) != null) {
+            LOG.trace("CachingWebdavStore.getStoredObject(" + uri + ") - cached as not found");
+            return null;
+        }
+        long invalidationsAtStart = invalidationCount.get();
+        so = store.getStoredObject(context, uri);
+        if (invalidationCount.get() != invalidationsAtStart) {
+            // something may have changed while the object was being fetched
+            LOG.trace("Not caching '" + uri + "' after a change");
+        } else if (so != null) {
+            // keep our own copy because the callers sometimes modify the object they are given
+            storedObjectCache.put(key, so.copy());
+        } else if (notFoundCache != null) {
+            notFoundCache.put(key, Boolean.TRUE);
+        }
+        return so;
+    }
+
+    @Override
+    public boolean supportsDirectMove() {
+        return store.supportsDirectMove();
+    }
+
+    @Override
+    public void doDirectMove(RequestContext context, String sourceUri, String destinationUri) {
+        try {
+            store.doDirectMove(context, sourceUri, destinationUri);
+        } finally {
+            invalidate(sourceUri, true);
+            invalidate(destinationUri, true);
+            invalidateNotFound(destinationUri);
+            invalidateListings(sourceUri);
+            invalidateListings(destinationUri);
+        }
+    }
+
+    @Override
+    public List<String> getSessionInfo() {
+        List<String> sessionInfo = store.getSessionInfo();
+        sessionInfo.add("");
+        sessionInfo.add(storedObjectCache.getStats("StoredObject cache"));
+        if (notFoundCache != null) {
+            sessionInfo.add(notFoundCache.getStats("Not found cache"));
+        }
+        if (listingCache != null) {
+            sessionInfo.add(listingCache.getStats("Listing cache"));
+        }
+        if (prefetchExecutor != null) {
+            sessionInfo.add(getPrefetchStats());
+        }
+        return sessionInfo;
+    }
+
+    @Override
+    public void destroy() {
+        if (prefetchExecutor != null) {
+            prefetchExecutor.shutdownNow();
+        }
+        store.destroy();
+    }
+
+    private String getPrefetchStats() {
+        long objects = prefetchedObjects.get();
+        long hits = prefetchedObjectHits.get();
+        String hitRatio = objects == 0 ? "n/a" : String.format("%.1f%%", 100.0 * hits / objects);
+        return "Prefetch: active=" + prefetchExecutor.getActiveCount()
+                + ", queued=" + prefetchExecutor.getQueue().size()
+                + ", scheduled=" + prefetchesScheduled.get()
+                + ", already pending=" + prefetchesAlreadyPending.get()
+                + ", rejected=" + prefetchesRejected.get()
+                + ", cancelled (cache full)=" + prefetchesCancelled.get()
+                + ", failed=" + prefetchesFailed.get()
+                + ", objects prefetched=" + objects
+                + ", prefetched then hit=" + hits
+                + ", hit ratio=" + hitRatio;
+    }
+
+    /**
+     * Queue a background fetch of the StoredObjects of the children of a
+     * folder, unless that folder is already being prefetched, the queue is
+     * full or the StoredObject cache is full
+     */
+    private void schedulePrefetch(RequestContext context, String folderUri, String[] names) {
+        if (prefetchExecutor == null || names == null || names.length == 0) {
+            return;
+        }
+        if (isStoredObjectCacheFull()) {
+            prefetchesCancelled.incrementAndGet();
+            return;
+        }
+        final String folder = normaliseUri(folderUri);
+        final CacheKey folderKey = new CacheKey(context.getAuthKey(), folder);
+        if (!pendingPrefetches.add(folderKey)) {
+            prefetchesAlreadyPending.incrementAndGet();
+            return;
+        }
+        // the request's context is not used once the request has finished but
+        // the session it found can be used to save looking it up again
+        final RequestContext prefetchContext = new RequestContext(context.getAuthString());
+        prefetchContext.setIcatSessionId(context.getIcatSessionId());
+        prefetchContext.setUserId(context.getUserId());
+        try {
+            prefetchExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        prefetchChildren(prefetchContext, folder);
+                    } catch (Throwable e) {
+                        prefetchesFailed.incrementAndGet();
+                        LOG.warn("Prefetch of the children of '" + folder + "' failed: " + e.getMessage());
+                    } finally {
+                        pendingPrefetches.remove(folderKey);
+                    }
+                }
+            });
+            prefetchesScheduled.incrementAndGet();
+        } catch (RejectedExecutionException e) {
+            pendingPrefetches.remove(folderKey);
+            prefetchesRejected.incrementAndGet();
+            LOG.trace("Prefetch queue full - not prefetching the children of '" + folder + "'");
+        }
+    }
+
+    private void prefetchChildren(RequestContext context, String folder) {
+        if (isStoredObjectCacheFull()) {
+            prefetchesCancelled.incrementAndGet();
+            return;
+        }
+        long invalidationsAtStart = invalidationCount.get();
+        Map<String, StoredObject> children = store.getChildrenWithStoredObjects(context, folder);
+        if (children == null) {
+            // the children at this level can not be fetched with one query and
+            // fetching them one at a time would cost more than it saves
+            LOG.trace("Unable to prefetch the children of '" + folder + "'");
+            return;
+        }
+        String folderPrefix = folder.endsWith("/") ? folder : folder + "/";
+        int count = 0;
+        for (Map.Entry<String, StoredObject> child : children.entrySet()) {
+            if (child.getValue() == null) {
+                continue;
+            }
+            if (isStoredObjectCacheFull()) {
+                prefetchesCancelled.incrementAndGet();
+                break;
+            }
+            if (invalidationCount.get() != invalidationsAtStart) {
+                // something may have changed while the children were being fetched
+                LOG.trace("Discarding prefetch of the children of '" + folder + "' after a change");
+                break;
+            }
+            CacheKey key = new CacheKey(context.getAuthKey(), folderPrefix + child.getKey());
+            storedObjectCache.put(key, child.getValue());
+            prefetchedKeys.put(key, Boolean.TRUE);
+            if (notFoundCache != null) {
+                notFoundCache.remove(key);
+            }
+            count++;
+        }
+        prefetchedObjects.addAndGet(count);
+        LOG.trace("Prefetched " + count + " StoredObjects for the children of '" + folder + "'");
+    }
+
+    private boolean isStoredObjectCacheFull() {
+        return storedObjectCache.size() >= storedObjectCache.getMaxSize();
+    }
+
+    private void invalidate(String uri, boolean includeDescendants) {
+        invalidationCount.incrementAndGet();
+        UriFilter filter = new UriFilter(normaliseUri(uri), includeDescendants);
+        if (prefetchedKeys != null) {
+            prefetchedKeys.removeMatching(filter);
+        }
+        int removed = storedObjectCache.removeMatching(filter);
+        LOG.trace("Removed " + removed + " cached StoredObjects for uri: '" + uri + "'");
+    }
+
+    // Rebuild a listing from the cache, but only if the listing and all of the
+    // StoredObjects of the children are still in the cache
+    private Map<String, StoredObject> getCachedChildren(RequestContext context, String folderUri, String folderPrefix) {
+        String[] names = listingCache.get(new CacheKey(context.getAuthKey(), normaliseUri(folderUri)));
+        if (names == null) {
+            return null;
+        }
+        Map<String, StoredObject> children = new LinkedHashMap<>();
+        for (String name : names) {
+            StoredObject so = storedObjectCache.get(new CacheKey(context.getAuthKey(), folderPrefix + name));
+            if (so == null) {
+                return null;
+            }
+            children.put(name, so.copy());
+        }
+        return children;
+    }
+
+    // Remove the listing of the collection containing the uri, which will have
+    // gained or lost a child, along with any listings of the uri and below it
+    private void invalidateListings(String uri) {
+        invalidationCount.incrementAndGet();
+        if (listingCache != null) {
+            String normalisedUri = normaliseUri(uri);
+            int removed = listingCache.removeMatching(new UriFilter(normalisedUri, true));
+            removed += listingCache.removeMatching(new UriFilter(getParentUri(normalisedUri), false));
+            LOG.trace("Removed " + removed + " cached listings for uri: '" + uri + "'");
+        }
+    }
+
+    private void invalidateNotFound(String uri) {
+        invalidationCount.incrementAndGet();
+        if (notFoundCache != null) {
+            int removed = notFoundCache.removeMatching(new UriAndAncestorsFilter(normaliseUri(uri)));
+            LOG.trace("Removed " + removed + " cached not found entries for uri: '" + uri + "'");
+        }
+    }
+
+    // The methods are called with and without trailing slashes for the same object
+    private static String normaliseUri(String uri) {
+        String normalised = uri;
+        while (normalised.length() > 1 && normalised.endsWith("/")) {
+            normalised = normalised.substring(0, normalised.length() - 1);
+        }
+        return normalised;
+    }
+
+    private static String getParentUri(String normalisedUri) {
+        int lastSlash = normalisedUri.lastIndexOf('/');
+        if (lastSlash <= 0) {
+            return "/";
+        }
+        return normalisedUri.substring(0, lastSlash);
+    }
+
+}
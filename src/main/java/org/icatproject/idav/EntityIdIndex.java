@@ -0,0 +1,101 @@
+package org.icatproject.idav;
+
+import org.icatproject.idav.cache.TimedCache;
+
+/**
+ * Remembers the ICAT ids of the Datasets that have been found from the names
+ * in a URI so that later queries for the Datafiles beneath them can use
+ * dataset.id=N instead of matching the facility, investigation and dataset
+ * names through a chain of joins.
+ *
+ * The index is keyed on the facility, investigation and dataset names rather
+ * than the full URI because the same Dataset can be reached through more than
+ * one path in the hierarchy (eg. with or without the instrument and cycle).
+ * Entries are removed when IDAV renames or deletes a Facility, Investigation or
+ * Dataset and expire after a TTL to cover changes made directly in ICAT.
+ */
+public class EntityIdIndex {
+
+    private static final String SEPARATOR = "/";
+
+    private final TimedCache<String, Long> datasetIds;
+
+    // Matches the key for a path and all of the keys beneath it
+    private static final class PrefixFilter implements TimedCache.KeyFilter<String> {
+        private final String key;
+        private final String keyPrefix;
+
+        private PrefixFilter(String key) {
+            this.key = key;
+            this.keyPrefix = key + SEPARATOR;
+        }
+
+        @Override
+        public boolean matches(String candidate) {
+            return candidate.equals(key) || candidate.startsWith(keyPrefix);
+        }
+    }
+
+    public EntityIdIndex(long ttlMillis, int maxSize) {
+        this.datasetIds = new TimedCache<>(ttlMillis, maxSize);
+    }
+
+    /**
+     * Get the id of the Dataset identified by the names
+     *
+     * @param icatEntityNames the names from the URI
+     * @return the id or null if it is not (or can not be) known
+     */
+    public Long getDatasetId(IcatEntityNames icatEntityNames) {
+        String key = createDatasetKey(icatEntityNames);
+        if (key == null) {
+            return null;
+        }
+        return datasetIds.get(key);
+    }
+
+    public void putDatasetId(IcatEntityNames icatEntityNames, Long datasetId) {
+        String key = createDatasetKey(icatEntityNames);
+        if (key != null && datasetId != null) {
+            datasetIds.put(key, datasetId);
+        }
+    }
+
+    /**
+     * Remove the entries for everything at or beneath the deepest of the
+     * facility, investigation and dataset names that are set
+     *
+     * @param icatEntityNames the names from the URI being renamed or deleted
+     * @return the number of entries removed
+     */
+    public int removeUnder(IcatEntityNames icatEntityNames) {
+        String key = icatEntityNames.getFacilityName();
+        if (key == null) {
+            datasetIds.clear();
+            return 0;
+        }
+        if (icatEntityNames.getInvestigationName() != null) {
+            key += SEPARATOR + icatEntityNames.getInvestigationName();
+            if (icatEntityNames.getDatasetName() != null) {
+                key += SEPARATOR + icatEntityNames.getDatasetName();
+            }
+        }
+        return datasetIds.removeMatching(new PrefixFilter(key));
+    }
+
+    public String getStats() {
+        return datasetIds.getStats("Dataset id index");
+    }
+
+    private static String createDatasetKey(IcatEntityNames icatEntityNames) {
+        if (icatEntityNames.getFacilityName() == null
+                || icatEntityNames.getInvestigationName() == null
+                || icatEntityNames.getDatasetName() == null) {
+            return null;
+        }
+        return icatEntityNames.getFacilityName()
+                + SEPARATOR + icatEntityNames.getInvestigationName()
+                + SEPARATOR + icatEntityNames.getDatasetName();
+    }
+
+}
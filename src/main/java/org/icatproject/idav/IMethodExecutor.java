@@ -24,7 +24,7 @@ import org.icatproject.idav.exceptions.LockFailedException;
 
 public interface IMethodExecutor {
 
-    void execute(String authString, HttpServletRequest req,
+    void execute(RequestContext context, HttpServletRequest req,
             HttpServletResponse resp) throws IOException, LockFailedException;
 
 }
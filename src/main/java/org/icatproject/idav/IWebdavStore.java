@@ -24,9 +24,11 @@
 package org.icatproject.idav;
 
 import java.io.InputStream;
+import java.util.Iterator;
 //import java.security.Principal;
 
 import java.util.List;
+import java.util.Map;
 
 import org.icatproject.idav.exceptions.WebdavException;
 
@@ -42,10 +44,10 @@ public interface IWebdavStore {
     /**
      * Indicates that a new request or transaction with this store involved has
      * been started. The request will be terminated by either 
-     * {@link #commit(String authString)} or
-     * {@link #rollback(String authString)}. If only non-read methods
+     * {@link #commit(RequestContext)} or
+     * {@link #rollback(RequestContext)}. If only non-read methods
      * have been called, the request will be terminated by a
-     * {@link #commit(String authString)}. This method will be
+     * {@link #commit(RequestContext)}. This method will be
      * called by (@link WebdavStoreAdapter} at the beginning of each request.
      * 
      * 
@@ -61,88 +63,133 @@ public interface IWebdavStore {
      * Checks if authentication information passed in is valid. If not throws an
      * exception.
      * 
-     * @param authString
-     *      the base64 encoded Authorization string exactly as sent
-     *      in the HTTP header from the client
+     * @param context
+     *      the context of the request, holding the base64 encoded
+     *      Authorization string exactly as sent in the HTTP header
+     *      from the client
      */
-    void checkAuthentication(String authString);
+    void checkAuthentication(RequestContext context);
 
     /**
      * Indicates that all changes done inside this request shall be made
      * permanent and any transactions, connections and other temporary resources
      * shall be terminated.
      * 
-     * @param authString
-     *      the base64 encoded Authorization string exactly as sent
-     *      in the HTTP header from the client
+     * @param context
+     *      the context of the request, holding the base64 encoded
+     *      Authorization string exactly as sent in the HTTP header
+     *      from the client
      * 
      * @throws WebdavException
      *      if something goes wrong on the store level
      */
-    void commit(String authString);
+    void commit(RequestContext context);
 
     /**
      * Indicates that all changes done inside this request shall be undone and
      * any transactions, connections and other temporary resources shall be
      * terminated.
      * 
-     * @param authString
-     *      the base64 encoded Authorization string exactly as sent
-     *      in the HTTP header from the client
+     * @param context
+     *      the context of the request, holding the base64 encoded
+     *      Authorization string exactly as sent in the HTTP header
+     *      from the client
      * 
      * @throws WebdavException
      *      if something goes wrong on the store level
      */
-    void rollback(String authString);
+    void rollback(RequestContext context);
 
     /**
      * Creates a folder at the position specified by <code>folderUri</code>.
      * 
-     * @param authString
-     *      the base64 encoded Authorization string exactly as sent
-     *      in the HTTP header from the client
+     * @param context
+     *      the context of the request, holding the base64 encoded
+     *      Authorization string exactly as sent in the HTTP header
+     *      from the client
      * @param folderUri
      *      URI of the folder
      * @throws WebdavException
      *      if something goes wrong on the store level
      */
-    void createFolder(String authString, String folderUri);
+    void createFolder(RequestContext context, String folderUri);
 
     /**
      * Creates a content resource at the position specified by
      * <code>resourceUri</code>.
      * 
-     * @param authString
-     *      the base64 encoded Authorization string exactly as sent
-     *      in the HTTP header from the client
+     * @param context
+     *      the context of the request, holding the base64 encoded
+     *      Authorization string exactly as sent in the HTTP header
+     *      from the client
      * @param resourceUri
      *      URI of the content resource
      * @throws WebdavException
      *      if something goes wrong on the store level
      */
-    void createResource(String authString, String resourceUri);
+    void createResource(RequestContext context, String resourceUri);
 
     /**
      * Gets the content of the resource specified by <code>resourceUri</code>.
      * 
-     * @param authString
-     *      the base64 encoded Authorization string exactly as sent
-     *      in the HTTP header from the client
+     * @param context
+     *      the context of the request, holding the base64 encoded
+     *      Authorization string exactly as sent in the HTTP header
+     *      from the client
      * @param resourceUri
      *      URI of the content resource
      * @return input stream you can read the content of the resource from
      * @throws WebdavException
      *      if something goes wrong on the store level
      */
-    InputStream getResourceContent(String authString, String resourceUri);
+    InputStream getResourceContent(RequestContext context, String resourceUri);
+
+    /**
+     * Gets the content of the resource specified by <code>resourceUri</code>
+     * starting at the given offset, so that a range of a large file can be
+     * sent without reading everything before it.
+     * 
+     * @param context
+     *      the context of the request, holding the base64 encoded
+     *      Authorization string exactly as sent in the HTTP header
+     *      from the client
+     * @param resourceUri
+     *      URI of the content resource
+     * @param offset
+     *      the number of bytes to skip from the start of the resource
+     * @return input stream you can read the content of the resource from,
+     *      positioned at <code>offset</code>
+     * @throws WebdavException
+     *      if something goes wrong on the store level
+     */
+    InputStream getResourceContent(RequestContext context, String resourceUri, long offset);
+
+    /**
+     * Gets everything beneath the folder specified by <code>folderUri</code>
+     * as a single ZIP file, so that a whole folder can be downloaded in one
+     * request.
+     * 
+     * @param context
+     *      the context of the request, holding the base64 encoded
+     *      Authorization string exactly as sent in the HTTP header
+     *      from the client
+     * @param folderUri
+     *      URI of the folder
+     * @return input stream you can read the ZIP file from, or null if the
+     *      store is unable to provide this folder as a ZIP file
+     * @throws WebdavException
+     *      if something goes wrong on the store level
+     */
+    InputStream getFolderContentAsZip(RequestContext context, String folderUri);
 
     /**
      * Sets / stores the content of the resource specified by
      * <code>resourceUri</code>.
      * 
-     * @param authString
-     *      the base64 encoded Authorization string exactly as sent
-     *      in the HTTP header from the client
+     * @param context
+     *      the context of the request, holding the base64 encoded
+     *      Authorization string exactly as sent in the HTTP header
+     *      from the client
      * @param resourceUri
      *      URI of the resource where the content will be stored
      * @param content
@@ -156,16 +203,17 @@ public interface IWebdavStore {
      * @throws WebdavException
      *      if something goes wrong on the store level
      */
-    long setResourceContent(String authString, String resourceUri,
+    long setResourceContent(RequestContext context, String resourceUri,
             InputStream content, String contentType, String characterEncoding);
 
     /**
      * Gets the names of the children of the folder specified by
      * <code>folderUri</code>.
      * 
-     * @param authString
-     *      the base64 encoded Authorization string exactly as sent
-     *      in the HTTP header from the client
+     * @param context
+     *      the context of the request, holding the base64 encoded
+     *      Authorization string exactly as sent in the HTTP header
+     *      from the client
      * @param folderUri
      *      URI of the folder
      * @return a (possibly empty) list of children, or <code>null</code> if the
@@ -173,15 +221,59 @@ public interface IWebdavStore {
      * @throws WebdavException
      *      if something goes wrong on the store level
      */
-    String[] getChildrenNames(String authString, String folderUri);
+    String[] getChildrenNames(RequestContext context, String folderUri);
+
+    /**
+     * Gets the names of the children of the folder specified by
+     * <code>folderUri</code> together with their StoredObjects. This allows
+     * a folder listing to be built without a separate call to
+     * {@link #getStoredObject(RequestContext, String)} for every child.
+     * 
+     * @param context
+     *      the context of the request, holding the base64 encoded
+     *      Authorization string exactly as sent in the HTTP header
+     *      from the client
+     * @param folderUri
+     *      URI of the folder
+     * @return a (possibly empty) map of child names to StoredObjects in the
+     *  order they should be listed, or <code>null</code> if the store is unable
+     *  to do this in bulk for this folder, in which case the caller should fall
+     *  back to {@link #getChildrenNames(RequestContext, String)}
+     * @throws WebdavException
+     *      if something goes wrong on the store level
+     */
+    Map<String, StoredObject> getChildrenWithStoredObjects(RequestContext context, String folderUri);
+
+    /**
+     * Gets the same children as
+     * {@link #getChildrenWithStoredObjects(RequestContext, String)} but
+     * returns them as they are fetched rather than all at once, so that a
+     * listing of a very large folder can be sent to the client without being
+     * held in memory.
+     * 
+     * @param context
+     *      the context of the request, holding the base64 encoded
+     *      Authorization string exactly as sent in the HTTP header
+     *      from the client
+     * @param folderUri
+     *      URI of the folder
+     * @return an iterator over the child names and StoredObjects in the order
+     *  they should be listed, or <code>null</code> if the store is unable to
+     *  do this in bulk for this folder. The iterator may throw a
+     *  WebdavException if something goes wrong while fetching the children.
+     * @throws WebdavException
+     *      if something goes wrong on the store level
+     */
+    Iterator<Map.Entry<String, StoredObject>> iterateChildrenWithStoredObjects(RequestContext context, String folderUri);
 
     /**
      * Gets the length of the content resource specified by
      * <code>resourceUri</code>.
      * 
-     * @param authString
-     *      the base64 encoded Authorization string exactly as sent
-     *      in the HTTP header from the client
+     * @param context
+     *      the context of the request, holding the base64 encoded
+     *      Authorization string exactly as sent in the HTTP header
+     *      from the client
      * @param resourceUri
      *      URI of the content resource
      * @return length of the resource in bytes, <code>-1</code> declares this
@@ -190,32 +282,80 @@ public interface IWebdavStore {
      * @throws WebdavException
      *      if something goes wrong on the store level
      */
-    long getResourceLength(String authString, String resourceUri);
+    long getResourceLength(RequestContext context, String resourceUri);
 
     /**
      * Removes the object specified by <code>uri</code>.
      * 
-     * @param authString
-     *      the base64 encoded Authorization string exactly as sent
-     *      in the HTTP header from the client
+     * @param context
+     *      the context of the request, holding the base64 encoded
+     *      Authorization string exactly as sent in the HTTP header
+     *      from the client
      * @param uri
      *      URI of the object, i.e. content resource or folder
      * @throws WebdavException
      *      if something goes wrong on the store level
      */
-    void removeObject(String authString, String uri);
+    void removeObject(RequestContext context, String uri);
+
+    /**
+     * Determines whether the store can remove a folder and everything
+     * beneath it with a few calls to its backend (see doBulkRemove) instead
+     * of DoDelete having to remove each object in the folder one at a time.
+     * 
+     * @return whether doBulkRemove may be called
+     */
+    boolean supportsBulkRemove();
+
+    /**
+     * Method to be implemented if the supportsBulkRemove method returns true.
+     * Removes the folder specified by <code>folderUri</code> along with
+     * everything beneath it.
+     * 
+     * @param context
+     *      the context of the request, holding the base64 encoded
+     *      Authorization string exactly as sent in the HTTP header
+     *      from the client
+     * @param folderUri
+     *      URI of the folder
+     * @param errorList
+     *      receives the URI and WebDAV status of anything that could not be
+     *      removed, for the multistatus report
+     * @return false if this folder can not be removed in bulk, in which case
+     *      nothing has been removed and the caller must remove the objects
+     *      in it one at a time
+     * @throws WebdavException
+     *      if something goes wrong on the store level
+     */
+    boolean doBulkRemove(RequestContext context, String folderUri, Map<String, Integer> errorList);
+
+    /**
+     * Gets the folder that is locked by the store while something is being
+     * written beneath it, so that writes anywhere in that folder have to be
+     * made one after another. IDS, for example, locks a whole Dataset while a
+     * file is being put into it, including into the virtual folders within
+     * the Dataset.
+     * 
+     * @param uri
+     *      URI of a folder or resource that is about to be written to
+     * @return the URI of the folder that writing to <code>uri</code> locks,
+     *      or null if writing to it does not lock anything beyond the
+     *      folder it is in
+     */
+    String getSerialWriteFolder(String uri);
 
     /**
      * Gets the storedObject specified by <code>uri</code>
      * 
-     * @param authString
-     *      the base64 encoded Authorization string exactly as sent
-     *      in the HTTP header from the client
+     * @param context
+     *      the context of the request, holding the base64 encoded
+     *      Authorization string exactly as sent in the HTTP header
+     *      from the client
      * @param uri
      *      URI
      * @return StoredObject
      */
-    StoredObject getStoredObject(String authString, String uri);
+    StoredObject getStoredObject(RequestContext context, String uri);
     
     
     /**
@@ -235,15 +375,16 @@ public interface IWebdavStore {
     /**
      * Method to be implemented if the supportsDirectMove method returns true.
      * 
-     * @param authString
-     *      the base64 encoded Authorization string exactly as sent
-     *      in the HTTP header from the client
+     * @param context
+     *      the context of the request, holding the base64 encoded
+     *      Authorization string exactly as sent in the HTTP header
+     *      from the client
      * @param sourceUri
      * 		The current URI of the object to be moved 
      * @param destinationUri
      * 		The URI to move it to
      */
-    void doDirectMove(String authString, String sourceUri, String destinationUri);
+    void doDirectMove(RequestContext context, String sourceUri, String destinationUri);
 
     /**
      * Return any session information that is being held by the Store implementation.
@@ -257,5 +398,12 @@ public interface IWebdavStore {
      * 		using a variety of methods and with whatever separators the caller wants
      */
     List<String> getSessionInfo();
+
+    /**
+     * Stop any background threads started by the Store implementation. This
+     * is called once when the servlet is taken out of service, after which
+     * the store is not used again.
+     */
+    void destroy();
     
 }
@@ -17,10 +17,14 @@ package org.icatproject.idav;
 
 import java.util.HashMap;
 import java.util.List;
-import org.icatproject.idav.IcatStore;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import org.apache.commons.lang3.StringUtils;
 
 /**
+ * Creates the ICAT queries needed to navigate the hierarchy in the
+ * idav.structure file. The queries for each position in the hierarchy are
+ * compiled into templates when the mapper is created.
  *
  * @author yqa41233
  */
@@ -28,11 +32,24 @@ public class IcatMapper {
     
     private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory.getLogger(IcatMapper.class);
     
+    // Optional key in the icatEntityValues holding the id of the Dataset
+    // (if it is already known) to use when querying for its Datafiles
+    public static final String DATASET_ID = "DatasetId";
+
     private static final String GENERAL_MAPPING = " JOIN datafile.dataset dataset JOIN dataset.investigation investigation ";
     private static final String INSTRUMENT_INVESTIGATION = " JOIN investigation.investigationInstruments investigationInstrument JOIN investigationInstrument.instrument instrument ";
 
     public static HashMap<String, String> icatMap = new HashMap<>();
 
+    // Finds the alias of the entity being selected from, eg. "datafile" in
+    // "SELECT datafile.name FROM Datafile datafile JOIN ..."
+    private static final Pattern FROM_ALIAS = Pattern.compile("\\sFROM\\s+\\w+\\s+(\\w+)", Pattern.CASE_INSENSITIVE);
+    // Finds what is selected and the alias of the entity it is selected from,
+    // which are the same when the entity itself is selected
+    private static final Pattern SELECT_AND_FROM_ALIAS = Pattern.compile("^\\s*SELECT\\s+(\\w+)\\s+FROM\\s+\\w+\\s+(\\w+)",
+            Pattern.CASE_INSENSITIVE);
+    private static final Pattern WHERE = Pattern.compile("\\sWHERE\\s", Pattern.CASE_INSENSITIVE);
+
     static {
         // Datafile Mapping
         icatMap.put("Dataset-Datafile", " JOIN datafile.dataset dataset, dataset.investigation investigation, investigation.facility facility ");
@@ -61,10 +78,43 @@ public class IcatMapper {
         icatMap.put("Instrument-FacilityCycle-Investigation", " , investigation.facility as facility , facility.instruments as instrument , facility.facilityCycles as facilityCycle , investigation.investigationInstruments as investigationInstrumentPivot , investigationInstrumentPivot.instrument as investigationInstrument  ");
     }
 
-    private String createWhere(List<IcatEntity> hierarchy, HashMap<String, String> icatEntityValues, int currentPosition, boolean child) {
-        LOG.info("Creating the WHERE part of the query");
+    // Compiled templates, indexed by position in the hierarchy
+    private final QueryTemplate[] childNamesTemplates;
+    private final QueryTemplate[] selfTemplates;
+    private final QueryTemplate[] childEntitiesTemplates;
+    private final QueryTemplate[] myDataChildNamesTemplates;
+    private final QueryTemplate[] myDataSelfTemplates;
 
-        String where = " WHERE ";
+    /**
+     * Compiles a query template for every position in the hierarchy so that
+     * each query only needs the values from the URI binding to it.
+     *
+     * @param hierarchy the hierarchy from the idav.structure file
+     */
+    public IcatMapper(List<IcatEntity> hierarchy) {
+        int size = hierarchy.size();
+        childNamesTemplates = new QueryTemplate[size];
+        selfTemplates = new QueryTemplate[size];
+        childEntitiesTemplates = new QueryTemplate[size];
+        myDataChildNamesTemplates = new QueryTemplate[size];
+        myDataSelfTemplates = new QueryTemplate[size];
+        for (int position = 0; position < size; position++) {
+            childNamesTemplates[position] = compileQuery(hierarchy, position, true);
+            selfTemplates[position] = compileQuery(hierarchy, position, false);
+            childEntitiesTemplates[position] = compileChildEntitiesQuery(hierarchy, position);
+            myDataChildNamesTemplates[position] = MyDataMapper.compileQuery(hierarchy, position, true);
+            myDataSelfTemplates[position] = MyDataMapper.compileQuery(hierarchy, position, false);
+            LOG.info("Query templates for " + hierarchy.get(position).getEntity() + " (position " + position + "):");
+            LOG.info("  children: " + childNamesTemplates[position]);
+            LOG.info("  self: " + selfTemplates[position]);
+            LOG.info("  child entities: " + childEntitiesTemplates[position]);
+            LOG.info("  My Data children: " + myDataChildNamesTemplates[position]);
+            LOG.info("  My Data self: " + myDataSelfTemplates[position]);
+        }
+    }
+
+    private static QueryTemplate compileWhere(List<IcatEntity> hierarchy, int currentPosition, boolean child) {
+        QueryTemplate.Builder where = new QueryTemplate.Builder().append(" WHERE ");
 
         IcatEntity parentEntity = hierarchy.get(currentPosition - 1);
         IcatEntity childEntity = hierarchy.get(currentPosition);
@@ -72,80 +122,83 @@ public class IcatMapper {
         String childName = childEntity.getEntity();
         String parentName = parentEntity.getEntity();
         
-        LOG.info("Child name = " + childName);
-        LOG.info("Parent name = " + parentName);
-        
         if (!child) {
-            LOG.info("Not a child!");
-            String childWhereValue = "";
-            String childValue = icatEntityValues.get(childEntity.getEntity());
-
             // Handle the possible combined columns
             if (childName.equals("Investigation")) {
                 // If combined columns split the name and visit id  
-                if (childValue.contains(childEntity.getColumnCombineValue())) {
-                    String[] investigationValues = childValue.split(childEntity.getColumnCombineValue());
-                    childWhereValue = " investigation.name='" + investigationValues[0].trim() + "' AND investigation.visitId='" + investigationValues[1].trim() + "'";
-                }
+                String combineValue = childEntity.getColumnCombineValue();
+                QueryTemplate nameAndVisit = new QueryTemplate.Builder()
+                        .append(" investigation.name='").append(QueryTemplate.combinedPart(childName, combineValue, 0))
+                        .append("' AND investigation.visitId='").append(QueryTemplate.combinedPart(childName, combineValue, 1))
+                        .append("'").build();
+                where.append(QueryTemplate.choice(QueryTemplate.contains(childName, combineValue),
+                        nameAndVisit, new QueryTemplate.Builder().build()));
             } else if (childName.equals("Dataset")) {
                 if (parentName.equals("Investigation")) {
-                    String parentValue = icatEntityValues.get(parentName);
                     // If combined columns split the name and visit id  
-                    if (parentValue.contains(parentEntity.getColumnCombineValue())) {
-                        String[] investigationValues = parentValue.split(parentEntity.getColumnCombineValue());
-                        childWhereValue = " investigation.name='" + investigationValues[0].trim() + "' AND investigation.visitId='" + investigationValues[1].trim() + "' AND ";
-                    }
+                    String combineValue = parentEntity.getColumnCombineValue();
+                    QueryTemplate nameAndVisit = new QueryTemplate.Builder()
+                            .append(" investigation.name='").append(QueryTemplate.combinedPart(parentName, combineValue, 0))
+                            .append("' AND investigation.visitId='").append(QueryTemplate.combinedPart(parentName, combineValue, 1))
+                            .append("' AND ").build();
+                    where.append(QueryTemplate.choice(QueryTemplate.contains(parentName, combineValue),
+                            nameAndVisit, new QueryTemplate.Builder().build()));
                 }
-                childWhereValue += StringUtils.uncapitalize(childEntity.getEntity()) + "." + childEntity.getAttribute() + "='" + childValue + "'";
+                where.append(StringUtils.uncapitalize(childName) + "." + childEntity.getAttribute() + "='")
+                        .append(QueryTemplate.value(childName)).append("'");
             } else if (childName.equals("Instrument")) {
             	// TODO - KP 22/12/16 - why is fullName specified here when we have specified
             	// Instrument should use the attribute 'name' in the idav.structure file?
-                childWhereValue = " instrument.fullName='" + childValue + "'";
+                where.append(" instrument.fullName='").append(QueryTemplate.value(childName)).append("'");
             }
             else {
-                childWhereValue = StringUtils.uncapitalize(childEntity.getEntity()) + "." + childEntity.getAttribute() + "='" + childValue + "'";
+                where.append(StringUtils.uncapitalize(childName) + "." + childEntity.getAttribute() + "='")
+                        .append(QueryTemplate.value(childName)).append("'");
             }
-            where += childWhereValue;
         } 
         
         // If parent is FacilityCycle want to do between startDate and endDate of child entity.
-        else if (parentEntity.getEntity().equals("FacilityCycle")) {
+        else if (parentName.equals("FacilityCycle")) {
             IcatEntity grandParentEntity = hierarchy.get(currentPosition - 2);
-            String parentWhereValue = StringUtils.uncapitalize(grandParentEntity.getEntity()) + "." + grandParentEntity.getAttribute() + "='" + icatEntityValues.get(grandParentEntity.getEntity()) + "' AND facilityCycle.name='" + icatEntityValues.get(parentEntity.getEntity()) + "' AND investigationInstrument.name= instrument.name AND  " + StringUtils.uncapitalize(childEntity.getEntity()) + ".startDate BETWEEN facilityCycle.startDate AND facilityCycle.endDate ";
-            where += parentWhereValue;
+            String grandParentName = grandParentEntity.getEntity();
+            where.append(StringUtils.uncapitalize(grandParentName) + "." + grandParentEntity.getAttribute() + "='")
+                    .append(QueryTemplate.value(grandParentName))
+                    .append("' AND facilityCycle.name='").append(QueryTemplate.value(parentName))
+                    .append("' AND investigationInstrument.name= instrument.name AND  " + StringUtils.uncapitalize(childName)
+                            + ".startDate BETWEEN facilityCycle.startDate AND facilityCycle.endDate ");
         } else {
-            String parentWhereValue = "";
-            String parentValue = icatEntityValues.get(parentEntity.getEntity());
-
-            if (parentEntity.getEntity().equals("Investigation") && !parentEntity.getColumnCombineValue().equals("")) {
-                String[] investigationValues = parentValue.split(parentEntity.getColumnCombineValue());
-                parentWhereValue = " investigation.name='" + investigationValues[0].trim() + "' AND investigation.visitId='" + investigationValues[1].trim() + "'";
+            if (parentName.equals("Investigation") && !parentEntity.getColumnCombineValue().equals("")) {
+                String combineValue = parentEntity.getColumnCombineValue();
+                where.append(" investigation.name='").append(QueryTemplate.combinedPart(parentName, combineValue, 0))
+                        .append("' AND investigation.visitId='").append(QueryTemplate.combinedPart(parentName, combineValue, 1))
+                        .append("'");
             } else if (childName.equals("Datafile")) {
-                // Get all of the values needed
-                String investigation = icatEntityValues.get("Investigation");
-                String[] investigationAndVisit =  IcatStore.getInvestigationAndVisit(Utils.escapeStringForIcatQuery(investigation));
-                investigation = investigationAndVisit[0];
-                String visitId = investigationAndVisit[1];
-                String dataset = icatEntityValues.get("Dataset");
-                String facility = icatEntityValues.get("Facility");
-                
-                parentWhereValue = " dataset.name='" + dataset + "' AND investigation.name='" + investigation + "' AND investigation.visitId='" + 
-                                   visitId + "' AND facility.name='" + facility + "'";
+                // The Dataset id is used instead of the facility name if it is already known.
+                // The other names are still matched in case the Dataset with that id has
+                // been renamed outside of IDAV, which only costs a join on the Dataset's own row.
+                QueryTemplate byId = new QueryTemplate.Builder()
+                        .append(" dataset.id=").append(QueryTemplate.id(DATASET_ID))
+                        .append(" AND dataset.name='").append(QueryTemplate.value("Dataset"))
+                        .append("' AND investigation.name='").append(QueryTemplate.investigationPart("Investigation", 0))
+                        .append("' AND investigation.visitId='").append(QueryTemplate.investigationPart("Investigation", 1))
+                        .append("'").build();
+                QueryTemplate byNames = new QueryTemplate.Builder()
+                        .append(" dataset.name='").append(QueryTemplate.value("Dataset"))
+                        .append("' AND investigation.name='").append(QueryTemplate.investigationPart("Investigation", 0))
+                        .append("' AND investigation.visitId='").append(QueryTemplate.investigationPart("Investigation", 1))
+                        .append("' AND facility.name='").append(QueryTemplate.value("Facility"))
+                        .append("'").build();
+                where.append(QueryTemplate.choice(QueryTemplate.present(DATASET_ID), byId, byNames));
             } else {
-                parentWhereValue = StringUtils.uncapitalize(parentEntity.getEntity()) + "." + parentEntity.getAttribute() + "='" + parentValue + "'";
+                where.append(StringUtils.uncapitalize(parentName) + "." + parentEntity.getAttribute() + "='")
+                        .append(QueryTemplate.value(parentName)).append("'");
             }
-            where += parentWhereValue;
         }
         
-        LOG.info("WHERE = [" + where + "]");
-        
-        return where;
+        return where.build();
     }
 
-    private String createJoin(List<IcatEntity> hierarchy, int currentPosition, boolean child) {
-        LOG.info("Creating the JOIN part of the query");
-
-        String join = "";
+    private static String compileJoin(List<IcatEntity> hierarchy, int currentPosition) {
         String key = "";
 
         IcatEntity childEntity = hierarchy.get(currentPosition);
@@ -158,70 +211,183 @@ public class IcatMapper {
         } else {
             key = parentEntity.getEntity() + "-" + childEntity.getEntity();
         }
-        join = icatMap.get(key);
-        
-        LOG.info("JOIN = [" + join + "]");
-        
+        String join = icatMap.get(key);
+        if (join == null) {
+            LOG.warn("No JOIN mapping for " + key + " - queries at this level will not work");
+            join = "";
+        }
         return join;
     }
 
-    public String createQuery(List<IcatEntity> hierarchy, HashMap<String, String> icatEntityValues, int currentPosition, boolean child, String userId) {
-        // If we are in the MyData folder, we need to call the other mapper class to deal with the specific
-        // queries that we need to do in this folder.
-        if (icatEntityValues.get("Facility") != null && icatEntityValues.get("Facility").equals("My Data")) {
-            LOG.info("Calling MyDataMapper to create the query");
-            MyDataMapper mapper = new MyDataMapper();
-            return mapper.createQuery(hierarchy, icatEntityValues, currentPosition, child, userId);
-        }
-        LOG.debug("Creating SELECT part of query");
-        
-        LOG.info ("Current position = " + currentPosition);
-        
+    private static QueryTemplate compileQuery(List<IcatEntity> hierarchy, int currentPosition, boolean child) {
         IcatEntity entity = hierarchy.get(currentPosition);
-        
-        LOG.info("Entity = " + entity.getEntity());
-        LOG.info("Boolean child = " + child);
-        
-        String finalQuery = "";
-        String select = "SELECT ";
-
         String entityName = entity.getEntity();
 
+        QueryTemplate.Builder query = new QueryTemplate.Builder();
+
         // Child is if we need to get all children else we only need the specific entity.
         if (child) {
             // If combined columns required to hold uniqueness then need to combine visitId and Name
             if (entityName.equals("Investigation") && !entity.getColumnCombineValue().equals("")) {
-                select = "SELECT investigation FROM Investigation investigation ";
+                query.append("SELECT investigation FROM Investigation investigation ");
             } else if (entityName.equals("Instrument")) {
             	// TODO - KP 22/12/16 - why is fullName specified here when we have specified
             	// Instrument should use the attribute 'name' in the idav.structure file?
-                select = "SELECT instrument.fullName FROM Instrument instrument";
+                query.append("SELECT instrument.fullName FROM Instrument instrument");
             } else if (entityName.equals("Datafile")) {
-                select = "SELECT datafile.name FROM Datafile datafile";
+                query.append("SELECT datafile.name FROM Datafile datafile");
             }
             else {
-                select += StringUtils.uncapitalize(entityName) + "." + entity.getAttribute() + " FROM " + entity.getEntity() + " " + StringUtils.uncapitalize(entityName);
+                query.append("SELECT " + StringUtils.uncapitalize(entityName) + "." + entity.getAttribute() + " FROM " + entityName + " " + StringUtils.uncapitalize(entityName));
             }
         } else {
-            select += StringUtils.uncapitalize(entityName) + " FROM " + entity.getEntity() + " " + StringUtils.uncapitalize(entityName);
+            query.append("SELECT " + StringUtils.uncapitalize(entityName) + " FROM " + entityName + " " + StringUtils.uncapitalize(entityName));
         }
 
-        finalQuery += select;
-        LOG.info("SELECT = [" + select + "]");
-
         // Only do Join and where if past root.
         if (currentPosition > 0) {
             // Only need a join if getting all the children or a Dataset or Datafile.
             if (child || entityName.equals("Dataset") || entityName.equals("Datafile")) {
-                finalQuery += createJoin(hierarchy, currentPosition, child);
+                query.append(compileJoin(hierarchy, currentPosition));
             }
 
-            finalQuery += createWhere(hierarchy, icatEntityValues, currentPosition, child);
+            query.append(compileWhere(hierarchy, currentPosition, child));
+        }
+        
+        return query.build();
+    }
+
+    // Returns null if the children at this position cannot be listed as entities
+    private static QueryTemplate compileChildEntitiesQuery(List<IcatEntity> hierarchy, int currentPosition) {
+        if (currentPosition == 0) {
+            return null;
+        }
+        IcatEntity entity = hierarchy.get(currentPosition);
+        String entityName = entity.getEntity();
+        if (!entityName.equals("Datafile") && !(entityName.equals("Investigation") && !entity.getColumnCombineValue().equals(""))) {
+            return null;
+        }
+        String alias = StringUtils.uncapitalize(entityName);
+        return new QueryTemplate.Builder()
+                .append("SELECT " + alias + " FROM " + entityName + " " + alias)
+                .append(compileJoin(hierarchy, currentPosition))
+                .append(compileWhere(hierarchy, currentPosition, true))
+                .build();
+    }
+
+    private static boolean isMyData(HashMap<String, String> icatEntityValues) {
+        return icatEntityValues.get("Facility") != null && icatEntityValues.get("Facility").equals("My Data");
+    }
+
+    public String createQuery(HashMap<String, String> icatEntityValues, int currentPosition, boolean child, String userId) {
+        String query;
+        // If we are in the MyData folder, we need to use the queries from the
+        // MyDataMapper class which deal with the specific queries for this folder.
+        if (isMyData(icatEntityValues)) {
+            QueryTemplate template = child ? myDataChildNamesTemplates[currentPosition] : myDataSelfTemplates[currentPosition];
+            HashMap<String, String> values = new HashMap<>(icatEntityValues);
+            values.put(MyDataMapper.USER_ID, userId);
+            query = template.bind(values);
+        } else {
+            QueryTemplate template = child ? childNamesTemplates[currentPosition] : selfTemplates[currentPosition];
+            query = template.bind(icatEntityValues);
         }
         
-        LOG.info("Full query: " + finalQuery);
+        LOG.debug("Full query: " + query);
         
-        return finalQuery;
+        return query;
+    }
+
+    /**
+     * Creates a query that returns the child entities themselves rather than
+     * just their names, so that a folder listing can be built from a single
+     * ICAT search. This is currently only possible for children that are
+     * Investigations or Datafiles outside of the MyData folder.
+     *
+     * @return the query or null if the children cannot be listed in this way
+     */
+    public String createChildEntitiesQuery(HashMap<String, String> icatEntityValues, int currentPosition) {
+        if (isMyData(icatEntityValues)) {
+            return null;
+        }
+        QueryTemplate template = childEntitiesTemplates[currentPosition];
+        if (template == null) {
+            return null;
+        }
+        String query = template.bind(icatEntityValues);
+
+        LOG.debug("Child entities query: " + query);
+
+        return query;
+    }
+
+    /**
+     * Restrict a query to one page of its results. The results are ordered by
+     * the id of the entity being selected from so that the pages do not
+     * overlap or miss any results.
+     *
+     * @param query the query created by this class
+     * @param offset the number of results to skip
+     * @param count the maximum number of results to return
+     * @return the query for the page
+     */
+    public static String createPageQuery(String query, int offset, int count) {
+        Matcher matcher = FROM_ALIAS.matcher(query);
+        if (!matcher.find()) {
+            throw new IllegalArgumentException("Unable to find the entity alias in query: [" + query + "]");
+        }
+        String orderBy = " ORDER BY " + matcher.group(1) + ".id";
+        String limit = " LIMIT " + offset + ", " + count;
+        // ORDER BY has to come before any INCLUDE and LIMIT has to come last
+        int include = query.indexOf(" INCLUDE ");
+        if (include == -1) {
+            return query + orderBy + limit;
+        }
+        return query.substring(0, include) + orderBy + query.substring(include) + limit;
+    }
+
+    /**
+     * @param query the query created by this class
+     * @return whether the query selects whole entities (rather than a field
+     *         or a related entity) so can be paged with
+     *         {@link #createPageQueryAfter}
+     */
+    public static boolean selectsEntity(String query) {
+        Matcher matcher = SELECT_AND_FROM_ALIAS.matcher(query);
+        return matcher.find() && matcher.group(1).equals(matcher.group(2));
+    }
+
+    /**
+     * Restrict a query that selects whole entities to the page of its results
+     * whose ids follow the id of the last result of the previous page. Unlike
+     * {@link #createPageQuery} the database does not have to count its way
+     * past all of the earlier results, so each page costs the same however
+     * far through the results it is.
+     *
+     * @param query the query created by this class
+     * @param afterId the id of the last result of the previous page
+     * @param count the maximum number of results to return
+     * @return the query for the page
+     */
+    public static String createPageQueryAfter(String query, long afterId, int count) {
+        Matcher matcher = SELECT_AND_FROM_ALIAS.matcher(query);
+        if (!matcher.find() || !matcher.group(1).equals(matcher.group(2))) {
+            throw new IllegalArgumentException("Only a query selecting an entity can be paged by id: [" + query + "]");
+        }
+        String alias = matcher.group(2);
+        // the condition, ORDER BY and LIMIT all go before or after any INCLUDE
+        int include = query.indexOf(" INCLUDE ");
+        String select = include == -1 ? query : query.substring(0, include);
+        String includes = include == -1 ? "" : query.substring(include);
+        String afterCondition = alias + ".id > " + afterId;
+        Matcher where = WHERE.matcher(select);
+        if (where.find()) {
+            // the existing conditions are bracketed in case they contain an OR
+            select = select.substring(0, where.end()) + afterCondition + " AND (" + select.substring(where.end()).trim() + ")";
+        } else {
+            select += " WHERE " + afterCondition;
+        }
+        return select + " ORDER BY " + alias + ".id" + includes + " LIMIT 0, " + count;
     }
 
 }
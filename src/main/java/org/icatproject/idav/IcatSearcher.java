@@ -0,0 +1,24 @@
+package org.icatproject.idav;
+
+import java.util.List;
+
+import org.icatproject.IcatException_Exception;
+
+/**
+ * Runs ICAT searches for IcatStore, either through the SOAP port or through
+ * the REST entity manager (see RestIcatSearcher), depending on the icat.api
+ * property. Either way the results are the same: entities are returned as the
+ * org.icatproject entity classes and projections as Strings, Longs etc.
+ */
+public interface IcatSearcher {
+
+    /**
+     * @param sessionId the ICAT session ID of the user
+     * @param query the JPQL style query
+     * @return the results of the search
+     * @throws IcatException_Exception if ICAT reports an error, including an
+     *      invalid session
+     */
+    List<Object> search(String sessionId, String query) throws IcatException_Exception;
+
+}
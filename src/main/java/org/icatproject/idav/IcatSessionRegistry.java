@@ -0,0 +1,455 @@
+package org.icatproject.idav;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.icatproject.idav.exceptions.UnauthenticatedException;
+
+/**
+ * Holds the ICAT session of each user without making the users wait for each
+ * other.
+ *
+ * Sessions are kept in a ConcurrentHashMap so that finding a valid session,
+ * which is what almost every request does, takes no locks at all. The map is
+ * keyed on a SHA-256 hash of the auth string so the credentials themselves
+ * are not kept in the map.
+ *
+ * Logging in and refreshing are "single flight" for each user: the first
+ * request that needs a login does it and any other requests from the same
+ * user that arrive in the meantime wait for, and share, its result. While a
+ * session is being refreshed the other requests carry on using it because it
+ * has not expired yet. Requests from other users are never held up.
+ *
+ * Once started, a background refresher renews sessions that will reach the
+ * refresh margin before it next runs, so that requests do not normally have
+ * to wait for a refresh. It also removes sessions that have expired and logs
+ * out of sessions that have not been used for the idle timeout. If there are
+ * more than the maximum number of sessions the least recently used ones are
+ * logged out.
+ */
+public class IcatSessionRegistry {
+
+    private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory.getLogger(IcatSessionRegistry.class);
+
+    /**
+     * Does the actual logging in to and refreshing of ICAT sessions
+     */
+    public interface SessionSource {
+        /**
+         * Log in to ICAT
+         *
+         * @param usernamePassword the credentials of the user
+         * @return the new session
+         * @throws UnauthenticatedException if the user can not be logged in
+         */
+        Session login(UsernamePassword usernamePassword) throws UnauthenticatedException;
+
+        /**
+         * Refresh an ICAT session
+         *
+         * @param session the session to refresh
+         * @return the session with its new timeout
+         * @throws UnauthenticatedException if the session can not be refreshed
+         */
+        Session refresh(Session session) throws UnauthenticatedException;
+
+        /**
+         * Log out of an ICAT session that is no longer wanted
+         *
+         * @param session the session to log out of
+         */
+        void logout(Session session);
+    }
+
+    /**
+     * An ICAT session along with the user it belongs to and when it times out
+     */
+    public static final class Session {
+        private final String username;
+        private final String sessionId;
+        private final String userId;
+        private final long timeoutMillis;
+        // the only mutable field - updated by every request that uses the session
+        private volatile long lastUsedMillis;
+
+        public Session(String username, String sessionId, String userId, long timeoutMillis) {
+            this.username = username;
+            this.sessionId = sessionId;
+            this.userId = userId;
+            this.timeoutMillis = timeoutMillis;
+            this.lastUsedMillis = System.currentTimeMillis();
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        public String getSessionId() {
+            return sessionId;
+        }
+
+        public String getUserId() {
+            return userId;
+        }
+
+        public long getTimeoutMillis() {
+            return timeoutMillis;
+        }
+
+        public long getLastUsedMillis() {
+            return lastUsedMillis;
+        }
+
+        /**
+         * @return a copy of this session with a new timeout
+         */
+        public Session withTimeout(long newTimeoutMillis) {
+            Session session = new Session(username, sessionId, userId, newTimeoutMillis);
+            session.lastUsedMillis = lastUsedMillis;
+            return session;
+        }
+    }
+
+    private final SessionSource source;
+    private final long refreshMarginMillis;
+    private final long idleMillis;
+    private final int maxSessions;
+
+    private final ConcurrentMap<String, Session> sessions = new ConcurrentHashMap<>();
+    // The logins and refreshes currently being done, keyed in the same way as the sessions
+    private final ConcurrentMap<String, FutureTask<Session>> inFlight = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService refresher = null;
+    private long refresherPeriodMillis = 0;
+
+    // Statistics for the session info page
+    private final AtomicLong logins = new AtomicLong();
+    private final AtomicLong requestRefreshes = new AtomicLong();
+    private final AtomicLong backgroundRefreshes = new AtomicLong();
+    private final AtomicLong failedRefreshes = new AtomicLong();
+    private final AtomicLong expiredRemoved = new AtomicLong();
+    private final AtomicLong idleLogouts = new AtomicLong();
+    private final AtomicLong capacityLogouts = new AtomicLong();
+
+    /**
+     * Create a registry with no idle timeout and no limit on the number of
+     * sessions
+     *
+     * @param source does the logging in and refreshing
+     * @param refreshMarginMillis how long before a session times out to refresh it
+     */
+    public IcatSessionRegistry(SessionSource source, long refreshMarginMillis) {
+        this(source, refreshMarginMillis, 0, 0);
+    }
+
+    /**
+     * @param source does the logging in, refreshing and logging out
+     * @param refreshMarginMillis how long before a session times out to refresh it
+     * @param idleMillis how long a session may go unused before it is logged
+     *      out (0 to keep sessions until they time out)
+     * @param maxSessions the most sessions to hold (0 for no limit)
+     */
+    public IcatSessionRegistry(SessionSource source, long refreshMarginMillis,
+            long idleMillis, int maxSessions) {
+        this.source = source;
+        this.refreshMarginMillis = refreshMarginMillis;
+        this.idleMillis = idleMillis;
+        this.maxSessions = maxSessions;
+    }
+
+    /**
+     * Start refreshing, expiring and evicting sessions in the background
+     *
+     * @param periodMillis how often to check the sessions (0 to not start
+     *      the refresher, leaving sessions to be refreshed by requests)
+     */
+    public synchronized void start(long periodMillis) {
+        if (periodMillis <= 0 || refresher != null) {
+            return;
+        }
+        refresherPeriodMillis = periodMillis;
+        refresher = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("idav-session-refresh"));
+        refresher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    maintain();
+                } catch (Throwable e) {
+                    // carry on at the next run
+                    LOG.error("Error maintaining ICAT sessions: " + e.getMessage(), e);
+                }
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void shutdown() {
+        if (refresher != null) {
+            refresher.shutdownNow();
+            refresher = null;
+        }
+    }
+
+    /**
+     * Get a valid session for the user, logging in or refreshing the session
+     * if necessary
+     *
+     * @param context the context of the request, holding the auth string
+     * @return the session
+     * @throws UnauthenticatedException if the user can not be logged in
+     */
+    public Session getSession(final RequestContext context) throws UnauthenticatedException {
+        final String key = context.getAuthKey();
+        long now = System.currentTimeMillis();
+        final Session session = sessions.get(key);
+        if (session != null && now < session.getTimeoutMillis()) {
+            session.lastUsedMillis = now;
+            if (now < session.getTimeoutMillis() - refreshMarginMillis) {
+                return session;
+            }
+            if (inFlight.containsKey(key)) {
+                // another request is already refreshing it (or logging in again)
+                // and the session is still valid in the meantime
+                return session;
+            }
+            requestRefreshes.incrementAndGet();
+            try {
+                return refresh(key, session);
+            } catch (UnauthenticatedException e) {
+                // the session has not expired yet so the request can still use
+                // it, and if ICAT has already dropped it the request will log in
+                // again through renewSession
+                LOG.warn("Unable to refresh the ICAT session for user '" + session.getUsername()
+                        + "' - carrying on with it until it expires: " + e.getMessage());
+                return session;
+            }
+        }
+        if (session == null) {
+            LOG.info("No session ID found for user '" + context.getUsername() + "'. Doing ICAT login.");
+        } else {
+            LOG.info("Expired session ID found for user '" + session.getUsername() + "'. Doing ICAT login.");
+        }
+        return login(key, context, session);
+    }
+
+    /**
+     * Log in again because ICAT has said that a session is no longer valid.
+     * If another request has already replaced that session then its new
+     * session is used instead.
+     *
+     * @param context the context of the request, holding the auth string
+     * @param invalidSessionId the session that ICAT rejected
+     * @return the new session
+     * @throws UnauthenticatedException if the user can not be logged in
+     */
+    public Session renewSession(RequestContext context, String invalidSessionId) throws UnauthenticatedException {
+        String key = context.getAuthKey();
+        Session session = sessions.get(key);
+        if (session != null && !session.getSessionId().equals(invalidSessionId)
+                && System.currentTimeMillis() < session.getTimeoutMillis()) {
+            return session;
+        }
+        return login(key, context, session);
+    }
+
+    private Session login(final String key, final RequestContext context, final Session previous)
+            throws UnauthenticatedException {
+        return singleFlight(key, new Callable<Session>() {
+            @Override
+            public Session call() throws UnauthenticatedException {
+                // check again in case another request logged in while this
+                // one was deciding that it needed to
+                Session current = sessions.get(key);
+                if (current != null && current != previous
+                        && System.currentTimeMillis() < current.getTimeoutMillis()) {
+                    return current;
+                }
+                Session session = source.login(context.getUsernamePassword());
+                logins.incrementAndGet();
+                sessions.put(key, session);
+                LOG.debug("icatSessionId created for user: " + session.getUsername() + " timeout: " + new Date(session.getTimeoutMillis()));
+                if (maxSessions > 0 && sessions.size() > maxSessions) {
+                    evictLeastRecentlyUsed(key);
+                }
+                return session;
+            }
+        });
+    }
+
+    private Session refresh(final String key, final Session session) throws UnauthenticatedException {
+        return singleFlight(key, new Callable<Session>() {
+            @Override
+            public Session call() throws UnauthenticatedException {
+                LOG.debug("Refreshing ICAT session ID for user '" + session.getUsername() + "'");
+                Session refreshed;
+                try {
+                    refreshed = source.refresh(session);
+                } catch (UnauthenticatedException e) {
+                    failedRefreshes.incrementAndGet();
+                    throw e;
+                }
+                // a refresh is not a use of the session, but any requests
+                // made with the old session during the refresh are
+                refreshed.lastUsedMillis = session.lastUsedMillis;
+                sessions.replace(key, session, refreshed);
+                return refreshed;
+            }
+        });
+    }
+
+    /**
+     * Refresh the sessions that will reach the refresh margin before the next
+     * run, remove the sessions that have expired and log out of the sessions
+     * that have been idle for too long. This is run by the background
+     * refresher but may also be called directly.
+     */
+    public void maintain() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Session> entry : sessions.entrySet()) {
+            String key = entry.getKey();
+            Session session = entry.getValue();
+            if (now >= session.getTimeoutMillis()) {
+                if (sessions.remove(key, session)) {
+                    expiredRemoved.incrementAndGet();
+                    LOG.debug("Removed expired ICAT session for user '" + session.getUsername() + "'");
+                }
+            } else if (idleMillis > 0 && now - session.lastUsedMillis >= idleMillis) {
+                if (sessions.remove(key, session)) {
+                    idleLogouts.incrementAndGet();
+                    LOG.debug("Logging out idle ICAT session for user '" + session.getUsername() + "'");
+                    logout(session);
+                }
+            } else if (now >= session.getTimeoutMillis() - refreshMarginMillis - refresherPeriodMillis
+                    && !inFlight.containsKey(key)) {
+                try {
+                    refresh(key, session);
+                    backgroundRefreshes.incrementAndGet();
+                } catch (UnauthenticatedException e) {
+                    // the next request from the user will log in again
+                    sessions.remove(key, session);
+                    LOG.warn("Unable to refresh ICAT session for user '" + session.getUsername() + "': " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Make room for a new session by logging out of the one that has gone
+    // unused for longest, apart from the one just added
+    private void evictLeastRecentlyUsed(String newKey) {
+        while (sessions.size() > maxSessions) {
+            String oldestKey = null;
+            Session oldest = null;
+            for (Map.Entry<String, Session> entry : sessions.entrySet()) {
+                Session session = entry.getValue();
+                if (!entry.getKey().equals(newKey)
+                        && (oldest == null || session.lastUsedMillis < oldest.lastUsedMillis)) {
+                    oldestKey = entry.getKey();
+                    oldest = session;
+                }
+            }
+            if (oldest == null) {
+                return;
+            }
+            if (sessions.remove(oldestKey, oldest)) {
+                capacityLogouts.incrementAndGet();
+                LOG.debug("Too many ICAT sessions - logging out the session for user '" + oldest.getUsername() + "'");
+                logout(oldest);
+            }
+        }
+    }
+
+    // Log out in the background if the refresher is running so that a login
+    // that caused an eviction does not have to wait for it
+    private void logout(final Session session) {
+        Runnable logout = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    source.logout(session);
+                } catch (RuntimeException e) {
+                    LOG.warn("Error logging out of ICAT session for user '" + session.getUsername() + "': " + e.getMessage());
+                }
+            }
+        };
+        ScheduledExecutorService executor;
+        synchronized (this) {
+            executor = refresher;
+        }
+        if (executor != null) {
+            try {
+                executor.execute(logout);
+                return;
+            } catch (RejectedExecutionException e) {
+                // shutting down - log out here instead
+            }
+        }
+        logout.run();
+    }
+
+    // Run the call unless one is already running for this key, in
+    // which case wait for that one and return its result instead
+    private Session singleFlight(String key, Callable<Session> call) throws UnauthenticatedException {
+        FutureTask<Session> task = new FutureTask<>(call);
+        FutureTask<Session> running = inFlight.putIfAbsent(key, task);
+        if (running == null) {
+            try {
+                task.run();
+            } finally {
+                inFlight.remove(key, task);
+            }
+            running = task;
+        }
+        try {
+            return running.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                // includes UnauthenticatedException
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new UnauthenticatedException("Error getting ICAT session", cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UnauthenticatedException("Interrupted while waiting for ICAT login", e);
+        }
+    }
+
+    /**
+     * @return the number of sessions being held
+     */
+    public int size() {
+        return sessions.size();
+    }
+
+    public List<String> getStatus() {
+        List<String> status = new ArrayList<>();
+        status.add("ICAT sessions: " + sessions.size() + (maxSessions > 0 ? " of at most " + maxSessions : "")
+                + ", " + inFlight.size() + " logins/refreshes in progress");
+        status.add("logins: " + logins.get() + ", refreshes by requests: " + requestRefreshes.get()
+                + ", background refreshes: " + backgroundRefreshes.get() + ", failed refreshes: " + failedRefreshes.get());
+        status.add("expired sessions removed: " + expiredRemoved.get() + ", idle sessions logged out: " + idleLogouts.get()
+                + ", sessions logged out to make room: " + capacityLogouts.get());
+        for (Map.Entry<String, Session> entry : sessions.entrySet()) {
+            Session session = entry.getValue();
+            status.add(session.getUsername() + " : " + Utils.getStartAndEndOfSessionId(session.getSessionId())
+                    + " : times out " + new Date(session.getTimeoutMillis())
+                    + " : last used " + new Date(session.getLastUsedMillis()));
+        }
+        return status;
+    }
+
+}
@@ -4,19 +4,30 @@ import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
 import javax.xml.datatype.DatatypeConfigurationException;
 import javax.xml.datatype.DatatypeFactory;
 
 import javax.xml.datatype.XMLGregorianCalendar;
 import javax.xml.namespace.QName;
 
+import org.icatproject.idav.cache.TimedCache;
 import org.icatproject.idav.exceptions.AccessDeniedException;
+import org.icatproject.idav.exceptions.DataOfflineException;
 import org.icatproject.idav.exceptions.UnauthenticatedException;
 import org.icatproject.idav.exceptions.WebdavException;
 
@@ -38,11 +49,14 @@ import org.icatproject.InvestigationType;
 import org.icatproject.Login.Credentials;
 import org.icatproject.Login.Credentials.Entry;
 import org.icatproject.idav.manager.PropertyManager;
+import org.icatproject.ids.client.DataNotOnlineException;
 import org.icatproject.ids.client.DataSelection;
 import org.icatproject.ids.client.IdsClient;
 import org.icatproject.ids.client.IdsClient.Flag;
+import org.icatproject.ids.client.IdsClient.Status;
 import org.icatproject.ids.client.IdsException;
 import org.icatproject.ids.client.InsufficientPrivilegesException;
+import org.icatproject.ids.client.InternalException;
 
 /**
  * ICAT Implementation of IWebdavStore
@@ -54,6 +68,15 @@ public class IcatStore implements IWebdavStore {
     private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory.getLogger(IcatStore.class);
 
     private ICAT icatEP = null;
+    private PortPool<ICAT> icatPortPool = null;
+    // Used for all searches, through either the SOAP port or the REST API
+    private IcatSearcher icatSearcher = null;
+    // Every call to ICAT and IDS goes through these
+    private BackendGuard icatGuard = null;
+    private BackendGuard idsGuard = null;
+    // The ICAT calls that can safely be retried
+    private static final Set<String> ICAT_READ_METHODS = new HashSet<>(Arrays.asList(
+            "search", "get", "login", "refresh", "getRemainingMinutes"));
 
     private IdsClient idsClient = null;
 
@@ -61,20 +84,25 @@ public class IcatStore implements IWebdavStore {
     // but will need to be configurable when FacilityCycles and/or Instruments are included
     private static final int DATAFILE_LEVEL = 4;
 
+    // The most Datafile ids that are put in the URL of one IDS call, which is
+    // the number deleted at a time when removing a virtual folder and the
+    // most files that a virtual folder can have to be downloaded as a ZIP file
+    private static final int MAX_DATAFILE_IDS_PER_IDS_CALL = 500;
+
     private static final String CURLY_BRACES = "{}";
     private static final String FORWARD_SLASH_OR_SLASHES = "/+";
     private static final String FOLDER = "FOLDER";
     private static final String TEMP_FILE_CONTENTS = "Temp file used by ICAT Webdav - please ignore";
     private static final String EMPTY_STRING = "";
     
-    private String userId = null;
-
-    // Two session maps used by all instances of IcatStore
-    private static Map<String, String> authStringToIcatSessionIdMap = new HashMap<>();
-    private static Map<String, Date> icatSessionIdToTimeoutDate = new HashMap<>();
-    
-    // Lock to be used whenever access is being made to either of the session maps
-    private static Object sessionMapsLock = new Object();
+    // The ICAT sessions of all users, shared by all instances of IcatStore
+    private static IcatSessionRegistry sessionRegistry;
+    // Looks up (and remembers) the ICAT userIds of users logging in
+    private static UserOfficeClient userOfficeClient;
+    // The authenticator that each user last logged in with, which is tried first next time
+    private static TimedCache<String, String> lastAuthenticators;
+    // How long a new ICAT session lasts, learnt from the first login, or 0 if not yet known
+    private static volatile long sessionLifetimeMillis = 0;
 
     // Hierarchy specified by the user.
     private static List<IcatEntity> hierarchy;
@@ -85,11 +113,21 @@ public class IcatStore implements IWebdavStore {
     // Property manager for parsing and exposing properties.
     private PropertyManager properties;
 
-    // Cached objects (frequently used and never changed)
-    private Instrument instrument;
-    private InvestigationType investigationType;
-    private DatasetType datasetType;
-    private DatafileFormat datafileFormat;
+    // Frequently used objects that almost never change, shared by all instances of IcatStore
+    private static ReferenceEntityRegistry referenceEntities;
+
+    // The ids of the Datasets that have been found from URIs, shared by all instances of IcatStore
+    private static EntityIdIndex entityIdIndex;
+
+    // null if data is not restored until it is opened
+    private static RestorePrestager restorePrestager;
+
+    // Keeps track of offline Datafiles to work out when they will be online
+    private static RestoreTracker restoreTracker;
+
+    // Updates the Datafiles in a virtual folder that is being renamed, one at
+    // a time unless the servlet provides a pool with setRenameExecutor
+    private ParallelUpdater renameUpdater = new ParallelUpdater(null, 1);
 
     private enum DatafileSearchType {
         NONE, EQUALS, LIKE
@@ -102,16 +140,84 @@ public class IcatStore implements IWebdavStore {
             // Load the properties
             properties = new PropertyManager(Utils.PROPERTIES_FILENAME, Utils.HIERARCHY_FILENAME);
             hierarchy = properties.getHierarchy();
-            icatMapper = new IcatMapper();
+            icatMapper = new IcatMapper(hierarchy);
 
             // Currently assuming that ICAT and IDS are on the same machine
             URL icatAndIdsServerURL = new URL(properties.getIcatUrl());
             URL idsURL = new URL(properties.getIdsUrl());
             URL icatUrl = new URL(icatAndIdsServerURL, "/ICATService/ICAT?wsdl");
 
-            ICATService icatService = new ICATService(icatUrl, new QName("http://icatproject.org", "ICATService"));
-            icatEP = icatService.getICATPort();
+            final ICATService icatService = new ICATService(icatUrl, new QName("http://icatproject.org", "ICATService"));
+            // each call is made on a port of its own rather than sharing one between threads
+            icatPortPool = new PortPool<>("ICAT", new PortPool.PortFactory<ICAT>() {
+                @Override
+                public ICAT createPort() {
+                    return icatService.getICATPort();
+                }
+            }, properties.getIcatPoolSize(), properties.getIcatPoolWaitMillis());
+            icatGuard = new BackendGuard("ICAT", createGuardSettings(properties.getIcatMaxConcurrentCalls()),
+                    new BackendGuard.FailureClassifier() {
+                        @Override
+                        public boolean isServiceFailure(Throwable t) {
+                            if (t instanceof IcatException_Exception) {
+                                // the other types are all the fault of the request
+                                return ((IcatException_Exception) t).getFaultInfo().getType() == IcatExceptionType.INTERNAL;
+                            }
+                            return isConnectionFailure(t);
+                        }
+                    });
+            idsGuard = new BackendGuard("IDS", createGuardSettings(properties.getIdsMaxConcurrentCalls()),
+                    new BackendGuard.FailureClassifier() {
+                        @Override
+                        public boolean isServiceFailure(Throwable t) {
+                            return t instanceof InternalException || isConnectionFailure(t);
+                        }
+                    });
+            icatEP = icatGuard.wrap(ICAT.class, icatPortPool.getProxy(ICAT.class), ICAT_READ_METHODS);
+            if (properties.isIcatRestApi()) {
+                icatSearcher = icatGuard.wrap(IcatSearcher.class, new RestIcatSearcher(icatAndIdsServerURL),
+                        Collections.singleton("search"));
+            } else {
+                icatSearcher = new IcatSearcher() {
+                    @Override
+                    public List<Object> search(String sessionId, String query) throws IcatException_Exception {
+                        return icatEP.search(sessionId, query);
+                    }
+                };
+            }
             idsClient = new IdsClient(idsURL);
+
+            if (referenceEntities != null) {
+                referenceEntities.shutdown();
+            }
+            referenceEntities = new ReferenceEntityRegistry(icatEP, properties);
+            referenceEntities.start();
+            if (sessionRegistry != null) {
+                sessionRegistry.shutdown();
+            }
+            sessionRegistry = new IcatSessionRegistry(new IcatSessionSource(),
+                    properties.getSessionRefreshMarginMins() * 60 * 1000L,
+                    properties.getSessionIdleTimeoutMins() * 60 * 1000L,
+                    properties.getMaxSessions());
+            sessionRegistry.start(properties.getSessionRefresherPeriodSecs() * 1000L);
+            userOfficeClient = new UserOfficeClient(properties.getUserIdCacheTtlMins() * 60 * 1000L,
+                    properties.getUserIdCacheMaxSize());
+            lastAuthenticators = new TimedCache<>(properties.getUserIdCacheTtlMins() * 60 * 1000L,
+                    properties.getUserIdCacheMaxSize());
+            entityIdIndex = new EntityIdIndex(properties.getEntityIdIndexTtlMins() * 60 * 1000L,
+                    properties.getEntityIdIndexMaxSize());
+            if (restorePrestager != null) {
+                restorePrestager.shutdown();
+                restorePrestager = null;
+            }
+            restoreTracker = new RestoreTracker(properties.getRestoreRetryAfterSecs() * 1000L,
+                    properties.getRestoreMinRetryAfterSecs() * 1000L,
+                    properties.getRestoreMaxRetryAfterSecs() * 1000L, 100000);
+            if (properties.getPrestageThreads() > 0) {
+                restorePrestager = new RestorePrestager(new IcatRestorer(), properties.getPrestageThreads(),
+                        properties.getPrestageQueueSize(), properties.getPrestageDedupMins() * 60 * 1000L,
+                        properties.getPrestageMaxPerMinute());
+            }
             
             LOG.info("IcatStore constructor complete");
             
@@ -121,6 +227,18 @@ public class IcatStore implements IWebdavStore {
         }
     }
 
+    /**
+     * Rename virtual folders using threads from a pool, which is owned (and
+     * shut down) by the caller
+     *
+     * @param executor the pool shared by all requests
+     * @param threads the number of threads, including the request thread,
+     *        that may rename the Datafiles in one folder at once
+     */
+    public void setRenameExecutor(ExecutorService executor, int threads) {
+        renameUpdater = new ParallelUpdater(executor, threads);
+    }
+
     @Override
     public void begin() throws WebdavException {
         LOG.trace("IcatStore.begin()");
@@ -129,74 +247,45 @@ public class IcatStore implements IWebdavStore {
     // Every call to the webdav servlet calls this method after an 
     // Authentication header has been extracted from the request
     @Override
-    public void checkAuthentication(String authString) throws UnauthenticatedException {
+    public void checkAuthentication(RequestContext context) throws UnauthenticatedException {
         LOG.trace("IcatStore.checkAuthentication()");
-        String icatSessionId = getIcatSessionId(authString);
-        String username = Utils.getUsernamePasswordFromAuthString(authString).getUsername();
+        String icatSessionId = getIcatSessionId(context);
+        String username = context.getUsername();
         LOG.trace("User '" + username + "' is using ICAT session ID " + icatSessionId);
     }
 
-    private String getIcatSessionId(String authString) throws UnauthenticatedException {
-        // From testing, over 99% of the time this method completes in less than one millisecond.
-        // This is because most of the time there is a valid session ID in the map and it
-        // is returned very quickly.
-        // The method takes longer when a new ICAT login or session refresh is required
-        // but these operations are also very quick and infrequent (every 2 hours)
-        // so for now this is a small price to pay for making the session maps "safe".
-        LOG.debug("Getting session ID");
-        Date methodStartDate = new Date();
-        synchronized (sessionMapsLock) {
-            Date now = new Date();
-            String sessionId = authStringToIcatSessionIdMap.get(authString);
-            Date sessionTimeoutDate = icatSessionIdToTimeoutDate.get(sessionId);
-            String username = Utils.getUsernamePasswordFromAuthString(authString).getUsername();
-            if (sessionId == null || now.after(sessionTimeoutDate)) {
-                if (sessionId == null) {
-                    LOG.warn("No session ID found in authStringToIcatSessionIdMap for user '" + username + "'. Doing ICAT login.");
-                } else {
-                    LOG.warn("Expired session ID found in authStringToIcatSessionIdMap for user '" + username + "'. Doing ICAT login.");
-                    // Clean up the session maps
-                    authStringToIcatSessionIdMap.remove(authString);
-                    icatSessionIdToTimeoutDate.remove(sessionId);
-                }
-                doIcatLogin(authString);
-                // If the login was successful then the session ID will now be in the map
-                // (otherwise there would have been an UnauthenticatedException)
-                sessionId = authStringToIcatSessionIdMap.get(authString);
-            } else {
-                // If we are within the specified number of minutes of the session timeout then refresh it
-                Date sessionRefreshDate = new Date(sessionTimeoutDate.getTime() - (properties.getSessionRefreshMarginMins() * 60 * 1000));
-                if (now.after(sessionRefreshDate)) {
-                    double remainingMinutes = 0.0;
-                    // Save nowMs before calling getRemainingMinutes so that the sessionTimeoutDate
-                    // is before rather than after the actual timeout date
-                    long nowMs = System.currentTimeMillis();
-                    try {
-                        LOG.debug("Refreshing ICAT session ID for user '" + username + "'");
-                        icatEP.refresh(sessionId);
-                        remainingMinutes = icatEP.getRemainingMinutes(sessionId);
-                    } catch (IcatException_Exception e) {
-                        String message = "Error refreshing or getting remaining minutes for ICAT session: " + sessionId;
-                        LOG.error(message, e);
-                        throw new UnauthenticatedException(message, e);
-                    }
-                    Date newSessionTimeoutDate = new Date(nowMs + (long) (remainingMinutes * 60.0 * 1000.0));
-                    // Update this entry in the session timeout map
-                    icatSessionIdToTimeoutDate.put(sessionId, newSessionTimeoutDate);
-                }
-            }
-            LOG.trace("getIcatSessionId took " + (System.currentTimeMillis() - methodStartDate.getTime()) + " ms");
-            return sessionId;
+    // The session ID is only looked up in the session registry once per request
+    // and is then kept in the context, along with the userId of the user
+    private String getIcatSessionId(RequestContext context) throws UnauthenticatedException {
+        String sessionId = context.getIcatSessionId();
+        if (sessionId == null) {
+            IcatSessionRegistry.Session session = sessionRegistry.getSession(context);
+            sessionId = session.getSessionId();
+            context.setIcatSessionId(sessionId);
+            context.setUserId(session.getUserId());
         }
+        return sessionId;
+    }
+
+    private String getUserId(RequestContext context) throws UnauthenticatedException {
+        getIcatSessionId(context);
+        return context.getUserId();
     }
 
-    private void doIcatLogin(String authString) throws UnauthenticatedException {
-        LOG.debug("Logging into ICAT");
-        // Note that calls from getIcatSessionId() will not be blocked because they are in the same thread
-        // but calls from doIcatSearch(), for example, will be blocked - which is what we want
-        synchronized (sessionMapsLock) {
-            // Do an ICAT login and store the session ID in the map
-            UsernamePassword usernamePassword = Utils.getUsernamePasswordFromAuthString(authString);
+    // Called when ICAT has rejected the session this request was using
+    private void renewIcatSession(RequestContext context) throws UnauthenticatedException {
+        IcatSessionRegistry.Session session = sessionRegistry.renewSession(context, context.getIcatSessionId());
+        // replaces the (now invalid) session ID that this request was using
+        context.setIcatSessionId(session.getSessionId());
+        context.setUserId(session.getUserId());
+    }
+
+    // Logs in to and refreshes ICAT sessions for the session registry
+    private class IcatSessionSource implements IcatSessionRegistry.SessionSource {
+
+        @Override
+        public IcatSessionRegistry.Session login(UsernamePassword usernamePassword) throws UnauthenticatedException {
+            LOG.debug("Logging into ICAT");
             String username = usernamePassword.getUsername();
 
             Credentials credentials = new Credentials();
@@ -208,10 +297,8 @@ public class IcatStore implements IWebdavStore {
             entry.setValue(username);
             entries.add(entry);
             
-            com.stfc.useroffice.webservice.UserOfficeWebService_Service service = new com.stfc.useroffice.webservice.UserOfficeWebService_Service();
-            com.stfc.useroffice.webservice.UserOfficeWebService port = service.getUserOfficeWebServicePort();
             String fedId = username;
-            userId = "uows/" + port.getUserIdFromFedId(fedId);
+            String userId = userOfficeClient.getUserId(fedId);
 
             entry = new Entry();
             entry.setKey("password");
@@ -219,13 +306,16 @@ public class IcatStore implements IWebdavStore {
             entries.add(entry);
 
             String icatSessionId = null;
-            for (String icatAuthenticator : properties.getIcatAuthenticators()) {
+            long nowMs = 0;
+            for (String icatAuthenticator : getAuthenticatorsToTry(username)) {
                 try {
+                    nowMs = System.currentTimeMillis();
                     icatSessionId = icatEP.login(icatAuthenticator, credentials);
                     // successful login using this authenticator so break here
                     LOG.info("Successful ICAT login for '" + username
                             + "' using the authenticator '" + icatAuthenticator
                             + "'");
+                    lastAuthenticators.put(username, icatAuthenticator);
                     break;
                 } catch (IcatException_Exception e) {
                     String message = "Error logging in to ICAT for '"
@@ -241,9 +331,56 @@ public class IcatStore implements IWebdavStore {
                 throw new UnauthenticatedException(message);
             }
 
+            long timeoutMillis;
+            if (sessionLifetimeMillis > 0) {
+                // every new session lasts the same time so there is no need to ask ICAT
+                timeoutMillis = nowMs + sessionLifetimeMillis;
+            } else {
+                timeoutMillis = getTimeoutMillis(icatSessionId);
+                sessionLifetimeMillis = timeoutMillis - nowMs;
+                LOG.info("ICAT sessions last " + sessionLifetimeMillis + " ms");
+            }
+            return new IcatSessionRegistry.Session(username, icatSessionId, userId, timeoutMillis);
+        }
+
+        // The configured authenticators with the one the user last logged in
+        // with moved to the front
+        private List<String> getAuthenticatorsToTry(String username) {
+            List<String> authenticators = new ArrayList<>(properties.getIcatAuthenticators());
+            String lastAuthenticator = lastAuthenticators.get(username);
+            if (lastAuthenticator != null && authenticators.remove(lastAuthenticator)) {
+                authenticators.add(0, lastAuthenticator);
+            }
+            return authenticators;
+        }
+
+        @Override
+        public IcatSessionRegistry.Session refresh(IcatSessionRegistry.Session session) throws UnauthenticatedException {
+            try {
+                icatEP.refresh(session.getSessionId());
+            } catch (IcatException_Exception e) {
+                String message = "Error refreshing ICAT session: " + session.getSessionId();
+                LOG.error(message, e);
+                throw new UnauthenticatedException(message, e);
+            }
+            return session.withTimeout(getTimeoutMillis(session.getSessionId()));
+        }
+
+        @Override
+        public void logout(IcatSessionRegistry.Session session) {
+            try {
+                icatEP.logout(session.getSessionId());
+                LOG.info("Logged out of ICAT session for '" + session.getUsername() + "'");
+            } catch (IcatException_Exception e) {
+                // most likely it had already timed out
+                LOG.debug("Error logging out of ICAT session for '" + session.getUsername() + "': " + e.getMessage());
+            }
+        }
+
+        private long getTimeoutMillis(String icatSessionId) throws UnauthenticatedException {
             double remainingMinutes = 0.0;
-            // save nowMs before calling getRemainingMinutes so that the sessionTimeoutDate
-            // is before rather than after the actual timeout date
+            // save nowMs before calling getRemainingMinutes so that the timeout
+            // is before rather than after the actual timeout of the session
             long nowMs = System.currentTimeMillis();
             try {
                 remainingMinutes = icatEP.getRemainingMinutes(icatSessionId);
@@ -252,50 +389,52 @@ public class IcatStore implements IWebdavStore {
                 LOG.error(message, e);
                 throw new UnauthenticatedException(message, e);
             }
-            Date sessionTimeoutDate = new Date(nowMs + (long) (remainingMinutes * 60.0 * 1000.0));
-
-            String previousSessionId = authStringToIcatSessionIdMap.put(authString, icatSessionId);
-            if (previousSessionId != null) {
-                // clean up the session map
-                icatSessionIdToTimeoutDate.remove(previousSessionId);
-            }
-            icatSessionIdToTimeoutDate.put(icatSessionId, sessionTimeoutDate);
-            LOG.debug("icatSessionId created for user: " + usernamePassword.getUsername() + " timeout: " + sessionTimeoutDate);
+            return nowMs + (long) (remainingMinutes * 60.0 * 1000.0);
         }
     }
 
     @Override
     public List<String> getSessionInfo() {
         LOG.debug("Getting session info");
-        // This method is most likely to cause ConcurrentModificationExceptions
-        // and because it is only called extremely infrequently, it seems
-        // sensible to make it as safe as possible
-        synchronized (sessionMapsLock) {
-            List<String> sessionInfo = new ArrayList<>();
-            sessionInfo.add("Contents of authStringToIcatSessionIdMap:");
-            for (String authString : authStringToIcatSessionIdMap.keySet()) {
-                String username = Utils.getUsernamePasswordFromAuthString(authString).getUsername();
-                String sessionId = authStringToIcatSessionIdMap.get(authString);
-                sessionInfo.add(username + " : " + Utils.getStartAndEndOfSessionId(sessionId));
-            }
-            sessionInfo.add("");
-            sessionInfo.add("Contents of icatSessionIdToTimeoutDate:");
-            for (String sessionId : icatSessionIdToTimeoutDate.keySet()) {
-                Date sessionTimeoutDate = icatSessionIdToTimeoutDate.get(sessionId);
-                sessionInfo.add(Utils.getStartAndEndOfSessionId(sessionId) + " : " + sessionTimeoutDate);
-            }
-            return sessionInfo;
+        List<String> sessionInfo = new ArrayList<>();
+        sessionInfo.add(icatGuard.getStats());
+        sessionInfo.add(idsGuard.getStats());
+        sessionInfo.add(icatPortPool.getStats());
+        sessionInfo.addAll(sessionRegistry.getStatus());
+        sessionInfo.add(userOfficeClient.getStats());
+        sessionInfo.add(lastAuthenticators.getStats("Last successful authenticators"));
+        sessionInfo.add("");
+        sessionInfo.addAll(referenceEntities.getStatus());
+        sessionInfo.add("");
+        sessionInfo.add(entityIdIndex.getStats());
+        sessionInfo.add(restoreTracker.getStats());
+        sessionInfo.add(renameUpdater.getStats());
+        if (restorePrestager != null) {
+            sessionInfo.add(restorePrestager.getStats());
+        }
+        return sessionInfo;
+    }
+
+    @Override
+    public void destroy() {
+        LOG.info("Stopping the IcatStore background threads");
+        referenceEntities.shutdown();
+        sessionRegistry.shutdown();
+        if (restorePrestager != null) {
+            restorePrestager.shutdown();
         }
+        icatGuard.shutdown();
+        idsGuard.shutdown();
     }
 
     @Override
-    public void commit(String authString) throws WebdavException {
+    public void commit(RequestContext context) throws WebdavException {
         // DO NOTHING
         LOG.trace("IcatStore.commit()");
     }
 
     @Override
-    public void rollback(String authString) throws WebdavException {
+    public void rollback(RequestContext context) throws WebdavException {
         /// DO NOTHING
         LOG.trace("IcatStore.rollback()");
     }
@@ -345,28 +484,17 @@ public class IcatStore implements IWebdavStore {
     }
 
     @Override
-    public long getResourceLength(String authString, String uri) throws WebdavException {
+    public long getResourceLength(RequestContext context, String uri) throws WebdavException {
         // this method appears never to be called so presumably does not need implementing
         LOG.trace("IcatStore.getResourceLength(" + uri + ") - NOT IMPLEMENTED YET");
         throw new WebdavException("getResourceLength not implemented yet for IcatStore");
     }
     
     @Override
-    public String[] getChildrenNames(String authString, String uri) throws WebdavException {
+    public String[] getChildrenNames(RequestContext context, String uri) throws WebdavException {
         LOG.trace("IcatStore.getChildrenNames(" + uri + ")");
-        String[] uriParts = getUriParts(uri);
-        int length = uriParts.length;
-
-        // Deal with going from Root level being 0 and next levels being 1 more then they should.
-        if (length > 0) {
-            if (length > 1) {
-                // Add two to the length since we are skipping both cycle and instrument layers
-                if ("MY DATA".equalsIgnoreCase(uriParts[1])) {
-                    length += 2;
-                }
-            }
-            length -= 1;
-        }
+        prestage(context, uri);
+        int length = getChildrenHierarchyLevel(uri);
         
         LOG.debug("Length = " + length);
         String icatQuery = null;
@@ -379,14 +507,24 @@ public class IcatStore implements IWebdavStore {
         
         LOG.info("Have selected: " + selectedEntity.getEntity()); 
 
+        Long datasetId = null;
+        if (selectedEntity.getEntity().equals("Datafile")) {
+            datasetId = addDatasetId(uri, icatEntityValues);
+        }
+
         if (selectedEntity.getEntity().equals("FacilityCycle")) {
-            icatEntityValues = getFacilityCycleDates(authString, icatEntityValues);
+            icatEntityValues = getFacilityCycleDates(context, icatEntityValues);
         }
        
         LOG.debug("Creating new query");
-        icatQuery = icatMapper.createQuery(hierarchy, icatEntityValues, length, true, userId);
+        icatQuery = icatMapper.createQuery(icatEntityValues, length, true, getUserId(context));
         
-        List<Object> results = doIcatSearch(authString, icatQuery);
+        List<Object> results = getAllResults(new PagedIcatSearch(context, icatQuery));
+        if (results.isEmpty() && forgetDatasetIdIfStale(context, getIcatEntityNames(uri), datasetId)) {
+            icatEntityValues.remove(IcatMapper.DATASET_ID);
+            icatQuery = icatMapper.createQuery(icatEntityValues, length, true, getUserId(context));
+            results = getAllResults(new PagedIcatSearch(context, icatQuery));
+        }
         
         if (uri.equals("/") && results.size() == 1) {
             results.add("My Data");
@@ -417,44 +555,157 @@ public class IcatStore implements IWebdavStore {
     }
     
     @Override
-    public StoredObject getStoredObject(String authString, String uri) throws WebdavException {
-        LOG.trace("IcatStore.getStoredObject(" + uri + ")");
-        
-        boolean isMyData = false;
-        String icatQuery = "";
-        
+    public Map<String, StoredObject> getChildrenWithStoredObjects(RequestContext context, String uri) throws WebdavException {
+        LOG.trace("IcatStore.getChildrenWithStoredObjects(" + uri + ")");
+        Iterator<Map.Entry<String, StoredObject>> it = iterateChildrenWithStoredObjects(context, uri);
+        if (it == null) {
+            return null;
+        }
+        Map<String, StoredObject> children = new LinkedHashMap<>();
+        while (it.hasNext()) {
+            Map.Entry<String, StoredObject> child = it.next();
+            children.put(child.getKey(), child.getValue());
+        }
+        LOG.info("Found " + children.size() + " results");
+        return children;
+    }
+
+    @Override
+    public Iterator<Map.Entry<String, StoredObject>> iterateChildrenWithStoredObjects(RequestContext context, String uri) throws WebdavException {
+        LOG.trace("IcatStore.iterateChildrenWithStoredObjects(" + uri + ")");
+        prestage(context, uri);
+        int length = getChildrenHierarchyLevel(uri);
+        final IcatEntity selectedEntity = hierarchy.get(length);
+        HashMap<String, String> icatEntityValues = getIcatEntityValues(uri);
+        Long datasetId = null;
+        if (selectedEntity.getEntity().equals("Datafile")) {
+            datasetId = addDatasetId(uri, icatEntityValues);
+        }
+
+        String icatQuery = icatMapper.createChildEntitiesQuery(icatEntityValues, length);
+        if (icatQuery == null) {
+            // the caller will need to fall back to getting the children names
+            // and then getting the StoredObject for each one individually
+            LOG.debug("Unable to get children of " + selectedEntity.getEntity() + " level folder in bulk");
+            return null;
+        }
+        LOG.debug("icatQuery = [" + icatQuery + "]");
+
+        PagedIcatSearch firstSearch = new PagedIcatSearch(context, icatQuery);
+        if (!firstSearch.hasNext() && forgetDatasetIdIfStale(context, getIcatEntityNames(uri), datasetId)) {
+            icatEntityValues.remove(IcatMapper.DATASET_ID);
+            icatQuery = icatMapper.createChildEntitiesQuery(icatEntityValues, length);
+            LOG.debug("icatQuery = [" + icatQuery + "]");
+            firstSearch = new PagedIcatSearch(context, icatQuery);
+        }
+        final PagedIcatSearch results = firstSearch;
+        return new Iterator<Map.Entry<String, StoredObject>>() {
+            @Override
+            public boolean hasNext() {
+                return results.hasNext();
+            }
+
+            @Override
+            public Map.Entry<String, StoredObject> next() {
+                Object result = results.next();
+                if (result instanceof Datafile) {
+                    Datafile df = (Datafile) result;
+                    return new AbstractMap.SimpleImmutableEntry<>(df.getName(), createDatafileStoredObject(df));
+                }
+                Investigation investigation = (Investigation) result;
+                String name = processCalibrationInvestigation(investigation.getName()) + " "
+                        + selectedEntity.getColumnCombineValue() + " " + investigation.getVisitId();
+                return new AbstractMap.SimpleImmutableEntry<>(name,
+                        createFolderStoredObject(investigation.getCreateTime(), investigation.getModTime()));
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    // Work out which level of the hierarchy the children of this uri are at
+    private static int getChildrenHierarchyLevel(String uri) {
         String[] uriParts = getUriParts(uri);
         int length = uriParts.length;
-        LOG.debug("Length = " + length);
-        
-        // Here, we have to take 2 from the total length. GetStoredObject will get sent a path such as:
-        // root/ISIS/SANS2D/. We have to compensate for the root level anyway, so take away one for that.
-        // In this example, we are searching for instrument objects (SANS2D in this case). In order
-        // to select the 'instrument layer' in the hierarchy, we need to actually select layer 1:
-        //     0          1             2              3           4         5
-        // (Facility, Instrument, FacilityCycle, Investigation, Dataset, Datafile)
-        // In the other two methods, we only had to go down one layer as the path would have only been:
-        // /ISIS which would have an actual length of 2. Taking away one would still allow us to query
-        // on the instrument layer. Since we have an extra level on top when looking for a specific 
-        // stored object, we have to take an extra 1 away.
+
+        // Deal with going from Root level being 0 and next levels being 1 more then they should.
+        if (length > 0) {
+            if (length > 1) {
+                // Add two to the length since we are skipping both cycle and instrument layers
+                if ("MY DATA".equalsIgnoreCase(uriParts[1])) {
+                    length += 2;
+                }
+            }
+            length -= 1;
+        }
+        return length;
+    }
+
+    // Work out which level of the hierarchy the object at this uri is at.
+    // Here, we have to take 2 from the total length. GetStoredObject will get sent a path such as:
+    // root/ISIS/SANS2D/. We have to compensate for the root level anyway, so take away one for that.
+    // In this example, we are searching for instrument objects (SANS2D in this case). In order
+    // to select the 'instrument layer' in the hierarchy, we need to actually select layer 1:
+    //     0          1             2              3           4         5
+    // (Facility, Instrument, FacilityCycle, Investigation, Dataset, Datafile)
+    // In the other two methods, we only had to go down one layer as the path would have only been:
+    // /ISIS which would have an actual length of 2. Taking away one would still allow us to query
+    // on the instrument layer. Since we have an extra level on top when looking for a specific 
+    // stored object, we have to take an extra 1 away.
+    private static int getHierarchyLevel(String[] uriParts) {
+        int length = uriParts.length;
         if (length > 1) {
             // Add two to the length since we are skipping both cycle and instrument layers
             if ("MY DATA".equalsIgnoreCase(uriParts[1])) {
-                isMyData = true;
                 length += 2;
             }
             length -= 2;
         }
+        return length;
+    }
+
+    @Override
+    public StoredObject getStoredObject(RequestContext context, String uri) throws WebdavException {
+        // The same object is often asked for more than once while handling a
+        // single request (eg. by DoHead and then DoGet.doBody) so only the
+        // first of these needs to go to ICAT
+        StoredObject so = context.getStoredObject(uri);
+        if (so != null) {
+            LOG.trace("IcatStore.getStoredObject(" + uri + ") - already found in this request");
+            return so.copy();
+        }
+        so = findStoredObject(context, uri);
+        if (so != null) {
+            // keep our own copy because the callers sometimes modify the object they are given
+            context.putStoredObject(uri, so.copy());
+        }
+        return so;
+    }
+
+    private StoredObject findStoredObject(RequestContext context, String uri) throws WebdavException {
+        LOG.trace("IcatStore.getStoredObject(" + uri + ")");
+        
+        boolean isMyData = false;
+        String icatQuery = "";
+        
+        String[] uriParts = getUriParts(uri);
+        if (uriParts.length > 1 && "MY DATA".equalsIgnoreCase(uriParts[1])) {
+            isMyData = true;
+        }
+        int length = getHierarchyLevel(uriParts);
+        LOG.debug("Length = " + length);
         
         if(uriParts.length > 0) {
             String lastPart = uriParts[uriParts.length - 1];
-            List<String> ignoredFiles = properties.getIgnoredFiles();
             
             // Check for files that should be ignored
             // these are typically those that operating systems and installed plugins for git, svn etc.
             // continually look for such as desktop.ini, folder.gif, .git
             // and which we don't want to waste time running ICAT queries looking for them
-            if (ignoredFiles.contains(lastPart)) {
+            if (properties.isIgnoredFile(lastPart)) {
                 return null;
             }
         }
@@ -465,37 +716,26 @@ public class IcatStore implements IWebdavStore {
 
         if (selectedMember.getEntity().equals("Datafile")) {
             LOG.debug("Searching for a datafile...");
+            List<Object> results;
             if (isMyData) {
-                icatQuery = icatMapper.createQuery(hierarchy, icatEntityValues, length, false, userId);
+                icatQuery = icatMapper.createQuery(icatEntityValues, length, false, getUserId(context));
+                LOG.debug("icatQuery = [" + icatQuery + "]");
+                results = doIcatSearch(context, icatQuery);
             }
             else {
-                icatQuery = "SELECT datafile from Datafile datafile" + createWhereClause(icatEntityNames, DatafileSearchType.EQUALS);
+                results = searchForDatafile(context, icatEntityNames);
             }
-            
-            LOG.debug("icatQuery = [" + icatQuery + "]");
-
-            List<Object> results = doIcatSearch(authString, icatQuery);
             LOG.debug("Found " + results.size() + " results");
 
             if (results.size() == 1) {
                 LOG.debug("We have found the datafile!");
                 // we have found the datafile
                 Datafile df = (Datafile) results.get(0);
-                if (df.getDescription() != null && df.getDescription().equals(FOLDER)) {
-                    // these are the virtual "FOLDER" datafiles created by IDAV 
-                    LOG.debug("Found virtual folder (via description) for uri: '" + uri + "'. Datafile: " + Utils.getDatafileAsShortString(df));
-                    // return a StoredObject with create and modified date set to now
-                    Date now = new Date();
-                    return createFolderStoredObject(now, now);
-                } else {
-                    LOG.debug("Found datafile for uri: '" + uri + "': " + Utils.getDatafileAsShortString(df));
-                    StoredObject so = new StoredObject();
-                    so.setFolder(false);
-                    so.setLastModified(df.getModTime().toGregorianCalendar().getTime());
-                    so.setCreationDate(df.getCreateTime().toGregorianCalendar().getTime());
-                    so.setResourceLength(df.getFileSize());
-                    return so;
+                LOG.debug("Found datafile for uri: '" + uri + "': " + Utils.getDatafileAsShortString(df));
+                if (!isMyData) {
+                    rememberDatasetId(icatEntityNames, df);
                 }
+                return createDatafileStoredObject(df);
             }
         } else {
             LOG.info("Creating a new query");
@@ -513,10 +753,10 @@ public class IcatStore implements IWebdavStore {
                 EntityBaseBean bean = (EntityBaseBean) facility;
                 return createFolderStoredObject(bean.getCreateTime(), bean.getModTime());
             } else {
-                icatQuery = icatMapper.createQuery(hierarchy, icatEntityValues, length, false, userId);
+                icatQuery = icatMapper.createQuery(icatEntityValues, length, false, getUserId(context));
 
                 LOG.debug("icatQuery = [" + icatQuery + "]");
-                results = doIcatSearch(authString, icatQuery);
+                results = doIcatSearch(context, icatQuery);
             }
             
             if (results.size() == 1) {
@@ -544,9 +784,15 @@ public class IcatStore implements IWebdavStore {
     }
     
     @Override
-    public InputStream getResourceContent(String authString, String uri)
+    public InputStream getResourceContent(RequestContext context, String uri)
+            throws WebdavException {
+        return getResourceContent(context, uri, 0L);
+    }
+
+    @Override
+    public InputStream getResourceContent(RequestContext context, String uri, long offset)
             throws WebdavException {
-        LOG.trace("IcatStore.getResourceContent(" + uri + ")");
+        LOG.trace("IcatStore.getResourceContent(" + uri + ", " + offset + ")");
         
         String[] uriParts = getUriParts(uri);
         boolean isMyData = false;
@@ -567,28 +813,46 @@ public class IcatStore implements IWebdavStore {
 
         int datafilesLevelDepth = getDatafilesLevelDepth(uri);
         if (datafilesLevelDepth > -1) {
-            String icatQuery = "";
-            if (isMyData) {
-                HashMap<String, String> icatEntityValues = getIcatEntityValues(uri);
-                icatQuery = icatMapper.createQuery(hierarchy, icatEntityValues, length, false, userId);
-            }
-            else {
-                // we need to be at this level for it to be a datafile
-                IcatEntityNames icatEntityNames = getIcatEntityNames(uri);
-                // search for an exact datafile match (not a "folder") in this dataset, investigation and facility
-                icatQuery = "SELECT datafile from Datafile datafile" + createWhereClause(icatEntityNames, DatafileSearchType.EQUALS);
-            }
-            
-            LOG.debug("icatQuery = [" + icatQuery + "]");
             try {
-                List<Object> results = doIcatSearch(authString, icatQuery);
+                List<Object> results;
+                if (isMyData) {
+                    HashMap<String, String> icatEntityValues = getIcatEntityValues(uri);
+                    String icatQuery = icatMapper.createQuery(icatEntityValues, length, false, getUserId(context));
+                    LOG.debug("icatQuery = [" + icatQuery + "]");
+                    results = doIcatSearch(context, icatQuery);
+                }
+                else {
+                    // we need to be at this level for it to be a datafile
+                    IcatEntityNames icatEntityNames = getIcatEntityNames(uri);
+                    // search for an exact datafile match (not a "folder") in this dataset, investigation and facility
+                    results = searchForDatafile(context, icatEntityNames);
+                }
                 if (results.size() == 1) {
                     // we have found the datafile
                     Datafile df = (Datafile) results.get(0);
                     LOG.debug("Found datafile: " + Utils.getDatafileAsShortString(df));
+                    if (!isMyData) {
+                        rememberDatasetId(getIcatEntityNames(uri), df);
+                    }
                     DataSelection dataSelection = new DataSelection();
                     dataSelection.addDatafile(df.getId());
-                    return idsClient.getData(getIcatSessionId(authString), dataSelection, Flag.NONE, 0L);
+                    String sessionId = getIcatSessionId(context);
+                    if (properties.getCheckOnlineBeforeGet()) {
+                        checkOnline(sessionId, df, dataSelection);
+                    }
+                    InputStream in;
+                    try {
+                        // IDS skips to the offset itself so only the bytes wanted are sent
+                        in = idsGetData(sessionId, dataSelection, Flag.NONE, offset);
+                    } catch (DataNotOnlineException e) {
+                        // IDS starts the restore itself (or, if it was checked,
+                        // it went offline between checking and getting it)
+                        int retryAfterSecs = restoreTracker.offline(df.getId());
+                        throw new DataOfflineException("Datafile " + Utils.getDatafileAsShortString(df)
+                                + " is not online - try again in " + retryAfterSecs + " seconds", retryAfterSecs, e);
+                    }
+                    restoreTracker.online(df.getId());
+                    return in;
                 }
             } catch (IdsException e) {
                 LOG.debug("Error getting file from IDS", e);
@@ -597,12 +861,176 @@ public class IcatStore implements IWebdavStore {
         }
         throw new WebdavException("getResourceContent not implemented yet for this type of object in IcatStore");
     }
+
+    @Override
+    public InputStream getFolderContentAsZip(RequestContext context, String uri)
+            throws WebdavException {
+        LOG.trace("IcatStore.getFolderContentAsZip(" + uri + ")");
+        // IDS can zip a whole Investigation or Dataset, or a list of the
+        // Datafiles in a virtual folder, but anything above that would be far
+        // too big to download in one go
+        DataSelection dataSelection;
+        if (isVirtualFolder(uri)) {
+            dataSelection = createVirtualFolderDataSelection(context, uri);
+        } else {
+            EntityBaseBean entity = getFolderEntity(context, uri);
+            if (entity == null) {
+                return null;
+            }
+            LOG.debug("Getting " + entity.getClass().getSimpleName() + " " + entity.getId() + " as a ZIP file from IDS");
+            dataSelection = createDataSelection(entity);
+        }
+        if (dataSelection == null) {
+            return null;
+        }
+        try {
+            return idsGetData(getIcatSessionId(context), dataSelection, Flag.ZIP, 0L);
+        } catch (DataNotOnlineException e) {
+            // IDS starts the restore itself
+            throw new DataOfflineException(uri + " is not online", restoreTracker.getRetryAfterSecs(), e);
+        } catch (InsufficientPrivilegesException e) {
+            String message = "Error getting " + uri + " as a ZIP file : IDS InsufficientPrivilegesException";
+            LOG.error(message, e);
+            throw new AccessDeniedException(message, e);
+        } catch (IdsException e) {
+            LOG.debug("Error getting ZIP file from IDS", e);
+            throw new WebdavException("Error getting ZIP file from IDS", e);
+        }
+    }
+
+    // The files in a virtual folder and its subfolders, leaving out the FOLDER
+    // Datafiles so that the ZIP file does not have a file with the same name
+    // as each folder, or null if there are none or too many to zip
+    private DataSelection createVirtualFolderDataSelection(RequestContext context, String uri)
+            throws WebdavException {
+        DataSelection dataSelection = new DataSelection();
+        int count = 0;
+        for (Datafile df : getVirtualFolderDatafiles(context, uri)) {
+            if (FOLDER.equals(df.getDescription())) {
+                continue;
+            }
+            if (++count > MAX_DATAFILE_IDS_PER_IDS_CALL) {
+                LOG.debug("Virtual folder '" + uri + "' has more than " + MAX_DATAFILE_IDS_PER_IDS_CALL
+                        + " files - not getting it as a ZIP file");
+                return null;
+            }
+            dataSelection.addDatafile(df.getId());
+        }
+        if (count == 0) {
+            return null;
+        }
+        LOG.debug("Getting virtual folder '" + uri + "' (" + count + " Datafiles) as a ZIP file from IDS");
+        return dataSelection;
+    }
+
+    /**
+     * Checks that a Datafile is online before getting it from IDS, if
+     * checkOnlineBeforeGet is set. If it is not then a restore is started, if
+     * one is not already running, and the client is sent a 503 with a
+     * Retry-After instead of a request thread being held until the restore
+     * finishes. Without the check the same is done when IDS is asked for the
+     * Datafile and throws a DataNotOnlineException.
+     */
+    private void checkOnline(String sessionId, Datafile df, DataSelection dataSelection)
+            throws IdsException, DataOfflineException {
+        Status status = idsGetStatus(sessionId, dataSelection);
+        if (status == Status.ONLINE) {
+            restoreTracker.online(df.getId());
+            return;
+        }
+        if (status == Status.ARCHIVED) {
+            LOG.debug("Restoring " + Utils.getDatafileAsShortString(df));
+            idsRestore(sessionId, dataSelection);
+        }
+        int retryAfterSecs = restoreTracker.offline(df.getId());
+        throw new DataOfflineException("Datafile " + Utils.getDatafileAsShortString(df) + " is " + status
+                + " - try again in " + retryAfterSecs + " seconds", retryAfterSecs);
+    }
+
+    /**
+     * Finds the Investigation or Dataset that a folder is for
+     * 
+     * @return the entity, or null if the folder is at some other level of
+     *      the hierarchy or can not be found
+     */
+    private EntityBaseBean getFolderEntity(RequestContext context, String uri) throws WebdavException {
+        if (!isInvestigationOrDatasetFolder(uri)) {
+            return null;
+        }
+        // the same query as is used to find the folder
+        int length = getHierarchyLevel(getUriParts(uri));
+        String icatQuery = icatMapper.createQuery(getIcatEntityValues(uri), length, false, getUserId(context));
+        LOG.debug("icatQuery = [" + icatQuery + "]");
+        List<Object> results = doIcatSearch(context, icatQuery);
+        if (results.size() != 1) {
+            LOG.debug(results.size() + " results returned from icatQuery '" + icatQuery + "' - expected 1");
+            return null;
+        }
+        Object result = results.get(0);
+        if (result instanceof Investigation || result instanceof Dataset) {
+            return (EntityBaseBean) result;
+        }
+        return null;
+    }
+
+    private static boolean isInvestigationOrDatasetFolder(String uri) {
+        String[] uriParts = getUriParts(uri);
+        int length = getHierarchyLevel(uriParts);
+        if (uriParts.length < 2 || uri.equals("/My Data") || length >= hierarchy.size()) {
+            return false;
+        }
+        String entity = hierarchy.get(length).getEntity();
+        return entity.equals("Investigation") || entity.equals("Dataset");
+    }
+
+    private static DataSelection createDataSelection(EntityBaseBean entity) {
+        DataSelection dataSelection = new DataSelection();
+        if (entity instanceof Investigation) {
+            dataSelection.addInvestigation(entity.getId());
+        } else {
+            dataSelection.addDataset(entity.getId());
+        }
+        return dataSelection;
+    }
+
+    // Have the data in an Investigation or Dataset folder restored from archive
+    // storage in the background when it is listed, ready for it to be opened
+    private void prestage(RequestContext context, String uri) {
+        if (restorePrestager != null && isInvestigationOrDatasetFolder(uri)) {
+            restorePrestager.request(context, uri);
+        }
+    }
+
+    private class IcatRestorer implements RestorePrestager.Restorer {
+        @Override
+        public void restore(RequestContext context, String folderUri) throws Exception {
+            EntityBaseBean entity = getFolderEntity(context, folderUri);
+            if (entity != null) {
+                idsRestore(getIcatSessionId(context), createDataSelection(entity));
+            }
+        }
+    }
     
     // A convenience method to be able to pass dates directly from ICAT objects
     private static StoredObject createFolderStoredObject(XMLGregorianCalendar createDateXML, XMLGregorianCalendar modifiedDateXML) {
         return createFolderStoredObject(createDateXML.toGregorianCalendar().getTime(), modifiedDateXML.toGregorianCalendar().getTime());
     }
 
+    private static StoredObject createDatafileStoredObject(Datafile df) {
+        if (df.getDescription() != null && df.getDescription().equals(FOLDER)) {
+            // these are the virtual "FOLDER" datafiles created by IDAV
+            // return a StoredObject with create and modified date set to now
+            Date now = new Date();
+            return createFolderStoredObject(now, now);
+        }
+        StoredObject so = new StoredObject();
+        so.setFolder(false);
+        so.setLastModified(df.getModTime().toGregorianCalendar().getTime());
+        so.setCreationDate(df.getCreateTime().toGregorianCalendar().getTime());
+        so.setResourceLength(df.getFileSize());
+        return so;
+    }
+
     private static StoredObject createFolderStoredObject(Date createDate, Date modifiedDate) {
         StoredObject so = new StoredObject();
         so.setFolder(true);
@@ -615,20 +1043,26 @@ public class IcatStore implements IWebdavStore {
     /**
      * Retrieves the current facility cycle dates so these values can be used
      *
-     * @param authString
+     * @param context
      * @param currentIcatValues
      * @return
      */
-    private HashMap<String, String> getFacilityCycleDates(String authString, HashMap<String, String> currentIcatValues) {
+    private HashMap<String, String> getFacilityCycleDates(RequestContext context, HashMap<String, String> currentIcatValues) {
         return currentIcatValues;
     }
 
-    private static String createWhereClause(IcatEntityNames icatEntityNames, DatafileSearchType datafileSearchType, boolean includeTopLevel, boolean replaceDashes) {
+    private static String createWhereClause(IcatEntityNames icatEntityNames, DatafileSearchType datafileSearchType, boolean includeTopLevel, boolean replaceDashes, Long datasetId) {
         String whereClause = null;
+        boolean useDatasetId = datasetId != null && icatEntityNames.getDatafileName() != null;
         if (icatEntityNames.getDatafileName() != null) {
             // DatafileSearchType needs to be a value other than NONE
-            whereClause = " WHERE datafile.dataset.investigation.facility.name='{}' AND datafile.dataset.investigation.name='{}'";
-            whereClause += " AND datafile.dataset.investigation.visitId='{}' AND datafile.dataset.name='{}'";
+            if (useDatasetId) {
+                // the Dataset has already been found so there is no need to join up to the Facility
+                whereClause = " WHERE " + createDatasetIdCondition("datafile.dataset", datasetId, icatEntityNames);
+            } else {
+                whereClause = " WHERE datafile.dataset.investigation.facility.name='{}' AND datafile.dataset.investigation.name='{}'";
+                whereClause += " AND datafile.dataset.investigation.visitId='{}' AND datafile.dataset.name='{}'";
+            }
             if (datafileSearchType == DatafileSearchType.EQUALS) {
                 whereClause += " AND datafile.name='{}'";
             } else if (datafileSearchType == DatafileSearchType.LIKE) {
@@ -663,17 +1097,19 @@ public class IcatStore implements IWebdavStore {
         // StringUtils.replaceOnce is used instead of String.replaceFirst because it does literal string replacement
         // replaceFirst uses regular expressions which causes problems with characters like $
         
-        whereClause = StringUtils.replaceOnce(whereClause, CURLY_BRACES, Utils.escapeStringForIcatQuery(icatEntityNames.getFacilityName()));
-        if (icatEntityNames.getInvestigationName() != null) {
-            String[] investigationAndVisit =  getInvestigationAndVisit(Utils.escapeStringForIcatQuery(icatEntityNames.getInvestigationName()));
-            String investigationName = investigationAndVisit[0];
-            String visitName = investigationAndVisit[1];
-            whereClause = StringUtils.replaceOnce(whereClause, CURLY_BRACES, investigationName);
-            whereClause = StringUtils.replaceOnce(whereClause, CURLY_BRACES, visitName);
-        }
-        
-        if (icatEntityNames.getDatasetName() != null) {
-            whereClause = StringUtils.replaceOnce(whereClause, CURLY_BRACES, Utils.escapeStringForIcatQuery(icatEntityNames.getDatasetName()));
+        if (!useDatasetId) {
+            whereClause = StringUtils.replaceOnce(whereClause, CURLY_BRACES, Utils.escapeStringForIcatQuery(icatEntityNames.getFacilityName()));
+            if (icatEntityNames.getInvestigationName() != null) {
+                String[] investigationAndVisit =  getInvestigationAndVisit(Utils.escapeStringForIcatQuery(icatEntityNames.getInvestigationName()));
+                String investigationName = investigationAndVisit[0];
+                String visitName = investigationAndVisit[1];
+                whereClause = StringUtils.replaceOnce(whereClause, CURLY_BRACES, investigationName);
+                whereClause = StringUtils.replaceOnce(whereClause, CURLY_BRACES, visitName);
+            }
+            
+            if (icatEntityNames.getDatasetName() != null) {
+                whereClause = StringUtils.replaceOnce(whereClause, CURLY_BRACES, Utils.escapeStringForIcatQuery(icatEntityNames.getDatasetName()));
+            }
         }
         if (icatEntityNames.getDatafileName() != null) {
             whereClause = StringUtils.replaceOnce(whereClause, CURLY_BRACES, Utils.escapeStringForIcatQuery(icatEntityNames.getDatafileName()));
@@ -682,29 +1118,185 @@ public class IcatStore implements IWebdavStore {
     }
 
     private static String createWhereClause(IcatEntityNames icatEntityNames, DatafileSearchType datafileSearchType) {
-        return createWhereClause(icatEntityNames, datafileSearchType, true, false);
+        return createWhereClause(icatEntityNames, datafileSearchType, true, false, null);
     }
 
     private static String createWhereClause(IcatEntityNames icatEntityNames, boolean includeTopLevel) {
-        return createWhereClause(icatEntityNames, DatafileSearchType.NONE, includeTopLevel, false);
+        return createWhereClause(icatEntityNames, DatafileSearchType.NONE, includeTopLevel, false, null);
+    }
+
+    // Match the Dataset with a remembered id, but only while it still has the names that the
+    // id was remembered for, as it may have been renamed (or deleted and re-created) outside of IDAV
+    private static String createDatasetIdCondition(String datasetAlias, Long datasetId, IcatEntityNames icatEntityNames) {
+        String[] investigationAndVisit = getInvestigationAndVisit(Utils.escapeStringForIcatQuery(icatEntityNames.getInvestigationName()));
+        return datasetAlias + ".id=" + datasetId
+                + " AND " + datasetAlias + ".investigation.name='" + investigationAndVisit[0]
+                + "' AND " + datasetAlias + ".investigation.visitId='" + investigationAndVisit[1]
+                + "' AND " + datasetAlias + ".name='" + Utils.escapeStringForIcatQuery(icatEntityNames.getDatasetName()) + "'";
+    }
+
+    // Called when a query using a remembered Dataset id found nothing, to tell whether that
+    // was because the id no longer belongs to the Dataset with these names. If it does not
+    // then the id is forgotten and true is returned so that the query can be made again by name.
+    private boolean forgetDatasetIdIfStale(RequestContext context, IcatEntityNames icatEntityNames, Long datasetId) {
+        if (datasetId == null) {
+            return false;
+        }
+        String icatQuery = "SELECT dataset.id from Dataset dataset WHERE "
+                + createDatasetIdCondition("dataset", datasetId, icatEntityNames);
+        LOG.debug("icatQuery = [" + icatQuery + "]");
+        if (!doIcatSearch(context, icatQuery).isEmpty()) {
+            return false;
+        }
+        LOG.debug("Dataset id " + datasetId + " is no longer valid for " + icatEntityNames.toString());
+        entityIdIndex.removeUnder(icatEntityNames);
+        return true;
+    }
+
+    // Search for an exact Datafile match, searching again by the names if a remembered
+    // Dataset id was used and turns out to be stale
+    private List<Object> searchForDatafile(RequestContext context, IcatEntityNames icatEntityNames) {
+        Long datasetId = entityIdIndex.getDatasetId(icatEntityNames);
+        String icatQuery = createDatafileQuery(icatEntityNames, datasetId);
+        LOG.debug("icatQuery = [" + icatQuery + "]");
+        List<Object> results = doIcatSearch(context, icatQuery);
+        if (results.isEmpty() && forgetDatasetIdIfStale(context, icatEntityNames, datasetId)) {
+            icatQuery = createDatafileQuery(icatEntityNames, null);
+            LOG.debug("icatQuery = [" + icatQuery + "]");
+            results = doIcatSearch(context, icatQuery);
+        }
+        return results;
+    }
+
+    // Create the query for an exact Datafile match, using the id of the Dataset if it is known.
+    // If it is not known then the Dataset is included in the results so that its id can be
+    // remembered for next time (see rememberDatasetId).
+    private static String createDatafileQuery(IcatEntityNames icatEntityNames, Long datasetId) {
+        String icatQuery = "SELECT datafile from Datafile datafile"
+                + createWhereClause(icatEntityNames, DatafileSearchType.EQUALS, true, false, datasetId);
+        if (datasetId == null) {
+            icatQuery += " INCLUDE datafile.dataset";
+        }
+        return icatQuery;
+    }
+
+    private static void rememberDatasetId(IcatEntityNames icatEntityNames, Datafile df) {
+        if (df.getDataset() != null) {
+            entityIdIndex.putDatasetId(icatEntityNames, df.getDataset().getId());
+        }
+    }
+
+    // Let the IcatMapper query the Datafiles in a Dataset by id if the id is known,
+    // returning the id that was used
+    private static Long addDatasetId(String uri, HashMap<String, String> icatEntityValues) {
+        Long datasetId = entityIdIndex.getDatasetId(getIcatEntityNames(uri));
+        if (datasetId != null) {
+            icatEntityValues.put(IcatMapper.DATASET_ID, datasetId.toString());
+        }
+        return datasetId;
+    }
+
+    /**
+     * Iterates over the results of a query, fetching them from ICAT a page at
+     * a time as they are needed so that only one page of the results is held
+     * at once. If paging is disabled (icatPageSize is 0) then all of the
+     * results are fetched by a single search.
+     *
+     * Queries that select whole entities fetch each page after the id of the
+     * last result of the one before. Queries that select a field or a related
+     * entity (eg. the children names, or the Investigations of an
+     * InvestigationUser) have no id to go on, so they skip over the earlier
+     * results with LIMIT instead, which gets slower for each page.
+     */
+    private class PagedIcatSearch implements Iterator<Object> {
+        private final RequestContext context;
+        private final String icatQuery;
+        private final int pageSize;
+        private final boolean pageById;
+        private List<Object> page = null;
+        private int pageIndex = 0;
+        private int offset = 0;
+        private Long lastId = null;
+        private boolean lastPage = false;
+
+        private PagedIcatSearch(RequestContext context, String icatQuery) {
+            this.context = context;
+            this.icatQuery = icatQuery;
+            this.pageSize = properties.getIcatPageSize();
+            this.pageById = IcatMapper.selectsEntity(icatQuery);
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (page == null || pageIndex >= page.size()) {
+                if (lastPage) {
+                    return false;
+                }
+                fetchNextPage();
+            }
+            return true;
+        }
+
+        @Override
+        public Object next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return page.get(pageIndex++);
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private void fetchNextPage() throws WebdavException {
+            if (pageSize <= 0) {
+                page = doIcatSearch(context, icatQuery);
+                lastPage = true;
+            } else {
+                String pageQuery;
+                if (pageById && lastId != null) {
+                    pageQuery = IcatMapper.createPageQueryAfter(icatQuery, lastId, pageSize);
+                } else {
+                    pageQuery = IcatMapper.createPageQuery(icatQuery, offset, pageSize);
+                }
+                LOG.debug("icatQuery (page) = [" + pageQuery + "]");
+                page = doIcatSearch(context, pageQuery);
+                offset += page.size();
+                if (pageById && !page.isEmpty()) {
+                    lastId = ((EntityBaseBean) page.get(page.size() - 1)).getId();
+                }
+                lastPage = page.size() < pageSize;
+            }
+            pageIndex = 0;
+        }
+    }
+
+    private static List<Object> getAllResults(Iterator<Object> results) {
+        List<Object> allResults = new ArrayList<>();
+        while (results.hasNext()) {
+            allResults.add(results.next());
+        }
+        return allResults;
     }
 
     // As there is a possibility of us trying this first with an expired ICAT session ID
     // we might need to catch the ICAT session exception, re-login and try again.
     // Potentially all other ICAT calls need this functionality added as well but seeing as
     // this is by far the most frequently called this is the most important place to have it.
-    private List<Object> doIcatSearch(String authString, String icatQuery) throws WebdavException {
+    private List<Object> doIcatSearch(RequestContext context, String icatQuery) throws WebdavException {
         LOG.debug("Searching the ICAT");
         List<Object> results = null;
         try {
-            results = icatEP.search(getIcatSessionId(authString), icatQuery);
+            results = icatSearcher.search(getIcatSessionId(context), icatQuery);
         } catch (IcatException_Exception e1) {
             if (e1.getFaultInfo().getType() == IcatExceptionType.SESSION) {
-                String username = Utils.getUsernamePasswordFromAuthString(authString).getUsername();
+                String username = context.getUsername();
                 LOG.debug("ICAT session exception for user: " + username + " - will re-login and try again");
                 try {
-                    doIcatLogin(authString);
-                    results = icatEP.search(getIcatSessionId(authString), icatQuery);
+                    renewIcatSession(context);
+                    results = icatSearcher.search(getIcatSessionId(context), icatQuery);
                 } catch (IcatException_Exception e2) {
                     String message = "Error executing second ICAT query: [" + icatQuery + "]";
                     LOG.debug(message, e2);
@@ -719,9 +1311,80 @@ public class IcatStore implements IWebdavStore {
         return results;
     }
 
+    private BackendGuard.Settings createGuardSettings(int maxConcurrent) {
+        return new BackendGuard.Settings()
+                .maxConcurrent(maxConcurrent)
+                .queueWaitMillis(properties.getBackendQueueWaitMillis())
+                .callTimeoutMillis(properties.getBackendCallTimeoutSecs() * 1000L)
+                .maxRetries(properties.getBackendMaxRetries())
+                .retryBaseMillis(properties.getBackendRetryBaseMillis())
+                .failureThreshold(properties.getCircuitBreakerFailures())
+                .openMillis(properties.getCircuitBreakerOpenSecs() * 1000L);
+    }
+
+    // Unchecked exceptions from the web service and HTTP clients (other than
+    // our own) mean that the service could not be reached or did not answer
+    private static boolean isConnectionFailure(Throwable t) {
+        return t instanceof RuntimeException && !(t instanceof WebdavException);
+    }
+
+    // The calls to IDS, all made through the IDS guard
+
+    private InputStream idsGetData(final String sessionId, final DataSelection dataSelection, final Flag flag,
+            final long offset) throws IdsException {
+        return idsGuard.call("getData", true, new BackendGuard.Call<InputStream, IdsException>() {
+            @Override
+            public InputStream call() throws IdsException {
+                return idsClient.getData(sessionId, dataSelection, flag, offset);
+            }
+        });
+    }
+
+    private long idsPut(final String sessionId, final InputStream inputStream, final String name,
+            final long datasetId, final long datafileFormatId, final String description) throws IdsException {
+        // an upload takes as long as the client takes to send it
+        return idsGuard.callWithoutTimeout("put", new BackendGuard.Call<Long, IdsException>() {
+            @Override
+            public Long call() throws IdsException {
+                return idsClient.put(sessionId, inputStream, name, datasetId, datafileFormatId, description);
+            }
+        });
+    }
+
+    private Status idsGetStatus(final String sessionId, final DataSelection dataSelection) throws IdsException {
+        return idsGuard.call("getStatus", true, new BackendGuard.Call<Status, IdsException>() {
+            @Override
+            public Status call() throws IdsException {
+                return idsClient.getStatus(sessionId, dataSelection);
+            }
+        });
+    }
+
+    private void idsRestore(final String sessionId, final DataSelection dataSelection) throws IdsException {
+        idsGuard.call("restore", true, new BackendGuard.Call<Void, IdsException>() {
+            @Override
+            public Void call() throws IdsException {
+                idsClient.restore(sessionId, dataSelection);
+                return null;
+            }
+        });
+    }
+
+    private void idsDelete(final String sessionId, final DataSelection dataSelection) throws IdsException {
+        // deleting a large Dataset can take a long time, and giving up would not stop it
+        idsGuard.callWithoutTimeout("delete", new BackendGuard.Call<Void, IdsException>() {
+            @Override
+            public Void call() throws IdsException {
+                idsClient.delete(sessionId, dataSelection);
+                return null;
+            }
+        });
+    }
+
     @Override
-    public void createFolder(String authString, String uri) throws WebdavException {
+    public void createFolder(RequestContext context, String uri) throws WebdavException {
         LOG.trace("IcatStore.createFolder(" + uri + ")");
+        context.forgetStoredObjects(uri);
         IcatEntityNames icatEntityNames = getIcatEntityNames(uri);
         String[] uriParts = getUriParts(uri);
         try {
@@ -734,21 +1397,26 @@ public class IcatStore implements IWebdavStore {
                 // create a Facility
                 Facility fac = new Facility();
                 fac.setName(icatEntityNames.getFacilityName());
-                long facId = icatEP.create(getIcatSessionId(authString), fac);
+                long facId = icatEP.create(getIcatSessionId(context), fac);
+                fac.setId(facId);
+                referenceEntities.addFacility(fac);
                 LOG.debug("Created Facility with name '" + fac.getName() + "', id=" + facId);
             } else if (uriParts.length == 3) {
                 // create an Investigation
-                Facility fac = null;
-                String icatQuery = "SELECT fac from Facility fac where fac.name='" + Utils.escapeStringForIcatQuery(icatEntityNames.getFacilityName()) + "'";
-                LOG.debug("icatQuery = [" + icatQuery + "]");
-                List<Object> facilities = doIcatSearch(authString, icatQuery);
-                if (facilities.size() == 1) {
-                    fac = (Facility) facilities.get(0);
-                } else {
-                    LOG.error(facilities.size() + " results returned from icatQuery '" + icatQuery + "' - expected 1");
-                    throw new WebdavException("Error creating facility folder for uri (" + uri + ")");
+                Facility fac = getReferenceEntities(context).getFacility(icatEntityNames.getFacilityName());
+                if (fac == null) {
+                    String icatQuery = "SELECT fac from Facility fac where fac.name='" + Utils.escapeStringForIcatQuery(icatEntityNames.getFacilityName()) + "'";
+                    LOG.debug("icatQuery = [" + icatQuery + "]");
+                    List<Object> facilities = doIcatSearch(context, icatQuery);
+                    if (facilities.size() == 1) {
+                        fac = (Facility) facilities.get(0);
+                        referenceEntities.addFacility(fac);
+                    } else {
+                        LOG.error(facilities.size() + " results returned from icatQuery '" + icatQuery + "' - expected 1");
+                        throw new WebdavException("Error creating facility folder for uri (" + uri + ")");
+                    }
                 }
-                InvestigationType invType = getInvestigationType(authString);
+                InvestigationType invType = getInvestigationType(context);
                 Investigation inv = new Investigation();
                 inv.setFacility(fac);
                 
@@ -760,16 +1428,16 @@ public class IcatStore implements IWebdavStore {
                 inv.setTitle(icatEntityNames.getInvestigationName()); // title MUST be set
                 inv.setVisitId("1"); // visitId MUST be set
                 inv.setType(invType);
-                inv.setId(icatEP.create(getIcatSessionId(authString), inv));
+                inv.setId(icatEP.create(getIcatSessionId(context), inv));
                 LOG.debug("Created Investigation with name '" + inv.getName() + "', id=" + inv.getId());
 
                 // TopCAT needs the investigation to be linked to an instrument
                 // for it to be displayed in the "Browse All Data" tab
-                Instrument instrument = getInstrument(authString);
+                Instrument instrument = getInstrument(context);
                 InvestigationInstrument ii = new InvestigationInstrument();
                 ii.setInvestigation(inv);
                 ii.setInstrument(instrument);
-                long invInstId = icatEP.create(getIcatSessionId(authString), ii);
+                long invInstId = icatEP.create(getIcatSessionId(context), ii);
                 LOG.debug("Created InvestigationInstrument with id=" + invInstId);
 
             } else if (uriParts.length == 4) {
@@ -780,29 +1448,29 @@ public class IcatStore implements IWebdavStore {
                         + "' and inv.title='"
                         + Utils.escapeStringForIcatQuery(icatEntityNames.getInvestigationName()) + "'";
                 LOG.debug("icatQuery = [" + icatQuery + "]");
-                List<Object> results = doIcatSearch(authString, icatQuery);
+                List<Object> results = doIcatSearch(context, icatQuery);
                 if (results.size() == 1) {
                     inv = (Investigation) results.get(0);
                 } else {
                     LOG.error(results.size() + " results returned from icatQuery '" + icatQuery + "' - expected 1");
                     throw new WebdavException("Error creating investigation folder for uri (" + uri + ")");
                 }
-                DatasetType dsType = getDatasetType(authString);
+                DatasetType dsType = getDatasetType(context);
                 Dataset ds = new Dataset();
                 ds.setInvestigation(inv);
                 ds.setName(icatEntityNames.getDatasetName());
                 ds.setType(dsType);
-                long dsId = icatEP.create(getIcatSessionId(authString), ds);
+                long dsId = icatEP.create(getIcatSessionId(context), ds);
                 LOG.debug("Created Dataset with name '" + ds.getName() + "', id=" + dsId);
             } else {
                 // if there are more parts then it must be a virtual folder
                 LOG.debug("Creating virtual folder for uri '" + uri + "'");
                 // create a virtual folder by creating a Datafile with the description set to FOLDER
-                Dataset dataset = getDataset(authString, icatEntityNames);
-                DatafileFormat datafileFormat = getDatafileFormat(authString);
+                Dataset dataset = getDataset(context, icatEntityNames);
+                DatafileFormat datafileFormat = getDatafileFormat(context);
                 String dfName = icatEntityNames.getDatafileName();
                 InputStream inputStream = new ByteArrayInputStream(TEMP_FILE_CONTENTS.getBytes());
-                long dfId = idsClient.put(getIcatSessionId(authString), inputStream, dfName, dataset.getId(), datafileFormat.getId(), FOLDER);
+                long dfId = idsPut(getIcatSessionId(context), inputStream, dfName, dataset.getId(), datafileFormat.getId(), FOLDER);
                 LOG.debug("Created Datafile with name '" + dfName + "', id=" + dfId);
             }
         } catch (IcatException_Exception e) {
@@ -816,80 +1484,40 @@ public class IcatStore implements IWebdavStore {
         }
     }
 
-    private DatafileFormat getDatafileFormat(String authString) throws WebdavException {
-        if (datafileFormat == null) {
-            // TODO - DatafileFormat also has a mandatory field version - how to deal with more than one version?
-            LOG.info("Getting datafileFormat from ICAT");
-            String icatQuery = "SELECT datafileFormat from DatafileFormat datafileFormat WHERE datafileFormat.name='" + properties.getDatafileFormatName() + "'";
-            LOG.debug("icatQuery = [" + icatQuery + "]");
-            List<Object> datafileFormats = doIcatSearch(authString, icatQuery);
-            if (datafileFormats.size() == 1) {
-                datafileFormat = (DatafileFormat) datafileFormats.get(0);
-            } else {
-                LOG.error(datafileFormats.size() + " results returned from icatQuery '" + icatQuery + "' - expected 1");
-                throw new WebdavException("Error getting DatafileFormat");
-            }
-        }
-        return datafileFormat;
+    private DatafileFormat getDatafileFormat(RequestContext context) throws WebdavException {
+        return getReferenceEntities(context).getDatafileFormat();
     }
 
-    private DatasetType getDatasetType(String authString) throws WebdavException {
-        if (datasetType == null) {
-            LOG.info("Getting datasetType from ICAT");
-            String icatQuery = "SELECT dsType from DatasetType dsType WHERE dsType.name='" + properties.getDatasetTypeName() + "'";
-            LOG.debug("icatQuery = [" + icatQuery + "]");
-            List<Object> dsTypes = doIcatSearch(authString, icatQuery);
-            if (dsTypes.size() == 1) {
-                datasetType = (DatasetType) dsTypes.get(0);
-            } else {
-                LOG.error(dsTypes.size() + " results returned from icatQuery '" + icatQuery + "' - expected 1");
-                throw new WebdavException("Error getting DatasetType");
-            }
-        }
-        return datasetType;
+    private DatasetType getDatasetType(RequestContext context) throws WebdavException {
+        return getReferenceEntities(context).getDatasetType();
     }
 
-    private InvestigationType getInvestigationType(String authString) throws WebdavException {
-        if (investigationType == null) {
-            LOG.info("Getting investigationType from ICAT");
-            String icatQuery = "SELECT invType from InvestigationType invType WHERE invType.name='" + properties.getInvestigationTypeName() + "'";
-            LOG.debug("icatQuery = [" + icatQuery + "]");
-            List<Object> invTypes = doIcatSearch(authString, icatQuery);
-            if (invTypes.size() == 1) {
-                investigationType = (InvestigationType) invTypes.get(0);
-            } else {
-                LOG.error(invTypes.size() + " results returned from icatQuery '" + icatQuery + "' - expected 1");
-                throw new WebdavException("Error getting InvestigationType");
-            }
-        }
-        return investigationType;
+    private InvestigationType getInvestigationType(RequestContext context) throws WebdavException {
+        return getReferenceEntities(context).getInvestigationType();
     }
 
-    private Instrument getInstrument(String authString) throws WebdavException {
-        LOG.debug("Getting intrument data");
-        if (instrument == null) {
-            LOG.info("Getting instrument from ICAT");
-            String icatQuery = "SELECT inst from Instrument inst WHERE inst.name='" + properties.getInstrumentName() + "'";
-            LOG.debug("icatQuery = [" + icatQuery + "]");
-            List<Object> instruments = doIcatSearch(authString, icatQuery);
-            if (instruments.size() == 1) {
-                instrument = (Instrument) instruments.get(0);
-            } else {
-                LOG.error(instruments.size() + " results returned from icatQuery '" + icatQuery + "' - expected 1");
-                throw new WebdavException("Error getting Instrument");
-            }
+    private Instrument getInstrument(RequestContext context) throws WebdavException {
+        return getReferenceEntities(context).getInstrument();
+    }
+
+    // Make sure the reference entities have been loaded, using this user's
+    // session if they could not be loaded when IDAV started
+    private ReferenceEntityRegistry getReferenceEntities(RequestContext context) throws WebdavException {
+        if (referenceEntities.needsLoading()) {
+            LOG.info("Loading reference entities using the session of the current user");
+            referenceEntities.loadIfNeeded(getIcatSessionId(context));
         }
-        return instrument;
+        return referenceEntities;
     }
 
     // NOTE: getFacility, getInvestigation and getDataset need the INCLUDE 1 
     // for when a rename is being done and the icatEP.update() method is being called
-    private Facility getFacility(String authString, IcatEntityNames icatEntityNames) throws WebdavException {
+    private Facility getFacility(RequestContext context, IcatEntityNames icatEntityNames) throws WebdavException {
         LOG.debug("Getting facility data");
         Facility fac = null;
         String icatQuery = "SELECT facility from Facility facility" + createWhereClause(icatEntityNames, false) + " INCLUDE 1";
         LOG.debug("icatQuery = [" + icatQuery + "]");
-        List<Object> results = doIcatSearch(authString, icatQuery);
+        List<Object> results = doIcatSearch(context, icatQuery);
         if (results.size() == 1) {
             fac = (Facility) results.get(0);
         } else {
@@ -899,12 +1527,12 @@ public class IcatStore implements IWebdavStore {
         return fac;
     }
 
-    private Investigation getInvestigation(String authString, IcatEntityNames icatEntityNames) throws WebdavException {
+    private Investigation getInvestigation(RequestContext context, IcatEntityNames icatEntityNames) throws WebdavException {
         LOG.debug("Getting investigation data");
         Investigation inv = null;
         String icatQuery = "SELECT investigation from Investigation investigation" + createWhereClause(icatEntityNames, false) + " INCLUDE 1";
         LOG.debug("icatQuery = [" + icatQuery + "]");
-        List<Object> results = doIcatSearch(authString, icatQuery);
+        List<Object> results = doIcatSearch(context, icatQuery);
         if (results.size() == 1) {
             inv = (Investigation) results.get(0);
         } else {
@@ -914,14 +1542,31 @@ public class IcatStore implements IWebdavStore {
         return inv;
     }
 
-    private Dataset getDataset(String authString, IcatEntityNames icatEntityNames) throws WebdavException {
+    private Dataset getDataset(RequestContext context, IcatEntityNames icatEntityNames) throws WebdavException {
         LOG.debug("Getting dataset data");
         Dataset dataset = null;
+        Long datasetId = entityIdIndex.getDatasetId(icatEntityNames);
+        if (datasetId != null) {
+            String icatQuery = "SELECT dataset from Dataset dataset WHERE "
+                    + createDatasetIdCondition("dataset", datasetId, icatEntityNames) + " INCLUDE 1";
+            LOG.debug("icatQuery = [" + icatQuery + "]");
+            List<Object> results = doIcatSearch(context, icatQuery);
+            if (results.size() == 1) {
+                return (Dataset) results.get(0);
+            }
+            // the Dataset has been renamed or deleted (and possibly re-created) outside of IDAV
+            LOG.debug("Dataset id " + datasetId + " is no longer valid for " + icatEntityNames.toString());
+            entityIdIndex.removeUnder(icatEntityNames);
+        }
         String icatQuery = "SELECT dataset from Dataset dataset" + createWhereClause(icatEntityNames, false) + " INCLUDE 1";
         LOG.debug("icatQuery = [" + icatQuery + "]");
-        List<Object> results = doIcatSearch(authString, icatQuery);
+        List<Object> results = doIcatSearch(context, icatQuery);
         if (results.size() == 1) {
             dataset = (Dataset) results.get(0);
+            if (icatEntityNames.getDatafileName() != null) {
+                // only remember ids found using the same names as the Datafile queries
+                entityIdIndex.putDatasetId(icatEntityNames, dataset.getId());
+            }
         } else {
             LOG.error(results.size() + " results returned from icatQuery '" + icatQuery + "' - expected 1");
             throw new WebdavException("Error getting Dataset from icatEntityNames: " + icatEntityNames.toString());
@@ -929,23 +1574,22 @@ public class IcatStore implements IWebdavStore {
         return dataset;
     }
 
-    private Datafile getDatafile(String authString, IcatEntityNames icatEntityNames) throws WebdavException {
+    private Datafile getDatafile(RequestContext context, IcatEntityNames icatEntityNames) throws WebdavException {
         LOG.debug("Getting datafile data");
         Datafile datafile = null;
-        String icatQuery = "SELECT datafile from Datafile datafile" + createWhereClause(icatEntityNames, DatafileSearchType.EQUALS);
-        LOG.debug("icatQuery = [" + icatQuery + "]");
-        List<Object> results = doIcatSearch(authString, icatQuery);
+        List<Object> results = searchForDatafile(context, icatEntityNames);
         if (results.size() == 1) {
             datafile = (Datafile) results.get(0);
+            rememberDatasetId(icatEntityNames, datafile);
         } else {
             // this may be OK - we may just be checking that the file does not exist
-            LOG.warn(results.size() + " results returned from icatQuery '" + icatQuery + "' - expected 1");
+            LOG.warn(results.size() + " results returned for " + icatEntityNames.toString() + " - expected 1");
             throw new WebdavException("Error getting Datafile from icatEntityNames: " + icatEntityNames.toString());
         }
         return datafile;
     }
 
-    private List<Datafile> getDatafileAndChildren(String authString, IcatEntityNames icatEntityNames) throws WebdavException {
+    private List<Datafile> getDatafileAndChildren(RequestContext context, IcatEntityNames icatEntityNames) throws WebdavException {
         LOG.debug("Getting the datafile and children");
         // TODO - modify this query to escape any % chars in datafile names once this is fixed in ICAT
         String icatQuery = "SELECT df from Datafile df "
@@ -955,7 +1599,7 @@ public class IcatStore implements IWebdavStore {
                 + "' AND (df.name='" + Utils.escapeStringForIcatQuery(icatEntityNames.getDatafileName())
                 + "' OR df.name like '" + Utils.escapeStringForIcatQuery(icatEntityNames.getDatafileName()) + "/%') INCLUDE 1";
         LOG.debug("icatQuery = [" + icatQuery + "]");
-        List<Object> results = doIcatSearch(authString, icatQuery);
+        List<Object> results = doIcatSearch(context, icatQuery);
         if (results.isEmpty()) {
             LOG.error("No results returned from icatQuery '" + icatQuery + "' - expected at least 1");
             String message = "Error getting Datafile and Children from icatEntityNames: " + icatEntityNames.toString();
@@ -974,9 +1618,10 @@ public class IcatStore implements IWebdavStore {
     }
 
     @Override
-    public void createResource(String authString, String uri)
+    public void createResource(RequestContext context, String uri)
             throws WebdavException {
         LOG.trace("IcatStore.createResource(" + uri + ")");
+        context.forgetStoredObjects(uri);
         // NOTE: resources can only be created at Datafile level
         // above that only createFolder should be being called (for Facility, Investigation and Dataset)
         IcatEntityNames icatEntityNames = getIcatEntityNames(uri);
@@ -985,14 +1630,14 @@ public class IcatStore implements IWebdavStore {
             LOG.error(message);
             throw new WebdavException(message);
         } else {
-            DatafileFormat datafileFormat = getDatafileFormat(authString);
-            Dataset dataset = getDataset(authString, icatEntityNames);
+            DatafileFormat datafileFormat = getDatafileFormat(context);
+            Dataset dataset = getDataset(context, icatEntityNames);
             // just create an empty file - setResourceContent will be called afterwards
             InputStream inputStream = new ByteArrayInputStream(EMPTY_STRING.getBytes());
             String dfName = icatEntityNames.getDatafileName();
             long dfId;
             try {
-                dfId = idsClient.put(getIcatSessionId(authString), inputStream, dfName, dataset.getId(), datafileFormat.getId(), null);
+                dfId = idsPut(getIcatSessionId(context), inputStream, dfName, dataset.getId(), datafileFormat.getId(), null);
                 LOG.debug("Created datafile with name '" + dfName + "', id=" + dfId);
             } catch (IdsException e) {
                 String message = "Error creating resource from uri (" + uri + ")";
@@ -1003,10 +1648,11 @@ public class IcatStore implements IWebdavStore {
     }
 
     @Override
-    public long setResourceContent(String authString, String uri,
+    public long setResourceContent(RequestContext context, String uri,
             InputStream is, String contentType, String characterEncoding)
             throws WebdavException {
         LOG.trace("IcatStore.setResourceContent(" + uri + ")");
+        context.forgetStoredObjects(uri);
         // NOTE: resources can only be created at Datafile level
         // above that only createFolder should be being called (for Facility, Investigation and Dataset)
         IcatEntityNames icatEntityNames = getIcatEntityNames(uri);
@@ -1018,7 +1664,7 @@ public class IcatStore implements IWebdavStore {
             // check whether the datafile already exists
             Datafile existingDatafile = null;
             try {
-                existingDatafile = getDatafile(authString, icatEntityNames);
+                existingDatafile = getDatafile(context, icatEntityNames);
             } catch (WebdavException e) {
                 // this could be that no datafile was found which is OK
                 LOG.info("No existing datafile found - this is probably OK");
@@ -1027,7 +1673,7 @@ public class IcatStore implements IWebdavStore {
                 DataSelection dataSelection = new DataSelection();
                 dataSelection.addDatafile(existingDatafile.getId());
                 try {
-                    idsClient.delete(getIcatSessionId(authString), dataSelection);
+                    idsDelete(getIcatSessionId(context), dataSelection);
                     LOG.debug("Deleted existing Datafile with id: " + existingDatafile.getId());
                 } catch (IdsException e) {
                     String message = "Error deleting existing Datafile: " + Utils.getDatafileAsShortString(existingDatafile);
@@ -1035,12 +1681,12 @@ public class IcatStore implements IWebdavStore {
                     throw new WebdavException(message, e);
                 }
             }
-            DatafileFormat datafileFormat = getDatafileFormat(authString);
-            Dataset dataset = getDataset(authString, icatEntityNames);
+            DatafileFormat datafileFormat = getDatafileFormat(context);
+            Dataset dataset = getDataset(context, icatEntityNames);
             String dfName = icatEntityNames.getDatafileName();
             long dfId;
             try {
-                dfId = idsClient.put(getIcatSessionId(authString), is, dfName, dataset.getId(), datafileFormat.getId(), null);
+                dfId = idsPut(getIcatSessionId(context), is, dfName, dataset.getId(), datafileFormat.getId(), null);
             } catch (IdsException e) {
                 String message = "Error setting resource content for uri (" + uri + ")";
                 LOG.error(message, e);
@@ -1054,9 +1700,10 @@ public class IcatStore implements IWebdavStore {
     }
 
     @Override
-    public void removeObject(String authString, String uri)
+    public void removeObject(RequestContext context, String uri)
             throws WebdavException {
         LOG.trace("IcatStore.removeObject(" + uri + ")");
+        context.forgetStoredObjects(uri);
         // NOTE: objects can only be removed at Datafile level currently
         // TODO - add recursive behaviour to delete from Facility, Investigation, Dataset or virtual directory
         // or should I not implement this behaviour to prevent accidental deletions???
@@ -1070,27 +1717,31 @@ public class IcatStore implements IWebdavStore {
                 throw new WebdavException(message);
             } else if (uriParts.length == 2) {
                 // delete the Facility
-                Facility fac = getFacility(authString, icatEntityNames);
-                icatEP.delete(getIcatSessionId(authString), fac);
+                Facility fac = getFacility(context, icatEntityNames);
+                icatEP.delete(getIcatSessionId(context), fac);
+                referenceEntities.removeFacility(fac.getName());
+                entityIdIndex.removeUnder(icatEntityNames);
                 LOG.debug("Deleted Facility: name='" + fac.getName() + "', id=" + fac.getId());
             } else if (uriParts.length == 3) {
                 // delete the Investigation (and InvestigationInstrument)
-                Investigation inv = getInvestigation(authString, icatEntityNames);
-                icatEP.delete(getIcatSessionId(authString), inv);
+                Investigation inv = getInvestigation(context, icatEntityNames);
+                icatEP.delete(getIcatSessionId(context), inv);
+                entityIdIndex.removeUnder(icatEntityNames);
                 LOG.debug("Deleted Investigation: name='" + inv.getName()
                         + "', id=" + inv.getId()
                         + ", title='" + inv.getTitle() + "'");
             } else if (uriParts.length == 4) {
                 // delete the Dataset
-                Dataset ds = getDataset(authString, icatEntityNames);
-                icatEP.delete(getIcatSessionId(authString), ds);
+                Dataset ds = getDataset(context, icatEntityNames);
+                icatEP.delete(getIcatSessionId(context), ds);
+                entityIdIndex.removeUnder(icatEntityNames);
                 LOG.debug("Deleted Dataset: name='" + ds.getName() + "', id=" + ds.getId());
             } else {
-                Datafile df = getDatafile(authString, icatEntityNames);
+                Datafile df = getDatafile(context, icatEntityNames);
                 DataSelection dataSelection = new DataSelection();
                 dataSelection.addDatafile(df.getId());
                 try {
-                    idsClient.delete(getIcatSessionId(authString), dataSelection);
+                    idsDelete(getIcatSessionId(context), dataSelection);
                     LOG.debug("Deleted Datafile: " + Utils.getDatafileAsShortString(df));
                 } catch (InsufficientPrivilegesException e) {
                     String message = "Error deleting Datafile: "
@@ -1265,6 +1916,149 @@ public class IcatStore implements IWebdavStore {
         return investigationAndVisit;
     }
  
+    @Override
+    public boolean supportsBulkRemove() {
+        // Investigations, Datasets and virtual folders can be removed with
+        // a single query to ICAT and IDS delete instead of one per Datafile
+        return true;
+    }
+
+    @Override
+    public boolean doBulkRemove(RequestContext context, String folderUri, Map<String, Integer> errorList)
+            throws WebdavException {
+        LOG.trace("IcatStore.doBulkRemove(" + folderUri + ")");
+        context.forgetStoredObjects(folderUri);
+        if (isInvestigationOrDatasetFolder(folderUri)) {
+            return removeInvestigationOrDataset(context, folderUri, errorList);
+        }
+        if (isVirtualFolder(folderUri)) {
+            return removeVirtualFolder(context, folderUri, errorList);
+        }
+        return false;
+    }
+
+    private boolean removeInvestigationOrDataset(RequestContext context, String uri, Map<String, Integer> errorList)
+            throws WebdavException {
+        EntityBaseBean entity = getFolderEntity(context, uri);
+        if (entity == null) {
+            return false;
+        }
+        String entityName = entity.getClass().getSimpleName() + " " + entity.getId();
+        String sessionId = getIcatSessionId(context);
+        try {
+            // IDS only removes the Datafiles, from ICAT along with their data
+            idsDelete(sessionId, createDataSelection(entity));
+            // which leaves the Investigation or Dataset itself, and deleting an
+            // Investigation from ICAT deletes the (now empty) Datasets in it
+            icatEP.delete(sessionId, entity);
+            LOG.debug("Deleted " + entityName + " and everything in it");
+        } catch (InsufficientPrivilegesException e) {
+            LOG.error("Error deleting " + entityName + " : IDS InsufficientPrivilegesException", e);
+            errorList.put(uri, WebdavStatus.SC_FORBIDDEN);
+        } catch (IdsException e) {
+            LOG.error("Error deleting " + entityName, e);
+            errorList.put(uri, WebdavStatus.SC_INTERNAL_SERVER_ERROR);
+        } catch (IcatException_Exception e) {
+            if (e.getFaultInfo().getType() == IcatExceptionType.INSUFFICIENT_PRIVILEGES) {
+                LOG.error("Error deleting " + entityName + " : ICAT INSUFFICIENT_PRIVILEGES", e);
+                errorList.put(uri, WebdavStatus.SC_FORBIDDEN);
+            } else {
+                LOG.error("Error deleting " + entityName, e);
+                errorList.put(uri, WebdavStatus.SC_INTERNAL_SERVER_ERROR);
+            }
+        } finally {
+            entityIdIndex.removeUnder(getIcatEntityNames(uri));
+        }
+        return true;
+    }
+
+    // A folder at the Datafile level of the hierarchy is a virtual folder:
+    // a FOLDER Datafile with the files in it named "folder/file"
+    private static boolean isVirtualFolder(String uri) {
+        String[] uriParts = getUriParts(uri);
+        int length = getHierarchyLevel(uriParts);
+        if (uriParts.length < 2 || "MY DATA".equalsIgnoreCase(uriParts[1]) || length >= hierarchy.size()) {
+            return false;
+        }
+        return hierarchy.get(length).getEntity().equals("Datafile");
+    }
+
+    private boolean removeVirtualFolder(RequestContext context, String uri, Map<String, Integer> errorList)
+            throws WebdavException {
+        List<Datafile> datafiles = getVirtualFolderDatafiles(context, uri);
+        if (datafiles.isEmpty()) {
+            // leave DoDelete to deal with whatever this is
+            return false;
+        }
+
+        // the Datafiles are named relative to the Dataset folder
+        String[] uriParts = getUriParts(uri);
+        String datasetUri = reconstructUri(Arrays.copyOf(uriParts, uriParts.length - 1));
+        String sessionId = getIcatSessionId(context);
+        // the ids go in the URL of the IDS delete so a very big folder is
+        // deleted a batch at a time
+        for (int start = 0; start < datafiles.size(); start += MAX_DATAFILE_IDS_PER_IDS_CALL) {
+            List<Datafile> batch = datafiles.subList(start, Math.min(start + MAX_DATAFILE_IDS_PER_IDS_CALL, datafiles.size()));
+            DataSelection dataSelection = new DataSelection();
+            for (Datafile df : batch) {
+                dataSelection.addDatafile(df.getId());
+            }
+            try {
+                idsDelete(sessionId, dataSelection);
+            } catch (InsufficientPrivilegesException e) {
+                LOG.error("Error deleting " + batch.size() + " Datafiles in '" + uri + "' : IDS InsufficientPrivilegesException", e);
+                putErrors(errorList, datasetUri, batch, WebdavStatus.SC_FORBIDDEN);
+            } catch (IdsException e) {
+                LOG.error("Error deleting " + batch.size() + " Datafiles in '" + uri + "'", e);
+                putErrors(errorList, datasetUri, batch, WebdavStatus.SC_INTERNAL_SERVER_ERROR);
+            }
+        }
+        LOG.debug("Deleted virtual folder '" + uri + "' (" + datafiles.size() + " Datafiles)");
+        return true;
+    }
+
+    // The FOLDER Datafile of a virtual folder and all of the Datafiles beneath
+    // it, found with one query
+    private List<Datafile> getVirtualFolderDatafiles(RequestContext context, String uri) throws WebdavException {
+        IcatEntityNames icatEntityNames = getIcatEntityNames(uri);
+        String folderName = Utils.escapeStringForIcatQuery(icatEntityNames.getDatafileName());
+        String icatQuery = "SELECT datafile from Datafile datafile"
+                + createWhereClause(icatEntityNames, DatafileSearchType.NONE, true, false,
+                        entityIdIndex.getDatasetId(icatEntityNames))
+                + " AND (datafile.name='" + folderName + "' OR datafile.name like '" + folderName + "/%')";
+        LOG.debug("icatQuery = [" + icatQuery + "]");
+        List<Datafile> datafiles = new ArrayList<>();
+        Iterator<Object> results = new PagedIcatSearch(context, icatQuery);
+        while (results.hasNext()) {
+            datafiles.add((Datafile) results.next());
+        }
+        return datafiles;
+    }
+
+    private static void putErrors(Map<String, Integer> errorList, String datasetUri, List<Datafile> datafiles, int status) {
+        for (Datafile df : datafiles) {
+            errorList.put(datasetUri + "/" + df.getName(), status);
+        }
+    }
+
+    @Override
+    public String getSerialWriteFolder(String uri) {
+        // IDS locks a Dataset while a file is being put into it, which
+        // includes creating a virtual folder within it
+        String[] uriParts = getUriParts(uri);
+        int length = getHierarchyLevel(uriParts);
+        int datasetLevel = -1;
+        for (int i = 0; i < hierarchy.size(); i++) {
+            if (hierarchy.get(i).getEntity().equals("Dataset")) {
+                datasetLevel = i;
+            }
+        }
+        if (uriParts.length < 2 || datasetLevel == -1 || length < datasetLevel) {
+            return null;
+        }
+        return reconstructUri(Arrays.copyOf(uriParts, uriParts.length - (length - datasetLevel)));
+    }
+
     @Override
     public boolean supportsDirectMove() {
         // this supports the more efficient "direct move"
@@ -1272,8 +2066,10 @@ public class IcatStore implements IWebdavStore {
     }
 
     @Override
-    public void doDirectMove(String authString, String sourceUri, String destinationUri) throws WebdavException {
+    public void doDirectMove(RequestContext context, String sourceUri, String destinationUri) throws WebdavException {
         LOG.trace("IcatStore.doDirectMove(sourceUri:'" + sourceUri + "', destinationUri:'" + destinationUri + "')");
+        context.forgetStoredObjects(sourceUri);
+        context.forgetStoredObjects(destinationUri);
         String[] uriParts = getUriParts(sourceUri);
         IcatEntityNames sourceIcatEntityNames = getIcatEntityNames(sourceUri);
         IcatEntityNames destIcatEntityNames = getIcatEntityNames(destinationUri);
@@ -1285,38 +2081,46 @@ public class IcatStore implements IWebdavStore {
                 throw new WebdavException(message);
             } else if (uriParts.length == 2) {
                 // rename the Facility
-                Facility fac = getFacility(authString, sourceIcatEntityNames);
+                Facility fac = getFacility(context, sourceIcatEntityNames);
+                referenceEntities.removeFacility(fac.getName());
                 fac.setName(destIcatEntityNames.getFacilityName());
-                icatEP.update(getIcatSessionId(authString), fac);
+                icatEP.update(getIcatSessionId(context), fac);
+                entityIdIndex.removeUnder(sourceIcatEntityNames);
                 LOG.debug("Renamed Facility: name='" + fac.getName() + "', id=" + fac.getId());
             } else if (uriParts.length == 3) {
                 // rename the Investigation
-                Investigation inv = getInvestigation(authString, sourceIcatEntityNames);
+                Investigation inv = getInvestigation(context, sourceIcatEntityNames);
                 inv.setTitle(destIcatEntityNames.getInvestigationName());
-                icatEP.update(getIcatSessionId(authString), inv);
+                icatEP.update(getIcatSessionId(context), inv);
+                entityIdIndex.removeUnder(sourceIcatEntityNames);
                 LOG.debug("Renamed Investigation: title='" + inv.getTitle() + "', id=" + inv.getId());
             } else if (uriParts.length == 4) {
                 // rename the Dataset
-                Dataset ds = getDataset(authString, sourceIcatEntityNames);
+                Dataset ds = getDataset(context, sourceIcatEntityNames);
                 ds.setName(destIcatEntityNames.getDatasetName());
-                icatEP.update(getIcatSessionId(authString), ds);
+                icatEP.update(getIcatSessionId(context), ds);
+                entityIdIndex.removeUnder(sourceIcatEntityNames);
                 LOG.debug("Renamed Dataset: name='" + ds.getName() + "', id=" + ds.getId());
             } else {
-                List<Datafile> datafileList = getDatafileAndChildren(authString, sourceIcatEntityNames);
-                for (Datafile df : datafileList) {
-                    LOG.debug("Updating datafile: " + Utils.getDatafileAsShortString(df));
-                    // use Apache StringUtils to do the string replacement here
-                    // because we just want a literal replacement of one string with another
-                    // String.replaceFirst works with regular expressions so can have undesired effects
-                    // for example with the $ char which is a legal character in file names
-                    df.setName(StringUtils.replaceOnce(df.getName(), sourceIcatEntityNames.getDatafileName(), destIcatEntityNames.getDatafileName()));
-                    icatEP.update(getIcatSessionId(authString), df);
-                }
-                LOG.debug("Listing updated datafiles:");
-                for (Datafile df : datafileList) {
-                    // extra space to make it line up with the output above
-                    LOG.debug("Updated datafile:  " + Utils.getDatafileAsShortString(df));
-                }
+                List<Datafile> datafileList = getDatafileAndChildren(context, sourceIcatEntityNames);
+                final String sessionId = getIcatSessionId(context);
+                final String sourceName = sourceIcatEntityNames.getDatafileName();
+                final String destName = destIcatEntityNames.getDatafileName();
+                // ICAT can only update the Datafiles one at a time so several are updated at once
+                renameUpdater.updateAll("Renaming '" + sourceUri + "' to '" + destinationUri + "'", datafileList,
+                        new ParallelUpdater.Update<Datafile, IcatException_Exception>() {
+                            @Override
+                            public void apply(Datafile df) throws IcatException_Exception {
+                                String oldName = df.getName();
+                                // use Apache StringUtils to do the string replacement here
+                                // because we just want a literal replacement of one string with another
+                                // String.replaceFirst works with regular expressions so can have undesired effects
+                                // for example with the $ char which is a legal character in file names
+                                df.setName(StringUtils.replaceOnce(oldName, sourceName, destName));
+                                icatEP.update(sessionId, df);
+                                LOG.debug("Updated datafile: '" + oldName + "' -> " + Utils.getDatafileAsShortString(df));
+                            }
+                        });
             }
         } catch (IcatException_Exception e) {
             String message = "Error moving object from sourceUri:'" + sourceUri + "' to destinationUri:'" + destinationUri + "'";
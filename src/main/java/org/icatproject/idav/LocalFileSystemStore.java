@@ -25,7 +25,10 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.icatproject.idav.exceptions.UnauthenticatedException;
 import org.icatproject.idav.exceptions.WebdavException;
@@ -60,24 +63,24 @@ public class LocalFileSystemStore implements IWebdavStore {
         }
     }
 
-    public void checkAuthentication(String authString)
+    public void checkAuthentication(RequestContext context)
             throws UnauthenticatedException {
         // do nothing
         LOG.trace("LocalFileSystemStore.checkAuthentication()");
     }
 
-    public void commit(String authString) throws WebdavException {
+    public void commit(RequestContext context) throws WebdavException {
         // do nothing
         LOG.trace("LocalFileSystemStore.commit()");
     }
 
-    public void rollback(String authString) throws WebdavException {
+    public void rollback(RequestContext context) throws WebdavException {
         // do nothing
         LOG.trace("LocalFileSystemStore.rollback()");
 
     }
 
-    public void createFolder(String authString, String uri)
+    public void createFolder(RequestContext context, String uri)
             throws WebdavException {
         LOG.trace("LocalFileSystemStore.createFolder(" + uri + ")");
         File file = new File(_root, uri);
@@ -85,7 +88,7 @@ public class LocalFileSystemStore implements IWebdavStore {
             throw new WebdavException("cannot create folder: " + uri);
     }
 
-    public void createResource(String authString, String uri)
+    public void createResource(RequestContext context, String uri)
             throws WebdavException {
         LOG.trace("LocalFileSystemStore.createResource(" + uri + ")");
         File file = new File(_root, uri);
@@ -100,7 +103,7 @@ public class LocalFileSystemStore implements IWebdavStore {
         }
     }
 
-    public long setResourceContent(String authString, String uri,
+    public long setResourceContent(RequestContext context, String uri,
             InputStream is, String contentType, String characterEncoding)
             throws WebdavException {
 
@@ -140,7 +143,7 @@ public class LocalFileSystemStore implements IWebdavStore {
         return length;
     }
 
-    public String[] getChildrenNames(String authString, String uri)
+    public String[] getChildrenNames(RequestContext context, String uri)
             throws WebdavException {
         LOG.trace("LocalFileSystemStore.getChildrenNames(" + uri + ")");
         File file = new File(_root, uri);
@@ -160,7 +163,28 @@ public class LocalFileSystemStore implements IWebdavStore {
         return childrenNames;
     }
 
-    public void removeObject(String authString, String uri)
+    public Map<String, StoredObject> getChildrenWithStoredObjects(RequestContext context, String uri)
+            throws WebdavException {
+        LOG.trace("LocalFileSystemStore.getChildrenWithStoredObjects(" + uri + ")");
+        File file = new File(_root, uri);
+        if (!file.isDirectory()) {
+            return null;
+        }
+        Map<String, StoredObject> children = new LinkedHashMap<String, StoredObject>();
+        for (File child : file.listFiles()) {
+            children.put(child.getName(), createStoredObject(child));
+        }
+        return children;
+    }
+
+    public Iterator<Map.Entry<String, StoredObject>> iterateChildrenWithStoredObjects(RequestContext context, String uri)
+            throws WebdavException {
+        // the whole directory is listed at once anyway
+        Map<String, StoredObject> children = getChildrenWithStoredObjects(context, uri);
+        return children == null ? null : children.entrySet().iterator();
+    }
+
+    public void removeObject(RequestContext context, String uri)
             throws WebdavException {
         File file = new File(_root, uri);
         boolean success = file.delete();
@@ -171,14 +195,29 @@ public class LocalFileSystemStore implements IWebdavStore {
 
     }
 
-    public InputStream getResourceContent(String authString, String uri)
+    public InputStream getResourceContent(RequestContext context, String uri)
             throws WebdavException {
-        LOG.trace("LocalFileSystemStore.getResourceContent(" + uri + ")");
+        return getResourceContent(context, uri, 0L);
+    }
+
+    public InputStream getResourceContent(RequestContext context, String uri,
+            long offset) throws WebdavException {
+        LOG.trace("LocalFileSystemStore.getResourceContent(" + uri + ", "
+                + offset + ")");
         File file = new File(_root, uri);
 
         InputStream in;
         try {
-            in = new BufferedInputStream(new FileInputStream(file));
+            FileInputStream fis = new FileInputStream(file);
+            if (offset > 0) {
+                try {
+                    fis.getChannel().position(offset);
+                } catch (IOException e) {
+                    fis.close();
+                    throw e;
+                }
+            }
+            in = new BufferedInputStream(fis);
         } catch (IOException e) {
             LOG.error("LocalFileSystemStore.getResourceContent(" + uri
                     + ") failed");
@@ -187,30 +226,58 @@ public class LocalFileSystemStore implements IWebdavStore {
         return in;
     }
 
-    public long getResourceLength(String authString, String uri)
+    public InputStream getFolderContentAsZip(RequestContext context, String folderUri)
+            throws WebdavException {
+        // folders are only sent as listings
+        return null;
+    }
+
+    public long getResourceLength(RequestContext context, String uri)
             throws WebdavException {
         LOG.trace("LocalFileSystemStore.getResourceLength(" + uri + ")");
         File file = new File(_root, uri);
         return file.length();
     }
 
-    public StoredObject getStoredObject(String authString, String uri) {
+    public StoredObject getStoredObject(RequestContext context, String uri) {
 
         LOG.trace("LocalFileSystemStore.getStoredObject(" + uri + ")");
         StoredObject so = null;
 
         File file = new File(_root, uri);
         if (file.exists()) {
-            so = new StoredObject();
-            so.setFolder(file.isDirectory());
-            so.setLastModified(new Date(file.lastModified()));
-            so.setCreationDate(new Date(file.lastModified()));
-            so.setResourceLength(getResourceLength(authString, uri));
+            so = createStoredObject(file);
         }
 
         return so;
     }
 
+    private static StoredObject createStoredObject(File file) {
+        StoredObject so = new StoredObject();
+        so.setFolder(file.isDirectory());
+        so.setLastModified(new Date(file.lastModified()));
+        so.setCreationDate(new Date(file.lastModified()));
+        so.setResourceLength(file.length());
+        return so;
+    }
+
+	@Override
+	public boolean supportsBulkRemove() {
+		// the files are removed one at a time by DoDelete
+		return false;
+	}
+
+	@Override
+	public boolean doBulkRemove(RequestContext context, String folderUri, Map<String, Integer> errorList) {
+		return false;
+	}
+
+	@Override
+	public String getSerialWriteFolder(String uri) {
+		// the file system does not lock anything while a file is written
+		return null;
+	}
+
 	@Override
 	public boolean supportsDirectMove() {
 		// this original implementation only supports "copy and delete"
@@ -218,7 +285,7 @@ public class LocalFileSystemStore implements IWebdavStore {
 	}
 
 	@Override
-	public void doDirectMove(String authString, String sourceUri, String destinationUri)
+	public void doDirectMove(RequestContext context, String sourceUri, String destinationUri)
             throws WebdavException {
 		String message = "LocalFileSystemStore does not support direct moves";
 		LOG.error(message);
@@ -233,4 +300,9 @@ public class LocalFileSystemStore implements IWebdavStore {
 		return sessionInfo;
 	}
 
+	@Override
+	public void destroy() {
+		// no background threads to stop
+	}
+
 }
@@ -16,76 +16,73 @@
 
 package org.icatproject.idav;
 
-import java.util.HashMap;
 import java.util.List;
-import org.apache.commons.lang3.StringUtils;
-import org.icatproject.idav.IcatStore;
 
 /**
  *
  * @author tip22963
  */
 public class MyDataMapper {
-    private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory.getLogger(MyDataMapper.class);
     
-    public String createQuery(List<IcatEntity> hierarchy, HashMap<String, String> icatEntityValues, int currentPosition, boolean child, String userId) {
+    // Key used for the user's ICAT userId when binding the templates
+    public static final String USER_ID = "userId";
+
+    /**
+     * Compiles the template for one position in the hierarchy in the MyData
+     * folder. The template is empty for positions that do not have a query.
+     */
+    public static QueryTemplate compileQuery(List<IcatEntity> hierarchy, int currentPosition, boolean child) {
         IcatEntity entity = hierarchy.get(currentPosition);
         String entityName = entity.getEntity();
-              
-        String query = "", investigation = "", visitId = "";
-        
+
         // Since we have skipped 2 layers out, the mappings become skewed and will always be
         // 2 steps out of place. This means that when we want data about the investigation,
         // it will actually be stored in the instrument value. This could be changed so that
         // the mapping is actually correct, but this would also require a lot of if statements.
         // However, to make this more of a versatile method, we should be able to determine 
         // the mappings more dynamically than this. - TODO
-        if (icatEntityValues.get("Instrument") != null) {
-            investigation = icatEntityValues.get("Instrument");
-            String[] investigationAndVisit =  IcatStore.getInvestigationAndVisit(Utils.escapeStringForIcatQuery(investigation));
-            investigation = investigationAndVisit[0];
-            visitId = investigationAndVisit[1];
-        }
-        
+        QueryTemplate.Parameter investigation = QueryTemplate.investigationPart("Instrument", 0);
+        QueryTemplate.Parameter visitId = QueryTemplate.investigationPart("Instrument", 1);
+
+        QueryTemplate.Builder query = new QueryTemplate.Builder();
         if (child) {
             if (entityName.equals("Investigation")) {
-            query = "SELECT investigation.investigation FROM InvestigationUser " +
-                    "investigation WHERE investigation.user.name = '" + userId + "'";
+                query.append("SELECT investigation.investigation FROM InvestigationUser " +
+                        "investigation WHERE investigation.user.name = '").append(QueryTemplate.value(USER_ID)).append("'");
             } else if (entityName.equals("Dataset")) {
-                query = "SELECT dataset.name FROM Dataset dataset JOIN dataset.investigation " + 
-                        "investigation WHERE investigation.name = '"+ investigation + "' AND " + 
-                        "investigation.visitId = '" + visitId + "'";
+                query.append("SELECT dataset.name FROM Dataset dataset JOIN dataset.investigation " + 
+                        "investigation WHERE investigation.name = '").append(investigation).append("' AND " + 
+                        "investigation.visitId = '").append(visitId).append("'");
             } else if (entityName.equals("Datafile")) {
                 // In the same vein as above, we get the dataset from two layers back which is
                 // the facility cycle.
-                String dataset = icatEntityValues.get("FacilityCycle");
-                query = "SELECT datafile.name FROM Datafile datafile JOIN datafile.dataset dataset " + 
-                        "JOIN dataset.investigation investigation WHERE investigation.name = '" + investigation + 
-                        "' AND dataset.name = '" + dataset + "' AND investigation.visitId = '" + visitId + "'";
+                query.append("SELECT datafile.name FROM Datafile datafile JOIN datafile.dataset dataset " + 
+                        "JOIN dataset.investigation investigation WHERE investigation.name = '").append(investigation)
+                        .append("' AND dataset.name = '").append(QueryTemplate.value("FacilityCycle"))
+                        .append("' AND investigation.visitId = '").append(visitId).append("'");
             }
         } else {
             if (entityName.equals("FacilityCycle") || entityName.equals("Investigation")) {
-                query = "SELECT investigation FROM Investigation investigation, investigation.investigationUsers as " + 
+                query.append("SELECT investigation FROM Investigation investigation, investigation.investigationUsers as " + 
                         "investigationUserPivot, investigationUserPivot.user as investigationUser WHERE " + 
-                        "investigationUser.name = '" + userId + "' AND investigation.name = '" + investigation +
-                        "' AND investigation.visitId = '" + visitId + "'";
+                        "investigationUser.name = '").append(QueryTemplate.value(USER_ID))
+                        .append("' AND investigation.name = '").append(investigation)
+                        .append("' AND investigation.visitId = '").append(visitId).append("'");
             } else if (entityName.equals("Dataset")) {
-                query = "SELECT dataset FROM Dataset dataset JOIN dataset.investigation " + 
-                        "investigation WHERE investigation.name = '"+ investigation + "' AND " + 
-                        "investigation.visitId = '" + visitId + "'";
+                query.append("SELECT dataset FROM Dataset dataset JOIN dataset.investigation " + 
+                        "investigation WHERE investigation.name = '").append(investigation).append("' AND " + 
+                        "investigation.visitId = '").append(visitId).append("'");
             } else if (entityName.equals("Datafile")) {
-                String dataset = icatEntityValues.get("FacilityCycle");
-                // Again, datafile is stored in investigation
-                String datafile = icatEntityValues.get("Investigation");
-                query = "SELECT datafile FROM Datafile datafile JOIN datafile.dataset dataset " + 
-                        "JOIN dataset.investigation investigation WHERE investigation.name = '" + investigation + 
-                        "' AND dataset.name = '" + dataset + "' AND investigation.visitId = '" + visitId + "'" + 
-                        "AND datafile.name = '" + datafile + "'";
+                // Again, the dataset is stored in facility cycle and the datafile in investigation
+                query.append("SELECT datafile FROM Datafile datafile JOIN datafile.dataset dataset " + 
+                        "JOIN dataset.investigation investigation WHERE investigation.name = '").append(investigation)
+                        .append("' AND dataset.name = '").append(QueryTemplate.value("FacilityCycle"))
+                        .append("' AND investigation.visitId = '").append(visitId)
+                        .append("' AND datafile.name = '").append(QueryTemplate.value("Investigation")).append("'");
             }
         }
         
-        LOG.info("MyMapper query = " + query);
-        return query;
+        return query.build();
     }
 
 }
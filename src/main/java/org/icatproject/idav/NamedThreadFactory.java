@@ -0,0 +1,32 @@
+package org.icatproject.idav;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the daemon threads for the thread pools in IDAV, numbering them so
+ * that the thread names in the log show which pool each one belongs to (eg.
+ * "idav-copy-3"). The threads are daemons so that a pool that has not been
+ * shut down does not stop the container from exiting.
+ */
+public class NamedThreadFactory implements ThreadFactory {
+
+    private final String namePrefix;
+    private final AtomicInteger count = new AtomicInteger();
+
+    /**
+     * @param name the name of the pool, to which "-" and the number of the
+     *        thread are added
+     */
+    public NamedThreadFactory(String name) {
+        this.namePrefix = name + "-";
+    }
+
+    @Override
+    public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, namePrefix + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    }
+
+}
@@ -0,0 +1,161 @@
+package org.icatproject.idav;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.icatproject.idav.exceptions.WebdavException;
+
+/**
+ * Makes the same change to each item in a list using several threads at once.
+ * It is used when a virtual folder is renamed, as ICAT can only update its
+ * Datafiles one at a time and doing that serially for a folder of thousands of
+ * files takes minutes.
+ *
+ * The calling thread works through the list along with up to threads - 1
+ * threads from a pool shared by all requests, which is owned by the servlet. Each thread takes the next item
+ * that has not been started. If the pool has no thread free then the calling
+ * thread does more of the work itself. Once an update fails no more are
+ * started, and the first failure is thrown after the updates already running
+ * have finished. The calling thread logs the progress every so often so that
+ * a long rename can be followed in the log.
+ */
+public class ParallelUpdater {
+
+    private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory.getLogger(ParallelUpdater.class);
+
+    private static final long PROGRESS_INTERVAL_MILLIS = 10000;
+
+    /**
+     * Makes the change to one item
+     */
+    public interface Update<T, E extends Exception> {
+        void apply(T item) throws E;
+    }
+
+    // null if the updates are all made by the calling thread
+    private final ExecutorService executor;
+    private final int threads;
+
+    private final AtomicInteger activeHelpers = new AtomicInteger();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong updated = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * @param executor the pool shared by all requests, which should have no
+     *        queue so that the calling thread carries on with the work when
+     *        every thread is busy, or null to make every update on the
+     *        calling thread
+     * @param threads the number of threads, including the calling thread,
+     *        that may work on one list at once
+     */
+    public ParallelUpdater(ExecutorService executor, int threads) {
+        this.executor = executor;
+        this.threads = executor == null ? 1 : Math.max(1, threads);
+    }
+
+    /**
+     * Apply the update to every item, returning once they have all been done
+     *
+     * @param description what is being done, for logging
+     * @param items the items to update
+     * @param update makes the change to each item
+     * @throws E the first exception thrown by the update, after which the
+     *         items that had not been started are left unchanged
+     */
+    public <T, E extends Exception> void updateAll(String description, final List<T> items,
+            final Update<T, E> update) throws E {
+        long startMillis = System.currentTimeMillis();
+        batches.incrementAndGet();
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger done = new AtomicInteger();
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+
+        List<Future<?>> helpers = new ArrayList<>();
+        int helpersWanted = executor == null ? 0 : Math.min(threads, items.size()) - 1;
+        for (int i = 0; i < helpersWanted; i++) {
+            try {
+                helpers.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        activeHelpers.incrementAndGet();
+                        try {
+                            work(items, update, next, done, failure, null);
+                        } finally {
+                            activeHelpers.decrementAndGet();
+                        }
+                    }
+                }));
+            } catch (RejectedExecutionException e) {
+                LOG.trace("Update pool is full - " + description + " with " + (i + 1) + " threads");
+                break;
+            }
+        }
+        work(items, update, next, done, failure, description);
+
+        for (Future<?> helper : helpers) {
+            try {
+                helper.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof Error) {
+                    throw (Error) e.getCause();
+                }
+                failure.compareAndSet(null, new WebdavException(e.getCause()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new WebdavException("Interrupted while " + description, e);
+            }
+        }
+
+        Exception e = failure.get();
+        if (e != null) {
+            failed.incrementAndGet();
+            LOG.warn(description + " failed after " + done.get() + " of " + items.size() + " updates: " + e);
+            if (e instanceof RuntimeException) {
+                throw (RuntimeException) e;
+            }
+            // only the update throws checked exceptions
+            @SuppressWarnings("unchecked")
+            E checked = (E) e;
+            throw checked;
+        }
+        LOG.debug(description + " - " + items.size() + " updates made in "
+                + (System.currentTimeMillis() - startMillis) + "ms");
+    }
+
+    // Take the next item until there are none left or something has failed,
+    // logging the progress if a description is given
+    private <T, E extends Exception> void work(List<T> items, Update<T, E> update, AtomicInteger next,
+            AtomicInteger done, AtomicReference<Exception> failure, String description) {
+        long nextProgressMillis = System.currentTimeMillis() + PROGRESS_INTERVAL_MILLIS;
+        int i;
+        while (failure.get() == null && (i = next.getAndIncrement()) < items.size()) {
+            try {
+                update.apply(items.get(i));
+                done.incrementAndGet();
+                updated.incrementAndGet();
+            } catch (Exception e) {
+                failure.compareAndSet(null, e);
+            }
+            if (description != null && System.currentTimeMillis() >= nextProgressMillis) {
+                LOG.info(description + " - " + done.get() + " of " + items.size() + " updates made");
+                nextProgressMillis += PROGRESS_INTERVAL_MILLIS;
+            }
+        }
+    }
+
+    public String getStats() {
+        return "Updates: active threads=" + activeHelpers.get()
+                + ", batches=" + batches.get()
+                + ", updated=" + updated.get()
+                + ", failed batches=" + failed.get();
+    }
+
+}
@@ -0,0 +1,159 @@
+package org.icatproject.idav;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.icatproject.idav.exceptions.BackendUnavailableException;
+
+/**
+ * A fixed size pool of web service ports, each of which is only used by one
+ * thread at a time.
+ *
+ * JAX-WS ports are not guaranteed to be thread safe, so rather than sharing a
+ * single port between all request threads each call is made on a port that is
+ * checked out of the pool for the duration of the call. The pool hands out a
+ * proxy implementing the port interface that does the checking out and in, so
+ * the code making the calls does not need to change.
+ *
+ * Each port keeps its own HTTP connection alive between calls. The JDK only
+ * keeps http.maxConnections (by default 5) idle connections to each server,
+ * which is a JVM wide setting, so it is left to the operator to raise it to
+ * the size of the pool and a warning is logged if it is smaller.
+ *
+ * @param <T> the port interface
+ */
+public class PortPool<T> {
+
+    private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory.getLogger(PortPool.class);
+
+    /**
+     * Creates the ports in the pool
+     */
+    public interface PortFactory<T> {
+        T createPort();
+    }
+
+    private final String name;
+    private final BlockingQueue<T> ports;
+    private final int size;
+    private final long maxWaitMillis;
+
+    // Statistics for the session info page
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong waits = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+
+    /**
+     * @param name the name of the pool for the logs and the session info page
+     * @param factory creates the ports
+     * @param size the number of ports
+     * @param maxWaitMillis how long a call may wait for a free port before
+     *        failing with a BackendUnavailableException
+     */
+    public PortPool(String name, PortFactory<T> factory, int size, long maxWaitMillis) {
+        this.name = name;
+        this.size = Math.max(1, size);
+        this.maxWaitMillis = maxWaitMillis;
+        this.ports = new ArrayBlockingQueue<>(this.size);
+        int maxConnections = Integer.getInteger("http.maxConnections", 5);
+        if (maxConnections < this.size) {
+            LOG.warn("http.maxConnections is " + maxConnections + " so some of the " + this.size + " " + name
+                    + " ports will reconnect for each call - set -Dhttp.maxConnections=" + this.size
+                    + " in the JVM options to keep them all connected");
+        }
+        for (int i = 0; i < this.size; i++) {
+            ports.add(factory.createPort());
+        }
+        LOG.info("Created pool of " + this.size + " " + name + " ports");
+    }
+
+    /**
+     * @param portInterface the port interface
+     * @return an implementation of the port interface that makes each call on
+     *         a port from the pool
+     */
+    public T getProxy(Class<T> portInterface) {
+        return portInterface.cast(Proxy.newProxyInstance(portInterface.getClassLoader(),
+                new Class<?>[] { portInterface }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (method.getDeclaringClass() == Object.class) {
+                            return invokeOnObject(proxy, method, args);
+                        }
+                        T port = checkOut();
+                        try {
+                            return method.invoke(port, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        } finally {
+                            ports.offer(port);
+                        }
+                    }
+                }));
+    }
+
+    private Object invokeOnObject(Object proxy, Method method, Object[] args) {
+        switch (method.getName()) {
+        case "equals":
+            return proxy == args[0];
+        case "hashCode":
+            return System.identityHashCode(proxy);
+        default:
+            return name + " port pool proxy";
+        }
+    }
+
+    private T checkOut() {
+        calls.incrementAndGet();
+        T port = ports.poll();
+        if (port != null) {
+            return port;
+        }
+        waits.incrementAndGet();
+        long startNanos = System.nanoTime();
+        try {
+            port = ports.poll(maxWaitMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BackendUnavailableException("Interrupted while waiting for a " + name + " port",
+                    retryAfterSecs(), e);
+        } finally {
+            long waited = System.nanoTime() - startNanos;
+            waitNanos.addAndGet(waited);
+            long max = maxWaitNanos.get();
+            while (waited > max && !maxWaitNanos.compareAndSet(max, waited)) {
+                max = maxWaitNanos.get();
+            }
+        }
+        if (port == null) {
+            timeouts.incrementAndGet();
+            throw new BackendUnavailableException("No " + name + " port became free within " + maxWaitMillis + " ms",
+                    retryAfterSecs());
+        }
+        return port;
+    }
+
+    // Suggest the client waits about as long as the call waited for a port
+    private int retryAfterSecs() {
+        return (int) Math.max(1, (maxWaitMillis + 999) / 1000);
+    }
+
+    public String getStats() {
+        long waitCount = waits.get();
+        return name + " port pool: size=" + size + ", free=" + ports.size()
+                + ", calls=" + calls.get()
+                + ", calls that waited=" + waitCount
+                + ", average wait=" + (waitCount == 0 ? 0 : waitNanos.get() / waitCount / 1000000) + " ms"
+                + ", longest wait=" + maxWaitNanos.get() / 1000000 + " ms"
+                + ", timeouts=" + timeouts.get();
+    }
+
+}
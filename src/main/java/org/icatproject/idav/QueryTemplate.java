@@ -0,0 +1,207 @@
+package org.icatproject.idav;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A JPQL query that has been built once from the hierarchy and only needs the
+ * values from the URI filling in for each request.
+ *
+ * The template is a list of literal parts of the query with a parameter
+ * between each of them. Parameters that are put between quotes escape the
+ * value they are bound to so the values never need escaping by the caller.
+ */
+public class QueryTemplate {
+
+    /**
+     * Provides the text for one place in a template when it is bound
+     */
+    public interface Parameter {
+        String bind(Map<String, String> values);
+    }
+
+    /**
+     * Used by {@link QueryTemplate#choice} to decide which template to use
+     */
+    public interface Condition {
+        boolean isTrue(Map<String, String> values);
+    }
+
+    // literals has one more element than parameters
+    private final String[] literals;
+    private final Parameter[] parameters;
+    private final int literalLength;
+
+    private QueryTemplate(List<String> literals, List<Parameter> parameters) {
+        this.literals = literals.toArray(new String[literals.size()]);
+        this.parameters = parameters.toArray(new Parameter[parameters.size()]);
+        int length = 0;
+        for (String literal : literals) {
+            length += literal.length();
+        }
+        this.literalLength = length;
+    }
+
+    /**
+     * Fill in the parameters of the template
+     *
+     * @param values the values to bind, keyed in the same way as the
+     *               icatEntityValues (eg. "Facility", "Dataset")
+     * @return the query
+     */
+    public String bind(Map<String, String> values) {
+        // allow some space for the values so that the builder rarely needs to grow
+        StringBuilder query = new StringBuilder(literalLength + 32 * parameters.length);
+        query.append(literals[0]);
+        for (int i = 0; i < parameters.length; i++) {
+            query.append(parameters[i].bind(values));
+            query.append(literals[i + 1]);
+        }
+        return query.toString();
+    }
+
+    /**
+     * @return the template with each parameter shown as {?}, for logging
+     */
+    @Override
+    public String toString() {
+        StringBuilder template = new StringBuilder(literals[0]);
+        for (int i = 0; i < parameters.length; i++) {
+            template.append("{?}");
+            template.append(literals[i + 1]);
+        }
+        return template.toString();
+    }
+
+    public static class Builder {
+        private final List<String> literals = new ArrayList<>();
+        private final List<Parameter> parameters = new ArrayList<>();
+        private StringBuilder current = new StringBuilder();
+
+        public Builder append(String literal) {
+            current.append(literal);
+            return this;
+        }
+
+        public Builder append(Parameter parameter) {
+            literals.add(current.toString());
+            parameters.add(parameter);
+            current = new StringBuilder();
+            return this;
+        }
+
+        public Builder append(QueryTemplate template) {
+            append(template.literals[0]);
+            for (int i = 0; i < template.parameters.length; i++) {
+                append(template.parameters[i]);
+                append(template.literals[i + 1]);
+            }
+            return this;
+        }
+
+        public QueryTemplate build() {
+            List<String> allLiterals = new ArrayList<>(literals);
+            allLiterals.add(current.toString());
+            return new QueryTemplate(allLiterals, parameters);
+        }
+    }
+
+    /**
+     * A parameter for the (escaped) value with the given key
+     */
+    public static Parameter value(final String key) {
+        return new Parameter() {
+            @Override
+            public String bind(Map<String, String> values) {
+                return escape(values.get(key));
+            }
+        };
+    }
+
+    /**
+     * A parameter for one part of a value made by joining two columns, such as
+     * an investigation name and visit id joined by the columnCombineValue
+     */
+    public static Parameter combinedPart(final String key, final String separator, final int index) {
+        return new Parameter() {
+            @Override
+            public String bind(Map<String, String> values) {
+                return escape(values.get(key).split(separator)[index].trim());
+            }
+        };
+    }
+
+    /**
+     * A parameter for the investigation name (index 0) or visit id (index 1)
+     * from a value in the form used by {@link IcatStore#getInvestigationAndVisit}
+     * or an empty string if there is no value
+     */
+    public static Parameter investigationPart(final String key, final int index) {
+        return new Parameter() {
+            @Override
+            public String bind(Map<String, String> values) {
+                String value = values.get(key);
+                if (value == null) {
+                    return "";
+                }
+                return IcatStore.getInvestigationAndVisit(escape(value))[index];
+            }
+        };
+    }
+
+    /**
+     * A parameter for an entity id, which is checked to be a number because
+     * it is not put between quotes in the query
+     */
+    public static Parameter id(final String key) {
+        return new Parameter() {
+            @Override
+            public String bind(Map<String, String> values) {
+                return Long.toString(Long.parseLong(values.get(key)));
+            }
+        };
+    }
+
+    /**
+     * A parameter that is filled in with one of two templates
+     */
+    public static Parameter choice(final Condition condition, final QueryTemplate ifTrue, final QueryTemplate ifFalse) {
+        return new Parameter() {
+            @Override
+            public String bind(Map<String, String> values) {
+                return condition.isTrue(values) ? ifTrue.bind(values) : ifFalse.bind(values);
+            }
+        };
+    }
+
+    /**
+     * A condition that is true if there is a value for the key
+     */
+    public static Condition present(final String key) {
+        return new Condition() {
+            @Override
+            public boolean isTrue(Map<String, String> values) {
+                return values.get(key) != null;
+            }
+        };
+    }
+
+    /**
+     * A condition that is true if the value for the key contains the text
+     */
+    public static Condition contains(final String key, final String text) {
+        return new Condition() {
+            @Override
+            public boolean isTrue(Map<String, String> values) {
+                return values.get(key).contains(text);
+            }
+        };
+    }
+
+    private static String escape(String value) {
+        // a missing value has always been put into the query as null
+        return value == null ? "null" : Utils.escapeStringForIcatQuery(value);
+    }
+
+}
@@ -0,0 +1,338 @@
+package org.icatproject.idav;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.icatproject.DatafileFormat;
+import org.icatproject.DatasetType;
+import org.icatproject.Facility;
+import org.icatproject.ICAT;
+import org.icatproject.IcatException_Exception;
+import org.icatproject.Instrument;
+import org.icatproject.InvestigationType;
+import org.icatproject.Login.Credentials;
+import org.icatproject.Login.Credentials.Entry;
+import org.icatproject.idav.exceptions.WebdavException;
+import org.icatproject.idav.manager.PropertyManager;
+
+/**
+ * Holds the ICAT entities that IDAV needs when creating Investigations,
+ * Datasets and Datafiles (the Facilities, Instrument, InvestigationType,
+ * DatasetType and DatafileFormat). These are frequently used and almost never
+ * change so they are loaded once and shared by all requests.
+ *
+ * If reader credentials are configured then the entities are loaded when IDAV
+ * starts and are refreshed periodically in the background. Otherwise they are
+ * loaded using the ICAT session of the first user that needs them and are
+ * reloaded in the same way once the refresh interval has passed.
+ */
+public class ReferenceEntityRegistry {
+
+    private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory.getLogger(ReferenceEntityRegistry.class);
+
+    // Everything loaded by a single call to load() so that the
+    // request threads always see a consistent set of entities
+    private static final class Snapshot {
+        private final Map<String, Facility> facilities;
+        private final Instrument instrument;
+        private final InvestigationType investigationType;
+        private final DatasetType datasetType;
+        private final DatafileFormat datafileFormat;
+        private final long loadedAt;
+
+        private Snapshot(Map<String, Facility> facilities, Instrument instrument,
+                InvestigationType investigationType, DatasetType datasetType,
+                DatafileFormat datafileFormat, long loadedAt) {
+            this.facilities = facilities;
+            this.instrument = instrument;
+            this.investigationType = investigationType;
+            this.datasetType = datasetType;
+            this.datafileFormat = datafileFormat;
+            this.loadedAt = loadedAt;
+        }
+    }
+
+    private final ICAT icatEP;
+    private final PropertyManager properties;
+    private final long refreshMillis;
+
+    private volatile Snapshot snapshot = null;
+
+    // Facilities created through IDAV since the last load
+    private final Map<String, Facility> addedFacilities = new HashMap<>();
+
+    private ScheduledExecutorService refresher = null;
+
+    // Status information for the session info page
+    private long lastLoadMillis = -1;
+    private Date lastLoadDate = null;
+    private String lastLoadError = null;
+    private int loadCount = 0;
+
+    public ReferenceEntityRegistry(ICAT icatEP, PropertyManager properties) {
+        this.icatEP = icatEP;
+        this.properties = properties;
+        this.refreshMillis = properties.getReferenceRefreshMins() * 60 * 1000L;
+    }
+
+    /**
+     * Load the entities using the reader credentials, if they have been
+     * configured, and schedule the background refresh.
+     */
+    public void start() {
+        if (properties.getReferenceReaderUsername() == null) {
+            LOG.info("No reference reader configured - reference entities will be loaded using a user session when first needed");
+            return;
+        }
+        try {
+            loadWithReader();
+        } catch (WebdavException e) {
+            // not fatal - the entities will be loaded by a user session instead
+            LOG.error("Unable to load reference entities at startup: " + e.getMessage());
+        }
+        if (refreshMillis > 0) {
+            refresher = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("idav-reference-refresh"));
+            refresher.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        loadWithReader();
+                    } catch (Throwable e) {
+                        // keep using the previous snapshot until the next refresh
+                        LOG.error("Unable to refresh reference entities: " + e.getMessage());
+                    }
+                }
+            }, refreshMillis, refreshMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public void shutdown() {
+        if (refresher != null) {
+            refresher.shutdownNow();
+        }
+    }
+
+    /**
+     * Check whether the entities need to be loaded using a user session, which
+     * is the case if they have never been loaded or have not been refreshed by
+     * the background refresh for longer than the refresh interval.
+     *
+     * @return true if {@link #load(String)} should be called
+     */
+    public boolean needsLoading() {
+        Snapshot current = snapshot;
+        if (current == null) {
+            return true;
+        }
+        return refresher == null && refreshMillis > 0
+                && System.currentTimeMillis() - current.loadedAt > refreshMillis;
+    }
+
+    /**
+     * Load the entities using the given session if no other thread has
+     * loaded them while this one was waiting.
+     *
+     * @param sessionId the ICAT session ID to do the searches with
+     * @throws WebdavException if any of the searches fail
+     */
+    public synchronized void loadIfNeeded(String sessionId) throws WebdavException {
+        if (needsLoading()) {
+            load(sessionId);
+        }
+    }
+
+    private void loadWithReader() throws WebdavException {
+        String authenticator = properties.getReferenceReaderAuthenticator();
+        String username = properties.getReferenceReaderUsername();
+
+        Credentials credentials = new Credentials();
+        List<Entry> entries = credentials.getEntry();
+        Entry entry = new Entry();
+        entry.setKey("username");
+        entry.setValue(username);
+        entries.add(entry);
+        entry = new Entry();
+        entry.setKey("password");
+        entry.setValue(properties.getReferenceReaderPassword());
+        entries.add(entry);
+
+        String sessionId;
+        try {
+            sessionId = icatEP.login(authenticator, credentials);
+        } catch (IcatException_Exception e) {
+            String message = "Error logging in to ICAT as reference reader '" + username
+                    + "' using the authenticator '" + authenticator + "'";
+            setLoadError(message + " : " + e.getMessage());
+            throw new WebdavException(message, e);
+        }
+        try {
+            load(sessionId);
+        } finally {
+            try {
+                icatEP.logout(sessionId);
+            } catch (IcatException_Exception e) {
+                LOG.warn("Error logging out reference reader session: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Load all of the entities from ICAT, replacing any previously loaded ones.
+     *
+     * @param sessionId the ICAT session ID to do the searches with
+     * @throws WebdavException if any of the searches fail
+     */
+    public synchronized void load(String sessionId) throws WebdavException {
+        LOG.info("Loading reference entities from ICAT");
+        long startMs = System.currentTimeMillis();
+        try {
+            Map<String, Facility> facilities = new HashMap<>();
+            for (Object result : icatEP.search(sessionId, "SELECT facility from Facility facility")) {
+                Facility facility = (Facility) result;
+                facilities.put(facility.getName(), facility);
+            }
+            Instrument instrument = (Instrument) searchForOne(sessionId,
+                    "SELECT inst from Instrument inst WHERE inst.name='" + properties.getInstrumentName() + "'");
+            InvestigationType investigationType = (InvestigationType) searchForOne(sessionId,
+                    "SELECT invType from InvestigationType invType WHERE invType.name='" + properties.getInvestigationTypeName() + "'");
+            DatasetType datasetType = (DatasetType) searchForOne(sessionId,
+                    "SELECT dsType from DatasetType dsType WHERE dsType.name='" + properties.getDatasetTypeName() + "'");
+            // TODO - DatafileFormat also has a mandatory field version - how to deal with more than one version?
+            DatafileFormat datafileFormat = (DatafileFormat) searchForOne(sessionId,
+                    "SELECT datafileFormat from DatafileFormat datafileFormat WHERE datafileFormat.name='" + properties.getDatafileFormatName() + "'");
+
+            snapshot = new Snapshot(Collections.unmodifiableMap(facilities), instrument, investigationType, datasetType, datafileFormat, System.currentTimeMillis());
+            addedFacilities.clear();
+            lastLoadMillis = System.currentTimeMillis() - startMs;
+            lastLoadDate = new Date();
+            lastLoadError = null;
+            loadCount++;
+            LOG.info("Loaded " + facilities.size() + " Facilities and the reference entities in " + lastLoadMillis + " ms");
+        } catch (IcatException_Exception e) {
+            String message = "Error loading reference entities from ICAT";
+            setLoadError(message + " : " + e.getMessage());
+            LOG.error(message, e);
+            throw new WebdavException(message, e);
+        }
+    }
+
+    // Returns null if there is not exactly one result, which is
+    // reported when the entity is asked for rather than here
+    private Object searchForOne(String sessionId, String icatQuery) throws IcatException_Exception {
+        LOG.debug("icatQuery = [" + icatQuery + "]");
+        List<Object> results = icatEP.search(sessionId, icatQuery);
+        if (results.size() == 1) {
+            return results.get(0);
+        }
+        LOG.error(results.size() + " results returned from icatQuery '" + icatQuery + "' - expected 1");
+        return null;
+    }
+
+    private synchronized void setLoadError(String message) {
+        lastLoadError = message;
+    }
+
+    private Snapshot getSnapshot() throws WebdavException {
+        Snapshot current = snapshot;
+        if (current == null) {
+            throw new WebdavException("Reference entities have not been loaded from ICAT");
+        }
+        return current;
+    }
+
+    public Instrument getInstrument() throws WebdavException {
+        Instrument instrument = getSnapshot().instrument;
+        if (instrument == null) {
+            throw new WebdavException("Error getting Instrument");
+        }
+        return instrument;
+    }
+
+    public InvestigationType getInvestigationType() throws WebdavException {
+        InvestigationType investigationType = getSnapshot().investigationType;
+        if (investigationType == null) {
+            throw new WebdavException("Error getting InvestigationType");
+        }
+        return investigationType;
+    }
+
+    public DatasetType getDatasetType() throws WebdavException {
+        DatasetType datasetType = getSnapshot().datasetType;
+        if (datasetType == null) {
+            throw new WebdavException("Error getting DatasetType");
+        }
+        return datasetType;
+    }
+
+    public DatafileFormat getDatafileFormat() throws WebdavException {
+        DatafileFormat datafileFormat = getSnapshot().datafileFormat;
+        if (datafileFormat == null) {
+            throw new WebdavException("Error getting DatafileFormat");
+        }
+        return datafileFormat;
+    }
+
+    /**
+     * Get a Facility by name
+     *
+     * @param name the name of the Facility
+     * @return the Facility or null if it is not known about, in which case
+     *         the caller needs to search for it
+     */
+    public Facility getFacility(String name) throws WebdavException {
+        Facility facility = getSnapshot().facilities.get(name);
+        if (facility == null) {
+            synchronized (this) {
+                facility = addedFacilities.get(name);
+            }
+        }
+        return facility;
+    }
+
+    /**
+     * Record a Facility that has been created (or found) since the last load
+     * so that it does not need to be searched for again.
+     */
+    public synchronized void addFacility(Facility facility) {
+        addedFacilities.put(facility.getName(), facility);
+    }
+
+    /**
+     * Remove a Facility that has been renamed or deleted.
+     */
+    public synchronized void removeFacility(String name) {
+        addedFacilities.remove(name);
+        Snapshot current = snapshot;
+        if (current != null && current.facilities.containsKey(name)) {
+            Map<String, Facility> facilities = new HashMap<>(current.facilities);
+            facilities.remove(name);
+            snapshot = new Snapshot(Collections.unmodifiableMap(facilities), current.instrument,
+                    current.investigationType, current.datasetType, current.datafileFormat, current.loadedAt);
+        }
+    }
+
+    public synchronized List<String> getStatus() {
+        List<String> status = new ArrayList<>();
+        Snapshot current = snapshot;
+        status.add("Reference entities:");
+        if (current == null) {
+            status.add("Not loaded");
+        } else {
+            status.add("Facilities: " + current.facilities.size() + " (+" + addedFacilities.size() + " added since)");
+            status.add("Last loaded: " + lastLoadDate + " in " + lastLoadMillis + " ms (" + loadCount + " loads in total)");
+        }
+        status.add("Background refresh: " + (refresher == null ? "off" : "every " + (refreshMillis / 60000) + " mins"));
+        if (lastLoadError != null) {
+            status.add("Last error: " + lastLoadError);
+        }
+        return status;
+    }
+
+}
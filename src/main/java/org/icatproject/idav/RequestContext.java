@@ -0,0 +1,147 @@
+package org.icatproject.idav;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.codec.binary.Hex;
+import org.icatproject.idav.exceptions.UnauthenticatedException;
+import org.icatproject.idav.exceptions.WebdavException;
+
+/**
+ * Holds everything that is worked out while handling one request so that it
+ * only needs working out once: the decoded username and password, the ICAT
+ * session ID and userId of the user and the StoredObjects that have already
+ * been looked up.
+ *
+ * A new context is created by WebDavServletBean for each request and passed
+ * to the method executor and from there to every call on the store. The
+ * context is not shared between requests.
+ */
+public class RequestContext {
+
+    private final String authString;
+
+    private volatile String authKey = null;
+    private volatile UsernamePassword usernamePassword = null;
+    private volatile String icatSessionId = null;
+    private volatile String userId = null;
+
+    // StoredObjects looked up during this request, keyed on URI
+    private final Map<String, StoredObject> storedObjects = new ConcurrentHashMap<>();
+
+    /**
+     * @param authString
+     *      the base64 encoded Authorization string exactly as sent in the
+     *      HTTP header from the client (may be null)
+     */
+    public RequestContext(String authString) {
+        this.authString = authString;
+    }
+
+    public String getAuthString() {
+        return authString;
+    }
+
+    /**
+     * @return a SHA-256 hash of the auth string, which is used instead of the
+     *         auth string itself to key anything that is held for a user
+     *         beyond the request so that the credentials are not kept in
+     *         memory any longer than they need to be
+     */
+    public String getAuthKey() {
+        if (authKey == null) {
+            authKey = createAuthKey(authString);
+        }
+        return authKey;
+    }
+
+    private static String createAuthKey(String authString) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return Hex.encodeHexString(digest.digest(String.valueOf(authString).getBytes("UTF-8")));
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            // every Java platform is required to support both of these
+            throw new WebdavException("Unable to hash auth string", e);
+        }
+    }
+
+    /**
+     * @return the username and password decoded from the auth string, which
+     *         is only decoded the first time this is called
+     * @throws UnauthenticatedException if the auth string can not be decoded
+     */
+    public UsernamePassword getUsernamePassword() throws UnauthenticatedException {
+        if (usernamePassword == null) {
+            usernamePassword = Utils.getUsernamePasswordFromAuthString(authString);
+        }
+        return usernamePassword;
+    }
+
+    public String getUsername() throws UnauthenticatedException {
+        return getUsernamePassword().getUsername();
+    }
+
+    /**
+     * @return the ICAT session ID for this request or null if the store has
+     *         not yet looked it up
+     */
+    public String getIcatSessionId() {
+        return icatSessionId;
+    }
+
+    public void setIcatSessionId(String icatSessionId) {
+        this.icatSessionId = icatSessionId;
+    }
+
+    /**
+     * @return the ICAT userId of the user (eg. "uows/1234") or null if the
+     *         store has not yet looked it up
+     */
+    public String getUserId() {
+        return userId;
+    }
+
+    public void setUserId(String userId) {
+        this.userId = userId;
+    }
+
+    /**
+     * Get a StoredObject that has already been looked up during this request
+     *
+     * @param uri the URI of the object
+     * @return the StoredObject or null if it has not been looked up or has
+     *         been changed since
+     */
+    public StoredObject getStoredObject(String uri) {
+        return storedObjects.get(uri);
+    }
+
+    public void putStoredObject(String uri, StoredObject so) {
+        if (so != null) {
+            storedObjects.put(uri, so);
+        }
+    }
+
+    /**
+     * Forget the StoredObjects for a URI and everything beneath it, and for
+     * the folders above it whose contents have changed, after a change made
+     * during this request.
+     *
+     * @param uri the URI that has been created, changed, moved or removed
+     */
+    public void forgetStoredObjects(String uri) {
+        String prefix = uri.endsWith("/") ? uri : uri + "/";
+        Iterator<String> it = storedObjects.keySet().iterator();
+        while (it.hasNext()) {
+            String key = it.next();
+            if (key.equals(uri) || key.startsWith(prefix) || prefix.startsWith(key.endsWith("/") ? key : key + "/")) {
+                it.remove();
+            }
+        }
+    }
+
+}
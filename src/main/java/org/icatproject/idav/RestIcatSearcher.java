@@ -0,0 +1,302 @@
+package org.icatproject.idav;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.datatype.XMLGregorianCalendar;
+
+import org.icatproject.IcatException;
+import org.icatproject.IcatExceptionType;
+import org.icatproject.IcatException_Exception;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Runs ICAT searches through the REST entity manager of ICAT
+ * (GET /icat/entityManager) instead of the SOAP port.
+ *
+ * The JSON returned is much smaller than the SOAP response for the same
+ * search, particularly for the projections (eg. "SELECT datafile.name ...")
+ * used to list folders, which come back as a plain array of values, and
+ * parsing it is far cheaper than JAXB unmarshalling of the SOAP envelope.
+ *
+ * So that IcatStore does not need to know which API was used, entities are
+ * converted into the same org.icatproject classes that the SOAP port returns.
+ * Only the fields present in the JSON are set, which for a query with an
+ * INCLUDE also covers the related entities.
+ */
+public class RestIcatSearcher implements IcatSearcher {
+
+    private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory.getLogger(RestIcatSearcher.class);
+
+    private static final String ENTITY_PACKAGE = "org.icatproject.";
+    private static final int CONNECT_TIMEOUT_MILLIS = 30 * 1000;
+    private static final int READ_TIMEOUT_MILLIS = 5 * 60 * 1000;
+
+    private final URL entityManagerUrl;
+    private final DatatypeFactory datatypeFactory;
+
+    // The setters of each entity class, keyed on field name
+    private final Map<Class<?>, Map<String, Method>> settersByClass = new ConcurrentHashMap<>();
+    // The getters of the one to many relationships of each entity class
+    private final Map<Class<?>, Map<String, Method>> listGettersByClass = new ConcurrentHashMap<>();
+
+    /**
+     * @param icatUrl the URL of the ICAT server (the same one as for SOAP)
+     */
+    public RestIcatSearcher(URL icatUrl) throws MalformedURLException, DatatypeConfigurationException {
+        this.entityManagerUrl = new URL(icatUrl, "/icat/entityManager");
+        this.datatypeFactory = DatatypeFactory.newInstance();
+        LOG.info("Using the ICAT REST API at " + entityManagerUrl);
+    }
+
+    @Override
+    public List<Object> search(String sessionId, String query) throws IcatException_Exception {
+        try {
+            URL url = new URL(entityManagerUrl + "?sessionId=" + encode(sessionId) + "&query=" + encode(query));
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+            connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+            connection.setRequestProperty("Accept", "application/json");
+            int status = connection.getResponseCode();
+            if (status / 100 != 2) {
+                throw createException(status, connection.getErrorStream());
+            }
+            Object json;
+            // reading the whole response and closing the stream lets the
+            // connection be kept alive for the next search
+            try (Reader reader = new InputStreamReader(connection.getInputStream(), "UTF-8")) {
+                json = new JSONParser().parse(reader);
+            }
+            if (!(json instanceof JSONArray)) {
+                throw createException(IcatExceptionType.INTERNAL, "Unexpected response from ICAT: " + json);
+            }
+            List<Object> results = new ArrayList<>();
+            for (Object item : (JSONArray) json) {
+                results.add(toResult(item));
+            }
+            return results;
+        } catch (IOException | ParseException e) {
+            IcatException_Exception ex = createException(IcatExceptionType.INTERNAL,
+                    "Error searching ICAT via " + entityManagerUrl + ": " + e);
+            ex.initCause(e);
+            throw ex;
+        }
+    }
+
+    // A projection comes back as a plain value and an entity as an object
+    // with the entity name as its only key, eg. {"Datafile":{"id":1,...}}
+    private Object toResult(Object item) throws IcatException_Exception {
+        if (item instanceof JSONObject) {
+            JSONObject object = (JSONObject) item;
+            if (object.size() == 1) {
+                Map.Entry<?, ?> entry = object.entrySet().iterator().next();
+                Class<?> entityClass = getEntityClass(String.valueOf(entry.getKey()));
+                if (entityClass != null && entry.getValue() instanceof JSONObject) {
+                    return toEntity(entityClass, (JSONObject) entry.getValue());
+                }
+            }
+            throw createException(IcatExceptionType.INTERNAL, "Unexpected result from ICAT: " + item);
+        }
+        if (item instanceof JSONArray) {
+            // a query selecting more than one thing
+            List<Object> values = new ArrayList<>();
+            for (Object value : (JSONArray) item) {
+                values.add(toResult(value));
+            }
+            return values;
+        }
+        return item;
+    }
+
+    private static Class<?> getEntityClass(String name) {
+        try {
+            return Class.forName(ENTITY_PACKAGE + name);
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+    }
+
+    private Object toEntity(Class<?> entityClass, JSONObject fields) throws IcatException_Exception {
+        try {
+            Object entity = entityClass.newInstance();
+            Map<String, Method> setters = getSetters(entityClass);
+            for (Object key : fields.keySet()) {
+                String field = String.valueOf(key);
+                Object value = fields.get(key);
+                if (value == null) {
+                    continue;
+                }
+                Method setter = setters.get(field);
+                if (setter != null) {
+                    setter.invoke(entity, convert(setter.getParameterTypes()[0], value));
+                    continue;
+                }
+                Method listGetter = getListGetters(entityClass).get(field);
+                if (listGetter != null && value instanceof JSONArray) {
+                    addAll(listGetter, entity, (JSONArray) value);
+                }
+                // anything else is a field this version of the client does not know about
+            }
+            return entity;
+        } catch (ReflectiveOperationException e) {
+            IcatException_Exception ex = createException(IcatExceptionType.INTERNAL,
+                    "Unable to create " + entityClass.getSimpleName() + " from ICAT JSON: " + e);
+            ex.initCause(e);
+            throw ex;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void addAll(Method listGetter, Object entity, JSONArray values)
+            throws ReflectiveOperationException, IcatException_Exception {
+        Type listType = listGetter.getGenericReturnType();
+        if (!(listType instanceof ParameterizedType)) {
+            return;
+        }
+        Type elementType = ((ParameterizedType) listType).getActualTypeArguments()[0];
+        if (!(elementType instanceof Class)) {
+            return;
+        }
+        List<Object> list = (List<Object>) listGetter.invoke(entity);
+        for (Object value : values) {
+            list.add(convert((Class<?>) elementType, value));
+        }
+    }
+
+    private Object convert(Class<?> type, Object value) throws IcatException_Exception {
+        if (type.isInstance(value) && !(value instanceof JSONObject)) {
+            return value;
+        }
+        if (value instanceof Number) {
+            Number number = (Number) value;
+            if (type == Long.class || type == long.class) {
+                return number.longValue();
+            }
+            if (type == Integer.class || type == int.class) {
+                return number.intValue();
+            }
+            if (type == Double.class || type == double.class) {
+                return number.doubleValue();
+            }
+            if (type == Float.class || type == float.class) {
+                return number.floatValue();
+            }
+        }
+        if (type == boolean.class && value instanceof Boolean) {
+            return value;
+        }
+        if (type.isEnum()) {
+            return enumValue(type, String.valueOf(value));
+        }
+        if (type == XMLGregorianCalendar.class) {
+            return datatypeFactory.newXMLGregorianCalendar(String.valueOf(value));
+        }
+        if (value instanceof JSONObject) {
+            return toEntity(type, (JSONObject) value);
+        }
+        throw createException(IcatExceptionType.INTERNAL,
+                "Unable to convert " + value + " from ICAT JSON into a " + type.getSimpleName());
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static Object enumValue(Class<?> type, String value) {
+        return Enum.valueOf((Class<? extends Enum>) type, value);
+    }
+
+    private Map<String, Method> getSetters(Class<?> entityClass) {
+        Map<String, Method> setters = settersByClass.get(entityClass);
+        if (setters == null) {
+            setters = new HashMap<>();
+            for (Method method : entityClass.getMethods()) {
+                if (method.getName().startsWith("set") && method.getName().length() > 3
+                        && method.getParameterTypes().length == 1) {
+                    setters.put(fieldName(method.getName().substring(3)), method);
+                }
+            }
+            settersByClass.put(entityClass, setters);
+        }
+        return setters;
+    }
+
+    private Map<String, Method> getListGetters(Class<?> entityClass) {
+        Map<String, Method> getters = listGettersByClass.get(entityClass);
+        if (getters == null) {
+            getters = new HashMap<>();
+            for (Method method : entityClass.getMethods()) {
+                if (method.getName().startsWith("get") && method.getName().length() > 3
+                        && method.getParameterTypes().length == 0
+                        && List.class.isAssignableFrom(method.getReturnType())) {
+                    getters.put(fieldName(method.getName().substring(3)), method);
+                }
+            }
+            listGettersByClass.put(entityClass, getters);
+        }
+        return getters;
+    }
+
+    private static String fieldName(String propertyName) {
+        return Character.toLowerCase(propertyName.charAt(0)) + propertyName.substring(1);
+    }
+
+    // ICAT reports errors as {"code":"SESSION","message":"..."} which are
+    // turned into the same exceptions as the SOAP port throws
+    private IcatException_Exception createException(int status, InputStream errorStream) {
+        String code = null;
+        String message = "HTTP status " + status + " from ICAT";
+        if (errorStream != null) {
+            try (Reader reader = new InputStreamReader(errorStream, "UTF-8")) {
+                Object json = new JSONParser().parse(reader);
+                if (json instanceof JSONObject) {
+                    JSONObject error = (JSONObject) json;
+                    code = (String) error.get("code");
+                    if (error.get("message") != null) {
+                        message = (String) error.get("message");
+                    }
+                }
+            } catch (IOException | ParseException | ClassCastException e) {
+                LOG.debug("Unable to read error from ICAT: " + e);
+            }
+        }
+        IcatExceptionType type = IcatExceptionType.INTERNAL;
+        if (code != null) {
+            try {
+                type = IcatExceptionType.valueOf(code);
+            } catch (IllegalArgumentException e) {
+                LOG.debug("Unknown ICAT exception type: " + code);
+            }
+        }
+        return createException(type, message);
+    }
+
+    private static IcatException_Exception createException(IcatExceptionType type, String message) {
+        IcatException faultInfo = new IcatException();
+        faultInfo.setType(type);
+        faultInfo.setMessage(message);
+        return new IcatException_Exception(message, faultInfo);
+    }
+
+    private static String encode(String value) throws UnsupportedEncodingException {
+        return URLEncoder.encode(value, "UTF-8");
+    }
+
+}
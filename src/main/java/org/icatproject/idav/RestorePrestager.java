@@ -0,0 +1,150 @@
+package org.icatproject.idav;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.icatproject.idav.cache.TimedCache;
+
+/**
+ * Asks IDS, in the background, to restore the data in a folder from archive
+ * storage as soon as the folder is listed, so that by the time the user opens
+ * one of the files it is already online and the GET does not have to wait for
+ * the restore.
+ *
+ * Each folder is only asked for once in dedupMillis however many times it is
+ * listed, and no more than maxPerMinute restores are started in any minute so
+ * that somebody browsing through lots of folders can not flood IDS with
+ * restores. Requests over the limit, or that find the queue full, are simply
+ * dropped - the data is still restored when a file in it is opened.
+ */
+public class RestorePrestager {
+
+    private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory.getLogger(RestorePrestager.class);
+
+    /**
+     * Starts the restore of everything in a folder, on one of the prestager's
+     * threads
+     */
+    public interface Restorer {
+        void restore(RequestContext context, String folderUri) throws Exception;
+    }
+
+    private final Restorer restorer;
+    private final ThreadPoolExecutor executor;
+    // The folders asked for recently, including those queued or in progress
+    private final TimedCache<String, Boolean> recentFolders;
+
+    // A token bucket holding up to maxPerMinute permits
+    private final int maxPerMinute;
+    private double permits;
+    private long lastRefillMillis;
+
+    private final AtomicLong scheduled = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong rateLimited = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * @param restorer starts the restores
+     * @param threads the number of restores that may be being started at once
+     * @param queueSize the number of folders that may be waiting
+     * @param dedupMillis how long to wait before asking for the same folder again
+     * @param maxPerMinute the number of restores that may be started in a minute
+     */
+    public RestorePrestager(Restorer restorer, int threads, int queueSize, long dedupMillis, int maxPerMinute) {
+        this.restorer = restorer;
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)), new NamedThreadFactory("idav-prestage"));
+        this.executor.allowCoreThreadTimeOut(true);
+        // a small cache is enough as only the folders within dedupMillis matter
+        this.recentFolders = new TimedCache<>(Math.max(1, dedupMillis), 10000);
+        this.maxPerMinute = Math.max(1, maxPerMinute);
+        this.permits = this.maxPerMinute;
+        this.lastRefillMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * Queue a restore of everything in a folder unless it has been asked for
+     * recently, the rate limit has been reached or the queue is full
+     */
+    public void request(RequestContext context, String folderUri) {
+        final String folder = normaliseUri(folderUri);
+        synchronized (recentFolders) {
+            if (recentFolders.get(folder) != null) {
+                duplicates.incrementAndGet();
+                return;
+            }
+            if (!takePermit()) {
+                rateLimited.incrementAndGet();
+                LOG.trace("Restore rate limit reached - not prestaging '" + folder + "'");
+                return;
+            }
+            recentFolders.put(folder, Boolean.TRUE);
+        }
+        // the request's context is not used once the request has finished but
+        // the session it found can be used to save looking it up again
+        final RequestContext restoreContext = new RequestContext(context.getAuthString());
+        restoreContext.setIcatSessionId(context.getIcatSessionId());
+        restoreContext.setUserId(context.getUserId());
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        restorer.restore(restoreContext, folder);
+                        LOG.debug("Asked IDS to restore '" + folder + "'");
+                    } catch (Throwable e) {
+                        // let the next listing of the folder try again
+                        recentFolders.remove(folder);
+                        failed.incrementAndGet();
+                        LOG.warn("Prestaging of '" + folder + "' failed: " + e.getMessage());
+                    }
+                }
+            });
+            scheduled.incrementAndGet();
+        } catch (RejectedExecutionException e) {
+            recentFolders.remove(folder);
+            rejected.incrementAndGet();
+            LOG.trace("Prestage queue full - not prestaging '" + folder + "'");
+        }
+    }
+
+    // called while holding the recentFolders lock
+    private boolean takePermit() {
+        long now = System.currentTimeMillis();
+        permits = Math.min(maxPerMinute, permits + (now - lastRefillMillis) * maxPerMinute / 60000.0);
+        lastRefillMillis = now;
+        if (permits < 1) {
+            return false;
+        }
+        permits -= 1;
+        return true;
+    }
+
+    private static String normaliseUri(String uri) {
+        String normalised = uri.replaceAll("/+", "/");
+        if (normalised.length() > 1 && normalised.endsWith("/")) {
+            normalised = normalised.substring(0, normalised.length() - 1);
+        }
+        return normalised;
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    public String getStats() {
+        return "Prestage: active=" + executor.getActiveCount()
+                + ", queued=" + executor.getQueue().size()
+                + ", scheduled=" + scheduled.get()
+                + ", duplicates=" + duplicates.get()
+                + ", rate limited=" + rateLimited.get()
+                + ", rejected=" + rejected.get()
+                + ", failed=" + failed.get();
+    }
+
+}
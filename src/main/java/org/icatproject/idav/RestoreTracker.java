@@ -0,0 +1,114 @@
+package org.icatproject.idav;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.icatproject.idav.cache.TimedCache;
+
+/**
+ * Keeps track of the Datafiles that have been found to be offline so that
+ * clients can be told how long to wait before asking for them again.
+ *
+ * The time from a Datafile first being found offline to it being found
+ * online again is used to keep a moving average of how long restores take,
+ * starting from initialEstimateMillis. A client is told to wait for whatever
+ * is left of the average for its Datafile, but never less than minimumMillis
+ * so that it does not keep asking when a restore takes longer than usual.
+ * A restore is only seen to have finished when its Datafile is next asked
+ * for, so the times are a little longer than the real ones.
+ */
+public class RestoreTracker {
+
+    // How much each restore time counts towards the average
+    private static final double WEIGHT = 0.2;
+    // Restores that have not finished in this time are forgotten about
+    private static final long MAX_RESTORE_MILLIS = 24 * 60 * 60 * 1000L;
+
+    private final long minimumMillis;
+    private final long maximumMillis;
+    // When each offline Datafile was first asked for, keyed on its id
+    private final TimedCache<Long, Long> offlineSince;
+    private double averageRestoreMillis;
+
+    private final AtomicLong offlineRequests = new AtomicLong();
+    private final AtomicLong restoresSeen = new AtomicLong();
+
+    /**
+     * @param initialEstimateMillis how long restores are assumed to take until
+     *        one has been seen
+     * @param minimumMillis the shortest time a client is asked to wait
+     * @param maximumMillis the longest time a client is asked to wait
+     * @param maxSize the number of offline Datafiles to keep track of
+     */
+    public RestoreTracker(long initialEstimateMillis, long minimumMillis, long maximumMillis, int maxSize) {
+        this.averageRestoreMillis = initialEstimateMillis;
+        this.minimumMillis = minimumMillis;
+        this.maximumMillis = Math.max(minimumMillis, maximumMillis);
+        this.offlineSince = new TimedCache<>(MAX_RESTORE_MILLIS, maxSize);
+    }
+
+    /**
+     * Records that a Datafile has been asked for and found to be offline
+     *
+     * @return how many seconds the client should wait before asking again
+     */
+    public int offline(long datafileId) {
+        offlineRequests.incrementAndGet();
+        long now = System.currentTimeMillis();
+        long since;
+        synchronized (offlineSince) {
+            Long firstSeen = offlineSince.get(datafileId);
+            if (firstSeen == null) {
+                offlineSince.put(datafileId, now);
+                since = now;
+            } else {
+                since = firstSeen;
+            }
+        }
+        return toRetryAfterSecs(getAverageRestoreMillis() - (now - since));
+    }
+
+    /**
+     * @return how many seconds a client should wait for a restore of data
+     *         that is not being tracked, such as a whole Dataset
+     */
+    public int getRetryAfterSecs() {
+        return toRetryAfterSecs(getAverageRestoreMillis());
+    }
+
+    private int toRetryAfterSecs(long remainingMillis) {
+        long millis = Math.min(maximumMillis, Math.max(minimumMillis, remainingMillis));
+        return (int) ((millis + 999) / 1000);
+    }
+
+    /**
+     * Records that a Datafile has been found to be online, which if it was
+     * offline before gives the time its restore took
+     */
+    public void online(long datafileId) {
+        Long firstSeen;
+        synchronized (offlineSince) {
+            firstSeen = offlineSince.get(datafileId);
+            if (firstSeen == null) {
+                return;
+            }
+            offlineSince.remove(datafileId);
+        }
+        long restoreMillis = System.currentTimeMillis() - firstSeen;
+        restoresSeen.incrementAndGet();
+        synchronized (this) {
+            averageRestoreMillis += WEIGHT * (restoreMillis - averageRestoreMillis);
+        }
+    }
+
+    public synchronized long getAverageRestoreMillis() {
+        return (long) averageRestoreMillis;
+    }
+
+    public String getStats() {
+        return "Restores: offline requests=" + offlineRequests.get()
+                + ", offline datafiles=" + offlineSince.size()
+                + ", restores seen=" + restoresSeen.get()
+                + ", average restore secs=" + getAverageRestoreMillis() / 1000;
+    }
+
+}
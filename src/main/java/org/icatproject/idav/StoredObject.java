@@ -139,4 +139,20 @@ public class StoredObject {
         this.contentLength = 0;
     }
 
+    /**
+     * Creates a copy of the StoredObject, for callers that hold on to an
+     * object that they have handed out (which may then be modified)
+     * 
+     * @return a new StoredObject with the same values
+     */
+    public StoredObject copy() {
+        StoredObject copy = new StoredObject();
+        copy.isFolder = isFolder;
+        copy.lastModified = lastModified;
+        copy.creationDate = creationDate;
+        copy.contentLength = contentLength;
+        copy.isNullRessource = isNullRessource;
+        return copy;
+    }
+
 }
@@ -0,0 +1,79 @@
+package org.icatproject.idav;
+
+import org.icatproject.idav.cache.TimedCache;
+
+import com.stfc.useroffice.webservice.UserOfficeWebService;
+import com.stfc.useroffice.webservice.UserOfficeWebService_Service;
+
+/**
+ * Looks up the ICAT userId (eg. "uows/1234") of a user from their fedId.
+ *
+ * Creating the UserOffice service fetches and parses its WSDL, which takes
+ * far longer than the lookup itself, so the port is created the first time it
+ * is needed and then shared by all logins. It is only created again if a call
+ * on it fails. JAX-WS ports are not guaranteed to be thread safe, so the
+ * logins take turns to use it. That is cheaper than a pool of ports because
+ * the userIds found are also cached for a while (they never change for a
+ * given fedId) and so only a login that misses the cache calls UserOffice.
+ */
+public class UserOfficeClient {
+
+    private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory.getLogger(UserOfficeClient.class);
+
+    private static final String USER_ID_PREFIX = "uows/";
+
+    private final TimedCache<String, String> userIds;
+
+    private UserOfficeWebService port = null;
+
+    /**
+     * @param ttlMillis how long to remember a userId for (0 to always ask UserOffice)
+     * @param maxSize the most userIds to remember
+     */
+    public UserOfficeClient(long ttlMillis, int maxSize) {
+        this.userIds = new TimedCache<>(ttlMillis, maxSize);
+    }
+
+    /**
+     * @param fedId the federal ID of the user
+     * @return the ICAT userId of the user
+     */
+    public String getUserId(String fedId) {
+        String userId = userIds.get(fedId);
+        if (userId != null) {
+            return userId;
+        }
+        UserOfficeWebService currentPort = getPort();
+        try {
+            synchronized (currentPort) {
+                userId = USER_ID_PREFIX + currentPort.getUserIdFromFedId(fedId);
+            }
+        } catch (RuntimeException e) {
+            // the port may no longer be usable so make a new one next time
+            discardPort(currentPort);
+            throw e;
+        }
+        userIds.put(fedId, userId);
+        return userId;
+    }
+
+    private synchronized UserOfficeWebService getPort() {
+        if (port == null) {
+            long startMs = System.currentTimeMillis();
+            port = new UserOfficeWebService_Service().getUserOfficeWebServicePort();
+            LOG.info("Created UserOffice web service port in " + (System.currentTimeMillis() - startMs) + " ms");
+        }
+        return port;
+    }
+
+    private synchronized void discardPort(UserOfficeWebService failedPort) {
+        if (port == failedPort) {
+            port = null;
+        }
+    }
+
+    public String getStats() {
+        return userIds.getStats("UserOffice userIds");
+    }
+
+}
@@ -3,6 +3,7 @@ package org.icatproject.idav;
 import java.io.IOException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ExecutorService;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -10,10 +11,12 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.icatproject.idav.exceptions.AccessDeniedException;
+import org.icatproject.idav.exceptions.BackendUnavailableException;
 import org.icatproject.idav.exceptions.UnauthenticatedException;
 import org.icatproject.idav.exceptions.WebdavException;
 import org.icatproject.idav.fromcatalina.MD5Encoder;
 import org.icatproject.idav.locking.ResourceLocks;
+import org.icatproject.idav.methods.AsyncDownloader;
 import org.icatproject.idav.methods.DoCopy;
 import org.icatproject.idav.methods.DoDelete;
 import org.icatproject.idav.methods.DoGet;
@@ -53,6 +56,20 @@ public class WebDavServletBean extends HttpServlet {
     private boolean _lazyFolderCreationOnPut;
     
     private IMimeTyper _mimeTyper;
+
+    // Shared by all PROPFIND requests, null if tree walks are done serially
+    private ExecutorService _treeWalkExecutor = null;
+    private int _treeWalkThreadsPerRequest = 1;
+
+    // Sends GET responses from its own pool, null if they are sent on the
+    // request thread
+    private AsyncDownloader _downloader = null;
+
+    // Shared by all COPY and MOVE requests, null if copies are done serially
+    private ExecutorService _copyExecutor = null;
+    private ExecutorService _readAheadExecutor = null;
+    private int _copyThreadsPerRequest = 1;
+    private int _copyBufferSize = 0;
     
 //    private HashMap<String, IMethodExecutor> _methodMap = new HashMap<String, IMethodExecutor>();
 
@@ -117,6 +134,62 @@ public class WebDavServletBean extends HttpServlet {
 //        return method;
 //    }
 
+    /**
+     * Have PROPFIND requests with a Depth greater than 0 fetch sibling
+     * subtrees in parallel using the given pool
+     * 
+     * @param executor
+     *      the pool shared by all requests
+     * @param threadsPerRequest
+     *      the number of tasks each request may have in the pool at once
+     */
+    protected void setTreeWalkExecutor(ExecutorService executor, int threadsPerRequest) {
+        _treeWalkExecutor = executor;
+        _treeWalkThreadsPerRequest = threadsPerRequest;
+    }
+
+    /**
+     * Have GET requests send the content of files using the given downloader
+     * instead of on the request thread
+     */
+    protected void setAsyncDownloader(AsyncDownloader downloader) {
+        _downloader = downloader;
+    }
+
+    /**
+     * Have COPY and MOVE requests with an infinite Depth copy the files in
+     * different folders in parallel using the given pool
+     * 
+     * @param executor
+     *      the pool shared by all requests
+     * @param readAheadExecutor
+     *      a second pool that files are read ahead on while they are being
+     *      written, or null to not read ahead
+     * @param threadsPerRequest
+     *      the number of tasks each request may have in the pool at once
+     * @param bufferSize
+     *      the size of each of the two buffers used to pipe a file from its
+     *      source to its destination
+     */
+    protected void setCopyExecutor(ExecutorService executor, ExecutorService readAheadExecutor,
+            int threadsPerRequest, int bufferSize) {
+        _copyExecutor = executor;
+        _readAheadExecutor = readAheadExecutor;
+        _copyThreadsPerRequest = threadsPerRequest;
+        _copyBufferSize = bufferSize;
+    }
+
+    /**
+     * Stop the store's background threads once the servlet is out of service
+     */
+    @Override
+    public void destroy() {
+        if (_store != null) {
+            _store.destroy();
+        }
+        super.destroy();
+    }
+
     // create a new instance of the IMethodExecutor classes each time they are
     // required to avoid threading problems with instance variables that
     // existed in DoLock, DoPropfind and DoPut when a single instance of
@@ -125,7 +198,7 @@ public class WebDavServletBean extends HttpServlet {
 		switch (methodName) {
 			case "GET":
 				return new DoGet(_store, _dftIndexFile, _insteadOf404, _resLocks,
-						_mimeTyper, _setContentLengthHeaders);
+						_mimeTyper, _setContentLengthHeaders, _downloader);
 			case "HEAD": 
 				return new DoHead(_store, _dftIndexFile, _insteadOf404,
 		                _resLocks, _mimeTyper, _setContentLengthHeaders);
@@ -133,7 +206,9 @@ public class WebDavServletBean extends HttpServlet {
 				return new DoDelete(_store, _resLocks, _readOnly);
 			case "COPY":
 				DoDelete doDelete1 = (DoDelete)getMethodExecutor("DELETE");
-				return new DoCopy(_store, _resLocks, doDelete1, _readOnly);
+				return new DoCopy(_store, _resLocks, doDelete1, _readOnly,
+						_copyExecutor, _readAheadExecutor, _copyThreadsPerRequest,
+						_copyBufferSize);
 			case "LOCK":
 				return new DoLock(_store, _resLocks, _readOnly);
 			case "UNLOCK":
@@ -149,7 +224,8 @@ public class WebDavServletBean extends HttpServlet {
 			case "PUT":
 				return new DoPut(_store, _resLocks, _readOnly, _lazyFolderCreationOnPut);
 			case "PROPFIND":
-				return new DoPropfind(_store, _resLocks, _mimeTyper);
+				return new DoPropfind(_store, _resLocks, _mimeTyper,
+						_treeWalkExecutor, _treeWalkThreadsPerRequest);
 			case "PROPPATCH":
 				return new DoProppatch(_store, _resLocks, _readOnly);
 			default :
@@ -167,7 +243,7 @@ public class WebDavServletBean extends HttpServlet {
 
         String methodName = req.getMethod();
         boolean needRollback = false;
-    	String authString = null;
+    	RequestContext context = null;
 
         if (LOG.isTraceEnabled())
             debugRequest(methodName, req);
@@ -186,13 +262,13 @@ public class WebDavServletBean extends HttpServlet {
         		if (authHeaderParts.length != 2) {
         			throw new UnauthenticatedException("Unexpected format of Authorization header: " + authHeaderString);
         		}
-        		authString = authHeaderParts[1];
+        		context = new RequestContext(authHeaderParts[1]);
         	}
 
         	_store.begin();
             needRollback = true;
             
-            _store.checkAuthentication(authString);
+            _store.checkAuthentication(context);
             
             resp.setStatus(WebdavStatus.SC_OK);
 
@@ -205,9 +281,9 @@ public class WebDavServletBean extends HttpServlet {
 //                            .get("*NO*IMPL*");
 //                }
             	IMethodExecutor methodExecutor = (IMethodExecutor)getMethodExecutor(methodName);
-                methodExecutor.execute(authString, req, resp);
+                methodExecutor.execute(context, req, resp);
 
-                _store.commit(authString);
+                _store.commit(context);
                 needRollback = false;
             } catch (IOException e) {
                 java.io.StringWriter sw = new java.io.StringWriter();
@@ -215,7 +291,7 @@ public class WebDavServletBean extends HttpServlet {
                 e.printStackTrace(pw);
                 LOG.error("IOException: " + sw.toString());
                 resp.sendError(WebdavStatus.SC_INTERNAL_SERVER_ERROR);
-                _store.rollback(authString);
+                _store.rollback(context);
                 throw new ServletException(e);
             }
 
@@ -225,6 +301,14 @@ public class WebDavServletBean extends HttpServlet {
             resp.sendError(WebdavStatus.SC_UNAUTHORIZED);
         } catch (AccessDeniedException e) {
             resp.sendError(WebdavStatus.SC_FORBIDDEN);
+        } catch (BackendUnavailableException e) {
+            LOG.warn("Caught BackendUnavailableException: " + e.getMessage());
+            if (!resp.isCommitted()) {
+                // drop any headers set for the response that was going to be sent
+                resp.reset();
+                resp.setHeader("Retry-After", Integer.toString(e.getRetryAfterSecs()));
+                resp.sendError(WebdavStatus.SC_SERVICE_UNAVAILABLE);
+            }
         } catch (WebdavException e) {
             java.io.StringWriter sw = new java.io.StringWriter();
             java.io.PrintWriter pw = new java.io.PrintWriter(sw);
@@ -238,7 +322,7 @@ public class WebDavServletBean extends HttpServlet {
             LOG.error("Exception: " + sw.toString());
         } finally {
             if (needRollback)
-                _store.rollback(authString);
+                _store.rollback(context);
         }
         
         LOG.trace("WebdavServlet finished request: methodName = " + methodName + ", path: " + req.getRequestURI());
@@ -17,8 +17,14 @@
 package org.icatproject.idav;
 
 import java.lang.reflect.Constructor;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import javax.servlet.ServletException;
 import org.icatproject.idav.manager.PropertyManager;
+import org.icatproject.idav.methods.AsyncDownloader;
 
 /**
  * Servlet which provides support for WebDAV level 2.
@@ -31,6 +37,11 @@ import org.icatproject.idav.manager.PropertyManager;
 @SuppressWarnings("serial")
 public class WebdavServlet extends WebDavServletBean {
     private PropertyManager properties;
+    private ThreadPoolExecutor treeWalkExecutor = null;
+    private ThreadPoolExecutor downloadExecutor = null;
+    private ThreadPoolExecutor copyExecutor = null;
+    private ThreadPoolExecutor readAheadExecutor = null;
+    private ThreadPoolExecutor renameExecutor = null;
 
     private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory
             .getLogger(WebdavServlet.class);
@@ -48,12 +59,97 @@ public class WebdavServlet extends WebDavServletBean {
         Boolean readOnly = properties.getReadOnly();
         
         IWebdavStore webdavStore = constructStore(clazzName);
+        if (webdavStore instanceof IcatStore && properties.getRenameThreads() > 1) {
+            // the request thread makes up the rest of the renameThreads
+            renameExecutor = createRenameExecutor(properties.getRenameThreads() - 1);
+            ((IcatStore) webdavStore).setRenameExecutor(renameExecutor, properties.getRenameThreads());
+        }
+        if (CachingWebdavStore.isEnabled(properties)) {
+            webdavStore = new CachingWebdavStore(webdavStore, properties);
+        }
         super.init(webdavStore, defaultIndexFile, insteadOf404,
         		setContentLengthHeaders, lazyFolderCreationOnPut, readOnly);
+
+        if (properties.getTreeWalkThreads() > 0) {
+            treeWalkExecutor = createTreeWalkExecutor(properties.getTreeWalkThreads());
+            setTreeWalkExecutor(treeWalkExecutor, properties.getTreeWalkThreadsPerRequest());
+        }
+
+        if (properties.getDownloadThreads() > 0) {
+            downloadExecutor = createDownloadExecutor(properties.getDownloadThreads());
+            setAsyncDownloader(new AsyncDownloader(downloadExecutor,
+                    properties.getDownloadMinBufferKB() * 1024, properties.getDownloadMaxBufferKB() * 1024));
+        }
+
+        if (properties.getCopyThreads() > 0) {
+            copyExecutor = createCopyExecutor(properties.getCopyThreads());
+            readAheadExecutor = createReadAheadExecutor(properties.getCopyThreads());
+            setCopyExecutor(copyExecutor, readAheadExecutor, properties.getCopyThreadsPerRequest(),
+                    properties.getCopyBufferKB() * 1024);
+        }
         
         LOG.info("WebdavServlet init complete");
     }
 
+    @Override
+    public void destroy() {
+        if (treeWalkExecutor != null) {
+            treeWalkExecutor.shutdownNow();
+        }
+        if (downloadExecutor != null) {
+            downloadExecutor.shutdownNow();
+        }
+        if (copyExecutor != null) {
+            copyExecutor.shutdownNow();
+        }
+        if (readAheadExecutor != null) {
+            readAheadExecutor.shutdownNow();
+        }
+        if (renameExecutor != null) {
+            renameExecutor.shutdownNow();
+        }
+        super.destroy();
+    }
+
+    private static ThreadPoolExecutor createTreeWalkExecutor(int threads) {
+        // once all of the threads are busy and the queue is full the
+        // request threads fetch the subtrees themselves
+        return createExecutor(threads, new ArrayBlockingQueue<Runnable>(threads * 4), "idav-tree-walk");
+    }
+
+    private static ThreadPoolExecutor createDownloadExecutor(int threads) {
+        // there is no queue - a download that finds all of the threads busy
+        // is sent on its request thread instead of waiting
+        return createExecutor(threads, new SynchronousQueue<Runnable>(), "idav-download");
+    }
+
+    private static ThreadPoolExecutor createCopyExecutor(int threads) {
+        // once all of the threads are busy and the queue is full the
+        // request threads copy the waiting folders themselves
+        return createExecutor(threads, new ArrayBlockingQueue<Runnable>(threads * 4), "idav-copy");
+    }
+
+    private static ThreadPoolExecutor createReadAheadExecutor(int threads) {
+        // a pool of its own so that a copy thread never waits for another copy
+        // thread, and no queue - a file that finds all of the threads busy is
+        // copied without reading ahead
+        return createExecutor(threads, new SynchronousQueue<Runnable>(), "idav-copy-read");
+    }
+
+    private static ThreadPoolExecutor createRenameExecutor(int threads) {
+        // there is no queue - a rename that finds all of the threads busy
+        // does more of the updates on its request thread instead of waiting
+        return createExecutor(threads, new SynchronousQueue<Runnable>(), "idav-update");
+    }
+
+    // A pool whose threads all go away when it has been idle for a minute
+    private static ThreadPoolExecutor createExecutor(int threads, BlockingQueue<Runnable> queue, String name) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                queue, new NamedThreadFactory(name));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
     protected IWebdavStore constructStore(String clazzName) throws ServletException {
         IWebdavStore webdavStore;
         try {
@@ -47,6 +47,12 @@ public class WebdavStatus {
      */
     public static final int SC_NO_CONTENT = HttpServletResponse.SC_NO_CONTENT;
 
+    /**
+     * Status code (206) indicating that the server has fulfilled a request for
+     * part of a resource made with a Range header.
+     */
+    public static final int SC_PARTIAL_CONTENT = HttpServletResponse.SC_PARTIAL_CONTENT;
+
     /**
      * Status code (301) indicating that the resource has permanently moved to a
      * new location, and that future references should use a new URI with their
@@ -91,6 +97,12 @@ public class WebdavStatus {
      */
     public static final int SC_NOT_FOUND = HttpServletResponse.SC_NOT_FOUND;
 
+    /**
+     * Status code (416) indicating that the server cannot serve the requested
+     * byte range.
+     */
+    public static final int SC_REQUESTED_RANGE_NOT_SATISFIABLE = HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE;
+
     /**
      * Status code (500) indicating an error inside the HTTP service which
      * prevented it from fulfilling the request.
@@ -129,6 +141,12 @@ public class WebdavStatus {
      */
     public static final int SC_METHOD_NOT_ALLOWED = 405;
 
+    /**
+     * Status code (406) indicating the resource can not be sent in any of the
+     * forms given in the Accept header of the request.
+     */
+    public static final int SC_NOT_ACCEPTABLE = 406;
+
     /**
      * Status code (409) indicating that the request could not be completed due
      * to a conflict with the current state of the resource.
@@ -208,6 +226,7 @@ public class WebdavStatus {
         addStatusCodeMap(SC_CREATED, "Created");
         addStatusCodeMap(SC_ACCEPTED, "Accepted");
         addStatusCodeMap(SC_NO_CONTENT, "No Content");
+        addStatusCodeMap(SC_PARTIAL_CONTENT, "Partial Content");
         addStatusCodeMap(SC_MOVED_PERMANENTLY, "Moved Permanently");
         addStatusCodeMap(SC_MOVED_TEMPORARILY, "Moved Temporarily");
         addStatusCodeMap(SC_NOT_MODIFIED, "Not Modified");
@@ -215,12 +234,15 @@ public class WebdavStatus {
         addStatusCodeMap(SC_UNAUTHORIZED, "Unauthorized");
         addStatusCodeMap(SC_FORBIDDEN, "Forbidden");
         addStatusCodeMap(SC_NOT_FOUND, "Not Found");
+        addStatusCodeMap(SC_REQUESTED_RANGE_NOT_SATISFIABLE,
+                "Requested Range Not Satisfiable");
         addStatusCodeMap(SC_INTERNAL_SERVER_ERROR, "Internal Server Error");
         addStatusCodeMap(SC_NOT_IMPLEMENTED, "Not Implemented");
         addStatusCodeMap(SC_BAD_GATEWAY, "Bad Gateway");
         addStatusCodeMap(SC_SERVICE_UNAVAILABLE, "Service Unavailable");
         addStatusCodeMap(SC_CONTINUE, "Continue");
         addStatusCodeMap(SC_METHOD_NOT_ALLOWED, "Method Not Allowed");
+        addStatusCodeMap(SC_NOT_ACCEPTABLE, "Not Acceptable");
         addStatusCodeMap(SC_CONFLICT, "Conflict");
         addStatusCodeMap(SC_PRECONDITION_FAILED, "Precondition Failed");
         addStatusCodeMap(SC_REQUEST_TOO_LONG, "Request Too Long");
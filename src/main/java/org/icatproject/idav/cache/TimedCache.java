@@ -0,0 +1,158 @@
+package org.icatproject.idav.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A simple size bounded cache where each entry expires a fixed number of
+ * milliseconds after it was put into the cache.
+ *
+ * When the cache is full the least recently used entry is evicted. All methods
+ * are synchronized so a single instance can be shared by all request threads.
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the cached values
+ */
+public class TimedCache<K, V> {
+
+    /**
+     * Used to select the keys to be removed by {@link TimedCache#removeMatching}
+     */
+    public interface KeyFilter<K> {
+        boolean matches(K key);
+    }
+
+    private static class TimedEntry<V> {
+        private final V value;
+        private final long expiresAt;
+
+        private TimedEntry(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final long ttlMillis;
+    private final int maxSize;
+    private final LinkedHashMap<K, TimedEntry<V>> entries;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    public TimedCache(long ttlMillis, final int maxSize) {
+        this.ttlMillis = ttlMillis;
+        this.maxSize = maxSize;
+        // access order so that the eldest entry is the least recently used one
+        this.entries = new LinkedHashMap<K, TimedEntry<V>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, TimedEntry<V>> eldest) {
+                if (size() > maxSize) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Get the value for a key if it is present and has not expired
+     *
+     * @param key the key to look up
+     * @return the cached value or null if there is no (unexpired) entry
+     */
+    public synchronized V get(K key) {
+        TimedEntry<V> entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        if (System.currentTimeMillis() > entry.expiresAt) {
+            entries.remove(key);
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.value;
+    }
+
+    public synchronized void put(K key, V value) {
+        if (ttlMillis <= 0) {
+            // the entry would already have expired
+            return;
+        }
+        entries.put(key, new TimedEntry<V>(value, System.currentTimeMillis() + ttlMillis));
+    }
+
+    public synchronized void remove(K key) {
+        entries.remove(key);
+    }
+
+    /**
+     * Remove all of the entries whose keys are matched by the filter
+     *
+     * @param filter decides which keys are to be removed
+     * @return the number of entries removed
+     */
+    public synchronized int removeMatching(KeyFilter<K> filter) {
+        int removed = 0;
+        Iterator<K> iter = entries.keySet().iterator();
+        while (iter.hasNext()) {
+            if (filter.matches(iter.next())) {
+                iter.remove();
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getTtlMillis() {
+        return ttlMillis;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Summarise the state of the cache for the session info page
+     *
+     * @param name the name to give this cache in the output
+     * @return a single line describing the cache
+     */
+    public synchronized String getStats(String name) {
+        long lookups = hits + misses;
+        String hitRatio = lookups == 0 ? "n/a" : String.format("%.1f%%", 100.0 * hits / lookups);
+        return name + ": size=" + entries.size() + "/" + maxSize
+                + ", ttl=" + ttlMillis + " ms"
+                + ", hits=" + hits
+                + ", misses=" + misses
+                + ", hit ratio=" + hitRatio
+                + ", evictions=" + evictions;
+    }
+
+}
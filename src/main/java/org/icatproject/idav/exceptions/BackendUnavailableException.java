@@ -0,0 +1,28 @@
+package org.icatproject.idav.exceptions;
+
+/**
+ * Thrown when a call to ICAT or IDS is not made, or is given up on, because
+ * the service is overloaded or unhealthy. The client should try again later.
+ */
+@SuppressWarnings("serial")
+public class BackendUnavailableException extends WebdavException {
+
+    private final int retryAfterSecs;
+
+    public BackendUnavailableException(String message, int retryAfterSecs) {
+        super(message);
+        this.retryAfterSecs = retryAfterSecs;
+    }
+
+    public BackendUnavailableException(String message, int retryAfterSecs, Throwable cause) {
+        super(message, cause);
+        this.retryAfterSecs = retryAfterSecs;
+    }
+
+    /**
+     * @return how many seconds the client should wait before trying again
+     */
+    public int getRetryAfterSecs() {
+        return retryAfterSecs;
+    }
+}
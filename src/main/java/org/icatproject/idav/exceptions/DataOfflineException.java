@@ -0,0 +1,18 @@
+package org.icatproject.idav.exceptions;
+
+/**
+ * Thrown when the data asked for is in archive storage and has to be restored
+ * by IDS before it can be sent. The restore will have been started and the
+ * client should try again later.
+ */
+@SuppressWarnings("serial")
+public class DataOfflineException extends BackendUnavailableException {
+
+    public DataOfflineException(String message, int retryAfterSecs) {
+        super(message, retryAfterSecs);
+    }
+
+    public DataOfflineException(String message, int retryAfterSecs, Throwable cause) {
+        super(message, retryAfterSecs, cause);
+    }
+}
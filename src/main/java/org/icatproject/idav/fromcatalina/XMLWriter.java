@@ -222,4 +222,15 @@ public class XMLWriter {
         }
     }
 
+    /**
+     * Send data if the buffer has grown larger than the given number of
+     * characters, so that a large response can be sent as it is generated
+     * rather than all being held in the buffer.
+     */
+    public void sendDataIfLargerThan(int size) throws IOException {
+        if (_buffer.length() > size) {
+            sendData();
+        }
+    }
+
 }
@@ -13,6 +13,8 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Properties;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 import org.icatproject.idav.IcatEntity;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
@@ -41,8 +43,57 @@ public class PropertyManager {
     private String webdavImplementationClassName;
     private String defaultIndexFile;
     private String insteadOf404;
+    private int storedObjectCacheTtlSecs;
+    private int storedObjectCacheMaxSize;
+    private int notFoundCacheTtlSecs;
+    private int notFoundCacheMaxSize;
+    private int listingCacheTtlSecs;
+    private int listingCacheMaxSize;
+    private int prefetchThreads;
+    private int prefetchQueueSize;
+    private int icatPageSize;
+    private int treeWalkThreads;
+    private int treeWalkThreadsPerRequest;
+    private int downloadThreads;
+    private int downloadMinBufferKB;
+    private int downloadMaxBufferKB;
+    private int copyThreads;
+    private int copyThreadsPerRequest;
+    private int copyBufferKB;
+    private int renameThreads;
+    private int prestageThreads;
+    private int prestageQueueSize;
+    private int prestageDedupMins;
+    private int prestageMaxPerMinute;
+    private int restoreRetryAfterSecs;
+    private int restoreMinRetryAfterSecs;
+    private int restoreMaxRetryAfterSecs;
+    private boolean checkOnlineBeforeGet;
+    private String referenceReaderAuthenticator;
+    private String referenceReaderUsername;
+    private String referenceReaderPassword;
+    private int referenceRefreshMins;
+    private int entityIdIndexTtlMins;
+    private int entityIdIndexMaxSize;
+    private int sessionRefresherPeriodSecs;
+    private int sessionIdleTimeoutMins;
+    private int maxSessions;
+    private int userIdCacheTtlMins;
+    private int userIdCacheMaxSize;
+    private int icatPoolSize;
+    private int icatPoolWaitMillis;
+    private boolean icatRestApi;
+    private int icatMaxConcurrentCalls;
+    private int idsMaxConcurrentCalls;
+    private int backendQueueWaitMillis;
+    private int backendCallTimeoutSecs;
+    private int backendMaxRetries;
+    private int backendRetryBaseMillis;
+    private int circuitBreakerFailures;
+    private int circuitBreakerOpenSecs;
     
     private List<String> ignoredFiles;
+    private List<Pattern> ignoredFilePatterns;
     private List<IcatEntity> hierarchy;
 
     public PropertyManager(String propertyFile, String hierarchyFile) {
@@ -72,6 +123,7 @@ public class PropertyManager {
         }
 
         icatUrl = props.getProperty("icat.url").trim();
+        icatRestApi = "REST".equalsIgnoreCase(props.getProperty("icat.api", "soap").trim());
         idsUrl = props.getProperty("ids.url").trim();
         
         String icatAuthenticatorsString = props.getProperty("icat.authenticators");
@@ -81,7 +133,8 @@ public class PropertyManager {
         sessionRefreshMarginMins = Integer.parseInt(sessionRefreshMarginMinsString);
         
         String ignoredFilesString = props.getProperty("ignoredFiles");
-        ignoredFiles = Arrays.asList(ignoredFilesString.split("\\s+"));
+        ignoredFiles = Arrays.asList(ignoredFilesString.trim().split("\\s+"));
+        ignoredFilePatterns = createIgnoredFilePatterns(ignoredFiles);
         
         autoCreateInstructions = "TRUE".equalsIgnoreCase(props.getProperty("autoCreateInstructions"));       
         facilityName = props.getProperty("facilityName");
@@ -98,6 +151,62 @@ public class PropertyManager {
         setContentLengthHeaders = "TRUE".equalsIgnoreCase(props.getProperty("setContentLengthHeaders"));
         readOnly = "TRUE".equalsIgnoreCase(props.getProperty("readOnly"));
 
+        storedObjectCacheTtlSecs = getIntProperty(props, "storedObjectCacheTtlSecs", 0);
+        storedObjectCacheMaxSize = getIntProperty(props, "storedObjectCacheMaxSize", 10000);
+        notFoundCacheTtlSecs = getIntProperty(props, "notFoundCacheTtlSecs", 0);
+        notFoundCacheMaxSize = getIntProperty(props, "notFoundCacheMaxSize", 10000);
+        listingCacheTtlSecs = getIntProperty(props, "listingCacheTtlSecs", 0);
+        listingCacheMaxSize = getIntProperty(props, "listingCacheMaxSize", 1000);
+        prefetchThreads = getIntProperty(props, "prefetchThreads", 0);
+        prefetchQueueSize = getIntProperty(props, "prefetchQueueSize", 20);
+        icatPageSize = getIntProperty(props, "icatPageSize", 1000);
+        treeWalkThreads = getIntProperty(props, "treeWalkThreads", 0);
+        treeWalkThreadsPerRequest = getIntProperty(props, "treeWalkThreadsPerRequest", 4);
+        downloadThreads = getIntProperty(props, "downloadThreads", 0);
+        downloadMinBufferKB = getIntProperty(props, "downloadMinBufferKB", 64);
+        downloadMaxBufferKB = getIntProperty(props, "downloadMaxBufferKB", 1024);
+        copyThreads = getIntProperty(props, "copyThreads", 0);
+        copyThreadsPerRequest = getIntProperty(props, "copyThreadsPerRequest", 4);
+        copyBufferKB = getIntProperty(props, "copyBufferKB", 1024);
+        renameThreads = getIntProperty(props, "renameThreads", 1);
+        prestageThreads = getIntProperty(props, "prestageThreads", 0);
+        prestageQueueSize = getIntProperty(props, "prestageQueueSize", 100);
+        prestageDedupMins = getIntProperty(props, "prestageDedupMins", 30);
+        prestageMaxPerMinute = getIntProperty(props, "prestageMaxPerMinute", 60);
+        restoreRetryAfterSecs = getIntProperty(props, "restoreRetryAfterSecs", 300);
+        restoreMinRetryAfterSecs = getIntProperty(props, "restoreMinRetryAfterSecs", 30);
+        restoreMaxRetryAfterSecs = getIntProperty(props, "restoreMaxRetryAfterSecs", 3600);
+        checkOnlineBeforeGet = "TRUE".equalsIgnoreCase(props.getProperty("checkOnlineBeforeGet"));
+
+        // optional credentials for loading the reference entities at startup
+        referenceReaderUsername = props.getProperty("referenceReader.username");
+        if (referenceReaderUsername != null && !referenceReaderUsername.trim().isEmpty()) {
+            referenceReaderUsername = referenceReaderUsername.trim();
+            referenceReaderAuthenticator = props.getProperty("referenceReader.authenticator", icatAuthenticators.get(0)).trim();
+            referenceReaderPassword = props.getProperty("referenceReader.password", "").trim();
+        } else {
+            referenceReaderUsername = null;
+        }
+        referenceRefreshMins = getIntProperty(props, "referenceRefreshMins", 60);
+        entityIdIndexTtlMins = getIntProperty(props, "entityIdIndexTtlMins", 60);
+        entityIdIndexMaxSize = getIntProperty(props, "entityIdIndexMaxSize", 100000);
+        sessionRefresherPeriodSecs = getIntProperty(props, "sessionRefresherPeriodSecs", 60);
+        sessionIdleTimeoutMins = getIntProperty(props, "sessionIdleTimeoutMins", 120);
+        maxSessions = getIntProperty(props, "maxSessions", 1000);
+        userIdCacheTtlMins = getIntProperty(props, "userIdCacheTtlMins", 1440);
+        userIdCacheMaxSize = getIntProperty(props, "userIdCacheMaxSize", 10000);
+        icatPoolSize = getIntProperty(props, "icatPoolSize", 8);
+        icatPoolWaitMillis = getIntProperty(props, "icatPoolWaitMillis", 30000);
+        // by default no more calls are let through than there are ports for them
+        icatMaxConcurrentCalls = getIntProperty(props, "icatMaxConcurrentCalls", icatPoolSize);
+        idsMaxConcurrentCalls = getIntProperty(props, "idsMaxConcurrentCalls", 16);
+        backendQueueWaitMillis = getIntProperty(props, "backendQueueWaitMillis", 5000);
+        backendCallTimeoutSecs = getIntProperty(props, "backendCallTimeoutSecs", 120);
+        backendMaxRetries = getIntProperty(props, "backendMaxRetries", 2);
+        backendRetryBaseMillis = getIntProperty(props, "backendRetryBaseMillis", 200);
+        circuitBreakerFailures = getIntProperty(props, "circuitBreakerFailures", 5);
+        circuitBreakerOpenSecs = getIntProperty(props, "circuitBreakerOpenSecs", 30);
+
         LOG.info("ICAT url set as: " + icatUrl);
         LOG.info("ICAT authenticators are: " + icatAuthenticators);
         LOG.info("Ignored files are: " + ignoredFiles);
@@ -114,10 +223,124 @@ public class PropertyManager {
         LOG.info("lazyFolderCreationOnPut set as: " + lazyFolderCreationOnPut);
         LOG.info("setContentLengthHeaders set as: " + setContentLengthHeaders);
         LOG.info("Read Only set as: " + readOnly);
+        LOG.info("StoredObject cache TTL secs set as: " + storedObjectCacheTtlSecs);
+        LOG.info("StoredObject cache max size set as: " + storedObjectCacheMaxSize);
+        LOG.info("Not found cache TTL secs set as: " + notFoundCacheTtlSecs);
+        LOG.info("Not found cache max size set as: " + notFoundCacheMaxSize);
+        LOG.info("Listing cache TTL secs set as: " + listingCacheTtlSecs);
+        LOG.info("Listing cache max size set as: " + listingCacheMaxSize);
+        LOG.info("Prefetch threads set as: " + prefetchThreads);
+        LOG.info("Prefetch queue size set as: " + prefetchQueueSize);
+        LOG.info("ICAT page size set as: " + icatPageSize);
+        LOG.info("Tree walk threads set as: " + treeWalkThreads);
+        LOG.info("Tree walk threads per request set as: " + treeWalkThreadsPerRequest);
+        LOG.info("Download threads set as: " + downloadThreads);
+        LOG.info("Download min buffer KB set as: " + downloadMinBufferKB);
+        LOG.info("Download max buffer KB set as: " + downloadMaxBufferKB);
+        LOG.info("Copy threads set as: " + copyThreads);
+        LOG.info("Copy threads per request set as: " + copyThreadsPerRequest);
+        LOG.info("Copy buffer KB set as: " + copyBufferKB);
+        LOG.info("Rename threads set as: " + renameThreads);
+        LOG.info("Prestage threads set as: " + prestageThreads);
+        LOG.info("Prestage queue size set as: " + prestageQueueSize);
+        LOG.info("Prestage dedup minutes set as: " + prestageDedupMins);
+        LOG.info("Prestage max per minute set as: " + prestageMaxPerMinute);
+        LOG.info("Restore retry after seconds set as: " + restoreRetryAfterSecs);
+        LOG.info("Restore min retry after seconds set as: " + restoreMinRetryAfterSecs);
+        LOG.info("Restore max retry after seconds set as: " + restoreMaxRetryAfterSecs);
+        LOG.info("Check online before get set as: " + checkOnlineBeforeGet);
+        LOG.info("Reference reader set as: " + (referenceReaderUsername == null ? "none" : "'" + referenceReaderUsername + "' using the authenticator '" + referenceReaderAuthenticator + "'"));
+        LOG.info("Reference refresh minutes set as: " + referenceRefreshMins);
+        LOG.info("Entity id index TTL minutes set as: " + entityIdIndexTtlMins);
+        LOG.info("Entity id index max size set as: " + entityIdIndexMaxSize);
+        LOG.info("Session refresher period seconds set as: " + sessionRefresherPeriodSecs);
+        LOG.info("Session idle timeout minutes set as: " + sessionIdleTimeoutMins);
+        LOG.info("Max sessions set as: " + maxSessions);
+        LOG.info("UserId cache TTL minutes set as: " + userIdCacheTtlMins);
+        LOG.info("UserId cache max size set as: " + userIdCacheMaxSize);
+        LOG.info("ICAT searches made using the " + (icatRestApi ? "REST" : "SOAP") + " API");
+        LOG.info("ICAT pool size set as: " + icatPoolSize);
+        LOG.info("ICAT pool wait milliseconds set as: " + icatPoolWaitMillis);
+        LOG.info("ICAT max concurrent calls set as: " + icatMaxConcurrentCalls);
+        if (icatMaxConcurrentCalls > icatPoolSize && !icatRestApi) {
+            LOG.warn("icatMaxConcurrentCalls is more than icatPoolSize so ICAT calls will queue for a port"
+                    + " for up to icatPoolWaitMillis after being let through");
+        }
+        LOG.info("IDS max concurrent calls set as: " + idsMaxConcurrentCalls);
+        LOG.info("Backend queue wait milliseconds set as: " + backendQueueWaitMillis);
+        LOG.info("Backend call timeout seconds set as: " + backendCallTimeoutSecs);
+        LOG.info("Backend max retries set as: " + backendMaxRetries);
+        LOG.info("Backend retry base milliseconds set as: " + backendRetryBaseMillis);
+        LOG.info("Circuit breaker failures set as: " + circuitBreakerFailures);
+        LOG.info("Circuit breaker open seconds set as: " + circuitBreakerOpenSecs);
         
         LOG.info("Finished collecting properties.");
     }
     
+    /**
+     * Reads an optional integer property, falling back to the default value
+     * if the property is not present in the properties file.
+     */
+    private static int getIntProperty(Properties props, String name, int defaultValue) {
+        String value = props.getProperty(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            String msg = "Invalid value '" + value + "' for property " + name;
+            LOG.error(msg);
+            throw new IllegalStateException(msg);
+        }
+    }
+    
+    /**
+     * Converts the ignoredFiles entries into patterns. An entry starting with
+     * "regex:" is used as a regular expression, an entry containing * or ? is
+     * treated as a glob and anything else has to match the file name exactly.
+     */
+    private static List<Pattern> createIgnoredFilePatterns(List<String> ignoredFiles) {
+        List<Pattern> patterns = new ArrayList<>();
+        for (String ignoredFile : ignoredFiles) {
+            if (ignoredFile.isEmpty()) {
+                continue;
+            }
+            try {
+                if (ignoredFile.startsWith("regex:")) {
+                    patterns.add(Pattern.compile(ignoredFile.substring("regex:".length())));
+                } else {
+                    patterns.add(Pattern.compile(globToRegex(ignoredFile)));
+                }
+            } catch (PatternSyntaxException e) {
+                String msg = "Invalid pattern '" + ignoredFile + "' in ignoredFiles: " + e.getMessage();
+                LOG.error(msg);
+                throw new IllegalStateException(msg);
+            }
+        }
+        return patterns;
+    }
+
+    private static String globToRegex(String glob) {
+        StringBuilder regex = new StringBuilder();
+        StringBuilder literal = new StringBuilder();
+        for (char c : glob.toCharArray()) {
+            if (c == '*' || c == '?') {
+                if (literal.length() > 0) {
+                    regex.append(Pattern.quote(literal.toString()));
+                    literal.setLength(0);
+                }
+                regex.append(c == '*' ? ".*" : ".");
+            } else {
+                literal.append(c);
+            }
+        }
+        if (literal.length() > 0) {
+            regex.append(Pattern.quote(literal.toString()));
+        }
+        return regex.toString();
+    }
+
     /**
      * Parses the hierarchy JSON file and places it in an ArrayList containing Members.
      * @param fileName name of the file to parse.
@@ -163,6 +386,21 @@ public class PropertyManager {
         return ignoredFiles;
     }
 
+    /**
+     * Check whether a file name matches any of the ignoredFiles entries
+     *
+     * @param fileName the last part of the path being looked up
+     * @return true if requests for this file should not be passed on to ICAT
+     */
+    public boolean isIgnoredFile(String fileName) {
+        for (Pattern pattern : ignoredFilePatterns) {
+            if (pattern.matcher(fileName).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public int getSessionRefreshMarginMins() {
         return sessionRefreshMarginMins;
     }
@@ -214,4 +452,197 @@ public class PropertyManager {
     public boolean getReadOnly() {
         return readOnly;
     }
+    
+    public int getStoredObjectCacheTtlSecs() {
+        return storedObjectCacheTtlSecs;
+    }
+    
+    public int getStoredObjectCacheMaxSize() {
+        return storedObjectCacheMaxSize;
+    }
+    
+    public int getNotFoundCacheTtlSecs() {
+        return notFoundCacheTtlSecs;
+    }
+    
+    public int getNotFoundCacheMaxSize() {
+        return notFoundCacheMaxSize;
+    }
+    
+    public int getListingCacheTtlSecs() {
+        return listingCacheTtlSecs;
+    }
+    
+    public int getListingCacheMaxSize() {
+        return listingCacheMaxSize;
+    }
+    
+    public String getReferenceReaderAuthenticator() {
+        return referenceReaderAuthenticator;
+    }
+    
+    public String getReferenceReaderUsername() {
+        return referenceReaderUsername;
+    }
+    
+    public String getReferenceReaderPassword() {
+        return referenceReaderPassword;
+    }
+    
+    public int getReferenceRefreshMins() {
+        return referenceRefreshMins;
+    }
+    
+    public int getEntityIdIndexTtlMins() {
+        return entityIdIndexTtlMins;
+    }
+    
+    public int getEntityIdIndexMaxSize() {
+        return entityIdIndexMaxSize;
+    }
+
+    public int getPrefetchThreads() {
+        return prefetchThreads;
+    }
+
+    public int getPrefetchQueueSize() {
+        return prefetchQueueSize;
+    }
+
+    public int getIcatPageSize() {
+        return icatPageSize;
+    }
+
+    public int getTreeWalkThreads() {
+        return treeWalkThreads;
+    }
+
+    public int getTreeWalkThreadsPerRequest() {
+        return treeWalkThreadsPerRequest;
+    }
+
+    public int getDownloadThreads() {
+        return downloadThreads;
+    }
+
+    public int getDownloadMinBufferKB() {
+        return downloadMinBufferKB;
+    }
+
+    public int getDownloadMaxBufferKB() {
+        return downloadMaxBufferKB;
+    }
+
+    public int getCopyThreads() {
+        return copyThreads;
+    }
+
+    public int getCopyThreadsPerRequest() {
+        return copyThreadsPerRequest;
+    }
+
+    public int getCopyBufferKB() {
+        return copyBufferKB;
+    }
+
+    public int getRenameThreads() {
+        return renameThreads;
+    }
+
+    public int getPrestageThreads() {
+        return prestageThreads;
+    }
+
+    public int getPrestageQueueSize() {
+        return prestageQueueSize;
+    }
+
+    public int getPrestageDedupMins() {
+        return prestageDedupMins;
+    }
+
+    public int getPrestageMaxPerMinute() {
+        return prestageMaxPerMinute;
+    }
+
+    public int getRestoreRetryAfterSecs() {
+        return restoreRetryAfterSecs;
+    }
+
+    public int getRestoreMinRetryAfterSecs() {
+        return restoreMinRetryAfterSecs;
+    }
+
+    public int getRestoreMaxRetryAfterSecs() {
+        return restoreMaxRetryAfterSecs;
+    }
+
+    public boolean getCheckOnlineBeforeGet() {
+        return checkOnlineBeforeGet;
+    }
+
+    public int getSessionRefresherPeriodSecs() {
+        return sessionRefresherPeriodSecs;
+    }
+
+    public int getSessionIdleTimeoutMins() {
+        return sessionIdleTimeoutMins;
+    }
+
+    public int getMaxSessions() {
+        return maxSessions;
+    }
+
+    public int getUserIdCacheTtlMins() {
+        return userIdCacheTtlMins;
+    }
+
+    public int getUserIdCacheMaxSize() {
+        return userIdCacheMaxSize;
+    }
+
+    public int getIcatPoolSize() {
+        return icatPoolSize;
+    }
+
+    public int getIcatPoolWaitMillis() {
+        return icatPoolWaitMillis;
+    }
+
+    public boolean isIcatRestApi() {
+        return icatRestApi;
+    }
+
+    public int getIcatMaxConcurrentCalls() {
+        return icatMaxConcurrentCalls;
+    }
+
+    public int getIdsMaxConcurrentCalls() {
+        return idsMaxConcurrentCalls;
+    }
+
+    public int getBackendQueueWaitMillis() {
+        return backendQueueWaitMillis;
+    }
+
+    public int getBackendCallTimeoutSecs() {
+        return backendCallTimeoutSecs;
+    }
+
+    public int getBackendMaxRetries() {
+        return backendMaxRetries;
+    }
+
+    public int getBackendRetryBaseMillis() {
+        return backendRetryBaseMillis;
+    }
+
+    public int getCircuitBreakerFailures() {
+        return circuitBreakerFailures;
+    }
+
+    public int getCircuitBreakerOpenSecs() {
+        return circuitBreakerOpenSecs;
+    }
+
 }
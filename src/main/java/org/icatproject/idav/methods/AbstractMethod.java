@@ -37,6 +37,7 @@ import javax.xml.parsers.ParserConfigurationException;
 import org.apache.commons.lang3.StringUtils;
 
 import org.icatproject.idav.IMethodExecutor;
+import org.icatproject.idav.RequestContext;
 import org.icatproject.idav.StoredObject;
 import org.icatproject.idav.WebdavStatus;
 import org.icatproject.idav.exceptions.LockFailedException;
@@ -502,13 +503,13 @@ public abstract class AbstractMethod implements IMethodExecutor {
      * @throws IOException
      * @throws LockFailedException
      */
-    protected boolean checkLocks(String authString,
+    protected boolean checkLocks(RequestContext context,
             HttpServletRequest req, HttpServletResponse resp,
             IResourceLocks resourceLocks, String path) throws IOException,
             LockFailedException {
 
         LockedObject loByPath = resourceLocks.getLockedObjectByPath(
-                authString, path);
+                context.getAuthString(), path);
         if (loByPath != null) {
 
             if (loByPath.isShared())
@@ -524,7 +525,7 @@ public abstract class AbstractMethod implements IMethodExecutor {
             }
             if (lockToken != null) {
                 LockedObject loByIf = resourceLocks.getLockedObjectByID(
-                        authString, lockToken);
+                        context.getAuthString(), lockToken);
                 if (loByIf == null) {
                     // no locked resource to the given lockToken
                     return false;
@@ -0,0 +1,140 @@
+package org.icatproject.idav.methods;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The media types a client will take, from an HTTP Accept header, eg.
+ * "text/html,application/xhtml+xml;q=0.9,*&#47;*;q=0.8".
+ *
+ * Each media range may be a type ("text/html"), all of the subtypes of a type
+ * ("text/*") or anything ("*&#47;*"), with a quality from 0 to 1 (1 if it is
+ * not given) saying how much the client wants it. A media range that can not
+ * be understood is ignored.
+ */
+public class AcceptHeader {
+
+    private static class MediaRange {
+        private final String type;
+        private final String subtype;
+        private final float quality;
+
+        private MediaRange(String type, String subtype, float quality) {
+            this.type = type;
+            this.subtype = subtype;
+            this.quality = quality;
+        }
+
+        // 0 if the media type is not in the range, and higher the more
+        // specific the range is
+        private int match(String type, String subtype) {
+            if (this.type.equals("*")) {
+                return 1;
+            }
+            if (!this.type.equals(type)) {
+                return 0;
+            }
+            if (this.subtype.equals("*")) {
+                return 2;
+            }
+            return this.subtype.equals(subtype) ? 3 : 0;
+        }
+    }
+
+    // empty if there was no header, when anything is acceptable
+    private final List<MediaRange> ranges;
+
+    private AcceptHeader(List<MediaRange> ranges) {
+        this.ranges = ranges;
+    }
+
+    /**
+     * @param header the value of the Accept header (may be null)
+     */
+    public static AcceptHeader parse(String header) {
+        if (header == null) {
+            return new AcceptHeader(Collections.<MediaRange> emptyList());
+        }
+        List<MediaRange> ranges = new ArrayList<>();
+        for (String element : header.split(",")) {
+            String[] parts = element.split(";");
+            String mediaRange = parts[0].trim().toLowerCase(Locale.ENGLISH);
+            if (mediaRange.equals("*")) {
+                // sent by some old clients for "*/*"
+                mediaRange = "*/*";
+            }
+            int slash = mediaRange.indexOf('/');
+            if (slash <= 0 || slash == mediaRange.length() - 1) {
+                continue;
+            }
+            String type = mediaRange.substring(0, slash);
+            String subtype = mediaRange.substring(slash + 1);
+            if (type.equals("*") && !subtype.equals("*")) {
+                continue;
+            }
+            Float quality = 1f;
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+                if (parameter.length() > 2 && parameter.substring(0, 2).equalsIgnoreCase("q=")) {
+                    quality = parseQuality(parameter.substring(2).trim());
+                }
+            }
+            if (quality != null) {
+                ranges.add(new MediaRange(type, subtype, quality));
+            }
+        }
+        return new AcceptHeader(ranges);
+    }
+
+    // null if it is not a valid quality
+    private static Float parseQuality(String value) {
+        try {
+            float quality = Float.parseFloat(value);
+            return quality >= 0 && quality <= 1 ? quality : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param mediaType a media type without parameters, eg. "text/html"
+     * @return the quality given to the media type by the most specific media
+     *         range that it is in, 0 if it is in none of them, or 1 if there
+     *         was no Accept header
+     */
+    public float getQuality(String mediaType) {
+        if (ranges.isEmpty()) {
+            return 1;
+        }
+        String[] typeAndSubtype = mediaType.toLowerCase(Locale.ENGLISH).split("/", 2);
+        String subtype = typeAndSubtype.length > 1 ? typeAndSubtype[1] : "";
+        int bestMatch = 0;
+        float quality = 0;
+        for (MediaRange range : ranges) {
+            int match = range.match(typeAndSubtype[0], subtype);
+            if (match > bestMatch) {
+                bestMatch = match;
+                quality = range.quality;
+            }
+        }
+        return quality;
+    }
+
+    /**
+     * @param mediaType a media type without parameters, eg. "application/zip"
+     * @return true if the client has asked for the media type itself, rather
+     *         than only for a range of types that it is in
+     */
+    public boolean isNamed(String mediaType) {
+        String lowerCaseType = mediaType.toLowerCase(Locale.ENGLISH);
+        for (MediaRange range : ranges) {
+            if ((range.type + "/" + range.subtype).equals(lowerCaseType) && range.quality > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
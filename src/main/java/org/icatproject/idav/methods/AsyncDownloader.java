@@ -0,0 +1,136 @@
+package org.icatproject.idav.methods;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Sends the content of files to clients from a small pool of download threads
+ * so that a GET of a multi-GB file does not hold on to one of the container's
+ * request threads for as long as the client takes to read it.
+ *
+ * The request is put into asynchronous mode and the copying is handed to the
+ * pool, which gives the request thread back to the container straight away.
+ * The pool only takes a download if it has a thread free for it, otherwise the
+ * download is done on the request thread as before, so a download is never
+ * left waiting in a queue with its IDS connection open.
+ *
+ * The copy starts with a small buffer which grows, up to a limit, while the
+ * source keeps filling it, so slow downloads use little memory and fast ones
+ * are copied in larger chunks.
+ */
+public class AsyncDownloader {
+
+    private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory.getLogger(AsyncDownloader.class);
+
+    private final ExecutorService executor;
+    private final int minBufferSize;
+    private final int maxBufferSize;
+
+    /**
+     * @param executor the pool of download threads shared by all requests
+     * @param minBufferSize the size of the buffer each download starts with
+     * @param maxBufferSize the size the buffer may grow to
+     */
+    public AsyncDownloader(ExecutorService executor, int minBufferSize, int maxBufferSize) {
+        this.executor = executor;
+        this.minBufferSize = Math.max(1, minBufferSize);
+        this.maxBufferSize = Math.max(this.minBufferSize, maxBufferSize);
+    }
+
+    /**
+     * Sends up to <code>length</code> bytes of the stream to the client and
+     * closes it. The request is completed once everything has been sent,
+     * which is normally after this method has returned.
+     *
+     * @param req the request, which must not have been put into asynchronous
+     *        mode already
+     * @param in the content to send
+     * @param length the number of bytes to send, or Long.MAX_VALUE for all of
+     *        the stream
+     * @param path the path being downloaded, for logging
+     * @param whenSent run once the download has finished, whether it worked
+     *        or not, and before the request is completed, or null
+     * @return false if the container does not support asynchronous requests
+     *         here, in which case nothing has been done, <code>whenSent</code>
+     *         is not run and the caller must send the content itself
+     */
+    public boolean download(HttpServletRequest req, final InputStream in, final long length, final String path,
+            final Runnable whenSent) {
+        if (!req.isAsyncSupported()) {
+            return false;
+        }
+        final AsyncContext asyncContext = req.startAsync();
+        // a download takes as long as it takes - a client that stops reading
+        // is dealt with by the container's own write timeout
+        asyncContext.setTimeout(0);
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    OutputStream out = asyncContext.getResponse().getOutputStream();
+                    copy(in, out, length);
+                    out.flush();
+                } catch (IOException e) {
+                    // most likely the client went away
+                    LOG.warn("Download of " + path + " stopped: " + e);
+                } finally {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        LOG.warn("Closing InputStream causes Exception!\n" + e.toString());
+                    }
+                    if (whenSent != null) {
+                        try {
+                            whenSent.run();
+                        } catch (RuntimeException e) {
+                            LOG.warn("Finishing download of " + path + " failed: " + e);
+                        }
+                    }
+                    try {
+                        asyncContext.complete();
+                    } catch (IllegalStateException e) {
+                        LOG.debug("Download of " + path + " already completed: " + e);
+                    }
+                }
+            }
+        };
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            LOG.debug("No download thread free for " + path + " so sending it on the request thread");
+            task.run();
+        }
+        return true;
+    }
+
+    /**
+     * Copies up to <code>length</code> bytes from one stream to the other
+     * without closing either of them.
+     *
+     * @return the number of bytes copied
+     */
+    public long copy(InputStream in, OutputStream out, long length) throws IOException {
+        byte[] buffer = new byte[minBufferSize];
+        long remaining = length;
+        while (remaining > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read == -1) {
+                break;
+            }
+            out.write(buffer, 0, read);
+            remaining -= read;
+            // a source that keeps filling the buffer can use a bigger one
+            if (read == buffer.length && buffer.length < maxBufferSize) {
+                buffer = new byte[Math.min(buffer.length * 2, maxBufferSize)];
+            }
+        }
+        return length - remaining;
+    }
+
+}
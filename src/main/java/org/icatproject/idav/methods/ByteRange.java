@@ -0,0 +1,111 @@
+package org.icatproject.idav.methods;
+
+/**
+ * A single range of bytes requested with an HTTP Range header, eg.
+ * "bytes=0-1023", "bytes=1024-" or "bytes=-500" (the last 500 bytes).
+ *
+ * Only a single range is supported. A header asking for more than one range,
+ * or that can not be understood, is ignored so that the whole resource is
+ * sent, which HTTP allows.
+ */
+public class ByteRange {
+
+    private static final String BYTES_UNIT = "bytes=";
+
+    private final long start;
+    private final long end;
+    private final long resourceLength;
+
+    private ByteRange(long start, long end, long resourceLength) {
+        this.start = start;
+        this.end = end;
+        this.resourceLength = resourceLength;
+    }
+
+    /**
+     * @param header the value of the Range header (may be null)
+     * @param resourceLength the length of the resource
+     * @return the range, which may not be satisfiable, or null if the whole
+     *         resource should be sent
+     */
+    public static ByteRange parse(String header, long resourceLength) {
+        if (header == null || resourceLength < 0) {
+            return null;
+        }
+        header = header.trim();
+        if (!header.regionMatches(true, 0, BYTES_UNIT, 0, BYTES_UNIT.length())) {
+            return null;
+        }
+        String spec = header.substring(BYTES_UNIT.length()).trim();
+        if (spec.indexOf(',') >= 0) {
+            return null;
+        }
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            if (first.isEmpty()) {
+                // a suffix range - the last N bytes
+                long suffixLength = Long.parseLong(last);
+                if (suffixLength <= 0) {
+                    return unsatisfiable(resourceLength);
+                }
+                return new ByteRange(Math.max(0, resourceLength - suffixLength), resourceLength - 1, resourceLength);
+            }
+            long start = Long.parseLong(first);
+            long end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+            if (start < 0 || end < start) {
+                return null;
+            }
+            if (start >= resourceLength) {
+                return unsatisfiable(resourceLength);
+            }
+            return new ByteRange(start, Math.min(end, resourceLength - 1), resourceLength);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static ByteRange unsatisfiable(long resourceLength) {
+        return new ByteRange(-1, -1, resourceLength);
+    }
+
+    /**
+     * @return false if the range lies outside the resource, in which case a
+     *         416 should be sent
+     */
+    public boolean isSatisfiable() {
+        return start >= 0;
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    public long getEnd() {
+        return end;
+    }
+
+    public long getLength() {
+        return end - start + 1;
+    }
+
+    /**
+     * @return the value for the Content-Range header of the response
+     */
+    public String getContentRange() {
+        if (!isSatisfiable()) {
+            return "bytes */" + resourceLength;
+        }
+        return "bytes " + start + "-" + end + "/" + resourceLength;
+    }
+
+    @Override
+    public String toString() {
+        return getContentRange();
+    }
+
+}
@@ -17,14 +17,17 @@ package org.icatproject.idav.methods;
 
 import java.io.IOException;
 import java.util.Hashtable;
+import java.util.concurrent.ExecutorService;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.icatproject.idav.IWebdavStore;
+import org.icatproject.idav.RequestContext;
 import org.icatproject.idav.StoredObject;
 import org.icatproject.idav.WebdavStatus;
 import org.icatproject.idav.exceptions.AccessDeniedException;
+import org.icatproject.idav.exceptions.BackendUnavailableException;
 import org.icatproject.idav.exceptions.LockFailedException;
 import org.icatproject.idav.exceptions.ObjectAlreadyExistsException;
 import org.icatproject.idav.exceptions.ObjectNotFoundException;
@@ -41,16 +44,44 @@ public class DoCopy extends AbstractMethod {
     private ResourceLocks _resourceLocks;
     private DoDelete _doDelete;
     private boolean _readOnly;
+    private ExecutorService _copyExecutor;
+    private ExecutorService _readAheadExecutor;
+    private int _copyThreadsPerRequest;
+    private int _copyBufferSize;
 
     public DoCopy(IWebdavStore store, ResourceLocks resourceLocks,
             DoDelete doDelete, boolean readOnly) {
+        this(store, resourceLocks, doDelete, readOnly, null, null, 1, 0);
+    }
+
+    /**
+     * @param copyExecutor
+     *      pool used to copy the files in different folders in parallel (see
+     *      ParallelCopier), or null to copy everything on the request thread
+     * @param readAheadExecutor
+     *      pool used to read files ahead while they are being written, or
+     *      null to not read ahead
+     * @param copyThreadsPerRequest
+     *      the number of tasks this request may have in the pool at once
+     * @param copyBufferSize
+     *      the size of each of the two buffers used to pipe a file from its
+     *      source to its destination
+     */
+    public DoCopy(IWebdavStore store, ResourceLocks resourceLocks,
+            DoDelete doDelete, boolean readOnly, ExecutorService copyExecutor,
+            ExecutorService readAheadExecutor, int copyThreadsPerRequest,
+            int copyBufferSize) {
         _store = store;
         _resourceLocks = resourceLocks;
         _doDelete = doDelete;
         _readOnly = readOnly;
+        _copyExecutor = copyExecutor;
+        _readAheadExecutor = readAheadExecutor;
+        _copyThreadsPerRequest = copyThreadsPerRequest;
+        _copyBufferSize = copyBufferSize;
     }
 
-    public void execute(String authString, HttpServletRequest req,
+    public void execute(RequestContext context, HttpServletRequest req,
             HttpServletResponse resp) throws IOException, LockFailedException {
         LOG.trace("-- " + this.getClass().getName());
 
@@ -59,10 +90,10 @@ public class DoCopy extends AbstractMethod {
 
             String tempLockOwner = "doCopy" + System.currentTimeMillis()
                     + req.toString();
-            if (_resourceLocks.lock(authString, path, tempLockOwner, false, 0,
+            if (_resourceLocks.lock(context.getAuthString(), path, tempLockOwner, false, 0,
                     TEMP_TIMEOUT, TEMPORARY)) {
                 try {
-                    if (!copyResource(authString, req, resp))
+                    if (!copyResource(context, req, resp))
                     	// TODO - KP 13/07/15 - why does this just return 
                     	// if the copy was NOT successful ??? 
                         return;
@@ -74,10 +105,13 @@ public class DoCopy extends AbstractMethod {
                 } catch (ObjectNotFoundException e) {
                     resp.sendError(WebdavStatus.SC_NOT_FOUND, req
                             .getRequestURI());
+                } catch (BackendUnavailableException e) {
+                    // sent as a 503 so that the client tries again later
+                    throw e;
                 } catch (WebdavException e) {
                     resp.sendError(WebdavStatus.SC_INTERNAL_SERVER_ERROR);
                 } finally {
-                    _resourceLocks.unlockTemporaryLockedObjects(authString,
+                    _resourceLocks.unlockTemporaryLockedObjects(context.getAuthString(),
                             path, tempLockOwner);
                 }
             } else {
@@ -93,7 +127,7 @@ public class DoCopy extends AbstractMethod {
     /**
      * Copy a resource.
      * 
-     * @param authString
+     * @param context
      *      indicates that the method is within the scope of a WebDAV
      *      transaction
      * @param req
@@ -107,7 +141,7 @@ public class DoCopy extends AbstractMethod {
      *      when an error occurs while sending the response
      * @throws LockFailedException
      */
-    public boolean copyResource(String authString,
+    public boolean copyResource(RequestContext context,
             HttpServletRequest req, HttpServletResponse resp)
             throws WebdavException, IOException, LockFailedException {
 
@@ -128,14 +162,14 @@ public class DoCopy extends AbstractMethod {
         Hashtable<String, Integer> errorList = new Hashtable<String, Integer>();
         String parentDestinationPath = getParentPath(getCleanPath(destinationPath));
 
-        if (!checkLocks(authString, req, resp, _resourceLocks,
+        if (!checkLocks(context, req, resp, _resourceLocks,
                 parentDestinationPath)) {
             errorList.put(parentDestinationPath, WebdavStatus.SC_LOCKED);
             sendReport(req, resp, errorList);
             return false; // parentDestination is locked
         }
 
-        if (!checkLocks(authString, req, resp, _resourceLocks, destinationPath)) {
+        if (!checkLocks(context, req, resp, _resourceLocks, destinationPath)) {
             errorList.put(destinationPath, WebdavStatus.SC_LOCKED);
             sendReport(req, resp, errorList);
             return false; // destination is locked
@@ -154,11 +188,11 @@ public class DoCopy extends AbstractMethod {
         String lockOwner = "copyResource" + System.currentTimeMillis()
                 + req.toString();
 
-        if (_resourceLocks.lock(authString, destinationPath, lockOwner, false,
+        if (_resourceLocks.lock(context.getAuthString(), destinationPath, lockOwner, false,
                 0, TEMP_TIMEOUT, TEMPORARY)) {
             StoredObject copySo, destinationSo = null;
             try {
-                copySo = _store.getStoredObject(authString, path);
+                copySo = _store.getStoredObject(context, path);
                 // Retrieve the resources
                 if (copySo == null) {
                     resp.sendError(HttpServletResponse.SC_NOT_FOUND);
@@ -175,14 +209,14 @@ public class DoCopy extends AbstractMethod {
 
                 errorList = new Hashtable<String, Integer>();
 
-                destinationSo = _store.getStoredObject(authString,
+                destinationSo = _store.getStoredObject(context,
                         destinationPath);
 
                 if (overwrite) {
 
                     // Delete destination resource, if it exists
                     if (destinationSo != null) {
-                        _doDelete.deleteResource(authString, destinationPath,
+                        _doDelete.deleteResource(context, destinationPath,
                                 errorList, req, resp);
 
                     } else {
@@ -199,7 +233,7 @@ public class DoCopy extends AbstractMethod {
                     }
 
                 }
-                copy(authString, path, destinationPath, errorList, req, resp);
+                copy(context, path, destinationPath, errorList, req, resp);
 
                 if (!errorList.isEmpty()) {
                     sendReport(req, resp, errorList);
@@ -214,7 +248,7 @@ public class DoCopy extends AbstractMethod {
                 }
 
             } finally {
-                _resourceLocks.unlockTemporaryLockedObjects(authString,
+                _resourceLocks.unlockTemporaryLockedObjects(context.getAuthString(),
                         destinationPath, lockOwner);
             }
         } else {
@@ -231,7 +265,7 @@ public class DoCopy extends AbstractMethod {
      * be handled by the caller. a multi status report in case of errors is
      * created here.
      * 
-     * @param authString
+     * @param context
      *      indicates that the method is within the scope of a WebDAV
      *      transaction
      * @param sourcePath
@@ -246,12 +280,12 @@ public class DoCopy extends AbstractMethod {
      *      if an error in the underlying store occurs
      * @throws IOException
      */
-    private void copy(String authString, String sourcePath,
+    private void copy(RequestContext context, String sourcePath,
             String destinationPath, Hashtable<String, Integer> errorList,
             HttpServletRequest req, HttpServletResponse resp)
             throws WebdavException, IOException {
 
-        StoredObject sourceSo = _store.getStoredObject(authString, sourcePath);
+        StoredObject sourceSo = _store.getStoredObject(context, sourcePath);
         if (sourceSo.isResource()) {
         	// TODO - KP 14/07/15 - I think the createResource line below needs to be  
         	// commented out for the IcatStore implementation to work, otherwise it causes 
@@ -259,24 +293,29 @@ public class DoCopy extends AbstractMethod {
         	// file is streamed in the following line. Currently this causes an error in
         	// the IDS as the dataset is locked whilst the source file is being read.
             //_store.createResource(transaction, destinationPath);
-            long resourceLength = _store.setResourceContent(authString,
-                    destinationPath, _store.getResourceContent(authString,
-                            sourcePath), null, null);
-
-            // TODO - KP 14/07/15 - I can't see what the following few lines do
-            // in both implementations (LocalFileSystemStore and IcatStore) the
-            // StoredObject is created on demand (not retrieved from cache) so
-            // the resource length should never need updating like this
-            if (resourceLength != -1) {
-                StoredObject destinationSo = _store.getStoredObject(
-                        authString, destinationPath);
-                destinationSo.setResourceLength(resourceLength);
+            if (_copyExecutor != null) {
+                createParallelCopier(context).copyFile(sourcePath,
+                        destinationPath, sourceSo.getResourceLength());
+            } else {
+                long resourceLength = _store.setResourceContent(context,
+                        destinationPath, _store.getResourceContent(context,
+                                sourcePath), null, null);
+
+                // TODO - KP 14/07/15 - I can't see what the following few lines do
+                // in both implementations (LocalFileSystemStore and IcatStore) the
+                // StoredObject is created on demand (not retrieved from cache) so
+                // the resource length should never need updating like this
+                if (resourceLength != -1) {
+                    StoredObject destinationSo = _store.getStoredObject(
+                            context, destinationPath);
+                    destinationSo.setResourceLength(resourceLength);
+                }
             }
 
         } else {
 
             if (sourceSo.isFolder()) {
-                copyFolder(authString, sourcePath, destinationPath, errorList,
+                copyFolder(context, sourcePath, destinationPath, errorList,
                         req, resp);
             } else {
                 resp.sendError(WebdavStatus.SC_NOT_FOUND);
@@ -288,7 +327,7 @@ public class DoCopy extends AbstractMethod {
      * helper method of copy() recursively copies the FOLDER at source path to
      * destination path
      * 
-     * @param authString
+     * @param context
      *      indicates that the method is within the scope of a WebDAV
      *      transaction
      * @param sourcePath
@@ -304,12 +343,12 @@ public class DoCopy extends AbstractMethod {
      * @throws WebdavException
      *      if an error in the underlying store occurs
      */
-    private void copyFolder(String authString, String sourcePath,
+    private void copyFolder(RequestContext context, String sourcePath,
             String destinationPath, Hashtable<String, Integer> errorList,
             HttpServletRequest req, HttpServletResponse resp)
             throws WebdavException {
 
-        _store.createFolder(authString, destinationPath);
+        _store.createFolder(context, destinationPath);
         boolean infiniteDepth = true;
         String depth = req.getHeader("Depth");
         if (depth != null) {
@@ -317,16 +356,20 @@ public class DoCopy extends AbstractMethod {
                 infiniteDepth = false;
             }
         }
-        if (infiniteDepth) {
+        if (infiniteDepth && _copyExecutor != null) {
+            LOG.trace("Copying the folder in parallel");
+            createParallelCopier(context).copyChildren(sourcePath,
+                    destinationPath, errorList);
+        } else if (infiniteDepth) {
             String[] children = _store
-                    .getChildrenNames(authString, sourcePath);
+                    .getChildrenNames(context, sourcePath);
             children = children == null ? new String[] {} : children;
 
             StoredObject childSo;
             for (int i = children.length - 1; i >= 0; i--) {
                 children[i] = "/" + children[i];
                 try {
-                    childSo = _store.getStoredObject(authString,
+                    childSo = _store.getStoredObject(context,
                             (sourcePath + children[i]));
                     if (childSo.isResource()) {
                     	// TODO - KP 14/07/15 - I think the createResource line below needs to be  
@@ -336,19 +379,19 @@ public class DoCopy extends AbstractMethod {
                     	// the IDS as the dataset is locked whilst the source file is being read.
                         //_store.createResource(transaction, destinationPath + children[i]);
                         long resourceLength = _store.setResourceContent(
-                                authString, destinationPath + children[i],
-                                _store.getResourceContent(authString,
+                                context, destinationPath + children[i],
+                                _store.getResourceContent(context,
                                         sourcePath + children[i]), null, null);
 
                         if (resourceLength != -1) {
                             StoredObject destinationSo = _store
-                                    .getStoredObject(authString,
+                                    .getStoredObject(context,
                                             destinationPath + children[i]);
                             destinationSo.setResourceLength(resourceLength);
                         }
 
                     } else {
-                        copyFolder(authString, sourcePath + children[i],
+                        copyFolder(context, sourcePath + children[i],
                                 destinationPath + children[i], errorList, req,
                                 resp);
                     }
@@ -369,5 +412,9 @@ public class DoCopy extends AbstractMethod {
         }
     }
 
+    private ParallelCopier createParallelCopier(RequestContext context) {
+        return new ParallelCopier(_store, context, _copyExecutor,
+                _readAheadExecutor, _copyThreadsPerRequest, _copyBufferSize);
+    }
 
 }
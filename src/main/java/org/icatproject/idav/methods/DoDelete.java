@@ -17,14 +17,17 @@ package org.icatproject.idav.methods;
 
 import java.io.IOException;
 import java.util.Hashtable;
+import java.util.Map;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.icatproject.idav.IWebdavStore;
+import org.icatproject.idav.RequestContext;
 import org.icatproject.idav.StoredObject;
 import org.icatproject.idav.WebdavStatus;
 import org.icatproject.idav.exceptions.AccessDeniedException;
+import org.icatproject.idav.exceptions.BackendUnavailableException;
 import org.icatproject.idav.exceptions.LockFailedException;
 import org.icatproject.idav.exceptions.ObjectAlreadyExistsException;
 import org.icatproject.idav.exceptions.ObjectNotFoundException;
@@ -47,7 +50,7 @@ public class DoDelete extends AbstractMethod {
         _readOnly = readOnly;
     }
 
-    public void execute(String authString, HttpServletRequest req,
+    public void execute(RequestContext context, HttpServletRequest req,
             HttpServletResponse resp) throws IOException, LockFailedException {
         LOG.trace("-- " + this.getClass().getName());
 
@@ -57,13 +60,13 @@ public class DoDelete extends AbstractMethod {
 
             Hashtable<String, Integer> errorList = new Hashtable<String, Integer>();
 
-            if (!checkLocks(authString, req, resp, _resourceLocks, parentPath)) {
+            if (!checkLocks(context, req, resp, _resourceLocks, parentPath)) {
                 errorList.put(parentPath, WebdavStatus.SC_LOCKED);
                 sendReport(req, resp, errorList);
                 return; // parent is locked
             }
 
-            if (!checkLocks(authString, req, resp, _resourceLocks, path)) {
+            if (!checkLocks(context, req, resp, _resourceLocks, path)) {
                 errorList.put(path, WebdavStatus.SC_LOCKED);
                 sendReport(req, resp, errorList);
                 return; // resource is locked
@@ -71,11 +74,11 @@ public class DoDelete extends AbstractMethod {
 
             String tempLockOwner = "doDelete" + System.currentTimeMillis()
                     + req.toString();
-            if (_resourceLocks.lock(authString, path, tempLockOwner, false, 0,
+            if (_resourceLocks.lock(context.getAuthString(), path, tempLockOwner, false, 0,
                     TEMP_TIMEOUT, TEMPORARY)) {
                 try {
                     errorList = new Hashtable<String, Integer>();
-                    deleteResource(authString, path, errorList, req, resp);
+                    deleteResource(context, path, errorList, req, resp);
                     if (!errorList.isEmpty()) {
                         sendReport(req, resp, errorList);
                     }
@@ -84,10 +87,13 @@ public class DoDelete extends AbstractMethod {
                 } catch (ObjectAlreadyExistsException e) {
                     resp.sendError(WebdavStatus.SC_NOT_FOUND, req
                             .getRequestURI());
+                } catch (BackendUnavailableException e) {
+                    // sent as a 503 so that the client tries again later
+                    throw e;
                 } catch (WebdavException e) {
                     resp.sendError(WebdavStatus.SC_INTERNAL_SERVER_ERROR);
                 } finally {
-                    _resourceLocks.unlockTemporaryLockedObjects(authString,
+                    _resourceLocks.unlockTemporaryLockedObjects(context.getAuthString(),
                             path, tempLockOwner);
                 }
             } else {
@@ -102,7 +108,7 @@ public class DoDelete extends AbstractMethod {
     /**
      * deletes the recources at "path"
      * 
-     * @param authString
+     * @param context
      *      indicates that the method is within the scope of a WebDAV
      *      transaction
      * @param path
@@ -118,7 +124,7 @@ public class DoDelete extends AbstractMethod {
      * @throws IOException
      *      when an error occurs while sending the response
      */
-    public void deleteResource(String authString, String path,
+    public void deleteResource(RequestContext context, String path,
             Hashtable<String, Integer> errorList, HttpServletRequest req,
             HttpServletResponse resp) throws IOException, WebdavException {
 
@@ -126,15 +132,17 @@ public class DoDelete extends AbstractMethod {
 
         if (!_readOnly) {
 
-            StoredObject so = _store.getStoredObject(authString, path);
+            StoredObject so = _store.getStoredObject(context, path);
             if (so != null) {
 
                 if (so.isResource()) {
-                    _store.removeObject(authString, path);
+                    _store.removeObject(context, path);
                 } else {
                     if (so.isFolder()) {
-                        deleteFolder(authString, path, errorList, req, resp);
-                        _store.removeObject(authString, path);
+                        if (!bulkRemove(context, path, errorList)) {
+                            deleteFolder(context, path, errorList, req, resp);
+                            _store.removeObject(context, path);
+                        }
                     } else {
                         resp.sendError(WebdavStatus.SC_NOT_FOUND);
                     }
@@ -154,7 +162,7 @@ public class DoDelete extends AbstractMethod {
      * helper method of deleteResource() deletes the folder and all of its
      * contents
      * 
-     * @param authString
+     * @param context
      *      indicates that the method is within the scope of a WebDAV
      *      transaction
      * @param path
@@ -168,25 +176,38 @@ public class DoDelete extends AbstractMethod {
      * @throws WebdavException
      *      if an error in the underlying store occurs
      */
-    private void deleteFolder(String authString, String path,
+    private void deleteFolder(RequestContext context, String path,
             Hashtable<String, Integer> errorList, HttpServletRequest req,
             HttpServletResponse resp) throws WebdavException {
 
-        String[] children = _store.getChildrenNames(authString, path);
+        // the StoredObjects of the children come with the listing if the
+        // store can provide them, saving a call for each child
+        Map<String, StoredObject> childObjects = _store
+                .getChildrenWithStoredObjects(context, path);
+        String[] children;
+        if (childObjects != null) {
+            children = childObjects.keySet().toArray(new String[0]);
+        } else {
+            children = _store.getChildrenNames(context, path);
+        }
         children = children == null ? new String[] {} : children;
         StoredObject so = null;
         for (int i = children.length - 1; i >= 0; i--) {
+            String childName = children[i];
             children[i] = "/" + children[i];
             try {
-                so = _store.getStoredObject(authString, path + children[i]);
+                so = childObjects != null ? childObjects.get(childName) : null;
+                if (so == null) {
+                    so = _store.getStoredObject(context, path + children[i]);
+                }
                 if (so.isResource()) {
-                    _store.removeObject(authString, path + children[i]);
+                    _store.removeObject(context, path + children[i]);
 
-                } else {
-                    deleteFolder(authString, path + children[i], errorList,
+                } else if (!bulkRemove(context, path + children[i], errorList)) {
+                    deleteFolder(context, path + children[i], errorList,
                             req, resp);
 
-                    _store.removeObject(authString, path + children[i]);
+                    _store.removeObject(context, path + children[i]);
 
                 }
             } catch (AccessDeniedException e) {
@@ -204,4 +225,19 @@ public class DoDelete extends AbstractMethod {
 
     }
 
+    /**
+     * Removes a folder and everything in it with a few calls to the store if
+     * it is able to
+     * 
+     * @return false if the store could not do this for the folder, in which
+     *      case nothing has been removed
+     */
+    private boolean bulkRemove(RequestContext context, String path,
+            Hashtable<String, Integer> errorList) throws WebdavException {
+        if (!_store.supportsBulkRemove()) {
+            return false;
+        }
+        return _store.doBulkRemove(context, path, errorList);
+    }
+
 }
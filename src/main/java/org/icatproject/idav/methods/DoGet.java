@@ -18,6 +18,8 @@ package org.icatproject.idav.methods;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
 
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
@@ -27,8 +29,10 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.icatproject.idav.IMimeTyper;
 import org.icatproject.idav.IWebdavStore;
+import org.icatproject.idav.RequestContext;
 import org.icatproject.idav.StoredObject;
 import org.icatproject.idav.WebdavStatus;
+import org.icatproject.idav.exceptions.BackendUnavailableException;
 import org.icatproject.idav.locking.ResourceLocks;
 
 public class DoGet extends DoHead {
@@ -36,64 +40,151 @@ public class DoGet extends DoHead {
     private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory
             .getLogger(DoGet.class);
 
+    private static final String ZIP_CONTENT_TYPE = "application/zip";
+
+    // null if the content is always sent on the request thread
+    private AsyncDownloader _downloader;
+
     public DoGet(IWebdavStore store, String dftIndexFile, String insteadOf404,
             ResourceLocks resourceLocks, IMimeTyper mimeTyper,
             boolean contentLengthHeader) {
+        this(store, dftIndexFile, insteadOf404, resourceLocks, mimeTyper,
+                contentLengthHeader, null);
+    }
+
+    public DoGet(IWebdavStore store, String dftIndexFile, String insteadOf404,
+            ResourceLocks resourceLocks, IMimeTyper mimeTyper,
+            boolean contentLengthHeader, AsyncDownloader downloader) {
         super(store, dftIndexFile, insteadOf404, resourceLocks, mimeTyper,
                 contentLengthHeader);
-
+        _downloader = downloader;
     }
 
     @Override
-    protected void doBody(String authString, HttpServletResponse resp,
-            String path) {
+    protected boolean doBody(RequestContext context, HttpServletRequest req,
+            HttpServletResponse resp, String path, ByteRange range,
+            Runnable whenSent) {
 
         try {
-            StoredObject so = _store.getStoredObject(authString, path);
+            StoredObject so = _store.getStoredObject(context, path);
             if (so.isNullResource()) {
                 String methodsAllowed = DeterminableMethod
                         .determineMethodsAllowed(so);
                 resp.addHeader("Allow", methodsAllowed);
                 resp.sendError(WebdavStatus.SC_METHOD_NOT_ALLOWED);
-                return;
+                return false;
             }
-            OutputStream out = resp.getOutputStream();
-            InputStream in = _store.getResourceContent(authString, path);
-            try {
-                int read = -1;
-                byte[] copyBuffer = new byte[BUF_SIZE];
-
-                while ((read = in.read(copyBuffer, 0, copyBuffer.length)) != -1) {
-                    out.write(copyBuffer, 0, read);
-                }
-            } finally {
-                // flushing causes a IOE if a file is opened on the webserver
-                // client disconnected before server finished sending response
-                try {
-                    in.close();
-                } catch (Exception e) {
-                    LOG.warn("Closing InputStream causes Exception!\n"
-                            + e.toString());
-                }
-                try {
-                    out.flush();
-                    out.close();
-                } catch (Exception e) {
-                    LOG.warn("Flushing OutputStream causes Exception!\n"
-                            + e.toString());
-                }
+            InputStream in;
+            long remaining;
+            if (range == null) {
+                in = _store.getResourceContent(context, path);
+                remaining = Long.MAX_VALUE;
+            } else {
+                // the store starts the stream at the offset so only the
+                // bytes in the range are fetched
+                in = _store.getResourceContent(context, path, range.getStart());
+                remaining = range.getLength();
             }
+            // the stream is opened here so that any error getting it is
+            // dealt with on the request thread, the copying can then be
+            // handed over and the request thread freed. The temporary
+            // lock on the resource is kept until the copying has finished.
+            return sendContent(req, resp, in, remaining, path, whenSent);
+        } catch (BackendUnavailableException e) {
+            // sent as a 503 so that the client tries again later
+            throw e;
         } catch (Exception e) {
             LOG.warn(e.toString());
         }
+        return false;
     }
 
-    @Override
-    protected void folderBody(String authString, String path,
-            HttpServletResponse resp, HttpServletRequest req)
+    /**
+     * Sends up to <code>remaining</code> bytes of the stream to the client,
+     * using the downloader if there is one, and closes it
+     * 
+     * @return true if the downloader took the stream, and will run
+     *         <code>whenSent</code> once it has sent it
+     */
+    private boolean sendContent(HttpServletRequest req, HttpServletResponse resp,
+            InputStream in, long remaining, String path, Runnable whenSent)
             throws IOException {
+        if (_downloader != null
+                && _downloader.download(req, in, remaining, path, whenSent)) {
+            return true;
+        }
+        OutputStream out = resp.getOutputStream();
+        try {
+            int read = -1;
+            byte[] copyBuffer = new byte[BUF_SIZE];
 
-        StoredObject so = _store.getStoredObject(authString, path);
+            while (remaining > 0 && (read = in.read(copyBuffer, 0,
+                    (int) Math.min(copyBuffer.length, remaining))) != -1) {
+                out.write(copyBuffer, 0, read);
+                remaining -= read;
+            }
+        } finally {
+            // flushing causes a IOE if a file is opened on the webserver
+            // client disconnected before server finished sending response
+            try {
+                in.close();
+            } catch (Exception e) {
+                LOG.warn("Closing InputStream causes Exception!\n"
+                        + e.toString());
+            }
+            try {
+                out.flush();
+                out.close();
+            } catch (Exception e) {
+                LOG.warn("Flushing OutputStream causes Exception!\n"
+                        + e.toString());
+            }
+        }
+        return false;
+    }
+
+    // A ZIP file of a folder may be asked for with ?zip on the end of the URL
+    // or by a client that names application/zip in its Accept header and
+    // does not prefer the HTML listing to it
+    private static boolean isZipRequested(HttpServletRequest req) {
+        if (req.getParameter("zip") != null) {
+            return true;
+        }
+        AcceptHeader accept = AcceptHeader.parse(req.getHeader("Accept"));
+        return accept.isNamed(ZIP_CONTENT_TYPE)
+                && accept.getQuality(ZIP_CONTENT_TYPE) >= accept.getQuality("text/html");
+    }
+
+    // Have the ZIP file saved with the name of the folder
+    private static String getZipContentDisposition(String path) {
+        String name = path;
+        while (name.endsWith("/")) {
+            name = name.substring(0, name.length() - 1);
+        }
+        name = name.substring(name.lastIndexOf('/') + 1);
+        if (name.isEmpty()) {
+            name = "idav";
+        }
+        name += ".zip";
+        String encodedName;
+        try {
+            encodedName = URLEncoder.encode(name, "UTF-8").replace("+", "%20");
+        } catch (UnsupportedEncodingException e) {
+            encodedName = null;
+        }
+        String disposition = "attachment; filename=\"" + name.replace("\\", "_").replace("\"", "_") + "\"";
+        if (encodedName != null) {
+            disposition += "; filename*=UTF-8''" + encodedName;
+        }
+        return disposition;
+    }
+
+    @Override
+    protected boolean folderBody(RequestContext context, String path,
+            HttpServletResponse resp, HttpServletRequest req,
+            Runnable whenSent) throws IOException {
+
+        StoredObject so = _store.getStoredObject(context, path);
         if (so == null) {
             resp.sendError(HttpServletResponse.SC_NOT_FOUND, req
                     .getRequestURI());
@@ -104,17 +195,33 @@ public class DoGet extends DoHead {
                         .determineMethodsAllowed(so);
                 resp.addHeader("Allow", methodsAllowed);
                 resp.sendError(WebdavStatus.SC_METHOD_NOT_ALLOWED);
-                return;
+                return false;
             }
 
             if (so.isFolder()) {
+                if (isZipRequested(req)) {
+                    // the whole folder in one request, zipped up by the store
+                    InputStream zip = _store.getFolderContentAsZip(context, path);
+                    if (zip != null) {
+                        resp.setContentType(ZIP_CONTENT_TYPE);
+                        resp.setHeader("Content-Disposition", getZipContentDisposition(path));
+                        return sendContent(req, resp, zip, Long.MAX_VALUE, path, whenSent);
+                    }
+                    // the client asked for a ZIP file so a listing would be
+                    // saved as one
+                    LOG.debug("Unable to get " + path + " as a ZIP file");
+                    resp.sendError(WebdavStatus.SC_NOT_ACCEPTABLE, path
+                            + " can not be downloaded as a ZIP file, its contents"
+                            + " must be downloaded separately");
+                    return false;
+                }
                 // TODO some folder response (for browsers, DAV tools
                 // use propfind) in html?
                 DateFormat shortDF= getDateTimeFormat(req.getLocale());
                 resp.setContentType("text/html");
                 resp.setCharacterEncoding("UTF8");
                 OutputStream out = resp.getOutputStream();
-                String[] children = _store.getChildrenNames(authString, path);
+                String[] children = _store.getChildrenNames(context, path);
                 children = children == null ? new String[] {} : children;
                 StringBuilder childrenTemp = new StringBuilder();
                 childrenTemp.append("<html><head><title>Content of folder");
@@ -123,7 +230,7 @@ public class DoGet extends DoHead {
                 childrenTemp.append(getCSS());
                 childrenTemp.append("</style></head>");
                 childrenTemp.append("<body>");
-                childrenTemp.append(getHeader(authString, path, resp, req));
+                childrenTemp.append(getHeader(context, path, resp, req));
                 childrenTemp.append("<table>");
                 childrenTemp.append("<tr><th>Name</th><th>Size</th><th>Created</th><th>Modified</th></tr>");
                 childrenTemp.append("<tr>");
@@ -137,7 +244,7 @@ public class DoGet extends DoHead {
                     childrenTemp.append("<td>");
                     childrenTemp.append("<a href=\"");
                     childrenTemp.append(child);
-                    StoredObject obj= _store.getStoredObject(authString, path+"/"+child);
+                    StoredObject obj= _store.getStoredObject(context, path+"/"+child);
                     if (obj.isFolder())
                     {
                         childrenTemp.append("/");
@@ -186,11 +293,12 @@ public class DoGet extends DoHead {
                     childrenTemp.append("</tr>");
                 }
                 childrenTemp.append("</table>");
-                childrenTemp.append(getFooter(authString, path, resp, req));
+                childrenTemp.append(getFooter(context, path, resp, req));
                 childrenTemp.append("</body></html>");
                 out.write(childrenTemp.toString().getBytes("UTF-8"));
             }
         }
+        return false;
     }
 
     /**
@@ -270,13 +378,13 @@ public class DoGet extends DoHead {
     /**
      * Return the header to be displayed in front of the folder content
      * 
-     * @param authString
+     * @param context
      * @param path
      * @param resp
      * @param req
      * @return String representing the header to be display in front of the folder content
      */
-    protected String getHeader(String authString, String path,
+    protected String getHeader(RequestContext context, String path,
             HttpServletResponse resp, HttpServletRequest req)
     {
         return "<h1>Content of folder "+path+"</h1>";
@@ -285,13 +393,13 @@ public class DoGet extends DoHead {
     /**
      * Return the footer to be displayed after the folder content
      * 
-     * @param authString
+     * @param context
      * @param path
      * @param resp
      * @param req
      * @return String representing the footer to be displayed after the folder content
      */
-    protected String getFooter(String authString, String path,
+    protected String getFooter(RequestContext context, String path,
             HttpServletResponse resp, HttpServletRequest req)
     {
         return "";
@@ -23,10 +23,12 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.icatproject.idav.IMimeTyper;
+import org.icatproject.idav.RequestContext;
 import org.icatproject.idav.StoredObject;
 import org.icatproject.idav.WebdavStatus;
 import org.icatproject.idav.IWebdavStore;
 import org.icatproject.idav.exceptions.AccessDeniedException;
+import org.icatproject.idav.exceptions.BackendUnavailableException;
 import org.icatproject.idav.exceptions.LockFailedException;
 import org.icatproject.idav.exceptions.ObjectAlreadyExistsException;
 import org.icatproject.idav.exceptions.WebdavException;
@@ -55,7 +57,7 @@ public class DoHead extends AbstractMethod {
         _contentLength = contentLengthHeader;
     }
 
-    public void execute(String authString, HttpServletRequest req,
+    public void execute(RequestContext context, HttpServletRequest req,
             HttpServletResponse resp) throws IOException, LockFailedException {
 
         // determines if the uri exists.
@@ -77,11 +79,11 @@ public class DoHead extends AbstractMethod {
         	return;
         }
 
-        StoredObject so = _store.getStoredObject(authString, path);
+        StoredObject so = _store.getStoredObject(context, path);
         if (so == null) {
             if (this._insteadOf404 != null && !_insteadOf404.trim().equals("")) {
                 path = this._insteadOf404;
-                so = _store.getStoredObject(authString, this._insteadOf404);
+                so = _store.getStoredObject(context, this._insteadOf404);
             }
         } else
             bUriExists = true;
@@ -103,11 +105,23 @@ public class DoHead extends AbstractMethod {
             }
 
             // TODO - (KP) shouldn't the lock owner be doHead ???
-            String tempLockOwner = "doGet" + System.currentTimeMillis()
+            final String tempLockOwner = "doGet" + System.currentTimeMillis()
                     + req.toString();
 
-            if (_resourceLocks.lock(authString, path, tempLockOwner, false, 0,
+            if (_resourceLocks.lock(context.getAuthString(), path, tempLockOwner, false, 0,
                     TEMP_TIMEOUT, TEMPORARY)) {
+                final String authString = context.getAuthString();
+                final String lockedPath = path;
+                Runnable unlock = new Runnable() {
+                    @Override
+                    public void run() {
+                        _resourceLocks.unlockTemporaryLockedObjects(authString,
+                                lockedPath, tempLockOwner);
+                    }
+                };
+                // set if the body is still being sent when doBody returns, in
+                // which case the lock is released once it has been sent
+                boolean unlockWhenSent = false;
                 try {
 
                     String eTagMatch = req.getHeader("If-None-Match");
@@ -134,14 +148,30 @@ public class DoHead extends AbstractMethod {
 
                             long resourceLength = so.getResourceLength();
 
+                            resp.addHeader("Accept-Ranges", "bytes");
+                            ByteRange range = getRange(req, eTag, lastModified, resourceLength);
+                            if (range != null && !range.isSatisfiable()) {
+                                resp.setHeader("Content-Range", range.getContentRange());
+                                resp.sendError(WebdavStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                                return;
+                            }
+
+                            long contentLength = resourceLength;
+                            if (range != null) {
+                                LOG.debug("Sending " + range + " of " + path);
+                                resp.setStatus(WebdavStatus.SC_PARTIAL_CONTENT);
+                                resp.setHeader("Content-Range", range.getContentRange());
+                                contentLength = range.getLength();
+                            }
+
                             if (_contentLength) {
-                                if (resourceLength > 0) {
-                                    if (resourceLength <= Integer.MAX_VALUE) {
+                                if (contentLength > 0) {
+                                    if (contentLength <= Integer.MAX_VALUE) {
                                     	// KP - I think this is good for up to 2GB
-                                        resp.setContentLength((int) resourceLength);
+                                        resp.setContentLength((int) contentLength);
                                     	LOG.trace("Set content-length using setContentLength method");
                                     } else {
-                                        resp.setHeader("content-length", "" + resourceLength);
+                                        resp.setHeader("content-length", "" + contentLength);
                                         // is "content-length" the right header?
                                         // is long a valid format?
                                     	LOG.trace("Set content-length manually using setHeader method");
@@ -161,27 +191,31 @@ public class DoHead extends AbstractMethod {
                                 }
                             }
 
-                            doBody(authString, resp, path);
+                            unlockWhenSent = doBody(context, req, resp, path, range, unlock);
                         }
                     } else {
-                        folderBody(authString, path, resp, req);
+                        unlockWhenSent = folderBody(context, path, resp, req, unlock);
                     }
                 } catch (AccessDeniedException e) {
                     resp.sendError(WebdavStatus.SC_FORBIDDEN);
                 } catch (ObjectAlreadyExistsException e) {
                     resp.sendError(WebdavStatus.SC_NOT_FOUND, req
                             .getRequestURI());
+                } catch (BackendUnavailableException e) {
+                    // sent as a 503 so that the client tries again later
+                    throw e;
                 } catch (WebdavException e) {
                     resp.sendError(WebdavStatus.SC_INTERNAL_SERVER_ERROR);
                 } finally {
-                    _resourceLocks.unlockTemporaryLockedObjects(authString,
-                            path, tempLockOwner);
+                    if (!unlockWhenSent) {
+                        unlock.run();
+                    }
                 }
             } else {
                 resp.sendError(WebdavStatus.SC_INTERNAL_SERVER_ERROR);
             }
         } else {
-            folderBody(authString, path, resp, req);
+            folderBody(context, path, resp, req, null);
         }
 
         if (!bUriExists)
@@ -209,14 +243,73 @@ public class DoHead extends AbstractMethod {
         out.write("</pre></body></html>".getBytes());
 	}
     
-	protected void folderBody(String authString, String path,
-            HttpServletResponse resp, HttpServletRequest req)
-            throws IOException {
+    /**
+     * @param whenSent
+     *      releases the temporary lock on the folder, or null if there is none
+     * @return true if the body is still being sent, in which case
+     *      <code>whenSent</code> is run once it has been, or false if the
+     *      caller is to run it
+     */
+	protected boolean folderBody(RequestContext context, String path,
+            HttpServletResponse resp, HttpServletRequest req,
+            Runnable whenSent) throws IOException {
         // no body for HEAD
+        return false;
     }
 
-    protected void doBody(String authString, HttpServletResponse resp,
-            String path) throws IOException {
+    /**
+     * @param range
+     *      the part of the resource to send, or null for all of it
+     * @param whenSent
+     *      releases the temporary lock on the resource
+     * @return true if the body is still being sent, in which case
+     *      <code>whenSent</code> is run once it has been, or false if the
+     *      caller is to run it
+     */
+    protected boolean doBody(RequestContext context, HttpServletRequest req,
+            HttpServletResponse resp, String path, ByteRange range,
+            Runnable whenSent) throws IOException {
         // no body for HEAD
+        return false;
+    }
+
+    /**
+     * Gets the range of bytes asked for by the Range header, taking account
+     * of any If-Range header, which asks for the range only if the resource
+     * has not changed and otherwise for all of it. The ETags sent by IDAV are
+     * weak, so an If-Range holding an ETag always gets the whole resource.
+     * 
+     * @return the range, or null to send the whole resource
+     */
+    private ByteRange getRange(HttpServletRequest req, String eTag,
+            long lastModified, long resourceLength) {
+        String rangeHeader = req.getHeader("Range");
+        if (rangeHeader == null || resourceLength <= 0) {
+            return null;
+        }
+        String ifRange = req.getHeader("If-Range");
+        if (ifRange != null) {
+            ifRange = ifRange.trim();
+            if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+                // If-Range uses the strong comparison, so a weak tag on
+                // either side never matches (RFC 7233 section 3.2)
+                if (ifRange.startsWith("W/") || eTag == null || eTag.startsWith("W/")
+                        || !ifRange.equals(eTag)) {
+                    return null;
+                }
+            } else {
+                long ifRangeDate;
+                try {
+                    ifRangeDate = req.getDateHeader("If-Range");
+                } catch (IllegalArgumentException e) {
+                    return null;
+                }
+                // HTTP dates only go down to the second
+                if (ifRangeDate / 1000 != lastModified / 1000) {
+                    return null;
+                }
+            }
+        }
+        return ByteRange.parse(rangeHeader, resourceLength);
     }
 }
@@ -25,8 +25,10 @@ import javax.servlet.http.HttpServletResponse;
 import javax.xml.parsers.DocumentBuilder;
 
 import org.icatproject.idav.IWebdavStore;
+import org.icatproject.idav.RequestContext;
 import org.icatproject.idav.StoredObject;
 import org.icatproject.idav.WebdavStatus;
+import org.icatproject.idav.exceptions.BackendUnavailableException;
 import org.icatproject.idav.exceptions.LockFailedException;
 import org.icatproject.idav.exceptions.WebdavException;
 import org.icatproject.idav.fromcatalina.XMLWriter;
@@ -68,7 +70,7 @@ public class DoLock extends AbstractMethod {
         _readOnly = readOnly;
     }
 
-    public void execute(String authString, HttpServletRequest req,
+    public void execute(RequestContext context, HttpServletRequest req,
             HttpServletResponse resp) throws IOException, LockFailedException {
         LOG.trace("-- " + this.getClass().getName());
 
@@ -81,13 +83,13 @@ public class DoLock extends AbstractMethod {
 
             Hashtable<String, Integer> errorList = new Hashtable<String, Integer>();
 
-            if (!checkLocks(authString, req, resp, _resourceLocks, _path)) {
+            if (!checkLocks(context, req, resp, _resourceLocks, _path)) {
                 errorList.put(_path, WebdavStatus.SC_LOCKED);
                 sendReport(req, resp, errorList);
                 return; // resource is locked
             }
 
-            if (!checkLocks(authString, req, resp, _resourceLocks, _parentPath)) {
+            if (!checkLocks(context, req, resp, _resourceLocks, _parentPath)) {
                 errorList.put(_parentPath, WebdavStatus.SC_LOCKED);
                 sendReport(req, resp, errorList);
                 return; // parent is locked
@@ -107,35 +109,35 @@ public class DoLock extends AbstractMethod {
 
             String tempLockOwner = "doLock" + System.currentTimeMillis()
                     + req.toString();
-            if (_resourceLocks.lock(authString, _path, tempLockOwner, false,
+            if (_resourceLocks.lock(context.getAuthString(), _path, tempLockOwner, false,
                     0, TEMP_TIMEOUT, TEMPORARY)) {
                 try {
                     if (req.getHeader("If") != null) {
-                        doRefreshLock(authString, req, resp);
+                        doRefreshLock(context, req, resp);
                     } else {
-                        doLock(authString, req, resp);
+                        doLock(context, req, resp);
                     }
                 } catch (LockFailedException e) {
                     resp.sendError(WebdavStatus.SC_LOCKED);
                     e.printStackTrace();
                 } finally {
-                    _resourceLocks.unlockTemporaryLockedObjects(authString,
+                    _resourceLocks.unlockTemporaryLockedObjects(context.getAuthString(),
                             _path, tempLockOwner);
                 }
             }
         }
     }
 
-    private void doLock(String authString, HttpServletRequest req,
+    private void doLock(RequestContext context, HttpServletRequest req,
             HttpServletResponse resp) throws IOException, LockFailedException {
 
-        StoredObject so = _store.getStoredObject(authString, _path);
+        StoredObject so = _store.getStoredObject(context, _path);
 
         if (so != null) {
-            doLocking(authString, req, resp);
+            doLocking(context, req, resp);
         } else {
             // resource doesn't exist, null-resource lock
-            doNullResourceLock(authString, req, resp);
+            doNullResourceLock(context, req, resp);
         }
 
         so = null;
@@ -145,54 +147,54 @@ public class DoLock extends AbstractMethod {
 
     }
 
-    private void doLocking(String authString, HttpServletRequest req,
+    private void doLocking(RequestContext context, HttpServletRequest req,
             HttpServletResponse resp) throws IOException {
 
         // Tests if LockObject on requested path exists, and if so, tests
         // exclusivity
-        LockedObject lo = _resourceLocks.getLockedObjectByPath(authString,
+        LockedObject lo = _resourceLocks.getLockedObjectByPath(context.getAuthString(),
                 _path);
         if (lo != null) {
             if (lo.isExclusive()) {
-                sendLockFailError(authString, req, resp);
+                sendLockFailError(context, req, resp);
                 return;
             }
         }
         try {
             // Thats the locking itself
-            executeLock(authString, req, resp);
+            executeLock(context, req, resp);
 
         } catch (ServletException e) {
             resp.sendError(WebdavStatus.SC_INTERNAL_SERVER_ERROR);
             LOG.trace(e.toString());
         } catch (LockFailedException e) {
-            sendLockFailError(authString, req, resp);
+            sendLockFailError(context, req, resp);
         } finally {
             lo = null;
         }
 
     }
 
-    private void doNullResourceLock(String authString,
+    private void doNullResourceLock(RequestContext context,
             HttpServletRequest req, HttpServletResponse resp)
             throws IOException {
 
         StoredObject parentSo, nullSo = null;
 
         try {
-            parentSo = _store.getStoredObject(authString, _parentPath);
+            parentSo = _store.getStoredObject(context, _parentPath);
             if (_parentPath != null && parentSo == null) {
-                _store.createFolder(authString, _parentPath);
+                _store.createFolder(context, _parentPath);
             } else if (_parentPath != null && parentSo != null
                     && parentSo.isResource()) {
                 resp.sendError(WebdavStatus.SC_PRECONDITION_FAILED);
                 return;
             }
 
-            nullSo = _store.getStoredObject(authString, _path);
+            nullSo = _store.getStoredObject(context, _path);
             if (nullSo == null) {
                 // resource doesn't exist
-                _store.createResource(authString, _path);
+                _store.createResource(context, _path);
 
                 // Transmit expects 204 response-code, not 201
                 if (_userAgent != null && _userAgent.indexOf("Transmit") != -1) {
@@ -206,18 +208,21 @@ public class DoLock extends AbstractMethod {
 
             } else {
                 // resource already exists, could not execute null-resource lock
-                sendLockFailError(authString, req, resp);
+                sendLockFailError(context, req, resp);
                 return;
             }
-            nullSo = _store.getStoredObject(authString, _path);
+            nullSo = _store.getStoredObject(context, _path);
             // define the newly created resource as null-resource
             nullSo.setNullResource(true);
 
             // Thats the locking itself
-            executeLock(authString, req, resp);
+            executeLock(context, req, resp);
 
         } catch (LockFailedException e) {
-            sendLockFailError(authString, req, resp);
+            sendLockFailError(context, req, resp);
+        } catch (BackendUnavailableException e) {
+            // sent as a 503 so that the client tries again later
+            throw e;
         } catch (WebdavException e) {
 //            resp.sendError(WebdavStatus.SC_INTERNAL_SERVER_ERROR);
 //            e.printStackTrace();
@@ -234,7 +239,7 @@ public class DoLock extends AbstractMethod {
         }
     }
 
-    private void doRefreshLock(String authString,
+    private void doRefreshLock(RequestContext context,
             HttpServletRequest req, HttpServletResponse resp)
             throws IOException, LockFailedException {
 
@@ -246,13 +251,13 @@ public class DoLock extends AbstractMethod {
         if (lockToken != null) {
             // Getting LockObject of specified lockToken in If header
             LockedObject refreshLo = _resourceLocks.getLockedObjectByID(
-                    authString, lockToken);
+                    context.getAuthString(), lockToken);
             if (refreshLo != null) {
-                int timeout = getTimeout(authString, req);
+                int timeout = getTimeout(context, req);
 
                 refreshLo.refreshTimeout(timeout);
                 // sending success response
-                generateXMLReport(authString, resp, refreshLo);
+                generateXMLReport(context, resp, refreshLo);
 
                 refreshLo = null;
             } else {
@@ -270,7 +275,7 @@ public class DoLock extends AbstractMethod {
     /**
      * Executes the LOCK
      */
-    private void executeLock(String authString, HttpServletRequest req,
+    private void executeLock(RequestContext context, HttpServletRequest req,
             HttpServletResponse resp) throws LockFailedException, IOException,
             ServletException {
 
@@ -279,33 +284,33 @@ public class DoLock extends AbstractMethod {
             LOG.trace("DoLock.execute() : do workaround for user agent '"
                     + _userAgent + "'");
 
-            doMacLockRequestWorkaround(authString, req, resp);
+            doMacLockRequestWorkaround(context, req, resp);
         } else {
             // Getting LockInformation from request
-            if (getLockInformation(authString, req, resp)) {
+            if (getLockInformation(context, req, resp)) {
                 int depth = getDepth(req);
-                int lockDuration = getTimeout(authString, req);
+                int lockDuration = getTimeout(context, req);
 
                 boolean lockSuccess = false;
                 if (_exclusive) {
-                    lockSuccess = _resourceLocks.exclusiveLock(authString,
+                    lockSuccess = _resourceLocks.exclusiveLock(context.getAuthString(),
                             _path, _lockOwner, depth, lockDuration);
                 } else {
-                    lockSuccess = _resourceLocks.sharedLock(authString, _path,
+                    lockSuccess = _resourceLocks.sharedLock(context.getAuthString(), _path,
                             _lockOwner, depth, lockDuration);
                 }
 
                 if (lockSuccess) {
                     // Locks successfully placed - return information about
                     LockedObject lo = _resourceLocks.getLockedObjectByPath(
-                            authString, _path);
+                            context.getAuthString(), _path);
                     if (lo != null) {
-                        generateXMLReport(authString, resp, lo);
+                        generateXMLReport(context, resp, lo);
                     } else {
                         resp.sendError(WebdavStatus.SC_INTERNAL_SERVER_ERROR);
                     }
                 } else {
-                    sendLockFailError(authString, req, resp);
+                    sendLockFailError(context, req, resp);
 
                     throw new LockFailedException();
                 }
@@ -320,7 +325,7 @@ public class DoLock extends AbstractMethod {
     /**
      * Tries to get the LockInformation from LOCK request
      */
-    private boolean getLockInformation(String authString,
+    private boolean getLockInformation(RequestContext context,
             HttpServletRequest req, HttpServletResponse resp)
             throws ServletException, IOException {
 
@@ -448,7 +453,7 @@ public class DoLock extends AbstractMethod {
     /**
      * Ties to read the timeout from request
      */
-    private int getTimeout(String authString, HttpServletRequest req) {
+    private int getTimeout(RequestContext context, HttpServletRequest req) {
 
         int lockDuration = DEFAULT_TIMEOUT;
         String lockDurationStr = req.getHeader("Timeout");
@@ -488,7 +493,7 @@ public class DoLock extends AbstractMethod {
     /**
      * Generates the response XML with all lock information
      */
-    private void generateXMLReport(String authString,
+    private void generateXMLReport(RequestContext context,
             HttpServletResponse resp, LockedObject lo) throws IOException {
 
         HashMap<String, String> namespaces = new HashMap<String, String>();
@@ -556,37 +561,37 @@ public class DoLock extends AbstractMethod {
     /**
      * Executes the lock for a Mac OS Finder client
      */
-    private void doMacLockRequestWorkaround(String authString,
+    private void doMacLockRequestWorkaround(RequestContext context,
             HttpServletRequest req, HttpServletResponse resp)
             throws LockFailedException, IOException {
         LockedObject lo;
         int depth = getDepth(req);
-        int lockDuration = getTimeout(authString, req);
+        int lockDuration = getTimeout(context, req);
         if (lockDuration < 0 || lockDuration > MAX_TIMEOUT)
             lockDuration = DEFAULT_TIMEOUT;
 
         boolean lockSuccess = false;
-        lockSuccess = _resourceLocks.exclusiveLock(authString, _path,
+        lockSuccess = _resourceLocks.exclusiveLock(context.getAuthString(), _path,
                 _lockOwner, depth, lockDuration);
 
         if (lockSuccess) {
             // Locks successfully placed - return information about
-            lo = _resourceLocks.getLockedObjectByPath(authString, _path);
+            lo = _resourceLocks.getLockedObjectByPath(context.getAuthString(), _path);
             if (lo != null) {
-                generateXMLReport(authString, resp, lo);
+                generateXMLReport(context, resp, lo);
             } else {
                 resp.sendError(WebdavStatus.SC_INTERNAL_SERVER_ERROR);
             }
         } else {
             // Locking was not successful
-            sendLockFailError(authString, req, resp);
+            sendLockFailError(context, req, resp);
         }
     }
 
     /**
      * Sends an error report to the client
      */
-    private void sendLockFailError(String authString,
+    private void sendLockFailError(RequestContext context,
             HttpServletRequest req, HttpServletResponse resp)
             throws IOException {
         Hashtable<String, Integer> errorList = new Hashtable<String, Integer>();
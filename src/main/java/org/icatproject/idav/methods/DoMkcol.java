@@ -22,9 +22,11 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.icatproject.idav.IWebdavStore;
+import org.icatproject.idav.RequestContext;
 import org.icatproject.idav.StoredObject;
 import org.icatproject.idav.WebdavStatus;
 import org.icatproject.idav.exceptions.AccessDeniedException;
+import org.icatproject.idav.exceptions.BackendUnavailableException;
 import org.icatproject.idav.exceptions.LockFailedException;
 import org.icatproject.idav.exceptions.WebdavException;
 import org.icatproject.idav.locking.IResourceLocks;
@@ -46,7 +48,7 @@ public class DoMkcol extends AbstractMethod {
         _readOnly = readOnly;
     }
 
-    public void execute(String authString, HttpServletRequest req,
+    public void execute(RequestContext context, HttpServletRequest req,
             HttpServletResponse resp) throws IOException, LockFailedException {
         LOG.trace("-- " + this.getClass().getName());
 
@@ -56,7 +58,7 @@ public class DoMkcol extends AbstractMethod {
 
             Hashtable<String, Integer> errorList = new Hashtable<String, Integer>();
 
-            if (!checkLocks(authString, req, resp, _resourceLocks, parentPath)) {
+            if (!checkLocks(context, req, resp, _resourceLocks, parentPath)) {
                 // TODO remove
                 LOG
                         .trace("MkCol on locked resource (parentPath) not executable!"
@@ -69,27 +71,27 @@ public class DoMkcol extends AbstractMethod {
             String tempLockOwner = "doMkcol" + System.currentTimeMillis()
                     + req.toString();
 
-            if (_resourceLocks.lock(authString, path, tempLockOwner, false, 0,
+            if (_resourceLocks.lock(context.getAuthString(), path, tempLockOwner, false, 0,
                     TEMP_TIMEOUT, TEMPORARY)) {
                 StoredObject parentSo, so = null;
                 try {
-                    parentSo = _store.getStoredObject(authString, parentPath);
+                    parentSo = _store.getStoredObject(context, parentPath);
 					if (parentSo == null) {
 						// parent not exists
 						resp.sendError(WebdavStatus.SC_CONFLICT);
 						return;
 					}
 					if (parentPath != null && parentSo.isFolder()) {
-                        so = _store.getStoredObject(authString, path);
+                        so = _store.getStoredObject(context, path);
                         if (so == null) {
-                            _store.createFolder(authString, path);
+                            _store.createFolder(context, path);
                             resp.setStatus(WebdavStatus.SC_CREATED);
                         } else {
                             // object already exists
                             if (so.isNullResource()) {
 
                                 LockedObject nullResourceLo = _resourceLocks
-                                        .getLockedObjectByPath(authString,
+                                        .getLockedObjectByPath(context.getAuthString(),
                                                 path);
                                 if (nullResourceLo == null) {
                                     resp
@@ -116,7 +118,7 @@ public class DoMkcol extends AbstractMethod {
                                     if (nullResourceLockOwners != null)
                                         owner = nullResourceLockOwners[0];
 
-                                    if (_resourceLocks.unlock(authString,
+                                    if (_resourceLocks.unlock(context.getAuthString(),
                                             lockToken, owner)) {
                                         resp.setStatus(WebdavStatus.SC_CREATED);
                                     } else {
@@ -159,10 +161,13 @@ public class DoMkcol extends AbstractMethod {
                     }
                 } catch (AccessDeniedException e) {
                     resp.sendError(WebdavStatus.SC_FORBIDDEN);
+                } catch (BackendUnavailableException e) {
+                    // sent as a 503 so that the client tries again later
+                    throw e;
                 } catch (WebdavException e) {
                     resp.sendError(WebdavStatus.SC_INTERNAL_SERVER_ERROR);
                 } finally {
-                    _resourceLocks.unlockTemporaryLockedObjects(authString,
+                    _resourceLocks.unlockTemporaryLockedObjects(context.getAuthString(),
                             path, tempLockOwner);
                 }
             } else {
@@ -22,9 +22,11 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.icatproject.idav.IWebdavStore;
+import org.icatproject.idav.RequestContext;
 import org.icatproject.idav.StoredObject;
 import org.icatproject.idav.WebdavStatus;
 import org.icatproject.idav.exceptions.AccessDeniedException;
+import org.icatproject.idav.exceptions.BackendUnavailableException;
 import org.icatproject.idav.exceptions.LockFailedException;
 import org.icatproject.idav.exceptions.ObjectAlreadyExistsException;
 import org.icatproject.idav.exceptions.WebdavException;
@@ -50,7 +52,7 @@ public class DoMove extends AbstractMethod {
         _readOnly = readOnly;
     }
 
-    public void execute(String authString, HttpServletRequest req,
+    public void execute(RequestContext context, HttpServletRequest req,
             HttpServletResponse resp) throws IOException, LockFailedException {
 
         if (!_readOnly) {
@@ -60,7 +62,7 @@ public class DoMove extends AbstractMethod {
             LOG.trace("sourcePath: '" + sourcePath + "'");
             Hashtable<String, Integer> errorList = new Hashtable<String, Integer>();
 
-            if (!checkLocks(authString, req, resp, _resourceLocks, sourcePath)) {
+            if (!checkLocks(context, req, resp, _resourceLocks, sourcePath)) {
                 errorList.put(sourcePath, WebdavStatus.SC_LOCKED);
                 sendReport(req, resp, errorList);
                 return;
@@ -92,7 +94,7 @@ public class DoMove extends AbstractMethod {
                 return;
             }
 
-            if (!checkLocks(authString, req, resp, _resourceLocks, destinationPath)) {
+            if (!checkLocks(context, req, resp, _resourceLocks, destinationPath)) {
                 errorList.put(destinationPath, WebdavStatus.SC_LOCKED);
                 sendReport(req, resp, errorList);
                 return;
@@ -100,21 +102,21 @@ public class DoMove extends AbstractMethod {
 
             String tempLockOwner = "doMove" + System.currentTimeMillis() + req.toString();
 
-            if (_resourceLocks.lock(authString, sourcePath, tempLockOwner,
+            if (_resourceLocks.lock(context.getAuthString(), sourcePath, tempLockOwner,
                     false, 0, TEMP_TIMEOUT, TEMPORARY)) {
 
 	                try {
 	                	if (_store.supportsDirectMove() && isSimpleRename(sourcePath, destinationPath)) {
 	    	            	// call new method added to do a "direct move"
 	                		LOG.trace("Doing direct move");
-	    	            	moveResource(authString, req, resp);
+	    	            	moveResource(context, req, resp);
 	    	            } else {
 	    	            	// use the original code to do a "copy and delete"
 	                		LOG.trace("Doing copy and delete");
-		                    if (_doCopy.copyResource(authString, req, resp)) {
+		                    if (_doCopy.copyResource(context, req, resp)) {
 		                    	LOG.trace("Copy succeeded - deleting source resource");
 		                        errorList = new Hashtable<String, Integer>();
-		                        _doDelete.deleteResource(authString, sourcePath,
+		                        _doDelete.deleteResource(context, sourcePath,
 		                                errorList, req, resp);
 		                        if (!errorList.isEmpty()) {
 		                            sendReport(req, resp, errorList);
@@ -127,10 +129,13 @@ public class DoMove extends AbstractMethod {
 	                    resp.sendError(WebdavStatus.SC_FORBIDDEN);
 	                } catch (ObjectAlreadyExistsException e) {
 	                    resp.sendError(WebdavStatus.SC_NOT_FOUND, req.getRequestURI());
+	                } catch (BackendUnavailableException e) {
+	                    // sent as a 503 so that the client tries again later
+	                    throw e;
 	                } catch (WebdavException e) {
 	                    resp.sendError(WebdavStatus.SC_INTERNAL_SERVER_ERROR);
 	                } finally {
-	                    _resourceLocks.unlockTemporaryLockedObjects(authString,
+	                    _resourceLocks.unlockTemporaryLockedObjects(context.getAuthString(),
 	                            sourcePath, tempLockOwner);
 	                }
             	
@@ -156,7 +161,7 @@ public class DoMove extends AbstractMethod {
      * 
      * This code almost an exact copy of that in DoCopy copyResource().
      * 
-     * @param authString
+     * @param context
      *      indicates that the method is within the scope of a WebDAV
      *      transaction
      * @param req
@@ -170,7 +175,7 @@ public class DoMove extends AbstractMethod {
      *      when an error occurs while sending the response
      * @throws LockFailedException
      */
-    public boolean moveResource(String authString,
+    public boolean moveResource(RequestContext context,
             HttpServletRequest req, HttpServletResponse resp)
             throws WebdavException, IOException, LockFailedException {
 
@@ -192,14 +197,14 @@ public class DoMove extends AbstractMethod {
         Hashtable<String, Integer> errorList = new Hashtable<String, Integer>();
         String parentDestinationPath = getParentPath(getCleanPath(destinationPath));
 
-        if (!checkLocks(authString, req, resp, _resourceLocks,
+        if (!checkLocks(context, req, resp, _resourceLocks,
                 parentDestinationPath)) {
             errorList.put(parentDestinationPath, WebdavStatus.SC_LOCKED);
             sendReport(req, resp, errorList);
             return false; // parentDestination is locked
         }
 
-        if (!checkLocks(authString, req, resp, _resourceLocks, destinationPath)) {
+        if (!checkLocks(context, req, resp, _resourceLocks, destinationPath)) {
             errorList.put(destinationPath, WebdavStatus.SC_LOCKED);
             sendReport(req, resp, errorList);
             return false; // destination is locked
@@ -218,11 +223,11 @@ public class DoMove extends AbstractMethod {
         String lockOwner = "moveResource" + System.currentTimeMillis()
                 + req.toString();
 
-        if (_resourceLocks.lock(authString, destinationPath, lockOwner, false,
+        if (_resourceLocks.lock(context.getAuthString(), destinationPath, lockOwner, false,
                 0, TEMP_TIMEOUT, TEMPORARY)) {
             StoredObject copySo, destinationSo = null;
             try {
-                copySo = _store.getStoredObject(authString, sourcePath);
+                copySo = _store.getStoredObject(context, sourcePath);
                 // Retrieve the resources
                 if (copySo == null) {
                     resp.sendError(HttpServletResponse.SC_NOT_FOUND);
@@ -239,14 +244,14 @@ public class DoMove extends AbstractMethod {
 
                 errorList = new Hashtable<String, Integer>();
 
-                destinationSo = _store.getStoredObject(authString,
+                destinationSo = _store.getStoredObject(context,
                         destinationPath);
 
                 if (overwrite) {
 
                     // Delete destination resource, if it exists
                     if (destinationSo != null) {
-                        _doDelete.deleteResource(authString, destinationPath,
+                        _doDelete.deleteResource(context, destinationPath,
                                 errorList, req, resp);
 
                     } else {
@@ -265,7 +270,10 @@ public class DoMove extends AbstractMethod {
                 }
                 
                 try {
-                	_store.doDirectMove(authString, sourcePath, destinationPath);
+                	_store.doDirectMove(context, sourcePath, destinationPath);
+                } catch (BackendUnavailableException e) {
+                    // sent as a 503 so that the client tries again later
+                    throw e;
                 } catch (WebdavException e) {
                 	// TODO - can we be more specific than this?
                 	errorList.put(e.getMessage(), WebdavStatus.SC_INTERNAL_SERVER_ERROR);
@@ -276,7 +284,7 @@ public class DoMove extends AbstractMethod {
                 }
 
             } finally {
-                _resourceLocks.unlockTemporaryLockedObjects(authString,
+                _resourceLocks.unlockTemporaryLockedObjects(context.getAuthString(),
                         destinationPath, lockOwner);
             }
         } else {
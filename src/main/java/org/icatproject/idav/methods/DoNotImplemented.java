@@ -6,6 +6,7 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.icatproject.idav.IMethodExecutor;
+import org.icatproject.idav.RequestContext;
 import org.icatproject.idav.WebdavStatus;
 
 public class DoNotImplemented implements IMethodExecutor {
@@ -18,7 +19,7 @@ public class DoNotImplemented implements IMethodExecutor {
         _readOnly = readOnly;
     }
 
-    public void execute(String authString, HttpServletRequest req,
+    public void execute(RequestContext context, HttpServletRequest req,
             HttpServletResponse resp) throws IOException {
         LOG.trace("-- " + req.getMethod());
 
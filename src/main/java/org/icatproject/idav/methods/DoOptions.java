@@ -20,10 +20,12 @@ import java.io.IOException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.icatproject.idav.RequestContext;
 import org.icatproject.idav.StoredObject;
 import org.icatproject.idav.WebdavStatus;
 import org.icatproject.idav.IWebdavStore;
 import org.icatproject.idav.exceptions.AccessDeniedException;
+import org.icatproject.idav.exceptions.BackendUnavailableException;
 import org.icatproject.idav.exceptions.LockFailedException;
 import org.icatproject.idav.exceptions.WebdavException;
 import org.icatproject.idav.locking.ResourceLocks;
@@ -41,7 +43,7 @@ public class DoOptions extends DeterminableMethod {
         _resourceLocks = resLocks;
     }
 
-    public void execute(String authString, HttpServletRequest req,
+    public void execute(RequestContext context, HttpServletRequest req,
             HttpServletResponse resp) throws IOException, LockFailedException {
 
         LOG.trace("-- " + this.getClass().getName());
@@ -49,22 +51,25 @@ public class DoOptions extends DeterminableMethod {
         String tempLockOwner = "doOptions" + System.currentTimeMillis()
                 + req.toString();
         String path = getRelativePath(req);
-        if (_resourceLocks.lock(authString, path, tempLockOwner, false, 0,
+        if (_resourceLocks.lock(context.getAuthString(), path, tempLockOwner, false, 0,
                 TEMP_TIMEOUT, TEMPORARY)) {
             StoredObject so = null;
             try {
                 resp.addHeader("DAV", "1, 2");
 
-                so = _store.getStoredObject(authString, path);
+                so = _store.getStoredObject(context, path);
                 String methodsAllowed = determineMethodsAllowed(so);
                 resp.addHeader("Allow", methodsAllowed);
                 resp.addHeader("MS-Author-Via", "DAV");
             } catch (AccessDeniedException e) {
                 resp.sendError(WebdavStatus.SC_FORBIDDEN);
+            } catch (BackendUnavailableException e) {
+                // sent as a 503 so that the client tries again later
+                throw e;
             } catch (WebdavException e) {
                 resp.sendError(WebdavStatus.SC_INTERNAL_SERVER_ERROR);
             } finally {
-                _resourceLocks.unlockTemporaryLockedObjects(authString, path,
+                _resourceLocks.unlockTemporaryLockedObjects(context.getAuthString(), path,
                         tempLockOwner);
             }
         } else {
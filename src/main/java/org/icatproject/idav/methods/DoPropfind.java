@@ -20,7 +20,10 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
@@ -29,9 +32,11 @@ import javax.xml.parsers.DocumentBuilder;
 
 import org.icatproject.idav.IMimeTyper;
 import org.icatproject.idav.IWebdavStore;
+import org.icatproject.idav.RequestContext;
 import org.icatproject.idav.StoredObject;
 import org.icatproject.idav.WebdavStatus;
 import org.icatproject.idav.exceptions.AccessDeniedException;
+import org.icatproject.idav.exceptions.BackendUnavailableException;
 import org.icatproject.idav.exceptions.LockFailedException;
 import org.icatproject.idav.exceptions.WebdavException;
 import org.icatproject.idav.fromcatalina.XMLHelper;
@@ -65,23 +70,46 @@ public class DoPropfind extends AbstractMethod {
     private static final int FIND_PROPERTY_NAMES = 2;
     
     private static final String FORWARD_SLASH_OR_SLASHES = "/+";
+
+    /**
+     * The generated XML is sent to the client whenever it grows beyond this
+     * many characters so that the listing of a large folder is streamed
+     */
+    private static final int SEND_DATA_SIZE = 64 * 1024;
     
 //    private static boolean placeMyData= false;
 
     private IWebdavStore _store;
     private ResourceLocks _resourceLocks;
     private IMimeTyper _mimeTyper;
+    private ExecutorService _treeWalkExecutor;
+    private int _treeWalkThreadsPerRequest;
 
     private int _depth;
 
     public DoPropfind(IWebdavStore store, ResourceLocks resLocks,
             IMimeTyper mimeTyper) {
+        this(store, resLocks, mimeTyper, null, 1);
+    }
+
+    /**
+     * @param treeWalkExecutor
+     *      pool used to fetch sibling subtrees in parallel when the Depth is
+     *      greater than 0, or null to walk the tree on the request thread
+     * @param treeWalkThreadsPerRequest
+     *      the number of tasks this request may have in the pool at once
+     */
+    public DoPropfind(IWebdavStore store, ResourceLocks resLocks,
+            IMimeTyper mimeTyper, ExecutorService treeWalkExecutor,
+            int treeWalkThreadsPerRequest) {
         _store = store;
         _resourceLocks = resLocks;
         _mimeTyper = mimeTyper;
+        _treeWalkExecutor = treeWalkExecutor;
+        _treeWalkThreadsPerRequest = treeWalkThreadsPerRequest;
     }
 
-    public void execute(String authString, HttpServletRequest req,
+    public void execute(RequestContext context, HttpServletRequest req,
             HttpServletResponse resp) throws IOException, LockFailedException {
         LOG.trace("-- " + this.getClass().getName());
 
@@ -91,12 +119,12 @@ public class DoPropfind extends AbstractMethod {
                 + req.toString();
         _depth = getDepth(req);
 
-        if (_resourceLocks.lock(authString, path, tempLockOwner, false,
+        if (_resourceLocks.lock(context.getAuthString(), path, tempLockOwner, false,
                 _depth, TEMP_TIMEOUT, TEMPORARY)) {
 
             StoredObject so = null;
             try {
-                so = _store.getStoredObject(authString, path);
+                so = _store.getStoredObject(context, path);
                 if (so == null) {
                     resp.setContentType("text/xml; charset=UTF-8");
                     resp.sendError(HttpServletResponse.SC_NOT_FOUND, req
@@ -163,12 +191,17 @@ public class DoPropfind extends AbstractMethod {
                 // thus saving a duplicate call to ICAT
                 if (_depth == 0) {
                     LOG.trace("Calling parseProperties()");
-                    parseProperties(authString, req, generatedXML, path,
+                    parseProperties(context, req, generatedXML, path,
                             propertyFindType, properties, _mimeTyper
                                     .getMimeType(path), so);
+                } else if (_treeWalkExecutor != null) {
+                    LOG.trace("Walking the tree in parallel");
+                    parallelParseProperties(context, path, req, generatedXML,
+                            propertyFindType, properties, _depth,
+                            _mimeTyper.getMimeType(path), so);
                 } else {
                     LOG.trace("Calling recursiveParseProperties()");
-                    recursiveParseProperties(authString, path, req,
+                    recursiveParseProperties(context, path, req,
                             generatedXML, propertyFindType, properties, _depth,
                             _mimeTyper.getMimeType(path), so);
                 }
@@ -177,14 +210,24 @@ public class DoPropfind extends AbstractMethod {
                 generatedXML.sendData();
             } catch (AccessDeniedException e) {
                 resp.sendError(WebdavStatus.SC_FORBIDDEN);
+            } catch (BackendUnavailableException e) {
+                // sent as a 503 so that the client tries again later, unless
+                // part of the multistatus has already been sent
+                throw e;
             } catch (WebdavException e) {
-                LOG.warn("Sending internal error!");
-                resp.sendError(WebdavStatus.SC_INTERNAL_SERVER_ERROR);
+                if (resp.isCommitted()) {
+                    // part of the multistatus has already been sent so
+                    // it is too late to change the status
+                    LOG.error("Error part way through PROPFIND response for " + path + ": " + e.getMessage());
+                } else {
+                    LOG.warn("Sending internal error!");
+                    resp.sendError(WebdavStatus.SC_INTERNAL_SERVER_ERROR);
+                }
             } catch (ServletException e) {
                 e.printStackTrace(); // To change body of catch statement use
                 // File | Settings | File Templates.
             } finally {
-                _resourceLocks.unlockTemporaryLockedObjects(authString, path,
+                _resourceLocks.unlockTemporaryLockedObjects(context.getAuthString(), path,
                         tempLockOwner);
             }
         } else {
@@ -206,28 +249,42 @@ public class DoPropfind extends AbstractMethod {
      * @param properties
      * @param depth
      *      depth of the propfind
-     * @throws IOException
+     * @throws WebdavException
      *      if an error in the underlying store occurs
+     * @throws IOException
+     *      if the generated XML can not be sent to the client
      */
-    private void recursiveParseProperties(String authString,
+    private void recursiveParseProperties(RequestContext context,
             String currentPath, HttpServletRequest req, XMLWriter generatedXML,
             int propertyFindType, List<String> properties, int depth,
-            String mimeType, StoredObject so) throws WebdavException {
+            String mimeType, StoredObject so) throws WebdavException, IOException {
         
         LOG.info("Called recursive parse properties");
         
-        parseProperties(authString, req, generatedXML, currentPath,
+        parseProperties(context, req, generatedXML, currentPath,
                 propertyFindType, properties, mimeType, so);
         
         LOG.info("Depth = " + depth);
         
         if (depth > 0) {
             // No need to get name if depth is already zero
-            String[] names = _store.getChildrenNames(authString, currentPath);
-            names = names == null ? new String[] {} : names;
+            // Try to get the children along with their StoredObjects as they
+            // are fetched, otherwise each child needs its own call to getStoredObject
+            Iterator<Map.Entry<String, StoredObject>> children = _store.iterateChildrenWithStoredObjects(context, currentPath);
+            if (children == null) {
+                String[] names = _store.getChildrenNames(context, currentPath);
+                names = names == null ? new String[] {} : names;
+                Map<String, StoredObject> namesOnly = new LinkedHashMap<String, StoredObject>();
+                for (String name : names) {
+                    namesOnly.put(name, null);
+                }
+                children = namesOnly.entrySet().iterator();
+            }
             String newPath = null;
 
-            for (String name : names) {
+            while (children.hasNext()) {
+                Map.Entry<String, StoredObject> child = children.next();
+                String name = child.getKey();
                 LOG.info("Name = " + name);
                 newPath = currentPath;
                 if (!(newPath.endsWith("/"))) {
@@ -237,13 +294,38 @@ public class DoPropfind extends AbstractMethod {
                 // KP 24/09/15 - if we go any deeper than the first level (depth=0)
                 // then a new StoredObject will need to be looked up.
                 // Call the method with the StoredObject set to null to indicate this.
-                recursiveParseProperties(authString, newPath, req,
+                // The StoredObject is also null if the store could not provide
+                // the children in bulk.
+                recursiveParseProperties(context, newPath, req,
                         generatedXML, propertyFindType, properties, depth - 1,
-                        mimeType, null);
+                        mimeType, child.getValue());
+                generatedXML.sendDataIfLargerThan(SEND_DATA_SIZE);
             }
         }
     }
 
+    /**
+     * Does the same as recursiveParseProperties but fetches the subtrees of
+     * sibling folders in parallel (see ParallelTreeWalker)
+     */
+    private void parallelParseProperties(final RequestContext context,
+            String currentPath, final HttpServletRequest req,
+            final XMLWriter generatedXML, final int propertyFindType,
+            final List<String> properties, int depth, final String mimeType,
+            StoredObject so) throws WebdavException, IOException {
+        ParallelTreeWalker walker = new ParallelTreeWalker(_store, context,
+                _treeWalkExecutor, _treeWalkThreadsPerRequest);
+        walker.walk(currentPath, so, depth, new ParallelTreeWalker.Visitor() {
+            @Override
+            public void visit(String path, StoredObject childSo)
+                    throws WebdavException, IOException {
+                parseProperties(context, req, generatedXML, path,
+                        propertyFindType, properties, mimeType, childSo);
+                generatedXML.sendDataIfLargerThan(SEND_DATA_SIZE);
+            }
+        });
+    }
+
     /**
      * Propfind helper method.
      * 
@@ -259,12 +341,12 @@ public class DoPropfind extends AbstractMethod {
      *      If the propfind type is find properties by name, then this Vector
      *      contains those properties
      */
-    private void parseProperties(String authString,
+    private void parseProperties(RequestContext context,
             HttpServletRequest req, XMLWriter generatedXML, String path,
             int type, List<String> propertiesVector, String mimeType, StoredObject so)
             throws WebdavException {
     	if (so == null) {
-            so = _store.getStoredObject(authString, path);
+            so = _store.getStoredObject(context, path);
     	}
     
     	LOG.info("Parsing properties");
@@ -364,9 +446,9 @@ public class DoPropfind extends AbstractMethod {
                         XMLWriter.CLOSING);
             }
 
-            writeSupportedLockElements(authString, generatedXML, path);
+            writeSupportedLockElements(context, generatedXML, path);
 
-            writeLockDiscoveryElements(authString, generatedXML, path);
+            writeLockDiscoveryElements(context, generatedXML, path);
 
             generatedXML.writeProperty("DAV::source", "");
             generatedXML.writeElement("DAV::prop", XMLWriter.CLOSING);
@@ -476,11 +558,11 @@ public class DoPropfind extends AbstractMethod {
                     generatedXML.writeProperty("DAV::source", "");
                 } else if (property.equals("DAV::supportedlock")) {
 
-                    writeSupportedLockElements(authString, generatedXML, path);
+                    writeSupportedLockElements(context, generatedXML, path);
 
                 } else if (property.equals("DAV::lockdiscovery")) {
 
-                    writeLockDiscoveryElements(authString, generatedXML, path);
+                    writeLockDiscoveryElements(context, generatedXML, path);
 
                 } else {
                     propertiesNotFound.add(property);
@@ -528,10 +610,10 @@ public class DoPropfind extends AbstractMethod {
         so = null;
     }
 
-    private void writeSupportedLockElements(String authString,
+    private void writeSupportedLockElements(RequestContext context,
             XMLWriter generatedXML, String path) {
 
-        LockedObject lo = _resourceLocks.getLockedObjectByPath(authString,
+        LockedObject lo = _resourceLocks.getLockedObjectByPath(context.getAuthString(),
                 path);
 
         generatedXML.writeElement("DAV::supportedlock", XMLWriter.OPENING);
@@ -587,10 +669,10 @@ public class DoPropfind extends AbstractMethod {
         lo = null;
     }
 
-    private void writeLockDiscoveryElements(String authString,
+    private void writeLockDiscoveryElements(RequestContext context,
             XMLWriter generatedXML, String path) {
 
-        LockedObject lo = _resourceLocks.getLockedObjectByPath(authString,
+        LockedObject lo = _resourceLocks.getLockedObjectByPath(context.getAuthString(),
                 path);
 
         if (lo != null && !lo.hasExpired()) {
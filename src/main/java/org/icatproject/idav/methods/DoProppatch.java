@@ -12,6 +12,7 @@ import javax.servlet.http.HttpServletResponse;
 import javax.xml.parsers.DocumentBuilder;
 
 import org.icatproject.idav.IWebdavStore;
+import org.icatproject.idav.RequestContext;
 import org.icatproject.idav.StoredObject;
 import org.icatproject.idav.WebdavStatus;
 import org.icatproject.idav.exceptions.LockFailedException;
@@ -40,7 +41,7 @@ public class DoProppatch extends AbstractMethod {
 //        _resourceLocks = resLocks;
     }
 
-    public void execute(String authString, HttpServletRequest req,
+    public void execute(RequestContext context, HttpServletRequest req,
             HttpServletResponse resp) throws IOException, LockFailedException {
         LOG.trace("-- " + this.getClass().getName());
 
@@ -96,7 +97,7 @@ public class DoProppatch extends AbstractMethod {
             StoredObject so = null;
 //            LockedObject lo = null;
             try {
-                so = _store.getStoredObject(authString, path);
+                so = _store.getStoredObject(context, path);
 //                lo = _resourceLocks.getLockedObjectByPath(transaction,
 //                        getCleanPath(path));
 //
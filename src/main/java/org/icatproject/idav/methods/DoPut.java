@@ -22,9 +22,11 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.icatproject.idav.IWebdavStore;
+import org.icatproject.idav.RequestContext;
 import org.icatproject.idav.StoredObject;
 import org.icatproject.idav.WebdavStatus;
 import org.icatproject.idav.exceptions.AccessDeniedException;
+import org.icatproject.idav.exceptions.BackendUnavailableException;
 import org.icatproject.idav.exceptions.LockFailedException;
 import org.icatproject.idav.exceptions.WebdavException;
 import org.icatproject.idav.locking.IResourceLocks;
@@ -50,7 +52,7 @@ public class DoPut extends AbstractMethod {
         _lazyFolderCreationOnPut = lazyFolderCreationOnPut;
     }
 
-    public void execute(String authString, HttpServletRequest req,
+    public void execute(RequestContext context, HttpServletRequest req,
             HttpServletResponse resp) throws IOException, LockFailedException {
         LOG.trace("-- " + this.getClass().getName());
 
@@ -62,13 +64,13 @@ public class DoPut extends AbstractMethod {
 
             Hashtable<String, Integer> errorList = new Hashtable<String, Integer>();
 
-            if (!checkLocks(authString, req, resp, _resourceLocks, parentPath)) {
+            if (!checkLocks(context, req, resp, _resourceLocks, parentPath)) {
                 errorList.put(parentPath, WebdavStatus.SC_LOCKED);
                 sendReport(req, resp, errorList);
                 return; // parent is locked
             }
 
-            if (!checkLocks(authString, req, resp, _resourceLocks, path)) {
+            if (!checkLocks(context, req, resp, _resourceLocks, path)) {
                 errorList.put(path, WebdavStatus.SC_LOCKED);
                 sendReport(req, resp, errorList);
                 return; // resource is locked
@@ -76,11 +78,11 @@ public class DoPut extends AbstractMethod {
 
             String tempLockOwner = "doPut" + System.currentTimeMillis()
                     + req.toString();
-            if (_resourceLocks.lock(authString, path, tempLockOwner, false, 0,
+            if (_resourceLocks.lock(context.getAuthString(), path, tempLockOwner, false, 0,
                     TEMP_TIMEOUT, TEMPORARY)) {
                 StoredObject parentSo, so = null;
                 try {
-                    parentSo = _store.getStoredObject(authString, parentPath);
+                    parentSo = _store.getStoredObject(context, parentPath);
                     if (parentPath != null && parentSo != null
                             && parentSo.isResource()) {
                         resp.sendError(WebdavStatus.SC_FORBIDDEN);
@@ -88,7 +90,7 @@ public class DoPut extends AbstractMethod {
 
                     } else if (parentPath != null && parentSo == null
                             && _lazyFolderCreationOnPut) {
-                        _store.createFolder(authString, parentPath);
+                        _store.createFolder(context, parentPath);
 
                     } else if (parentPath != null && parentSo == null
                             && !_lazyFolderCreationOnPut) {
@@ -97,7 +99,7 @@ public class DoPut extends AbstractMethod {
                         return;
                     }
 
-                    so = _store.getStoredObject(authString, path);
+                    so = _store.getStoredObject(context, path);
 
                     if (so == null) {
                     	// KP 07/09/15 - commenting out the creating of a zero
@@ -107,14 +109,14 @@ public class DoPut extends AbstractMethod {
                     	// Note that the setStatus call two lines down was already
                     	// commented out
                     	// TODO - find out if I commented out the setStatus line and why!
-                        // _store.createResource(authString, path);
+                        // _store.createResource(context, path);
                         // resp.setStatus(WebdavStatus.SC_CREATED);
                     } else {
                         // This has already been created, just update the data
                         if (so.isNullResource()) {
 
                             LockedObject nullResourceLo = _resourceLocks
-                                    .getLockedObjectByPath(authString, path);
+                                    .getLockedObjectByPath(context.getAuthString(), path);
                             if (nullResourceLo == null) {
                                 resp
                                         .sendError(WebdavStatus.SC_INTERNAL_SERVER_ERROR);
@@ -140,7 +142,7 @@ public class DoPut extends AbstractMethod {
                                 if (nullResourceLockOwners != null)
                                     owner = nullResourceLockOwners[0];
 
-                                if (!_resourceLocks.unlock(authString,
+                                if (!_resourceLocks.unlock(context.getAuthString(),
                                         lockToken, owner)) {
                                     resp
                                             .sendError(WebdavStatus.SC_INTERNAL_SERVER_ERROR);
@@ -155,22 +157,14 @@ public class DoPut extends AbstractMethod {
                     doUserAgentWorkaround(resp);
 
                     // setting resourceContent
-                    long resourceLength = _store
-                            .setResourceContent(authString, path, req
-                                    .getInputStream(), null, null);
-                    
-                    // TODO - KP 08/09/15 - I think the few lines from here can 
-                    // be removed as I can't see what purpose they serve.
-                    // It appears the call to getStoredObject only takes about 4 ms
-                    // but it does involve a call to ICAT which would help
-                    // reduce the chance of deadlocks, reaching max-pool-size etc
-                    so = _store.getStoredObject(authString, path);
-                    if (resourceLength != -1)
-                        so.setResourceLength(resourceLength);
-                    // Now lets report back what was actually saved
+                    _store.setResourceContent(context, path,
+                            req.getInputStream(), null, null);
 
                 } catch (AccessDeniedException e) {
                     resp.sendError(WebdavStatus.SC_FORBIDDEN);
+                } catch (BackendUnavailableException e) {
+                    // sent as a 503 so that the client tries again later
+                    throw e;
                 } catch (WebdavException e) {
                 	// KP 20/03/15 - trying to send back sensible messages
                 	// original code
@@ -182,7 +176,7 @@ public class DoPut extends AbstractMethod {
 //                	errorList.put(e.getMessage(), WebdavStatus.SC_INTERNAL_SERVER_ERROR);
 //                  sendReport(req, resp, errorList);
                 } finally {
-                    _resourceLocks.unlockTemporaryLockedObjects(authString,
+                    _resourceLocks.unlockTemporaryLockedObjects(context.getAuthString(),
                             path, tempLockOwner);
                 }
             } else {
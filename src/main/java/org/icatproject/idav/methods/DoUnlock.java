@@ -5,6 +5,7 @@ import java.io.IOException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.icatproject.idav.RequestContext;
 import org.icatproject.idav.StoredObject;
 import org.icatproject.idav.WebdavStatus;
 import org.icatproject.idav.IWebdavStore;
@@ -28,7 +29,7 @@ public class DoUnlock extends DeterminableMethod {
         _readOnly = readOnly;
     }
 
-    public void execute(String authString, HttpServletRequest req,
+    public void execute(RequestContext context, HttpServletRequest req,
             HttpServletResponse resp) throws IOException, LockFailedException {
         LOG.trace("-- " + this.getClass().getName());
 
@@ -41,14 +42,14 @@ public class DoUnlock extends DeterminableMethod {
             String tempLockOwner = "doUnlock" + System.currentTimeMillis()
                     + req.toString();
             try {
-                if (_resourceLocks.lock(authString, path, tempLockOwner,
+                if (_resourceLocks.lock(context.getAuthString(), path, tempLockOwner,
                         false, 0, TEMP_TIMEOUT, TEMPORARY)) {
 
                     String lockId = getLockIdFromLockTokenHeader(req);
                     LockedObject lo;
                     if (lockId != null
                             && ((lo = _resourceLocks.getLockedObjectByID(
-                                    authString, lockId)) != null)) {
+                                    context.getAuthString(), lockId)) != null)) {
 
                         String[] owners = lo.getOwner();
                         String owner = null;
@@ -68,11 +69,11 @@ public class DoUnlock extends DeterminableMethod {
                                 owner = null;
                         }
 
-                        if (_resourceLocks.unlock(authString, lockId, owner)) {
+                        if (_resourceLocks.unlock(context.getAuthString(), lockId, owner)) {
                             StoredObject so = _store.getStoredObject(
-                                    authString, path);
+                                    context, path);
                             if (so.isNullResource()) {
-                                _store.removeObject(authString, path);
+                                _store.removeObject(context, path);
                             }
 
                             resp.setStatus(WebdavStatus.SC_NO_CONTENT);
@@ -88,7 +89,7 @@ public class DoUnlock extends DeterminableMethod {
             } catch (LockFailedException e) {
                 e.printStackTrace();
             } finally {
-                _resourceLocks.unlockTemporaryLockedObjects(authString, path,
+                _resourceLocks.unlockTemporaryLockedObjects(context.getAuthString(), path,
                         tempLockOwner);
             }
         }
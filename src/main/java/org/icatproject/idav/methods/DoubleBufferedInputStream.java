@@ -0,0 +1,163 @@
+package org.icatproject.idav.methods;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Reads a stream ahead of whoever is reading from it, on a thread from a pool,
+ * using two buffers so that one can be filled from the source while the other
+ * is being consumed. Piping an IDS download into an IDS upload through one of
+ * these means that the download and the upload go on at the same time instead
+ * of taking turns.
+ *
+ * The pool should be one of its own: the reading thread only ever waits for
+ * the consumer to hand back a buffer, so it can not deadlock with the pool the
+ * consumer is running in, but it is held for as long as the stream is open.
+ *
+ * An exception from the source is thrown by the read that reaches it. Closing
+ * the stream stops the reading thread and closes the source.
+ */
+public class DoubleBufferedInputStream extends InputStream {
+
+    // A buffer filled from the source, the end of the source or an error
+    private static final class Chunk {
+        private final byte[] data;
+        private final int length;
+        private final IOException error;
+
+        private Chunk(byte[] data, int length, IOException error) {
+            this.data = data;
+            this.length = length;
+            this.error = error;
+        }
+    }
+
+    private static final Chunk END = new Chunk(null, 0, null);
+
+    private final InputStream in;
+    private final BlockingQueue<byte[]> emptyBuffers = new ArrayBlockingQueue<>(2);
+    // the two buffers plus the end of the source or an error
+    private final BlockingQueue<Chunk> filledBuffers = new ArrayBlockingQueue<>(3);
+    private final Future<?> reader;
+    private volatile boolean closed;
+
+    // The chunk being consumed
+    private Chunk current;
+    private int position;
+
+    /**
+     * @param in the source, which is read from on another thread
+     * @param bufferSize the size of each of the two buffers
+     * @param executor the pool that the source is read on
+     * @throws RejectedExecutionException if the pool has no thread free, in
+     *         which case the source should be read directly instead
+     */
+    public DoubleBufferedInputStream(InputStream in, int bufferSize, ExecutorService executor) {
+        this.in = in;
+        emptyBuffers.add(new byte[Math.max(1, bufferSize)]);
+        emptyBuffers.add(new byte[Math.max(1, bufferSize)]);
+        reader = executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                fill();
+            }
+        });
+    }
+
+    private void fill() {
+        try {
+            while (true) {
+                byte[] buffer = emptyBuffers.take();
+                int length = 0;
+                int read = 0;
+                Chunk last = null;
+                try {
+                    while (length < buffer.length && (read = in.read(buffer, length, buffer.length - length)) != -1) {
+                        length += read;
+                    }
+                    if (read == -1) {
+                        last = END;
+                    }
+                } catch (IOException e) {
+                    last = new Chunk(null, 0, e);
+                } catch (RuntimeException e) {
+                    last = new Chunk(null, 0, new IOException(e));
+                }
+                // pass on whatever was read before the end or an error
+                if (length > 0) {
+                    filledBuffers.put(new Chunk(buffer, length, null));
+                }
+                if (last != null) {
+                    filledBuffers.put(last);
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            // closed
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int read = read(b, 0, 1);
+        return read == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (len == 0) {
+            return 0;
+        }
+        if (current != null && current.data != null && position == current.length) {
+            // give the buffer back to be filled again
+            emptyBuffers.offer(current.data);
+            current = null;
+        }
+        if (current == null) {
+            try {
+                current = filledBuffers.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for data");
+            }
+            position = 0;
+        }
+        if (current.error != null) {
+            throw current.error;
+        }
+        if (current.data == null) {
+            return -1;
+        }
+        int count = Math.min(len, current.length - position);
+        System.arraycopy(current.data, position, b, off, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return current == null || current.data == null ? 0 : current.length - position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        // frees the thread if it is waiting for a buffer
+        reader.cancel(true);
+        in.close();
+    }
+
+}
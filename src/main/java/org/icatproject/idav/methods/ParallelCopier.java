@@ -0,0 +1,339 @@
+package org.icatproject.idav.methods;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+import org.icatproject.idav.IWebdavStore;
+import org.icatproject.idav.RequestContext;
+import org.icatproject.idav.StoredObject;
+import org.icatproject.idav.WebdavStatus;
+import org.icatproject.idav.exceptions.AccessDeniedException;
+import org.icatproject.idav.exceptions.BackendUnavailableException;
+import org.icatproject.idav.exceptions.ObjectAlreadyExistsException;
+import org.icatproject.idav.exceptions.ObjectNotFoundException;
+import org.icatproject.idav.exceptions.WebdavException;
+
+/**
+ * Copies everything beneath a folder for a COPY (or MOVE) with an infinite
+ * Depth, copying the files in different folders at the same time instead of
+ * one after the other.
+ *
+ * The source tree is walked once on the request thread, using the bulk
+ * listings of the store where it has them. The copying is handed to a thread
+ * pool shared by all requests as the tree is walked, so it goes on while the
+ * rest of the tree is being walked. The files in one folder are always copied
+ * one after another. Where the store locks a larger folder while something is
+ * written beneath it (see IWebdavStore.getSerialWriteFolder - IDS locks a
+ * whole Dataset) the walk goes through all of that folder first, and the
+ * creation of its subfolders and the copying of all of the files in it are
+ * then done one after another by a single task. Folders above that are
+ * created on the request thread as they are found.
+ *
+ * Each request may only have a few tasks in the pool at once. Tasks that are
+ * waiting are picked up by those tasks as they finish, and any that are still
+ * waiting once the walk is over are run on the request thread.
+ * Files bigger than one buffer are piped through a DoubleBufferedInputStream,
+ * reading ahead on a second pool, so that reading the source and writing the
+ * destination overlap. If that pool has no thread free the file is copied
+ * without reading ahead.
+ *
+ * A file or folder that can not be copied does not stop the copy - its status
+ * is put in the error list for the multistatus report.
+ */
+public class ParallelCopier {
+
+    private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory.getLogger(ParallelCopier.class);
+
+    private static final String INTERRUPTED = "Interrupted while copying";
+
+    // A file waiting to be copied, or a folder waiting to be created
+    private static final class CopyStep {
+        private final String sourcePath;
+        private final String destinationPath;
+        private final long length;
+        private final boolean folder;
+
+        private CopyStep(String sourcePath, String destinationPath, long length, boolean folder) {
+            this.sourcePath = sourcePath;
+            this.destinationPath = destinationPath;
+            this.length = length;
+            this.folder = folder;
+        }
+    }
+
+    private final IWebdavStore store;
+    private final RequestContext context;
+    private final ExecutorService executor;
+    // null if files are not read ahead
+    private final ExecutorService readAheadExecutor;
+    // The number of tasks this request may have in the pool at once
+    private final Semaphore permits;
+    private final int bufferSize;
+    // The tasks that have not been started yet
+    private final Queue<FutureTask<Void>> waiting = new ConcurrentLinkedQueue<>();
+
+    /**
+     * @param store the store to copy within
+     * @param context the context of the request
+     * @param executor the pool shared by all requests
+     * @param readAheadExecutor the pool that files are read ahead on, which
+     *        must not be the same as the executor, or null to not read ahead
+     * @param maxParallel the number of tasks this request may have in the pool
+     * @param bufferSize the size of each of the two buffers used to pipe a
+     *        file from the source to the destination
+     */
+    public ParallelCopier(IWebdavStore store, RequestContext context,
+            ExecutorService executor, ExecutorService readAheadExecutor, int maxParallel, int bufferSize) {
+        this.store = store;
+        this.context = context;
+        this.executor = executor;
+        this.readAheadExecutor = readAheadExecutor;
+        this.permits = new Semaphore(Math.max(1, maxParallel));
+        this.bufferSize = Math.max(1, bufferSize);
+    }
+
+    /**
+     * Copy everything beneath one folder into another, which must already
+     * exist, returning once it has all been done
+     *
+     * @param sourcePath the folder to copy from
+     * @param destinationPath the folder to copy to
+     * @param errorList receives the status of each file or folder that could
+     *        not be copied, and must be safe to use from several threads (eg.
+     *        a Hashtable)
+     */
+    public void copyChildren(String sourcePath, String destinationPath, Map<String, Integer> errorList)
+            throws WebdavException {
+        List<FutureTask<Void>> tasks = new ArrayList<>();
+        RuntimeException failure = null;
+        try {
+            if (store.getSerialWriteFolder(destinationPath) != null) {
+                // everything goes into one locked folder
+                List<CopyStep> steps = new ArrayList<>();
+                walk(sourcePath, destinationPath, errorList, tasks, steps);
+                if (!steps.isEmpty()) {
+                    tasks.add(submit(steps, errorList));
+                }
+            } else {
+                walk(sourcePath, destinationPath, errorList, tasks, null);
+            }
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+        // wait for whatever was started even if the walk or one of the tasks
+        // went wrong, so that nothing is still being copied once this returns,
+        // and then pass on the first thing that went wrong
+        for (FutureTask<Void> task : tasks) {
+            try {
+                TreeTasks.await(task, INTERRUPTED);
+            } catch (RuntimeException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    LOG.debug("Copy of " + sourcePath + " also failed: " + e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Copy a single file, piping it through a DoubleBufferedInputStream if it
+     * is bigger than one buffer and a thread is free to read it ahead
+     *
+     * @param length the length of the source, or -1 if it is not known
+     * @return the length of the copy, or -1 if the store does not know it
+     */
+    public long copyFile(String sourcePath, String destinationPath, long length) throws WebdavException {
+        InputStream in = store.getResourceContent(context, sourcePath);
+        try {
+            if (readAheadExecutor != null && (length < 0 || length > bufferSize)) {
+                try {
+                    in = new DoubleBufferedInputStream(in, bufferSize, readAheadExecutor);
+                } catch (RejectedExecutionException e) {
+                    LOG.trace("Read ahead pool is full - copying " + sourcePath + " without reading ahead");
+                }
+            }
+            return store.setResourceContent(context, destinationPath, in, null, null);
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                LOG.warn("Closing InputStream causes Exception!\n" + e.toString());
+            }
+        }
+    }
+
+    // Walk the children of a folder. Within a locked folder everything is
+    // added to the steps of that folder, otherwise the files are copied by a
+    // task of their own and the folders are created straight away.
+    private void walk(String sourcePath, String destinationPath, Map<String, Integer> errorList,
+            List<FutureTask<Void>> tasks, List<CopyStep> lockedFolderSteps) throws WebdavException {
+        final List<CopyStep> files = new ArrayList<>();
+        Map<String, String> folders = new LinkedHashMap<>();
+        Iterator<Map.Entry<String, StoredObject>> children = TreeTasks.listChildren(store, context, sourcePath);
+        while (children.hasNext()) {
+            Map.Entry<String, StoredObject> child = children.next();
+            String childSourcePath = TreeTasks.getChildPath(sourcePath, child.getKey());
+            String childDestinationPath = TreeTasks.getChildPath(destinationPath, child.getKey());
+            StoredObject so = child.getValue();
+            try {
+                if (so == null) {
+                    so = store.getStoredObject(context, childSourcePath);
+                }
+                if (so == null) {
+                    // removed since the listing was made
+                    errorList.put(childDestinationPath, WebdavStatus.SC_NOT_FOUND);
+                } else if (so.isResource()) {
+                    files.add(new CopyStep(childSourcePath, childDestinationPath, so.getResourceLength(), false));
+                } else {
+                    folders.put(childSourcePath, childDestinationPath);
+                }
+            } catch (WebdavException e) {
+                errorList.put(childDestinationPath, getErrorStatus(e));
+            }
+        }
+
+        if (lockedFolderSteps != null) {
+            lockedFolderSteps.addAll(files);
+            for (Map.Entry<String, String> folder : folders.entrySet()) {
+                int start = lockedFolderSteps.size();
+                lockedFolderSteps.add(new CopyStep(folder.getKey(), folder.getValue(), -1, true));
+                try {
+                    walk(folder.getKey(), folder.getValue(), errorList, tasks, lockedFolderSteps);
+                } catch (WebdavException e) {
+                    // nothing in this folder is copied
+                    lockedFolderSteps.subList(start, lockedFolderSteps.size()).clear();
+                    errorList.put(folder.getValue(), getErrorStatus(e));
+                }
+            }
+            return;
+        }
+
+        // start on the files before going any deeper
+        if (!files.isEmpty()) {
+            tasks.add(submit(files, errorList));
+        }
+        for (Map.Entry<String, String> folder : folders.entrySet()) {
+            if (store.getSerialWriteFolder(folder.getValue()) != null) {
+                // a locked folder, which is created and filled by one task
+                List<CopyStep> steps = new ArrayList<>();
+                steps.add(new CopyStep(folder.getKey(), folder.getValue(), -1, true));
+                try {
+                    walk(folder.getKey(), folder.getValue(), errorList, tasks, steps);
+                    tasks.add(submit(steps, errorList));
+                } catch (WebdavException e) {
+                    errorList.put(folder.getValue(), getErrorStatus(e));
+                }
+                continue;
+            }
+            try {
+                store.createFolder(context, folder.getValue());
+                walk(folder.getKey(), folder.getValue(), errorList, tasks, null);
+            } catch (WebdavException e) {
+                errorList.put(folder.getValue(), getErrorStatus(e));
+            }
+        }
+    }
+
+    // Queue the task that takes the steps in order and start another task in
+    // the pool if this request is allowed one. Once a folder can not be
+    // created nothing beneath it is attempted.
+    private FutureTask<Void> submit(final List<CopyStep> steps, final Map<String, Integer> errorList) {
+        FutureTask<Void> task = new FutureTask<>(new Runnable() {
+            @Override
+            public void run() {
+                List<String> failedFolders = new ArrayList<>();
+                for (CopyStep step : steps) {
+                    if (isBeneathAny(step.destinationPath, failedFolders)) {
+                        continue;
+                    }
+                    try {
+                        if (step.folder) {
+                            store.createFolder(context, step.destinationPath);
+                        } else {
+                            copyFile(step.sourcePath, step.destinationPath, step.length);
+                        }
+                    } catch (WebdavException e) {
+                        LOG.debug("Copy of " + step.sourcePath + " failed: " + e.getMessage());
+                        errorList.put(step.destinationPath, getErrorStatus(e));
+                        if (step.folder) {
+                            failedFolders.add(step.destinationPath + "/");
+                        }
+                    }
+                }
+            }
+        }, null);
+        waiting.add(task);
+        startWorker();
+        return task;
+    }
+
+    private static boolean isBeneathAny(String path, List<String> folderPrefixes) {
+        for (String folderPrefix : folderPrefixes) {
+            if (path.startsWith(folderPrefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void startWorker() {
+        if (!permits.tryAcquire()) {
+            return;
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        FutureTask<Void> task;
+                        while ((task = waiting.poll()) != null) {
+                            // does nothing if the task has already been run by TreeTasks.await()
+                            task.run();
+                        }
+                    } finally {
+                        permits.release();
+                    }
+                    // a task may have been queued just as this one finished
+                    if (!waiting.isEmpty()) {
+                        startWorker();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            permits.release();
+            LOG.trace("Copy pool is full - waiting tasks will be run by the request thread");
+        }
+    }
+
+    private static int getErrorStatus(WebdavException e) {
+        if (e instanceof AccessDeniedException) {
+            return WebdavStatus.SC_FORBIDDEN;
+        }
+        if (e instanceof ObjectNotFoundException) {
+            return WebdavStatus.SC_NOT_FOUND;
+        }
+        if (e instanceof ObjectAlreadyExistsException) {
+            return WebdavStatus.SC_CONFLICT;
+        }
+        if (e instanceof BackendUnavailableException) {
+            return WebdavStatus.SC_SERVICE_UNAVAILABLE;
+        }
+        return WebdavStatus.SC_INTERNAL_SERVER_ERROR;
+    }
+
+}
@@ -0,0 +1,185 @@
+package org.icatproject.idav.methods;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+import org.icatproject.idav.IWebdavStore;
+import org.icatproject.idav.RequestContext;
+import org.icatproject.idav.StoredObject;
+import org.icatproject.idav.exceptions.WebdavException;
+
+/**
+ * Walks the tree beneath a folder for a PROPFIND with a Depth greater than 0,
+ * fetching the subtrees of sibling folders at the same time instead of one
+ * after the other.
+ *
+ * The fetching is done by a thread pool that is shared by all requests, and
+ * each request is only allowed to have a few tasks in the pool at once so
+ * that one deep PROPFIND can not hold up everybody else. A task that could not
+ * be given to the pool is run by the thread that needs its result, which also
+ * means that a pool thread waiting for the subtree of a child never waits for
+ * a task that has not been started.
+ *
+ * The objects are always passed to the Visitor on the request thread in the
+ * same order as a serial depth first walk, so the multistatus response is the
+ * same as before. The subtrees of the children of the folder being walked are
+ * passed on as soon as they (and all of the siblings before them) are ready,
+ * and only a limited number are fetched ahead of the one being written.
+ */
+public class ParallelTreeWalker {
+
+    private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory.getLogger(ParallelTreeWalker.class);
+
+    private static final String INTERRUPTED = "Interrupted while walking the tree";
+
+    /**
+     * Receives the objects in the tree, on the request thread, in the order
+     * of a depth first walk
+     */
+    public interface Visitor {
+        void visit(String path, StoredObject so) throws WebdavException, IOException;
+    }
+
+    // An object in the tree along with everything beneath it that was asked for
+    private static final class Node {
+        private final String path;
+        private final StoredObject so;
+        private final List<Node> children = new ArrayList<>();
+
+        private Node(String path, StoredObject so) {
+            this.path = path;
+            this.so = so;
+        }
+    }
+
+    private final IWebdavStore store;
+    private final RequestContext context;
+    private final ExecutorService executor;
+    // The number of tasks this request may have in the pool at once
+    private final Semaphore permits;
+    // The number of subtrees that may be fetched ahead of the one being written
+    private final int window;
+
+    /**
+     * @param store the store to get the children and StoredObjects from
+     * @param context the context of the request
+     * @param executor the pool shared by all requests
+     * @param maxParallel the number of tasks this request may have in the pool
+     */
+    public ParallelTreeWalker(IWebdavStore store, RequestContext context,
+            ExecutorService executor, int maxParallel) {
+        this.store = store;
+        this.context = context;
+        this.executor = executor;
+        this.permits = new Semaphore(Math.max(1, maxParallel));
+        this.window = 2 * Math.max(1, maxParallel);
+    }
+
+    /**
+     * Walk the tree beneath a path, passing each object to the visitor
+     *
+     * @param path the path to start from
+     * @param so the StoredObject for the path, which must not be null
+     * @param depth how many levels beneath the path to go
+     * @param visitor receives the objects
+     */
+    public void walk(String path, StoredObject so, int depth, Visitor visitor)
+            throws WebdavException, IOException {
+        visitor.visit(path, so);
+        if (depth <= 0 || !so.isFolder()) {
+            return;
+        }
+        LinkedList<FutureTask<Node>> pending = new LinkedList<>();
+        Iterator<Map.Entry<String, StoredObject>> children = TreeTasks.listChildren(store, context, path);
+        while (children.hasNext()) {
+            Map.Entry<String, StoredObject> child = children.next();
+            pending.add(fetch(TreeTasks.getChildPath(path, child.getKey()), child.getValue(), depth - 1));
+            while (pending.size() > window) {
+                write(TreeTasks.await(pending.removeFirst(), INTERRUPTED), visitor);
+            }
+        }
+        while (!pending.isEmpty()) {
+            write(TreeTasks.await(pending.removeFirst(), INTERRUPTED), visitor);
+        }
+    }
+
+    private void write(Node node, Visitor visitor) throws WebdavException, IOException {
+        if (node == null) {
+            return;
+        }
+        visitor.visit(node.path, node.so);
+        for (Node child : node.children) {
+            write(child, visitor);
+        }
+    }
+
+    // Create the task that fetches a subtree and give it to the pool if
+    // there is anything to fetch and this request is allowed another task
+    private FutureTask<Node> fetch(final String path, final StoredObject so, final int depth) {
+        final FutureTask<Node> task = new FutureTask<>(new Callable<Node>() {
+            @Override
+            public Node call() throws Exception {
+                return fetchSubtree(path, so, depth);
+            }
+        });
+        boolean needsFetching = so == null || (depth > 0 && so.isFolder());
+        if (!needsFetching) {
+            task.run();
+        } else if (permits.tryAcquire()) {
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            // does nothing if the task has already been run by TreeTasks.await()
+                            task.run();
+                        } finally {
+                            permits.release();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                permits.release();
+                LOG.trace("Tree walk pool is full - " + path + " will be fetched by the waiting thread");
+            }
+        }
+        return task;
+    }
+
+    private Node fetchSubtree(String path, StoredObject so, int depth) throws WebdavException {
+        if (so == null) {
+            so = store.getStoredObject(context, path);
+            if (so == null) {
+                // removed since the listing was made
+                LOG.debug("No StoredObject found for " + path + " - leaving it out of the listing");
+                return null;
+            }
+        }
+        Node node = new Node(path, so);
+        if (depth > 0 && so.isFolder()) {
+            List<FutureTask<Node>> tasks = new ArrayList<>();
+            Iterator<Map.Entry<String, StoredObject>> children = TreeTasks.listChildren(store, context, path);
+            while (children.hasNext()) {
+                Map.Entry<String, StoredObject> child = children.next();
+                tasks.add(fetch(TreeTasks.getChildPath(path, child.getKey()), child.getValue(), depth - 1));
+            }
+            for (FutureTask<Node> task : tasks) {
+                Node child = TreeTasks.await(task, INTERRUPTED);
+                if (child != null) {
+                    node.children.add(child);
+                }
+            }
+        }
+        return node;
+    }
+
+}
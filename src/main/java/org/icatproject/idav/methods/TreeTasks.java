@@ -0,0 +1,77 @@
+package org.icatproject.idav.methods;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.icatproject.idav.IWebdavStore;
+import org.icatproject.idav.RequestContext;
+import org.icatproject.idav.StoredObject;
+import org.icatproject.idav.exceptions.WebdavException;
+
+/**
+ * What the ParallelTreeWalker and the ParallelCopier have in common, both
+ * walking a tree of the store and handing the work on it to tasks in a
+ * thread pool.
+ */
+final class TreeTasks {
+
+    private TreeTasks() {
+    }
+
+    /**
+     * @return the children along with their StoredObjects if the store can
+     *         provide them in bulk, otherwise just the names (with null
+     *         StoredObjects)
+     */
+    static Iterator<Map.Entry<String, StoredObject>> listChildren(IWebdavStore store, RequestContext context,
+            String path) throws WebdavException {
+        Iterator<Map.Entry<String, StoredObject>> children = store.iterateChildrenWithStoredObjects(context, path);
+        if (children != null) {
+            return children;
+        }
+        String[] names = store.getChildrenNames(context, path);
+        Map<String, StoredObject> namesOnly = new LinkedHashMap<>();
+        if (names != null) {
+            for (String name : names) {
+                namesOnly.put(name, null);
+            }
+        }
+        return namesOnly.entrySet().iterator();
+    }
+
+    static String getChildPath(String path, String name) {
+        return path.endsWith("/") ? path + name : path + "/" + name;
+    }
+
+    /**
+     * Runs the task here if the pool has not started it yet, and waits for it
+     * to finish
+     *
+     * @param interruptedMessage the message of the WebdavException thrown if
+     *        the thread is interrupted while waiting
+     * @return the result of the task
+     */
+    static <T> T await(FutureTask<T> task, String interruptedMessage) throws WebdavException {
+        // does nothing if the task has already been started
+        task.run();
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new WebdavException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new WebdavException(interruptedMessage, e);
+        }
+    }
+
+}
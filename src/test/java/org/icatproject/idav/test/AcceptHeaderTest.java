@@ -0,0 +1,56 @@
+package org.icatproject.idav.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.icatproject.idav.methods.AcceptHeader;
+import org.junit.Test;
+
+public class AcceptHeaderTest {
+
+    private static final String BROWSER = "text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8";
+
+    @Test
+    public void testMostSpecificRangeWins() {
+        AcceptHeader accept = AcceptHeader.parse(BROWSER);
+        assertEquals(1, accept.getQuality("text/html"), 0);
+        assertEquals(0.9, accept.getQuality("application/xml"), 0.001);
+        assertEquals(0.8, accept.getQuality("application/zip"), 0.001);
+        assertFalse(accept.isNamed("application/zip"));
+    }
+
+    @Test
+    public void testNamed() {
+        AcceptHeader accept = AcceptHeader.parse("Application/Zip; q=0.5, text/*;q=0.2");
+        assertTrue(accept.isNamed("application/zip"));
+        assertEquals(0.5, accept.getQuality("application/zip"), 0.001);
+        assertEquals(0.2, accept.getQuality("text/html"), 0.001);
+        assertEquals(0, accept.getQuality("image/png"), 0);
+    }
+
+    @Test
+    public void testRefused() {
+        // a quality of 0 means the client will not take it
+        AcceptHeader accept = AcceptHeader.parse("application/zip;q=0, */*");
+        assertFalse(accept.isNamed("application/zip"));
+        assertEquals(0, accept.getQuality("application/zip"), 0);
+        assertEquals(1, accept.getQuality("text/html"), 0);
+    }
+
+    @Test
+    public void testNotAMediaType() {
+        // "application/zipx" is not application/zip, unlike with contains()
+        AcceptHeader accept = AcceptHeader.parse("application/zipx, zip, application/zip;q=2");
+        assertFalse(accept.isNamed("application/zip"));
+        assertEquals(0, accept.getQuality("application/zip"), 0);
+    }
+
+    @Test
+    public void testNoHeader() {
+        AcceptHeader accept = AcceptHeader.parse(null);
+        assertFalse(accept.isNamed("application/zip"));
+        assertEquals(1, accept.getQuality("application/zip"), 0);
+    }
+
+}
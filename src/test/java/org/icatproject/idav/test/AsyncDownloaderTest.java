@@ -0,0 +1,235 @@
+package org.icatproject.idav.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+
+import org.icatproject.idav.methods.AsyncDownloader;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs AsyncDownloader with stand-ins for the request, AsyncContext and
+ * response which record what is done with them.
+ */
+public class AsyncDownloaderTest {
+
+    private ExecutorService executor;
+
+    // What the stand-ins record
+    private final ByteArrayOutputStream sent = new ByteArrayOutputStream();
+    private final CountDownLatch completed = new CountDownLatch(1);
+    private volatile String sendingThread;
+    private volatile long timeout = -1;
+
+    @Before
+    public void setUp() {
+        executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    // A stream that records the biggest read asked for
+    private static class RecordingStream extends ByteArrayInputStream {
+        private int maxRead;
+
+        private RecordingStream(byte[] data) {
+            super(data);
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            maxRead = Math.max(maxRead, len);
+            return super.read(b, off, len);
+        }
+    }
+
+    private static byte[] data(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) i;
+        }
+        return data;
+    }
+
+    @Test
+    public void testCopyStopsAtLength() throws Exception {
+        AsyncDownloader downloader = new AsyncDownloader(executor, 16, 64);
+        byte[] data = data(1000);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(100, downloader.copy(new ByteArrayInputStream(data), out, 100));
+        assertArrayEquals(Arrays.copyOf(data, 100), out.toByteArray());
+    }
+
+    @Test
+    public void testBufferGrowsToMax() throws Exception {
+        AsyncDownloader downloader = new AsyncDownloader(executor, 16, 64);
+        byte[] data = data(1000);
+        RecordingStream in = new RecordingStream(data);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(1000, downloader.copy(in, out, Long.MAX_VALUE));
+        assertArrayEquals(data, out.toByteArray());
+        assertEquals(64, in.maxRead);
+    }
+
+    @Test
+    public void testDownloadOnPool() throws Exception {
+        AsyncDownloader downloader = new AsyncDownloader(executor, 16, 64);
+        byte[] data = data(1000);
+        assertTrue(downloader.download(request(true), new ByteArrayInputStream(data), Long.MAX_VALUE, "/a", null));
+        assertTrue(completed.await(10, TimeUnit.SECONDS));
+        assertArrayEquals(data, sent.toByteArray());
+        assertFalse(Thread.currentThread().getName().equals(sendingThread));
+        assertEquals(0, timeout);
+    }
+
+    @Test
+    public void testWhenSentRunBeforeCompleting() throws Exception {
+        AsyncDownloader downloader = new AsyncDownloader(executor, 16, 64);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch whenSentRun = new CountDownLatch(1);
+        final byte[] data = data(100);
+        // a stream that holds the download up until the test lets it go
+        InputStream in = new ByteArrayInputStream(data) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.read(b, off, len);
+            }
+        };
+        Runnable whenSent = new Runnable() {
+            @Override
+            public void run() {
+                // everything has been sent but the request not completed
+                if (sent.size() == data.length && completed.getCount() == 1) {
+                    whenSentRun.countDown();
+                }
+            }
+        };
+        assertTrue(downloader.download(request(true), in, Long.MAX_VALUE, "/a", whenSent));
+        // still sending after download has returned
+        assertEquals(1, whenSentRun.getCount());
+        release.countDown();
+        assertTrue(completed.await(10, TimeUnit.SECONDS));
+        assertEquals(0, whenSentRun.getCount());
+    }
+
+    @Test
+    public void testDownloadOnRequestThreadWhenPoolBusy() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    // finish
+                }
+            }
+        });
+        AsyncDownloader downloader = new AsyncDownloader(executor, 16, 64);
+        byte[] data = data(100);
+        assertTrue(downloader.download(request(true), new ByteArrayInputStream(data), 50, "/a", null));
+        // sent before returning
+        assertEquals(0, completed.getCount());
+        assertArrayEquals(Arrays.copyOf(data, 50), sent.toByteArray());
+        assertEquals(Thread.currentThread().getName(), sendingThread);
+        release.countDown();
+    }
+
+    @Test
+    public void testNotAsyncSupported() throws Exception {
+        AsyncDownloader downloader = new AsyncDownloader(executor, 16, 64);
+        InputStream in = new ByteArrayInputStream(data(100));
+        assertFalse(downloader.download(request(false), in, Long.MAX_VALUE, "/a", null));
+        assertEquals(100, in.available());
+        assertEquals(1, completed.getCount());
+    }
+
+    private HttpServletRequest request(final boolean asyncSupported) {
+        final ServletOutputStream out = new ServletOutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                sendingThread = Thread.currentThread().getName();
+                sent.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                sendingThread = Thread.currentThread().getName();
+                sent.write(b, off, len);
+            }
+        };
+        final ServletResponse response = (ServletResponse) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { ServletResponse.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("getOutputStream")) {
+                            return out;
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+        final AsyncContext asyncContext = (AsyncContext) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { AsyncContext.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        switch (method.getName()) {
+                        case "getResponse":
+                            return response;
+                        case "setTimeout":
+                            timeout = (Long) args[0];
+                            return null;
+                        case "complete":
+                            completed.countDown();
+                            return null;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                        }
+                    }
+                });
+        return (HttpServletRequest) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { HttpServletRequest.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        switch (method.getName()) {
+                        case "isAsyncSupported":
+                            return asyncSupported;
+                        case "startAsync":
+                            return asyncContext;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                        }
+                    }
+                });
+    }
+
+}
@@ -0,0 +1,275 @@
+package org.icatproject.idav.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.icatproject.idav.BackendGuard;
+import org.icatproject.idav.exceptions.BackendUnavailableException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks the retries, circuit breaker, bulkhead and timeout of a BackendGuard
+ * using calls that fail with an IOException to stand for a service failure
+ * and an IllegalArgumentException to stand for an error in the request.
+ */
+public class BackendGuardTest {
+
+    private static final BackendGuard.FailureClassifier CLASSIFIER = new BackendGuard.FailureClassifier() {
+        @Override
+        public boolean isServiceFailure(Throwable t) {
+            return t instanceof IOException;
+        }
+    };
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    // Fails with a service failure the given number of times and then succeeds
+    private static class FlakyCall implements BackendGuard.Call<String, IOException> {
+        private final AtomicInteger calls = new AtomicInteger();
+        private final int failures;
+
+        private FlakyCall(int failures) {
+            this.failures = failures;
+        }
+
+        @Override
+        public String call() throws IOException {
+            if (calls.incrementAndGet() <= failures) {
+                throw new IOException("failure " + calls.get());
+            }
+            return "ok";
+        }
+    }
+
+    private static BackendGuard.Settings settings() {
+        return new BackendGuard.Settings().maxRetries(2).retryBaseMillis(1).failureThreshold(3).openMillis(100);
+    }
+
+    @Test
+    public void testRetriesIdempotentCalls() throws Exception {
+        BackendGuard guard = new BackendGuard("test", settings(), CLASSIFIER);
+        FlakyCall call = new FlakyCall(2);
+        assertEquals("ok", guard.call("read", true, call));
+        assertEquals(3, call.calls.get());
+        assertEquals("CLOSED", guard.getState());
+    }
+
+    @Test
+    public void testDoesNotRetryOtherCalls() throws Exception {
+        BackendGuard guard = new BackendGuard("test", settings(), CLASSIFIER);
+        FlakyCall call = new FlakyCall(1);
+        try {
+            guard.call("write", false, call);
+            fail("expected an IOException");
+        } catch (IOException e) {
+            assertEquals(1, call.calls.get());
+        }
+    }
+
+    @Test
+    public void testRequestErrorsNotRetriedOrCounted() throws Exception {
+        BackendGuard guard = new BackendGuard("test", settings(), CLASSIFIER);
+        final AtomicInteger calls = new AtomicInteger();
+        for (int i = 0; i < 5; i++) {
+            try {
+                guard.call("read", true, new BackendGuard.Call<String, IOException>() {
+                    @Override
+                    public String call() {
+                        calls.incrementAndGet();
+                        throw new IllegalArgumentException("bad request");
+                    }
+                });
+                fail("expected an IllegalArgumentException");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+        assertEquals(5, calls.get());
+        assertEquals("CLOSED", guard.getState());
+    }
+
+    @Test
+    public void testCircuitOpensAndCloses() throws Exception {
+        BackendGuard guard = new BackendGuard("test", settings().maxRetries(0), CLASSIFIER);
+        FlakyCall call = new FlakyCall(3);
+        for (int i = 0; i < 3; i++) {
+            try {
+                guard.call("read", true, call);
+                fail("expected an IOException");
+            } catch (IOException e) {
+                // expected
+            }
+        }
+        assertEquals("OPEN", guard.getState());
+        try {
+            guard.call("read", true, call);
+            fail("expected the call to fail fast");
+        } catch (BackendUnavailableException e) {
+            assertEquals(3, call.calls.get());
+        }
+        Thread.sleep(150);
+        // the trial call succeeds and closes the circuit
+        assertEquals("ok", guard.call("read", true, call));
+        assertEquals("CLOSED", guard.getState());
+        assertTrue(guard.getStats().contains("failed fast=1, times opened=1"));
+    }
+
+    @Test
+    public void testFailedTrialReopensCircuit() throws Exception {
+        BackendGuard guard = new BackendGuard("test", settings().maxRetries(0).failureThreshold(1), CLASSIFIER);
+        FlakyCall call = new FlakyCall(2);
+        try {
+            guard.call("read", true, call);
+            fail("expected an IOException");
+        } catch (IOException e) {
+            // expected
+        }
+        Thread.sleep(150);
+        try {
+            guard.call("read", true, call);
+            fail("expected an IOException");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals("OPEN", guard.getState());
+    }
+
+    @Test
+    public void testEarlierCallDoesNotCloseCircuit() throws Exception {
+        final BackendGuard guard = new BackendGuard("test", settings().maxRetries(0).failureThreshold(1), CLASSIFIER);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Future<String> slow = executor.submit(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return guard.call("slow", true, new BackendGuard.Call<String, InterruptedException>() {
+                    @Override
+                    public String call() throws InterruptedException {
+                        started.countDown();
+                        release.await(10, TimeUnit.SECONDS);
+                        return "slow";
+                    }
+                });
+            }
+        });
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        try {
+            guard.call("read", true, new FlakyCall(1));
+            fail("expected an IOException");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals("OPEN", guard.getState());
+        // the call let through before the circuit opened finishes
+        release.countDown();
+        assertEquals("slow", slow.get());
+        assertEquals("OPEN", guard.getState());
+    }
+
+    @Test
+    public void testBulkheadRejectsWhenFull() throws Exception {
+        final BackendGuard guard = new BackendGuard("test", settings().maxConcurrent(1).queueWaitMillis(20), CLASSIFIER);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Future<String> slow = executor.submit(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return guard.call("slow", true, new BackendGuard.Call<String, InterruptedException>() {
+                    @Override
+                    public String call() throws InterruptedException {
+                        started.countDown();
+                        release.await(10, TimeUnit.SECONDS);
+                        return "slow";
+                    }
+                });
+            }
+        });
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        try {
+            guard.call("read", true, new FlakyCall(0));
+            fail("expected the call to be rejected");
+        } catch (BackendUnavailableException e) {
+            // expected
+        }
+        release.countDown();
+        assertEquals("slow", slow.get());
+        assertEquals("ok", guard.call("read", true, new FlakyCall(0)));
+        // a busy service is not an unhealthy one
+        assertEquals("CLOSED", guard.getState());
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        BackendGuard guard = new BackendGuard("test", settings().callTimeoutMillis(50), CLASSIFIER);
+        long start = System.currentTimeMillis();
+        try {
+            guard.call("hangs", true, new BackendGuard.Call<String, InterruptedException>() {
+                @Override
+                public String call() throws InterruptedException {
+                    Thread.sleep(10000);
+                    return "too late";
+                }
+            });
+            fail("expected the call to time out");
+        } catch (BackendUnavailableException e) {
+            assertTrue(System.currentTimeMillis() - start < 5000);
+        }
+        assertEquals("ok", guard.callWithoutTimeout("upload", new FlakyCall(0)));
+        assertTrue(guard.getStats().contains("timeouts=1"));
+    }
+
+    public interface Service {
+        String read() throws InterruptedException;
+
+        String write() throws InterruptedException;
+    }
+
+    @Test
+    public void testOnlyWrappedReadsTimeOut() throws Exception {
+        BackendGuard guard = new BackendGuard("test", settings().callTimeoutMillis(50), CLASSIFIER);
+        Service service = guard.wrap(Service.class, new Service() {
+            @Override
+            public String read() throws InterruptedException {
+                Thread.sleep(500);
+                return "read";
+            }
+
+            @Override
+            public String write() throws InterruptedException {
+                Thread.sleep(500);
+                return "written";
+            }
+        }, Collections.singleton("read"));
+        try {
+            service.read();
+            fail("expected the read to time out");
+        } catch (BackendUnavailableException e) {
+            // expected
+        }
+        assertEquals("written", service.write());
+    }
+
+}
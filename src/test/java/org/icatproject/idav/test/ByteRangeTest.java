@@ -0,0 +1,69 @@
+package org.icatproject.idav.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.icatproject.idav.methods.ByteRange;
+import org.junit.Test;
+
+public class ByteRangeTest {
+
+    private static final long LENGTH = 10000;
+
+    @Test
+    public void testFirstBytes() {
+        ByteRange range = ByteRange.parse("bytes=0-499", LENGTH);
+        assertTrue(range.isSatisfiable());
+        assertEquals(0, range.getStart());
+        assertEquals(499, range.getEnd());
+        assertEquals(500, range.getLength());
+        assertEquals("bytes 0-499/10000", range.getContentRange());
+    }
+
+    @Test
+    public void testOpenEnded() {
+        ByteRange range = ByteRange.parse("bytes=9500-", LENGTH);
+        assertEquals(9500, range.getStart());
+        assertEquals(9999, range.getEnd());
+        assertEquals(500, range.getLength());
+    }
+
+    @Test
+    public void testSuffix() {
+        ByteRange range = ByteRange.parse("bytes=-500", LENGTH);
+        assertEquals(9500, range.getStart());
+        assertEquals(9999, range.getEnd());
+        // a suffix longer than the resource is the whole resource
+        range = ByteRange.parse("bytes=-20000", LENGTH);
+        assertEquals(0, range.getStart());
+        assertEquals(LENGTH, range.getLength());
+    }
+
+    @Test
+    public void testEndBeyondResource() {
+        ByteRange range = ByteRange.parse("bytes=9000-20000", LENGTH);
+        assertEquals(9999, range.getEnd());
+        assertEquals("bytes 9000-9999/10000", range.getContentRange());
+    }
+
+    @Test
+    public void testUnsatisfiable() {
+        ByteRange range = ByteRange.parse("bytes=10000-", LENGTH);
+        assertFalse(range.isSatisfiable());
+        assertEquals("bytes */10000", range.getContentRange());
+        assertFalse(ByteRange.parse("bytes=-0", LENGTH).isSatisfiable());
+    }
+
+    @Test
+    public void testIgnored() {
+        assertNull(ByteRange.parse(null, LENGTH));
+        assertNull(ByteRange.parse("items=0-10", LENGTH));
+        assertNull(ByteRange.parse("bytes=0-10,20-30", LENGTH));
+        assertNull(ByteRange.parse("bytes=500-100", LENGTH));
+        assertNull(ByteRange.parse("bytes=abc-", LENGTH));
+        assertNull(ByteRange.parse("bytes=100", LENGTH));
+    }
+
+}
@@ -0,0 +1,286 @@
+package org.icatproject.idav.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.icatproject.idav.CachingWebdavStore;
+import org.icatproject.idav.LocalFileSystemStore;
+import org.icatproject.idav.RequestContext;
+import org.icatproject.idav.StoredObject;
+import org.icatproject.idav.manager.PropertyManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks what the CachingWebdavStore keeps and forgets, using a
+ * LocalFileSystemStore on a temporary folder that counts the calls that get
+ * through to it.
+ */
+public class CachingWebdavStoreTest {
+
+    private File root;
+    private CountingStore store;
+    private RequestContext context;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws IOException {
+        root = File.createTempFile("idav-cache", "");
+        root.delete();
+        root.mkdir();
+        File folder = new File(root, "dir");
+        folder.mkdir();
+        for (int i = 0; i < 5; i++) {
+            new File(folder, "file" + i + ".dat").createNewFile();
+        }
+        store = new CountingStore(root);
+        context = new RequestContext(null);
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        delete(root);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private CachingWebdavStore createCachingStore(Properties cacheProperties) throws IOException {
+        Properties props = new Properties();
+        props.setProperty("icat.url", "https://localhost");
+        props.setProperty("ids.url", "https://localhost");
+        props.setProperty("icat.authenticators", "simple");
+        props.setProperty("sessionRefreshMarginMins", "5");
+        props.setProperty("ignoredFiles", "");
+        props.setProperty("storedObjectCacheTtlSecs", "60");
+        props.setProperty("notFoundCacheTtlSecs", "60");
+        props.setProperty("listingCacheTtlSecs", "60");
+        props.putAll(cacheProperties);
+        File propertyFile = new File(root, "idav.properties");
+        try (FileOutputStream out = new FileOutputStream(propertyFile)) {
+            props.store(out, null);
+        }
+        File hierarchyFile = new File(root, "idav.structure");
+        try (FileOutputStream out = new FileOutputStream(hierarchyFile)) {
+            out.write("[]".getBytes("UTF-8"));
+        }
+        PropertyManager properties = new PropertyManager(propertyFile.getPath(), hierarchyFile.getPath());
+        propertyFile.delete();
+        hierarchyFile.delete();
+        return new CachingWebdavStore(store, properties);
+    }
+
+    private CachingWebdavStore createCachingStore() throws IOException {
+        return createCachingStore(new Properties());
+    }
+
+    private static List<String> sorted(String[] names) {
+        String[] copy = names.clone();
+        Arrays.sort(copy);
+        return Arrays.asList(copy);
+    }
+
+    @Test
+    public void testObjectsCached() throws Exception {
+        CachingWebdavStore cachingStore = createCachingStore();
+        assertNotNull(cachingStore.getStoredObject(context, "/dir/file0.dat"));
+        assertNotNull(cachingStore.getStoredObject(context, "/dir/file0.dat"));
+        assertNull(cachingStore.getStoredObject(context, "/dir/missing.dat"));
+        assertNull(cachingStore.getStoredObject(context, "/dir/missing.dat"));
+        assertEquals(2, store.storedObjectCalls.get());
+    }
+
+    @Test
+    public void testParentListingEvictedOnCreateAndDelete() throws Exception {
+        CachingWebdavStore cachingStore = createCachingStore();
+        assertEquals(5, cachingStore.getChildrenNames(context, "/dir").length);
+        // a change that does not go through the cache is not seen
+        new File(root, "dir/other.dat").createNewFile();
+        assertEquals(5, cachingStore.getChildrenNames(context, "/dir/").length);
+        assertEquals(1, store.childrenNamesCalls.get());
+
+        cachingStore.createResource(context, "/dir/new.dat");
+        assertTrue(sorted(cachingStore.getChildrenNames(context, "/dir")).contains("new.dat"));
+        assertEquals(7, cachingStore.getChildrenNames(context, "/dir").length);
+
+        cachingStore.removeObject(context, "/dir/new.dat");
+        assertTrue(!sorted(cachingStore.getChildrenNames(context, "/dir")).contains("new.dat"));
+        assertEquals(3, store.childrenNamesCalls.get());
+    }
+
+    @Test
+    public void testNotFoundClearedForAncestors() throws Exception {
+        CachingWebdavStore cachingStore = createCachingStore();
+        assertNull(cachingStore.getStoredObject(context, "/a"));
+        assertNull(cachingStore.getStoredObject(context, "/a/b"));
+        assertNull(cachingStore.getStoredObject(context, "/a/b/c.dat"));
+        // the folders are created by the backend as part of creating the file
+        new File(root, "a/b").mkdirs();
+        cachingStore.createResource(context, "/a/b/c.dat");
+        assertNotNull(cachingStore.getStoredObject(context, "/a"));
+        assertNotNull(cachingStore.getStoredObject(context, "/a/b/"));
+        assertNotNull(cachingStore.getStoredObject(context, "/a/b/c.dat"));
+    }
+
+    @Test
+    public void testLookupThatRacedWithCreateNotCached() throws Exception {
+        final CachingWebdavStore cachingStore = createCachingStore();
+        store.blockNextCall();
+        Future<StoredObject> lookup = executor.submit(new Callable<StoredObject>() {
+            @Override
+            public StoredObject call() {
+                return cachingStore.getStoredObject(context, "/dir/new.dat");
+            }
+        });
+        assertTrue(store.blocked.await(10, TimeUnit.SECONDS));
+        cachingStore.createResource(context, "/dir/new.dat");
+        store.release.countDown();
+        // the lookup saw the folder before the file was created
+        assertNull(lookup.get(10, TimeUnit.SECONDS));
+        assertNotNull(cachingStore.getStoredObject(context, "/dir/new.dat"));
+    }
+
+    @Test
+    public void testListingThatRacedWithCreateNotCached() throws Exception {
+        final CachingWebdavStore cachingStore = createCachingStore();
+        store.blockNextCall();
+        Future<String[]> listing = executor.submit(new Callable<String[]>() {
+            @Override
+            public String[] call() {
+                return cachingStore.getChildrenNames(context, "/dir");
+            }
+        });
+        assertTrue(store.blocked.await(10, TimeUnit.SECONDS));
+        cachingStore.createResource(context, "/dir/new.dat");
+        store.release.countDown();
+        assertEquals(5, listing.get(10, TimeUnit.SECONDS).length);
+        assertEquals(6, cachingStore.getChildrenNames(context, "/dir").length);
+    }
+
+    @Test
+    public void testNoPrefetchWhenCacheFull() throws Exception {
+        Properties props = new Properties();
+        props.setProperty("storedObjectCacheMaxSize", "2");
+        props.setProperty("prefetchThreads", "1");
+        CachingWebdavStore cachingStore = createCachingStore(props);
+        cachingStore.getStoredObject(context, "/dir");
+        cachingStore.getStoredObject(context, "/dir/file0.dat");
+        cachingStore.getChildrenNames(context, "/dir");
+        assertTrue(getPrefetchStats(cachingStore).contains("scheduled=0, "));
+        assertTrue(getPrefetchStats(cachingStore).contains("cancelled (cache full)=1, "));
+        assertEquals(0, store.childrenWithStoredObjectsCalls.get());
+    }
+
+    @Test
+    public void testPrefetchStopsWhenCacheFills() throws Exception {
+        Properties props = new Properties();
+        props.setProperty("storedObjectCacheMaxSize", "3");
+        props.setProperty("prefetchThreads", "1");
+        CachingWebdavStore cachingStore = createCachingStore(props);
+        String[] names = cachingStore.getChildrenNames(context, "/dir");
+        assertEquals(Arrays.asList(store.getChildrenNames(context, "/dir")), Arrays.asList(names));
+        long end = System.currentTimeMillis() + 10000;
+        while (!getPrefetchStats(cachingStore).contains("cancelled (cache full)=1, ")) {
+            assertTrue("Prefetch did not stop", System.currentTimeMillis() < end);
+            Thread.sleep(10);
+        }
+        assertTrue(getPrefetchStats(cachingStore).contains("objects prefetched=3, "));
+        int calls = store.storedObjectCalls.get();
+        // in the order they were prefetched so the rest do not evict them
+        for (String name : names) {
+            assertNotNull(cachingStore.getStoredObject(context, "/dir/" + name));
+        }
+        // only the objects that were not prefetched had to be fetched
+        assertEquals(calls + 2, store.storedObjectCalls.get());
+    }
+
+    private static String getPrefetchStats(CachingWebdavStore cachingStore) {
+        for (String line : cachingStore.getSessionInfo()) {
+            if (line.startsWith("Prefetch:")) {
+                return line;
+            }
+        }
+        throw new AssertionError("No prefetch stats in the session info");
+    }
+
+    // Counts the lookups, and can hold one up after it has seen the files
+    // until the test lets it go
+    private static class CountingStore extends LocalFileSystemStore {
+        private final AtomicInteger storedObjectCalls = new AtomicInteger();
+        private final AtomicInteger childrenNamesCalls = new AtomicInteger();
+        private final AtomicInteger childrenWithStoredObjectsCalls = new AtomicInteger();
+        private volatile boolean blockNext;
+        private final CountDownLatch blocked = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+
+        private CountingStore(File root) {
+            super(root);
+        }
+
+        private void blockNextCall() {
+            blockNext = true;
+        }
+
+        private void maybeBlock() {
+            if (blockNext) {
+                blockNext = false;
+                blocked.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        @Override
+        public StoredObject getStoredObject(RequestContext context, String uri) {
+            storedObjectCalls.incrementAndGet();
+            StoredObject so = super.getStoredObject(context, uri);
+            maybeBlock();
+            return so;
+        }
+
+        @Override
+        public String[] getChildrenNames(RequestContext context, String uri) {
+            childrenNamesCalls.incrementAndGet();
+            String[] names = super.getChildrenNames(context, uri);
+            maybeBlock();
+            return names;
+        }
+
+        @Override
+        public Map<String, StoredObject> getChildrenWithStoredObjects(RequestContext context, String uri) {
+            childrenWithStoredObjectsCalls.incrementAndGet();
+            return super.getChildrenWithStoredObjects(context, uri);
+        }
+    }
+
+}
@@ -0,0 +1,208 @@
+package org.icatproject.idav.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.icatproject.idav.LocalFileSystemStore;
+import org.icatproject.idav.RequestContext;
+import org.icatproject.idav.WebdavStatus;
+import org.icatproject.idav.exceptions.AccessDeniedException;
+import org.icatproject.idav.locking.ResourceLocks;
+import org.icatproject.idav.methods.DoDelete;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Deletes a tree with DoDelete using a store that removes some folders in
+ * bulk and declines others, with stand-ins for the request and response
+ * which record what is sent.
+ */
+public class DoDeleteTest {
+
+    private File root;
+    private BulkStore store;
+
+    // What the response stand-in records
+    private final StringWriter body = new StringWriter();
+    private int status;
+
+    @Before
+    public void setUp() throws IOException {
+        root = File.createTempFile("idav-delete", "");
+        root.delete();
+        root.mkdir();
+        // "bulk" is removed by the store in one go, "plain" one file at a time
+        for (String path : Arrays.asList("top/a.dat", "top/bulk/x.dat", "top/bulk/y.dat", "top/plain/z.dat",
+                "top/plain/denied.dat")) {
+            File file = new File(root, path);
+            file.getParentFile().mkdirs();
+            file.createNewFile();
+        }
+        store = new BulkStore(root);
+    }
+
+    @After
+    public void tearDown() {
+        delete(root);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    @Test
+    public void testFallsBackAndReportsErrors() throws Exception {
+        new DoDelete(store, new ResourceLocks(), false).execute(new RequestContext(null), request("/top"),
+                response());
+        // the store declined the top folder, so its children were removed
+        // by DoDelete, which gave the bulk folder back to the store
+        assertEquals(Arrays.asList("/top", "/top/bulk", "/top/plain"), sortedCopy(store.bulkRemoves));
+        assertFalse(new File(root, "top").exists());
+
+        assertEquals(WebdavStatus.SC_MULTI_STATUS, status);
+        String report = body.toString();
+        // an error put in the list by the store
+        assertEquals("HTTP/1.1 403 Forbidden", getReportedStatus(report, "/top/bulk/y.dat"));
+        // an error removing a file one at a time
+        assertEquals("HTTP/1.1 403 Forbidden", getReportedStatus(report, "/top/plain/denied.dat"));
+        assertEquals(2, report.split("<D:response>").length - 1);
+    }
+
+    @Test
+    public void testNoReportWithoutErrors() throws Exception {
+        new File(root, "top/bulk/y.dat").delete();
+        new File(root, "top/plain/denied.dat").delete();
+        new DoDelete(store, new ResourceLocks(), false).execute(new RequestContext(null), request("/top"),
+                response());
+        assertEquals(WebdavStatus.SC_NO_CONTENT, status);
+        assertEquals("", body.toString());
+        assertFalse(new File(root, "top").exists());
+    }
+
+    private static List<String> sortedCopy(List<String> list) {
+        List<String> copy = new ArrayList<>(list);
+        Collections.sort(copy);
+        return copy;
+    }
+
+    // The status in the multistatus report for a path
+    private static String getReportedStatus(String report, String path) {
+        for (String response : report.split("<D:response>")) {
+            if (response.contains("<D:href>" + path + "</D:href>")) {
+                int start = response.indexOf("<D:status>") + "<D:status>".length();
+                return response.substring(start, response.indexOf("</D:status>"));
+            }
+        }
+        throw new AssertionError(path + " is not in the report: " + report);
+    }
+
+    // Removes "bulk" folders itself, apart from a y.dat, and declines any
+    // others. A denied.dat can not be removed. Removing a folder removes
+    // anything that is left in it, as ICAT does.
+    private static class BulkStore extends LocalFileSystemStore {
+        private final File root;
+        private final List<String> bulkRemoves = new ArrayList<>();
+
+        private BulkStore(File root) {
+            super(root);
+            this.root = root;
+        }
+
+        @Override
+        public boolean supportsBulkRemove() {
+            return true;
+        }
+
+        @Override
+        public boolean doBulkRemove(RequestContext context, String folderUri, Map<String, Integer> errorList) {
+            bulkRemoves.add(folderUri);
+            if (!folderUri.endsWith("/bulk")) {
+                return false;
+            }
+            new File(root, folderUri + "/x.dat").delete();
+            if (new File(root, folderUri + "/y.dat").exists()) {
+                errorList.put(folderUri + "/y.dat", WebdavStatus.SC_FORBIDDEN);
+            } else {
+                delete(new File(root, folderUri));
+            }
+            return true;
+        }
+
+        @Override
+        public void removeObject(RequestContext context, String uri) {
+            if (uri.endsWith("/denied.dat")) {
+                throw new AccessDeniedException("Not allowed to remove " + uri);
+            }
+            File file = new File(root, uri);
+            if (file.isDirectory()) {
+                delete(file);
+            } else {
+                super.removeObject(context, uri);
+            }
+        }
+    }
+
+    private HttpServletRequest request(final String uri) {
+        return (HttpServletRequest) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { HttpServletRequest.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        switch (method.getName()) {
+                        case "getRequestURI":
+                            return uri;
+                        case "getContextPath":
+                        case "getHeader":
+                        case "getAttribute":
+                            return null;
+                        case "toString":
+                            return "DELETE " + uri;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                        }
+                    }
+                });
+    }
+
+    private HttpServletResponse response() {
+        return (HttpServletResponse) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { HttpServletResponse.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        switch (method.getName()) {
+                        case "setStatus":
+                        case "sendError":
+                            status = (Integer) args[0];
+                            return null;
+                        case "getWriter":
+                            return new PrintWriter(body);
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                        }
+                    }
+                });
+    }
+
+}
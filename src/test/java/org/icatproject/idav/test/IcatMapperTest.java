@@ -0,0 +1,202 @@
+package org.icatproject.idav.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.icatproject.idav.IcatEntity;
+import org.icatproject.idav.IcatMapper;
+import org.icatproject.idav.IcatStore;
+import org.icatproject.idav.QueryTemplate;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks the shape of the queries produced by the compiled IcatMapper templates
+ * for the hierarchy Facility - Instrument - FacilityCycle - Investigation -
+ * Dataset - Datafile (as in idav.structure.example).
+ */
+public class IcatMapperTest {
+
+    private static final String COMBINE_VALUE = "- visitId:";
+    private static final String INVESTIGATION = "RB1234 " + COMBINE_VALUE + " 1";
+
+    private IcatMapper mapper;
+    private HashMap<String, String> values;
+
+    @Before
+    public void setUp() {
+        List<IcatEntity> hierarchy = new ArrayList<>();
+        hierarchy.add(new IcatEntity("Facility", "name"));
+        hierarchy.add(new IcatEntity("Instrument", "name"));
+        hierarchy.add(new IcatEntity("FacilityCycle", "name"));
+        IcatEntity investigation = new IcatEntity("Investigation", "title");
+        investigation.setColumnCombineValue(COMBINE_VALUE);
+        hierarchy.add(investigation);
+        hierarchy.add(new IcatEntity("Dataset", "name"));
+        hierarchy.add(new IcatEntity("Datafile", "name"));
+        mapper = new IcatMapper(hierarchy);
+
+        values = new HashMap<>();
+        values.put("Facility", "ISIS");
+        values.put("Instrument", "INST");
+        values.put("FacilityCycle", "cycle_1");
+        values.put("Investigation", INVESTIGATION);
+        values.put("Dataset", "ds'1");
+        values.put("Datafile", "file.txt");
+    }
+
+    @Test
+    public void testFacilityChildren() {
+        assertEquals("SELECT facility.name FROM Facility facility",
+                mapper.createQuery(values, 0, true, null));
+    }
+
+    @Test
+    public void testInstrumentChildren() {
+        assertEquals("SELECT instrument.fullName FROM Instrument instrument"
+                + " JOIN instrument.facility facility "
+                + " WHERE facility.name='ISIS'",
+                mapper.createQuery(values, 1, true, null));
+    }
+
+    @Test
+    public void testInstrumentSelf() {
+        assertEquals("SELECT instrument FROM Instrument instrument"
+                + " WHERE  instrument.fullName='INST'",
+                mapper.createQuery(values, 1, false, null));
+    }
+
+    @Test
+    public void testInvestigationChildrenOfFacilityCycle() {
+        assertEquals("SELECT investigation FROM Investigation investigation "
+                + IcatMapper.icatMap.get("Instrument-FacilityCycle-Investigation")
+                + " WHERE instrument.name='INST' AND facilityCycle.name='cycle_1'"
+                + " AND investigationInstrument.name= instrument.name AND "
+                + " investigation.startDate BETWEEN facilityCycle.startDate AND facilityCycle.endDate ",
+                mapper.createQuery(values, 3, true, null));
+    }
+
+    @Test
+    public void testInvestigationSelf() {
+        assertEquals("SELECT investigation FROM Investigation investigation"
+                + " WHERE  investigation.name='RB1234' AND investigation.visitId='1'",
+                mapper.createQuery(values, 3, false, null));
+    }
+
+    @Test
+    public void testDatasetSelf() {
+        assertEquals("SELECT dataset FROM Dataset dataset"
+                + " JOIN dataset.investigation investigation "
+                + " WHERE  investigation.name='RB1234' AND investigation.visitId='1' AND dataset.name='ds''1'",
+                mapper.createQuery(values, 4, false, null));
+    }
+
+    @Test
+    public void testDatafileChildrenByNames() {
+        String[] investigationAndVisit = IcatStore.getInvestigationAndVisit(INVESTIGATION);
+        assertEquals("SELECT datafile.name FROM Datafile datafile"
+                + IcatMapper.icatMap.get("Dataset-Datafile")
+                + " WHERE  dataset.name='ds''1' AND investigation.name='" + investigationAndVisit[0]
+                + "' AND investigation.visitId='" + investigationAndVisit[1] + "' AND facility.name='ISIS'",
+                mapper.createQuery(values, 5, true, null));
+    }
+
+    @Test
+    public void testDatafileChildrenByDatasetId() {
+        values.put(IcatMapper.DATASET_ID, "42");
+        String[] investigationAndVisit = IcatStore.getInvestigationAndVisit(INVESTIGATION);
+        assertEquals("SELECT datafile.name FROM Datafile datafile"
+                + IcatMapper.icatMap.get("Dataset-Datafile")
+                + " WHERE  dataset.id=42 AND dataset.name='ds''1' AND investigation.name='" + investigationAndVisit[0]
+                + "' AND investigation.visitId='" + investigationAndVisit[1] + "'",
+                mapper.createQuery(values, 5, true, null));
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void testDatasetIdMustBeANumber() {
+        values.put(IcatMapper.DATASET_ID, "42 OR 1=1");
+        mapper.createQuery(values, 5, true, null);
+    }
+
+    @Test
+    public void testDatafileSelf() {
+        assertEquals("SELECT datafile FROM Datafile datafile"
+                + IcatMapper.icatMap.get("Dataset-Datafile")
+                + " WHERE datafile.name='file.txt'",
+                mapper.createQuery(values, 5, false, null));
+    }
+
+    @Test
+    public void testChildEntities() {
+        assertNull(mapper.createChildEntitiesQuery(values, 0));
+        assertNull(mapper.createChildEntitiesQuery(values, 4));
+        values.put(IcatMapper.DATASET_ID, "42");
+        String[] investigationAndVisit = IcatStore.getInvestigationAndVisit(INVESTIGATION);
+        assertEquals("SELECT datafile FROM Datafile datafile"
+                + IcatMapper.icatMap.get("Dataset-Datafile")
+                + " WHERE  dataset.id=42 AND dataset.name='ds''1' AND investigation.name='" + investigationAndVisit[0]
+                + "' AND investigation.visitId='" + investigationAndVisit[1] + "'",
+                mapper.createChildEntitiesQuery(values, 5));
+    }
+
+    @Test
+    public void testMyDataInvestigationChildren() {
+        values.put("Facility", "My Data");
+        assertEquals("SELECT investigation.investigation FROM InvestigationUser investigation"
+                + " WHERE investigation.user.name = 'uows/1''2'",
+                mapper.createQuery(values, 3, true, "uows/1'2"));
+        assertNull(mapper.createChildEntitiesQuery(values, 5));
+    }
+
+    @Test
+    public void testPageQuery() {
+        assertEquals("SELECT datafile.name FROM Datafile datafile WHERE dataset.id=42"
+                + " ORDER BY datafile.id LIMIT 2000, 1000",
+                IcatMapper.createPageQuery("SELECT datafile.name FROM Datafile datafile WHERE dataset.id=42", 2000, 1000));
+        assertEquals("SELECT datafile FROM Datafile datafile WHERE datafile.name='a'"
+                + " ORDER BY datafile.id INCLUDE datafile.dataset LIMIT 0, 10",
+                IcatMapper.createPageQuery("SELECT datafile FROM Datafile datafile WHERE datafile.name='a' INCLUDE datafile.dataset", 0, 10));
+        // the queries made by the IcatStore itself use a lower case "from"
+        assertEquals("SELECT dataset from Dataset dataset ORDER BY dataset.id LIMIT 0, 10",
+                IcatMapper.createPageQuery("SELECT dataset from Dataset dataset", 0, 10));
+        values.put("Facility", "My Data");
+        assertEquals("SELECT investigation.investigation FROM InvestigationUser investigation"
+                + " WHERE investigation.user.name = 'uows/1' ORDER BY investigation.id LIMIT 0, 10",
+                IcatMapper.createPageQuery(mapper.createQuery(values, 3, true, "uows/1"), 0, 10));
+    }
+
+    @Test
+    public void testPageQueryAfter() {
+        assertTrue(IcatMapper.selectsEntity("SELECT datafile from Datafile datafile WHERE datafile.name='a'"));
+        assertFalse(IcatMapper.selectsEntity("SELECT datafile.name FROM Datafile datafile WHERE dataset.id=42"));
+        assertEquals("SELECT datafile FROM Datafile datafile WHERE datafile.id > 17 AND (dataset.id=42 OR dataset.id=43)"
+                + " ORDER BY datafile.id INCLUDE datafile.dataset LIMIT 0, 10",
+                IcatMapper.createPageQueryAfter("SELECT datafile FROM Datafile datafile WHERE  dataset.id=42 OR dataset.id=43"
+                        + " INCLUDE datafile.dataset", 17, 10));
+        assertEquals("SELECT facility FROM Facility facility WHERE facility.id > 3 ORDER BY facility.id LIMIT 0, 100",
+                IcatMapper.createPageQueryAfter("SELECT facility FROM Facility facility", 3, 100));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFieldQueryNotPagedById() {
+        IcatMapper.createPageQueryAfter("SELECT datafile.name FROM Datafile datafile WHERE dataset.id=42", 17, 10);
+    }
+
+    @Test
+    public void testTemplateToString() {
+        QueryTemplate template = new QueryTemplate.Builder()
+                .append("SELECT ds FROM Dataset ds WHERE ds.name='")
+                .append(QueryTemplate.value("Dataset"))
+                .append("'")
+                .build();
+        assertEquals("SELECT ds FROM Dataset ds WHERE ds.name='{?}'", template.toString());
+        assertEquals("SELECT ds FROM Dataset ds WHERE ds.name='ds''1'", template.bind(values));
+    }
+
+}
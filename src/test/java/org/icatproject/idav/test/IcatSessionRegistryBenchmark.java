@@ -0,0 +1,166 @@
+package org.icatproject.idav.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.binary.Base64;
+import org.icatproject.idav.IcatSessionRegistry;
+import org.icatproject.idav.IcatSessionRegistry.Session;
+import org.icatproject.idav.RequestContext;
+import org.icatproject.idav.UsernamePassword;
+import org.junit.Test;
+
+/**
+ * Compares how many session lookups per second many threads can make against
+ * the IcatSessionRegistry and against the pair of maps behind one lock that
+ * IcatStore used before it.
+ *
+ * The name does not end in "Test" so that surefire does not run it with the
+ * unit tests, because the result depends on the machine and takes a while to
+ * settle. Run it with:
+ *
+ * mvn test -Dtest=IcatSessionRegistryBenchmark
+ */
+public class IcatSessionRegistryBenchmark {
+
+    private static final long HOUR = 60 * 60 * 1000L;
+    private static final int USERS = 50;
+    private static final int LOOKUPS_PER_THREAD = 200000;
+    private static final int WARM_UP_ROUNDS = 3;
+    private static final int ROUNDS = 5;
+
+    // Does the lookups and checks the timeout the way IcatStore used to, all
+    // under the one lock
+    private static class SynchronizedMaps {
+        private final Map<String, String> authStringToSessionId = new HashMap<>();
+        private final Map<String, Date> sessionIdToTimeoutDate = new HashMap<>();
+        private final Object lock = new Object();
+
+        private String getSessionId(String authString) {
+            synchronized (lock) {
+                Date now = new Date();
+                String sessionId = authStringToSessionId.get(authString);
+                Date timeoutDate = sessionIdToTimeoutDate.get(sessionId);
+                if (sessionId == null || now.after(timeoutDate)) {
+                    sessionId = "session-" + authString;
+                    authStringToSessionId.put(authString, sessionId);
+                    sessionIdToTimeoutDate.put(sessionId, new Date(now.getTime() + HOUR));
+                }
+                return sessionId;
+            }
+        }
+    }
+
+    private static class FixedSessionSource implements IcatSessionRegistry.SessionSource {
+        @Override
+        public Session login(UsernamePassword usernamePassword) {
+            String username = usernamePassword.getUsername();
+            return new Session(username, "session-" + username, "uows/" + username,
+                    System.currentTimeMillis() + HOUR);
+        }
+
+        @Override
+        public Session refresh(Session session) {
+            return session.withTimeout(System.currentTimeMillis() + HOUR);
+        }
+
+        @Override
+        public void logout(Session session) {
+        }
+    }
+
+    @Test
+    public void compareWithSynchronizedMaps() throws Exception {
+        int cores = Runtime.getRuntime().availableProcessors();
+        final List<String> authStrings = new ArrayList<>();
+        for (int i = 0; i < USERS; i++) {
+            authStrings.add(new String(Base64.encodeBase64(("user" + i + ":password").getBytes())));
+        }
+        final SynchronizedMaps maps = new SynchronizedMaps();
+        final IcatSessionRegistry registry = new IcatSessionRegistry(new FixedSessionSource(), 60 * 1000L);
+
+        Runnable mapLookups = new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < LOOKUPS_PER_THREAD; i++) {
+                    maps.getSessionId(authStrings.get(i % USERS));
+                }
+            }
+        };
+        // each request has a new RequestContext so the auth string is hashed every time
+        Runnable registryLookups = new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < LOOKUPS_PER_THREAD; i++) {
+                    registry.getSession(new RequestContext(authStrings.get(i % USERS)));
+                }
+            }
+        };
+
+        System.out.println("Session lookups per second (median of " + ROUNDS + " rounds) on " + cores + " cores:");
+        for (int threads : new TreeSet<>(Arrays.asList(1, cores, cores * 4))) {
+            long mapRate = medianRate(threads, mapLookups);
+            long registryRate = medianRate(threads, registryLookups);
+            System.out.println(String.format("%4d threads: synchronized maps %,12d  registry %,12d  (%.2fx)",
+                    threads, mapRate, registryRate, (double) registryRate / mapRate));
+        }
+        assertEquals(USERS, registry.size());
+    }
+
+    private static long medianRate(int threads, Runnable work) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (int i = 0; i < WARM_UP_ROUNDS; i++) {
+                time(executor, threads, work);
+            }
+            long[] rates = new long[ROUNDS];
+            for (int i = 0; i < ROUNDS; i++) {
+                long nanos = time(executor, threads, work);
+                rates[i] = (long) threads * LOOKUPS_PER_THREAD * 1000000000L / Math.max(1, nanos);
+            }
+            Arrays.sort(rates);
+            return rates[ROUNDS / 2];
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // Start all of the threads at once and time how long they take to finish
+    private static long time(ExecutorService executor, int threads, final Runnable work) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    work.run();
+                }
+            }));
+        }
+        long startNanos = System.nanoTime();
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get(10, TimeUnit.MINUTES);
+        }
+        return System.nanoTime() - startNanos;
+    }
+
+}
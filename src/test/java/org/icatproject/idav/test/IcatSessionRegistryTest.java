@@ -0,0 +1,302 @@
+package org.icatproject.idav.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.codec.binary.Base64;
+import org.icatproject.idav.IcatSessionRegistry;
+import org.icatproject.idav.IcatSessionRegistry.Session;
+import org.icatproject.idav.RequestContext;
+import org.icatproject.idav.UsernamePassword;
+import org.icatproject.idav.exceptions.UnauthenticatedException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that logins and refreshes are done once per user however many
+ * requests need them at the same time, and that users do not wait for each
+ * other. The throughput under contention is measured separately by
+ * IcatSessionRegistryBenchmark.
+ */
+public class IcatSessionRegistryTest {
+
+    private static final long HOUR = 60 * 60 * 1000L;
+
+    // Counts the logins and refreshes and can be made to hold up a login
+    private static class FakeSessionSource implements IcatSessionRegistry.SessionSource {
+        private final AtomicInteger logins = new AtomicInteger();
+        private final AtomicInteger refreshes = new AtomicInteger();
+        private final List<String> loggedOut = new CopyOnWriteArrayList<>();
+        private final Map<String, CountDownLatch> loginLatches = new ConcurrentHashMap<>();
+        private final CountDownLatch loginStarted = new CountDownLatch(1);
+        private volatile long timeoutMillis = HOUR;
+        private volatile boolean refreshFails = false;
+
+        @Override
+        public Session login(UsernamePassword usernamePassword) {
+            String username = usernamePassword.getUsername();
+            CountDownLatch latch = loginLatches.get(username);
+            if (latch != null) {
+                loginStarted.countDown();
+                await(latch);
+            }
+            int n = logins.incrementAndGet();
+            return new Session(username, username + "-session-" + n, "uows/" + username,
+                    System.currentTimeMillis() + timeoutMillis);
+        }
+
+        @Override
+        public Session refresh(Session session) {
+            refreshes.incrementAndGet();
+            if (refreshFails) {
+                throw new UnauthenticatedException("refresh failed");
+            }
+            return session.withTimeout(System.currentTimeMillis() + HOUR);
+        }
+
+        @Override
+        public void logout(Session session) {
+            loggedOut.add(session.getSessionId());
+        }
+    }
+
+    private FakeSessionSource source;
+    private IcatSessionRegistry registry;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        source = new FakeSessionSource();
+        registry = new IcatSessionRegistry(source, 60 * 1000L);
+        executor = Executors.newFixedThreadPool(16);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testOneLoginPerUser() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        source.loginLatches.put("alice", latch);
+        List<Future<Session>> futures = new ArrayList<>();
+        for (int i = 0; i < 32; i++) {
+            futures.add(executor.submit(getSession("alice", null)));
+        }
+        assertTrue(source.loginStarted.await(10, TimeUnit.SECONDS));
+        latch.countDown();
+        for (Future<Session> future : futures) {
+            assertEquals("alice-session-1", future.get(10, TimeUnit.SECONDS).getSessionId());
+        }
+        assertEquals(1, source.logins.get());
+        assertEquals(1, registry.size());
+    }
+
+    @Test
+    public void testUsersDoNotWaitForEachOther() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        source.loginLatches.put("alice", latch);
+        Future<Session> alice = executor.submit(getSession("alice", null));
+        assertTrue(source.loginStarted.await(10, TimeUnit.SECONDS));
+
+        // alice is still logging in so these would hang if they had to wait
+        for (int i = 0; i < 8; i++) {
+            Session session = executor.submit(getSession("user" + i, null)).get(10, TimeUnit.SECONDS);
+            assertEquals("uows/user" + i, session.getUserId());
+        }
+        latch.countDown();
+        assertEquals("uows/alice", alice.get(10, TimeUnit.SECONDS).getUserId());
+        assertEquals(9, source.logins.get());
+    }
+
+    @Test
+    public void testRefreshOnlyNearTimeout() throws Exception {
+        // sessions that time out inside the refresh margin
+        source.timeoutMillis = 30 * 1000L;
+        Session first = getSession("bob", null).call();
+        List<Future<Session>> futures = new ArrayList<>();
+        for (int i = 0; i < 32; i++) {
+            futures.add(executor.submit(getSession("bob", null)));
+        }
+        for (Future<Session> future : futures) {
+            assertEquals(first.getSessionId(), future.get(10, TimeUnit.SECONDS).getSessionId());
+        }
+        assertEquals(1, source.logins.get());
+        // at least one refresh, and afterwards the session is far from timing out
+        assertTrue(source.refreshes.get() >= 1);
+        int refreshes = source.refreshes.get();
+        getSession("bob", null).call();
+        assertEquals(refreshes, source.refreshes.get());
+    }
+
+    @Test
+    public void testFailedRefreshKeepsSession() throws Exception {
+        source.timeoutMillis = 30 * 1000L;
+        Session first = getSession("gina", null).call();
+        source.refreshFails = true;
+        // the session is inside the refresh margin but has not expired
+        assertEquals(first.getSessionId(), getSession("gina", null).call().getSessionId());
+        assertEquals(1, source.refreshes.get());
+        assertEquals(1, source.logins.get());
+    }
+
+    @Test
+    public void testRenewSession() throws Exception {
+        Session first = getSession("carol", null).call();
+        Session renewed = getSession("carol", first.getSessionId()).call();
+        assertNotEquals(first.getSessionId(), renewed.getSessionId());
+        // a request that still has the old session gets the new one without another login
+        assertEquals(renewed.getSessionId(), getSession("carol", first.getSessionId()).call().getSessionId());
+        assertEquals(2, source.logins.get());
+    }
+
+    @Test
+    public void testBackgroundRefresh() throws Exception {
+        source.timeoutMillis = 30 * 1000L;
+        Session first = getSession("dave", null).call();
+        getSession("erin", null).call();
+        source.timeoutMillis = HOUR;
+        getSession("frank", null).call();
+        registry.maintain();
+        // only the sessions inside the refresh margin
+        assertEquals(2, source.refreshes.get());
+        Session refreshed = getSession("dave", null).call();
+        assertEquals(first.getSessionId(), refreshed.getSessionId());
+        assertTrue(refreshed.getTimeoutMillis() > first.getTimeoutMillis());
+        assertEquals(2, source.refreshes.get());
+        assertEquals(3, source.logins.get());
+    }
+
+    @Test
+    public void testExpiredAndIdleSessionsRemoved() throws Exception {
+        registry = new IcatSessionRegistry(source, 0, 200, 0);
+        source.timeoutMillis = 50;
+        getSession("gina", null).call();
+        source.timeoutMillis = HOUR;
+        Session idle = getSession("harry", null).call();
+        getSession("ivan", null).call();
+        Thread.sleep(120);
+        getSession("ivan", null).call();
+        Thread.sleep(120);
+        registry.maintain();
+        // gina's session expired so there is nothing to log out of
+        assertEquals(1, registry.size());
+        assertEquals(1, source.loggedOut.size());
+        assertEquals(idle.getSessionId(), source.loggedOut.get(0));
+        assertTrue(registry.getStatus().toString().contains("expired sessions removed: 1, idle sessions logged out: 1"));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedLoggedOut() throws Exception {
+        registry = new IcatSessionRegistry(source, 0, 0, 2);
+        Session jo = getSession("jo", null).call();
+        Thread.sleep(10);
+        Session kim = getSession("kim", null).call();
+        Thread.sleep(10);
+        // using jo's session makes kim's the least recently used
+        getSession("jo", null).call();
+        Thread.sleep(10);
+        getSession("lee", null).call();
+        assertEquals(2, registry.size());
+        assertEquals(1, source.loggedOut.size());
+        assertEquals(kim.getSessionId(), source.loggedOut.get(0));
+        assertEquals(jo.getSessionId(), getSession("jo", null).call().getSessionId());
+        assertEquals(3, source.logins.get());
+    }
+
+    /**
+     * Many threads looking up the same few users at once all share one
+     * session per user, and each user is only logged in once.
+     */
+    @Test
+    public void testConcurrentLookups() throws Exception {
+        final int users = 50;
+        final int threads = 16;
+        final int lookups = 2000;
+        final List<String> authStrings = new ArrayList<>();
+        for (int i = 0; i < users; i++) {
+            authStrings.add(authString("user" + i));
+        }
+
+        final Map<String, String> sessionIds = new ConcurrentHashMap<>();
+        final AtomicInteger mismatches = new AtomicInteger();
+        runTogether(threads, new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < lookups; i++) {
+                    String authString = authStrings.get(i % users);
+                    String sessionId = registry.getSession(new RequestContext(authString)).getSessionId();
+                    String previous = sessionIds.putIfAbsent(authString, sessionId);
+                    if (previous != null && !previous.equals(sessionId)) {
+                        mismatches.incrementAndGet();
+                    }
+                }
+            }
+        });
+
+        assertEquals(0, mismatches.get());
+        assertEquals(users, sessionIds.size());
+        assertEquals(users, registry.size());
+        assertEquals(users, source.logins.get());
+    }
+
+    private Callable<Session> getSession(final String username, final String invalidSessionId) {
+        return new Callable<Session>() {
+            @Override
+            public Session call() {
+                RequestContext context = new RequestContext(authString(username));
+                if (invalidSessionId != null) {
+                    return registry.renewSession(context, invalidSessionId);
+                }
+                return registry.getSession(context);
+            }
+        };
+    }
+
+    private static String authString(String username) {
+        return new String(Base64.encodeBase64((username + ":password").getBytes()));
+    }
+
+    private void runTogether(int threads, final Runnable work) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    await(start);
+                    work.run();
+                }
+            }));
+        }
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get(60, TimeUnit.SECONDS);
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
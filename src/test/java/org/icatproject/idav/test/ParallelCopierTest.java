@@ -0,0 +1,344 @@
+package org.icatproject.idav.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.icatproject.idav.LocalFileSystemStore;
+import org.icatproject.idav.RequestContext;
+import org.icatproject.idav.WebdavStatus;
+import org.icatproject.idav.methods.DoubleBufferedInputStream;
+import org.icatproject.idav.methods.ParallelCopier;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Copies a tree with a ParallelCopier using a LocalFileSystemStore on a
+ * temporary folder, and checks that a DoubleBufferedInputStream passes on
+ * everything it reads.
+ */
+public class ParallelCopierTest {
+
+    private static final int BUFFER_SIZE = 16;
+
+    private File root;
+    private LocalFileSystemStore store;
+    private RequestContext context;
+    private ExecutorService executor;
+    private ExecutorService readAheadExecutor;
+
+    @Before
+    public void setUp() throws IOException {
+        root = File.createTempFile("idav-copy", "");
+        root.delete();
+        root.mkdir();
+        // 3 folders each with 3 folders each with files both smaller and
+        // bigger than the buffers
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 3; j++) {
+                File folder = new File(root, "src/inv" + i + "/ds" + j);
+                folder.mkdirs();
+                for (int k = 0; k < 4; k++) {
+                    FileOutputStream out = new FileOutputStream(new File(folder, "file" + k + ".dat"));
+                    out.write(data(k * 20 + i + j));
+                    out.close();
+                }
+            }
+        }
+        new File(root, "dst").mkdir();
+        store = new LocalFileSystemStore(root);
+        context = new RequestContext(null);
+        executor = Executors.newFixedThreadPool(3);
+        readAheadExecutor = Executors.newFixedThreadPool(3);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        readAheadExecutor.shutdownNow();
+        delete(root);
+    }
+
+    private static byte[] data(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 7);
+        }
+        return data;
+    }
+
+    @Test
+    public void testCopiesEverything() throws Exception {
+        Hashtable<String, Integer> errorList = new Hashtable<>();
+        new ParallelCopier(store, context, executor, readAheadExecutor, 2, BUFFER_SIZE).copyChildren("/src", "/dst", errorList);
+        assertTrue(errorList.toString(), errorList.isEmpty());
+        assertSameTree(new File(root, "src"), new File(root, "dst"));
+    }
+
+    @Test
+    public void testFailuresGoInErrorList() throws Exception {
+        // the destination folder already exists so can not be created
+        new File(root, "dst/inv1").mkdir();
+        Hashtable<String, Integer> errorList = new Hashtable<>();
+        new ParallelCopier(store, context, executor, readAheadExecutor, 1, BUFFER_SIZE).copyChildren("/src", "/dst", errorList);
+        assertEquals(1, errorList.size());
+        assertEquals(Integer.valueOf(WebdavStatus.SC_INTERNAL_SERVER_ERROR), errorList.get("/dst/inv1"));
+        assertSameTree(new File(root, "src/inv0"), new File(root, "dst/inv0"));
+        assertSameTree(new File(root, "src/inv2"), new File(root, "dst/inv2"));
+    }
+
+    @Test
+    public void testLockedFoldersWrittenOneAtATime() throws Exception {
+        // each inv folder of the destination is locked while anything
+        // beneath it is written, as IDS locks a Dataset
+        LockingStore lockingStore = new LockingStore(root);
+        Hashtable<String, Integer> errorList = new Hashtable<>();
+        new ParallelCopier(lockingStore, context, executor, readAheadExecutor, 3, BUFFER_SIZE)
+                .copyChildren("/src", "/dst", errorList);
+        assertTrue(errorList.toString(), errorList.isEmpty());
+        assertSameTree(new File(root, "src"), new File(root, "dst"));
+        assertEquals(0, lockingStore.overlaps.get());
+        assertEquals(3, lockingStore.lockedFolders.size());
+        // the locked folders were filled at the same time as each other
+        assertTrue(lockingStore.maxWriters.get() > 1);
+    }
+
+    @Test
+    public void testNothingCopiedIntoLockedFolderThatFailed() throws Exception {
+        // the locked folder already exists so can not be created
+        new File(root, "dst/inv1").mkdir();
+        Hashtable<String, Integer> errorList = new Hashtable<>();
+        new ParallelCopier(new LockingStore(root), context, executor, readAheadExecutor, 3, BUFFER_SIZE)
+                .copyChildren("/src", "/dst", errorList);
+        assertEquals(1, errorList.size());
+        assertEquals(Integer.valueOf(WebdavStatus.SC_INTERNAL_SERVER_ERROR), errorList.get("/dst/inv1"));
+        assertEquals(0, new File(root, "dst/inv1").list().length);
+        assertSameTree(new File(root, "src/inv0"), new File(root, "dst/inv0"));
+        assertSameTree(new File(root, "src/inv2"), new File(root, "dst/inv2"));
+    }
+
+    @Test
+    public void testWaitsForEverythingWhenATaskFails() throws Exception {
+        FailingStore failingStore = new FailingStore(root, "/dst/inv0/ds0/file0.dat");
+        Hashtable<String, Integer> errorList = new Hashtable<>();
+        try {
+            new ParallelCopier(failingStore, context, executor, readAheadExecutor, 2, BUFFER_SIZE)
+                    .copyChildren("/src", "/dst", errorList);
+            fail("No exception thrown");
+        } catch (IllegalStateException e) {
+            assertEquals("Store broken", e.getMessage());
+        }
+        // the other tasks had finished by the time the failure was passed on
+        assertEquals(0, failingStore.writing.get());
+        assertSameTree(new File(root, "src/inv1"), new File(root, "dst/inv1"));
+        assertSameTree(new File(root, "src/inv2"), new File(root, "dst/inv2"));
+    }
+
+    // Fails with something other than a WebdavException when one file is
+    // written, and counts the writes going on
+    private static class FailingStore extends LocalFileSystemStore {
+        private final String failingUri;
+        private final AtomicInteger writing = new AtomicInteger();
+
+        private FailingStore(File root, String failingUri) {
+            super(root);
+            this.failingUri = failingUri;
+        }
+
+        @Override
+        public long setResourceContent(RequestContext context, String uri, InputStream content,
+                String contentType, String characterEncoding) {
+            writing.incrementAndGet();
+            try {
+                // slow enough for the other tasks to still be going
+                Thread.sleep(2);
+                if (uri.equals(failingUri)) {
+                    throw new IllegalStateException("Store broken");
+                }
+                return super.setResourceContent(context, uri, content, contentType, characterEncoding);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            } finally {
+                writing.decrementAndGet();
+            }
+        }
+    }
+
+    // Records whether anything is written to the same locked folder at once
+    private static class LockingStore extends LocalFileSystemStore {
+        private final Set<String> lockedFolders = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        private final Set<String> writing = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        private final AtomicInteger overlaps = new AtomicInteger();
+        private final AtomicInteger writers = new AtomicInteger();
+        private final AtomicInteger maxWriters = new AtomicInteger();
+
+        private LockingStore(File root) {
+            super(root);
+        }
+
+        @Override
+        public String getSerialWriteFolder(String uri) {
+            String[] parts = uri.split("/+");
+            // "/dst/invN" and everything beneath it
+            return parts.length >= 3 && parts[1].equals("dst") ? "/dst/" + parts[2] : null;
+        }
+
+        @Override
+        public void createFolder(RequestContext context, String uri) {
+            String lockedFolder = startWrite(uri);
+            try {
+                super.createFolder(context, uri);
+            } finally {
+                endWrite(lockedFolder);
+            }
+        }
+
+        @Override
+        public long setResourceContent(RequestContext context, String uri, InputStream content,
+                String contentType, String characterEncoding) {
+            String lockedFolder = startWrite(uri);
+            try {
+                return super.setResourceContent(context, uri, content, contentType, characterEncoding);
+            } finally {
+                endWrite(lockedFolder);
+            }
+        }
+
+        private String startWrite(String uri) {
+            String lockedFolder = getSerialWriteFolder(uri);
+            if (lockedFolder != null) {
+                lockedFolders.add(lockedFolder);
+                if (!writing.add(lockedFolder)) {
+                    overlaps.incrementAndGet();
+                }
+                int count = writers.incrementAndGet();
+                while (count > maxWriters.get() && !maxWriters.compareAndSet(maxWriters.get(), count)) {
+                }
+                try {
+                    // long enough for a write to the same folder to overlap
+                    Thread.sleep(2);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return lockedFolder;
+        }
+
+        private void endWrite(String lockedFolder) {
+            if (lockedFolder != null) {
+                writers.decrementAndGet();
+                writing.remove(lockedFolder);
+            }
+        }
+    }
+
+    @Test
+    public void testDoubleBufferedCopy() throws Exception {
+        byte[] data = data(1000);
+        InputStream in = new DoubleBufferedInputStream(new ByteArrayInputStream(data), BUFFER_SIZE, readAheadExecutor);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[7];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        in.close();
+        assertArrayEquals(data, out.toByteArray());
+    }
+
+    @Test
+    public void testDoubleBufferedError() throws Exception {
+        InputStream failing = new InputStream() {
+            private int count;
+
+            @Override
+            public int read() throws IOException {
+                if (count++ >= 40) {
+                    throw new IOException("Connection reset");
+                }
+                return 1;
+            }
+        };
+        InputStream in = new DoubleBufferedInputStream(failing, BUFFER_SIZE, readAheadExecutor);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int total = 0;
+        try {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                total += read;
+            }
+            fail("No exception thrown");
+        } catch (IOException e) {
+            assertEquals("Connection reset", e.getMessage());
+        }
+        assertEquals(40, total);
+        in.close();
+    }
+
+    @Test
+    public void testCloseFreesReadAheadThread() throws Exception {
+        ExecutorService oneThread = Executors.newFixedThreadPool(1);
+        try {
+            // closed after reading only part of the first buffer, leaving the
+            // reading thread waiting for a buffer to fill
+            InputStream in = new DoubleBufferedInputStream(new ByteArrayInputStream(data(1000)), BUFFER_SIZE, oneThread);
+            in.read(new byte[4]);
+            in.close();
+            in = new DoubleBufferedInputStream(new ByteArrayInputStream(data(100)), BUFFER_SIZE, oneThread);
+            byte[] buffer = new byte[100];
+            int total = 0;
+            int read;
+            while ((read = in.read(buffer, total, buffer.length - total)) > 0) {
+                total += read;
+            }
+            in.close();
+            assertArrayEquals(data(100), buffer);
+        } finally {
+            oneThread.shutdownNow();
+        }
+    }
+
+    private static void assertSameTree(File expected, File actual) throws IOException {
+        assertTrue(actual.getPath(), actual.exists());
+        if (expected.isDirectory()) {
+            assertTrue(actual.getPath(), actual.isDirectory());
+            String[] names = expected.list();
+            assertEquals(names.length, actual.list().length);
+            for (String name : names) {
+                assertSameTree(new File(expected, name), new File(actual, name));
+            }
+        } else {
+            assertArrayEquals(actual.getPath(), Files.readAllBytes(expected.toPath()),
+                    Files.readAllBytes(actual.toPath()));
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+}
@@ -0,0 +1,116 @@
+package org.icatproject.idav.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.icatproject.idav.LocalFileSystemStore;
+import org.icatproject.idav.RequestContext;
+import org.icatproject.idav.StoredObject;
+import org.icatproject.idav.methods.ParallelTreeWalker;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that the parallel tree walk visits everything in the same order as a
+ * serial depth first walk, using a LocalFileSystemStore on a temporary folder.
+ */
+public class ParallelTreeWalkerTest {
+
+    private File root;
+    private LocalFileSystemStore store;
+    private RequestContext context;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws IOException {
+        root = File.createTempFile("idav-tree-walk", "");
+        root.delete();
+        root.mkdir();
+        // 4 folders each with 4 folders each with 3 files
+        for (int i = 0; i < 4; i++) {
+            for (int j = 0; j < 4; j++) {
+                File folder = new File(root, "inv" + i + "/ds" + j);
+                folder.mkdirs();
+                for (int k = 0; k < 3; k++) {
+                    FileOutputStream out = new FileOutputStream(new File(folder, "file" + k + ".dat"));
+                    out.write(k);
+                    out.close();
+                }
+            }
+        }
+        store = new LocalFileSystemStore(root);
+        context = new RequestContext(null);
+        executor = Executors.newFixedThreadPool(3);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        delete(root);
+    }
+
+    @Test
+    public void testSameOrderAsSerialWalk() throws Exception {
+        for (int depth = 0; depth <= 3; depth++) {
+            List<String> expected = new ArrayList<>();
+            serialWalk("/", depth, expected);
+
+            final List<String> visited = new ArrayList<>();
+            ParallelTreeWalker walker = new ParallelTreeWalker(store, context, executor, 2);
+            walker.walk("/", store.getStoredObject(context, "/"), depth, new ParallelTreeWalker.Visitor() {
+                @Override
+                public void visit(String path, StoredObject so) {
+                    visited.add(path + (so.isFolder() ? "/" : ""));
+                }
+            });
+            assertEquals(expected, visited);
+        }
+    }
+
+    @Test
+    public void testOneTaskPerRequest() throws Exception {
+        List<String> expected = new ArrayList<>();
+        serialWalk("/", 3, expected);
+
+        final List<String> visited = new ArrayList<>();
+        ParallelTreeWalker walker = new ParallelTreeWalker(store, context, executor, 1);
+        walker.walk("/", store.getStoredObject(context, "/"), 3, new ParallelTreeWalker.Visitor() {
+            @Override
+            public void visit(String path, StoredObject so) {
+                visited.add(path + (so.isFolder() ? "/" : ""));
+            }
+        });
+        assertEquals(1 + 4 + 16 + 48, visited.size());
+        assertEquals(expected, visited);
+    }
+
+    private void serialWalk(String path, int depth, List<String> visited) {
+        StoredObject so = store.getStoredObject(context, path);
+        visited.add(path + (so.isFolder() ? "/" : ""));
+        if (depth > 0 && so.isFolder()) {
+            for (Map.Entry<String, StoredObject> child : store.getChildrenWithStoredObjects(context, path).entrySet()) {
+                serialWalk(path.endsWith("/") ? path + child.getKey() : path + "/" + child.getKey(), depth - 1, visited);
+            }
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+}
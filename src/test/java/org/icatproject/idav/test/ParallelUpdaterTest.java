@@ -0,0 +1,117 @@
+package org.icatproject.idav.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.icatproject.idav.NamedThreadFactory;
+import org.icatproject.idav.ParallelUpdater;
+import org.junit.After;
+import org.junit.Test;
+
+public class ParallelUpdaterTest {
+
+    private ExecutorService executor;
+    private ParallelUpdater updater;
+
+    // The items updated and the threads that updated them
+    private final Set<Integer> updated = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+    private final Set<String> threads = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    @After
+    public void tearDown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    // A pool like the one the servlet creates, with no queue
+    private ParallelUpdater createUpdater(int threads) {
+        executor = new ThreadPoolExecutor(threads - 1, threads - 1, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new NamedThreadFactory("idav-update"));
+        return new ParallelUpdater(executor, threads);
+    }
+
+    private static List<Integer> items(int count) {
+        List<Integer> items = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            items.add(i);
+        }
+        return items;
+    }
+
+    private class RecordingUpdate implements ParallelUpdater.Update<Integer, Exception> {
+        private final int failAt;
+        private final AtomicInteger calls = new AtomicInteger();
+
+        private RecordingUpdate(int failAt) {
+            this.failAt = failAt;
+        }
+
+        @Override
+        public void apply(Integer item) throws Exception {
+            calls.incrementAndGet();
+            if (item == failAt) {
+                throw new Exception("Failed at " + item);
+            }
+            threads.add(Thread.currentThread().getName());
+            // long enough for the helpers to get going
+            Thread.sleep(2);
+            assertTrue(updated.add(item));
+        }
+    }
+
+    @Test
+    public void testUpdatesEachItemOnce() throws Exception {
+        updater = createUpdater(4);
+        updater.updateAll("Testing", items(200), new RecordingUpdate(-1));
+        assertEquals(200, updated.size());
+        assertTrue(threads.size() > 1);
+        assertTrue(threads.size() <= 4);
+        assertTrue(threads.contains(Thread.currentThread().getName()));
+        assertTrue(updater.getStats().contains("batches=1, updated=200"));
+    }
+
+    @Test
+    public void testSerial() throws Exception {
+        updater = new ParallelUpdater(null, 1);
+        updater.updateAll("Testing", items(20), new RecordingUpdate(-1));
+        assertEquals(20, updated.size());
+        assertEquals(1, threads.size());
+        assertTrue(threads.contains(Thread.currentThread().getName()));
+    }
+
+    @Test
+    public void testStopsAtFailure() throws Exception {
+        updater = createUpdater(4);
+        RecordingUpdate update = new RecordingUpdate(50);
+        try {
+            updater.updateAll("Testing", items(1000), update);
+            fail("No exception thrown");
+        } catch (Exception e) {
+            assertEquals("Failed at 50", e.getMessage());
+        }
+        // only those already started when it failed are carried on with
+        assertTrue(update.calls.get() < 60);
+        assertTrue(updater.getStats().contains("failed batches=1"));
+    }
+
+    @Test
+    public void testEmptyList() throws Exception {
+        updater = createUpdater(4);
+        updater.updateAll("Testing", new ArrayList<Integer>(), new RecordingUpdate(-1));
+        assertEquals(0, updated.size());
+    }
+
+}
@@ -0,0 +1,164 @@
+package org.icatproject.idav.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.icatproject.idav.PortPool;
+import org.icatproject.idav.exceptions.BackendUnavailableException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that the proxy from a PortPool never lets two threads use the same
+ * port at once and passes exceptions from the port straight through.
+ */
+public class PortPoolTest {
+
+    public interface Service {
+        int call(int n) throws IOException;
+    }
+
+    // Fails if it is called by more than one thread at a time
+    private static class FakePort implements Service {
+        private final AtomicInteger users = new AtomicInteger();
+        private final AtomicInteger calls = new AtomicInteger();
+
+        @Override
+        public int call(int n) throws IOException {
+            if (n < 0) {
+                throw new IOException("negative");
+            }
+            if (users.incrementAndGet() != 1) {
+                throw new IllegalStateException("port used by two threads at once");
+            }
+            try {
+                CountDownLatch latch = blockingLatch;
+                if (latch != null) {
+                    startedLatch.countDown();
+                    latch.await(10, TimeUnit.SECONDS);
+                } else {
+                    Thread.sleep(2);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            calls.incrementAndGet();
+            users.decrementAndGet();
+            return n * 2;
+        }
+    }
+
+    // Set to make the ports wait until released
+    private static volatile CountDownLatch blockingLatch = null;
+    private static volatile CountDownLatch startedLatch = null;
+
+    private final List<FakePort> ports = new ArrayList<>();
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(12);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private PortPool<Service> createPool(int size, long maxWaitMillis) {
+        return new PortPool<>("test", new PortPool.PortFactory<Service>() {
+            @Override
+            public Service createPort() {
+                FakePort port = new FakePort();
+                ports.add(port);
+                return port;
+            }
+        }, size, maxWaitMillis);
+    }
+
+    @Test
+    public void testOneThreadPerPort() throws Exception {
+        PortPool<Service> pool = createPool(3, 10000);
+        final Service service = pool.getProxy(Service.class);
+        List<Future<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < 120; i++) {
+            final int n = i;
+            futures.add(executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws IOException {
+                    return service.call(n);
+                }
+            }));
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            assertEquals(i * 2, futures.get(i).get().intValue());
+        }
+        assertEquals(3, ports.size());
+        int calls = 0;
+        for (FakePort port : ports) {
+            calls += port.calls.get();
+        }
+        assertEquals(120, calls);
+        assertTrue(pool.getStats().contains("size=3, free=3, calls=120"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testExceptionPassedThrough() throws Exception {
+        createPool(1, 1000).getProxy(Service.class).call(-1);
+    }
+
+    @Test
+    public void testPortReturnedAfterException() throws Exception {
+        Service service = createPool(1, 100).getProxy(Service.class);
+        try {
+            service.call(-1);
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(4, service.call(2));
+    }
+
+    @Test
+    public void testWaitTimesOut() throws Exception {
+        PortPool<Service> pool = createPool(1, 50);
+        final Service service = pool.getProxy(Service.class);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch holding = new CountDownLatch(1);
+        blockingLatch = release;
+        startedLatch = holding;
+        // holds the only port until released
+        Future<Integer> held = executor.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws IOException {
+                return service.call(1);
+            }
+        });
+        assertTrue(holding.await(10, TimeUnit.SECONDS));
+        try {
+            service.call(2);
+            fail("expected the wait for a port to time out");
+        } catch (BackendUnavailableException e) {
+            // the client is told to try again later
+            assertEquals(1, e.getRetryAfterSecs());
+        }
+        release.countDown();
+        assertEquals(2, held.get().intValue());
+        blockingLatch = null;
+        assertEquals(4, service.call(2));
+        assertTrue(pool.getStats().contains("timeouts=1"));
+    }
+
+}
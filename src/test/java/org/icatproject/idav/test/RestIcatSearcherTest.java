@@ -0,0 +1,154 @@
+package org.icatproject.idav.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.icatproject.Datafile;
+import org.icatproject.Dataset;
+import org.icatproject.IcatExceptionType;
+import org.icatproject.IcatException_Exception;
+import org.icatproject.idav.RestIcatSearcher;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs RestIcatSearcher against a local stand-in for the ICAT REST entity
+ * manager which returns canned JSON for each query.
+ */
+public class RestIcatSearcherTest {
+
+    private static final String SESSION_ID = "0d9a3706-80d4-4d29-9ff3-4d65d4308a24";
+
+    private HttpServer server;
+    private RestIcatSearcher searcher;
+    // The JSON to return for each query
+    private final Map<String, String> responses = new HashMap<>();
+    private String lastSessionId;
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/icat/entityManager", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+                lastSessionId = params.get("sessionId");
+                String body;
+                int status;
+                if (!SESSION_ID.equals(lastSessionId)) {
+                    status = 403;
+                    body = "{\"code\":\"SESSION\",\"message\":\"Unable to find user by sessionid\"}";
+                } else if (responses.containsKey(params.get("query"))) {
+                    status = 200;
+                    body = responses.get(params.get("query"));
+                } else {
+                    status = 400;
+                    body = "{\"code\":\"BAD_PARAMETER\",\"message\":\"Bad query\"}";
+                }
+                byte[] bytes = body.getBytes("UTF-8");
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                exchange.sendResponseHeaders(status, bytes.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(bytes);
+                }
+            }
+        });
+        server.start();
+        searcher = new RestIcatSearcher(new URL("http://localhost:" + server.getAddress().getPort()));
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void testProjection() throws Exception {
+        String query = "SELECT datafile.name FROM Datafile datafile WHERE dataset.id=42";
+        responses.put(query, "[\"a.txt\",\"b & c.txt\"]");
+        List<Object> results = searcher.search(SESSION_ID, query);
+        assertEquals(2, results.size());
+        assertEquals("a.txt", results.get(0));
+        assertEquals("b & c.txt", results.get(1));
+        assertEquals(SESSION_ID, lastSessionId);
+    }
+
+    @Test
+    public void testEntities() throws Exception {
+        String query = "SELECT datafile FROM Datafile datafile WHERE datafile.name='a.txt'";
+        responses.put(query, "[{\"Datafile\":{\"id\":7,\"name\":\"a.txt\",\"fileSize\":1234,"
+                + "\"createTime\":\"2016-03-01T10:15:30.000Z\",\"modTime\":\"2016-03-02T11:00:00.000+01:00\","
+                + "\"checksum\":\"unknown to the client\",\"doi\":null}}]");
+        List<Object> results = searcher.search(SESSION_ID, query);
+        assertEquals(1, results.size());
+        Datafile df = (Datafile) results.get(0);
+        assertEquals(7L, df.getId().longValue());
+        assertEquals("a.txt", df.getName());
+        assertEquals(1234L, df.getFileSize().longValue());
+        assertEquals(2016, df.getCreateTime().getYear());
+        assertEquals(15, df.getCreateTime().getMinute());
+        assertEquals(60, df.getModTime().getTimezone());
+        assertNull(df.getDataset());
+    }
+
+    @Test
+    public void testIncludedEntities() throws Exception {
+        String query = "SELECT dataset FROM Dataset dataset WHERE dataset.id=42 INCLUDE 1";
+        responses.put(query, "[{\"Dataset\":{\"id\":42,\"name\":\"ds1\","
+                + "\"datafiles\":[{\"id\":1,\"name\":\"x\"},{\"id\":2,\"name\":\"y\"}],"
+                + "\"investigation\":{\"id\":3,\"name\":\"RB1234\",\"visitId\":\"1\"}}}]");
+        Dataset ds = (Dataset) searcher.search(SESSION_ID, query).get(0);
+        assertEquals("ds1", ds.getName());
+        assertEquals("RB1234", ds.getInvestigation().getName());
+        assertEquals("1", ds.getInvestigation().getVisitId());
+        assertEquals(2, ds.getDatafiles().size());
+        assertEquals("y", ds.getDatafiles().get(1).getName());
+    }
+
+    @Test
+    public void testSessionError() throws Exception {
+        try {
+            searcher.search("expired", "SELECT f FROM Facility f");
+            fail("expected an IcatException_Exception");
+        } catch (IcatException_Exception e) {
+            assertEquals(IcatExceptionType.SESSION, e.getFaultInfo().getType());
+            assertTrue(e.getMessage().contains("sessionid"));
+        }
+    }
+
+    @Test
+    public void testBadQuery() throws Exception {
+        try {
+            searcher.search(SESSION_ID, "SELECT nonsense");
+            fail("expected an IcatException_Exception");
+        } catch (IcatException_Exception e) {
+            assertEquals(IcatExceptionType.BAD_PARAMETER, e.getFaultInfo().getType());
+        }
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) throws IOException {
+        Map<String, String> params = new HashMap<>();
+        for (String param : rawQuery.split("&")) {
+            String[] parts = param.split("=", 2);
+            params.put(URLDecoder.decode(parts[0], "UTF-8"), URLDecoder.decode(parts[1], "UTF-8"));
+        }
+        return params;
+    }
+
+}
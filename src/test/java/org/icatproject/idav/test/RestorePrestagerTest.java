@@ -0,0 +1,138 @@
+package org.icatproject.idav.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.icatproject.idav.RequestContext;
+import org.icatproject.idav.RestorePrestager;
+import org.junit.After;
+import org.junit.Test;
+
+public class RestorePrestagerTest {
+
+    private RestorePrestager prestager;
+
+    // The folders restored and the auth strings they were restored with
+    private final List<String> restored = new CopyOnWriteArrayList<>();
+
+    @After
+    public void tearDown() {
+        if (prestager != null) {
+            prestager.shutdown();
+        }
+    }
+
+    private class RecordingRestorer implements RestorePrestager.Restorer {
+        private final CountDownLatch done;
+
+        private RecordingRestorer(int expected) {
+            done = new CountDownLatch(expected);
+        }
+
+        @Override
+        public void restore(RequestContext context, String folderUri) {
+            restored.add(context.getAuthString() + " " + folderUri);
+            done.countDown();
+        }
+    }
+
+    private static RequestContext context(String authString) {
+        RequestContext context = new RequestContext(authString);
+        context.setIcatSessionId("session-" + authString);
+        return context;
+    }
+
+    @Test
+    public void testRestoresEachFolderOnce() throws Exception {
+        RecordingRestorer restorer = new RecordingRestorer(2);
+        prestager = new RestorePrestager(restorer, 1, 10, 60000, 100);
+        prestager.request(context("a"), "/ISIS/INST/cycle/inv/ds1");
+        prestager.request(context("b"), "/ISIS/INST/cycle/inv/ds1/");
+        prestager.request(context("a"), "/ISIS//INST/cycle/inv/ds1");
+        prestager.request(context("a"), "/ISIS/INST/cycle/inv/ds2");
+        assertTrue(restorer.done.await(10, TimeUnit.SECONDS));
+        Thread.sleep(50);
+        assertEquals(2, restored.size());
+        assertTrue(restored.contains("a /ISIS/INST/cycle/inv/ds1"));
+        assertTrue(restored.contains("a /ISIS/INST/cycle/inv/ds2"));
+        assertTrue(prestager.getStats().contains("scheduled=2, duplicates=2"));
+    }
+
+    @Test
+    public void testAskedForAgainAfterDedupTime() throws Exception {
+        RecordingRestorer restorer = new RecordingRestorer(2);
+        prestager = new RestorePrestager(restorer, 1, 10, 50, 100);
+        prestager.request(context("a"), "/ISIS/ds1");
+        Thread.sleep(100);
+        prestager.request(context("a"), "/ISIS/ds1");
+        assertTrue(restorer.done.await(10, TimeUnit.SECONDS));
+        assertEquals(2, restored.size());
+    }
+
+    @Test
+    public void testRateLimit() throws Exception {
+        RecordingRestorer restorer = new RecordingRestorer(3);
+        prestager = new RestorePrestager(restorer, 1, 10, 60000, 3);
+        for (int i = 0; i < 10; i++) {
+            prestager.request(context("a"), "/ISIS/ds" + i);
+        }
+        assertTrue(restorer.done.await(10, TimeUnit.SECONDS));
+        Thread.sleep(50);
+        assertEquals(3, restored.size());
+        assertTrue(prestager.getStats().contains("rate limited=7"));
+    }
+
+    @Test
+    public void testQueueFull() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        prestager = new RestorePrestager(new RestorePrestager.Restorer() {
+            @Override
+            public void restore(RequestContext context, String folderUri) throws Exception {
+                started.countDown();
+                release.await(10, TimeUnit.SECONDS);
+                restored.add(folderUri);
+            }
+        }, 1, 1, 60000, 100);
+        prestager.request(context("a"), "/ISIS/ds1");
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        prestager.request(context("a"), "/ISIS/ds2");
+        prestager.request(context("a"), "/ISIS/ds3");
+        assertTrue(prestager.getStats().contains("rejected=1"));
+        release.countDown();
+        // a folder that was rejected can be asked for again straight away
+        Thread.sleep(100);
+        prestager.request(context("a"), "/ISIS/ds3");
+        Thread.sleep(100);
+        assertEquals(3, restored.size());
+    }
+
+    @Test
+    public void testAskedForAgainAfterFailure() throws Exception {
+        final CountDownLatch done = new CountDownLatch(2);
+        prestager = new RestorePrestager(new RestorePrestager.Restorer() {
+            @Override
+            public void restore(RequestContext context, String folderUri) throws Exception {
+                restored.add(context.getAuthString() + " " + folderUri);
+                done.countDown();
+                if (context.getAuthString().equals("a")) {
+                    throw new Exception("No access to " + folderUri);
+                }
+            }
+        }, 1, 10, 60000, 100);
+        prestager.request(context("a"), "/ISIS/ds1");
+        Thread.sleep(100);
+        // another user may be able to restore it
+        prestager.request(context("b"), "/ISIS/ds1");
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(2, restored.size());
+        assertTrue(restored.contains("b /ISIS/ds1"));
+        assertTrue(prestager.getStats().contains("failed=1"));
+    }
+
+}
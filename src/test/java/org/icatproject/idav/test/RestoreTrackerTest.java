@@ -0,0 +1,48 @@
+package org.icatproject.idav.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.icatproject.idav.RestoreTracker;
+import org.junit.Test;
+
+public class RestoreTrackerTest {
+
+    @Test
+    public void testInitialEstimate() {
+        RestoreTracker tracker = new RestoreTracker(300000, 30000, 3600000, 100);
+        assertEquals(300, tracker.offline(1L));
+        assertEquals(300, tracker.getRetryAfterSecs());
+    }
+
+    @Test
+    public void testWaitShortensWhileRestoring() throws Exception {
+        RestoreTracker tracker = new RestoreTracker(2500, 0, 3600000, 100);
+        assertEquals(3, tracker.offline(1L));
+        Thread.sleep(1100);
+        // the time already waited is taken off
+        assertTrue(tracker.offline(1L) <= 2);
+    }
+
+    @Test
+    public void testKeptWithinLimits() {
+        assertEquals(30, new RestoreTracker(1000, 30000, 3600000, 100).offline(1L));
+        assertEquals(3600, new RestoreTracker(86400000, 30000, 3600000, 100).offline(1L));
+    }
+
+    @Test
+    public void testLearnsFromRestores() throws Exception {
+        RestoreTracker tracker = new RestoreTracker(100000, 0, 3600000, 100);
+        tracker.offline(1L);
+        Thread.sleep(50);
+        tracker.online(1L);
+        // moved a fifth of the way towards the restore that took about 50ms
+        long average = tracker.getAverageRestoreMillis();
+        assertTrue(average < 81000 && average > 79000);
+        // a file that was never offline does not count
+        tracker.online(2L);
+        assertEquals(average, tracker.getAverageRestoreMillis());
+        assertTrue(tracker.getStats().contains("restores seen=1"));
+    }
+
+}
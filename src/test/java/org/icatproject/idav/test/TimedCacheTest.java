@@ -0,0 +1,63 @@
+package org.icatproject.idav.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.icatproject.idav.cache.TimedCache;
+import org.junit.Test;
+
+public class TimedCacheTest {
+
+    @Test
+    public void testEntriesExpire() throws Exception {
+        TimedCache<String, String> cache = new TimedCache<>(50, 10);
+        cache.put("a", "1");
+        assertEquals("1", cache.get("a"));
+        Thread.sleep(100);
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.size());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void testNothingCachedWithoutTtl() {
+        TimedCache<String, String> cache = new TimedCache<>(0, 10);
+        cache.put("a", "1");
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEvicted() {
+        TimedCache<String, String> cache = new TimedCache<>(60000, 2);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        // "b" becomes the least recently used
+        cache.get("a");
+        cache.put("c", "3");
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictions());
+        assertEquals("1", cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals("3", cache.get("c"));
+    }
+
+    @Test
+    public void testRemoveMatching() {
+        TimedCache<String, String> cache = new TimedCache<>(60000, 10);
+        cache.put("/a", "1");
+        cache.put("/a/b", "2");
+        cache.put("/c", "3");
+        int removed = cache.removeMatching(new TimedCache.KeyFilter<String>() {
+            @Override
+            public boolean matches(String key) {
+                return key.startsWith("/a");
+            }
+        });
+        assertEquals(2, removed);
+        assertEquals(1, cache.size());
+        assertEquals("3", cache.get("/c"));
+    }
+
+}